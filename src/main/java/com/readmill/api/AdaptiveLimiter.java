@@ -0,0 +1,141 @@
+package com.readmill.api;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the number of requests in flight to the capacity of the server,
+ * judged by how long it takes to answer.
+ * <p/>
+ * Keeps two averages of the time to the response headers: a long one over
+ * the last few hundred requests, and a short one over the last ten. While
+ * the short average stays close to the long one the server keeps up, and
+ * the limit grows. When the short average rises, requests are queueing on
+ * the server, and the limit shrinks by the ratio of the two (a gradient).
+ * Failed, timed out and throttled requests cut the limit by 10% on top.
+ * <p/>
+ * The limit only grows while at least half of it is in use, so a quiet
+ * night does not leave a huge limit behind for the morning.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  // Between 2 and 32 requests in flight, starting at 8
+ *  wrapper.setAdaptiveLimiter(new AdaptiveLimiter(8, 2, 32));
+ *  ...
+ *  metrics.gauge("readmill.limit", wrapper.getAdaptiveLimiter().getLimit());
+ * </pre>
+ * </code>
+ *
+ * @see RequestDispatcher
+ */
+public class AdaptiveLimiter {
+  private static final int SHORT_WINDOW = 10;
+  private static final int LONG_WINDOW = 600;
+
+  /**
+   * How much slower than the long average the short average may get before
+   * the limit shrinks.
+   */
+  private static final double TOLERANCE = 1.5;
+  private static final double SMOOTHING = 0.2;
+  private static final double BACKOFF = 0.9;
+
+  private final int mMinLimit;
+  private final int mMaxLimit;
+
+  private double mEstimate;
+  private double mShortRtt;
+  private double mLongRtt;
+  private long mSamples;
+  private long mDrops;
+
+  /**
+   * Creates a limiter.
+   *
+   * @param initialLimit Limit to start at
+   * @param minLimit     Lowest limit
+   * @param maxLimit     Highest limit
+   */
+  public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+    if(minLimit < 1 || maxLimit < minLimit) {
+      throw new IllegalArgumentException("need 1 <= minLimit <= maxLimit");
+    }
+    mMinLimit = minLimit;
+    mMaxLimit = maxLimit;
+    mEstimate = clamp(initialLimit);
+  }
+
+  /**
+   * Gets the current limit of requests in flight.
+   *
+   * @return The limit
+   */
+  public synchronized int getLimit() {
+    return (int) mEstimate;
+  }
+
+  /**
+   * Gets the long average time to the response headers, which the limiter
+   * treats as the latency of a server that keeps up.
+   *
+   * @return Average in milliseconds, or 0 before the first sample
+   */
+  public synchronized long getBaselineRttMillis() {
+    return TimeUnit.NANOSECONDS.toMillis((long) mLongRtt);
+  }
+
+  /**
+   * Gets the number of failed, timed out and throttled requests seen.
+   *
+   * @return Dropped requests
+   */
+  public synchronized long getDropCount() {
+    return mDrops;
+  }
+
+  /**
+   * Records a request that got a response.
+   *
+   * @param rttNanos Time from sending the request to the response headers
+   * @param inFlight Requests in flight when it was sent, including itself
+   * @return The new limit
+   */
+  public synchronized int onSample(long rttNanos, int inFlight) {
+    // A coarse clock can measure 0, which would make the ratios below NaN
+    rttNanos = Math.max(1, rttNanos);
+    mSamples++;
+    mShortRtt += (rttNanos - mShortRtt) / Math.min(mSamples, SHORT_WINDOW);
+    mLongRtt += (rttNanos - mLongRtt) / Math.min(mSamples, LONG_WINDOW);
+
+    if(mLongRtt / mShortRtt > 2) {
+      // Latency dropped well below the baseline, such as after an outage
+      // that lasted long enough to raise it. Catch up faster.
+      mLongRtt *= 0.95;
+    }
+
+    if(inFlight < mEstimate / 2) {
+      // Not enough load to tell whether the server could take more
+      return getLimit();
+    }
+
+    double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * mLongRtt / mShortRtt));
+    double queueSize = Math.sqrt(mEstimate);
+    double target = mEstimate * gradient + queueSize;
+    mEstimate = clamp(mEstimate * (1 - SMOOTHING) + target * SMOOTHING);
+    return getLimit();
+  }
+
+  /**
+   * Records a request that failed, timed out or was throttled.
+   *
+   * @return The new limit
+   */
+  public synchronized int onDrop() {
+    mDrops++;
+    mEstimate = clamp(mEstimate * BACKOFF);
+    return getLimit();
+  }
+
+  private double clamp(double limit) {
+    return Math.max(mMinLimit, Math.min(mMaxLimit, limit));
+  }
+}
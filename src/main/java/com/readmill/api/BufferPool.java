@@ -0,0 +1,72 @@
+package com.readmill.api;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of byte buffers that are reused for request bodies.
+ * <p/>
+ * Buffers grown past the maximum size are dropped when released rather
+ * than kept, so one unusually large body does not pin its buffer for the
+ * lifetime of the pool.
+ */
+class BufferPool {
+  private final int mBufferSize;
+  private final int mMaxBufferSize;
+  private final int mMaxPooled;
+
+  private final ConcurrentLinkedQueue<byte[]> mBuffers = new ConcurrentLinkedQueue<byte[]>();
+  private final AtomicInteger mPooled = new AtomicInteger();
+
+  /**
+   * Creates a pool.
+   *
+   * @param bufferSize    Size of new buffers
+   * @param maxBufferSize Largest buffer to keep when released
+   * @param maxPooled     Maximum number of idle buffers to keep
+   */
+  BufferPool(int bufferSize, int maxBufferSize, int maxPooled) {
+    mBufferSize = bufferSize;
+    mMaxBufferSize = maxBufferSize;
+    mMaxPooled = maxPooled;
+  }
+
+  /**
+   * Takes a buffer from the pool, or allocates one if the pool is empty.
+   *
+   * @return A buffer, at least the size of new buffers
+   */
+  byte[] acquire() {
+    byte[] buffer = mBuffers.poll();
+    if(buffer == null) {
+      return new byte[mBufferSize];
+    }
+    mPooled.decrementAndGet();
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to the pool. The buffer must not be used afterwards.
+   *
+   * @param buffer The buffer
+   */
+  void release(byte[] buffer) {
+    if(buffer.length > mMaxBufferSize) {
+      return;
+    }
+    if(mPooled.incrementAndGet() > mMaxPooled) {
+      mPooled.decrementAndGet();
+      return;
+    }
+    mBuffers.offer(buffer);
+  }
+
+  /**
+   * Gets the number of idle buffers in the pool.
+   *
+   * @return Number of pooled buffers
+   */
+  int getPooledCount() {
+    return mPooled.get();
+  }
+}
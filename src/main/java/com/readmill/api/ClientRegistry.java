@@ -0,0 +1,191 @@
+package com.readmill.api;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Http clients shared between wrappers, so that wrappers talking to the same
+ * environment share one connection pool.
+ * <p/>
+ * Since the token lives on the wrapper, a backend serving many users tends
+ * to create a wrapper per user. Each of them would otherwise build its own
+ * client, with its own pool, sockets and evictor thread. Wrappers using a
+ * registry get the client of every other wrapper with the same environment
+ * and connection settings (pool size, keep alive and idle timeout). The
+ * client is shut down when the last of them is closed.
+ * <p/>
+ * The wrappers sharing a client also share the {@link RequestDispatcher} in
+ * front of it, so priorities, fairness between tenants and the limit on
+ * requests in flight hold across all of them. The first
+ * {@link AdaptiveLimiter} set on one of the wrappers drives that limit.
+ * They also share the worker threads for background work, such as hedged
+ * requests and graph fetches. Timed work runs on a single scheduler thread
+ * shared by all wrappers anyway.
+ * <p/>
+ * Caches such as an {@link EntityCache} are shared by setting the same
+ * instance on the wrappers.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  ReadmillWrapper wrapper = new ReadmillWrapper(clientId, clientSecret, Environment.Live);
+ *  wrapper.setClientRegistry(ClientRegistry.getDefault());
+ *  wrapper.setToken(tokenOfUser);
+ *  ...
+ *  wrapper.close(); // Keeps the pool open for the other wrappers
+ * </pre>
+ * </code>
+ */
+public class ClientRegistry {
+  private static final ClientRegistry DEFAULT = new ClientRegistry();
+
+  private final Map<List<Object>, Entry> mEntries = new HashMap<List<Object>, Entry>();
+  private final Map<HttpClient, Entry> mByClient = new IdentityHashMap<HttpClient, Entry>();
+
+  /**
+   * A shared client, with the dispatcher and limiter of the requests sent
+   * through it and the executor for background work of its wrappers.
+   */
+  static class Entry {
+    final List<Object> key;
+    final HttpClient client;
+    final IdleConnectionEvictor evictor;
+    final RequestDispatcher dispatcher;
+    final ExecutorService executor;
+    volatile AdaptiveLimiter limiter;
+    int references;
+
+    Entry(List<Object> key, HttpClient client, IdleConnectionEvictor evictor, RequestDispatcher dispatcher,
+          ExecutorService executor) {
+      this.key = key;
+      this.client = client;
+      this.evictor = evictor;
+      this.dispatcher = dispatcher;
+      this.executor = executor;
+    }
+  }
+
+  /**
+   * Gets the registry shared by the whole process.
+   *
+   * @return The default registry
+   */
+  public static ClientRegistry getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Gets the number of clients in the registry.
+   *
+   * @return Number of clients that are in use by at least one wrapper
+   */
+  public synchronized int getClientCount() {
+    return mEntries.size();
+  }
+
+  /**
+   * Gets the number of wrappers using a client.
+   *
+   * @param client The client
+   * @return Number of wrappers using it, 0 if it is not in the registry
+   */
+  public synchronized int getReferenceCount(HttpClient client) {
+    Entry entry = mByClient.get(client);
+    return entry != null ? entry.references : 0;
+  }
+
+  /**
+   * Gets the dispatcher shared by the wrappers using a client.
+   *
+   * @param client The client
+   * @return The dispatcher, or null if the client is not in the registry
+   */
+  public synchronized RequestDispatcher getDispatcher(HttpClient client) {
+    Entry entry = mByClient.get(client);
+    return entry != null ? entry.dispatcher : null;
+  }
+
+  /**
+   * Gets the executor shared by the wrappers using a client.
+   *
+   * @param client The client
+   * @return The executor, or null if the client is not in the registry
+   */
+  public synchronized ExecutorService getExecutor(HttpClient client) {
+    Entry entry = mByClient.get(client);
+    return entry != null ? entry.executor : null;
+  }
+
+  /**
+   * Gets the client for the settings of a wrapper, creating it with the
+   * wrapper if there is none. Must be released with release() when the
+   * wrapper is done with it.
+   *
+   * @param wrapper The wrapper
+   * @param limit   Limit of the dispatcher, if it has to be created
+   * @return The shared client, dispatcher and limiter
+   */
+  synchronized Entry acquire(ReadmillWrapper wrapper, int limit) {
+    List<Object> key = keyOf(wrapper);
+    Entry entry = mEntries.get(key);
+    if(entry == null) {
+      HttpClient client = wrapper.createHttpClient();
+      IdleConnectionEvictor evictor = null;
+      ClientConnectionManager connectionManager = client.getConnectionManager();
+      if(connectionManager != null) {
+        evictor = new IdleConnectionEvictor(connectionManager, wrapper.getIdleConnectionTimeout());
+        evictor.start();
+      }
+      entry = new Entry(key, client, evictor, new RequestDispatcher(limit), ReadmillWrapper.newExecutor());
+      mEntries.put(key, entry);
+      mByClient.put(client, entry);
+    }
+    AdaptiveLimiter limiter = wrapper.getAdaptiveLimiter();
+    if(entry.limiter == null && limiter != null) {
+      entry.limiter = limiter;
+      entry.dispatcher.setLimit(limiter.getLimit());
+    }
+    entry.references++;
+    return entry;
+  }
+
+  /**
+   * Releases a client acquired by a wrapper. The last release shuts the
+   * client and its executor down.
+   *
+   * @param entry The client, as returned by acquire()
+   */
+  synchronized void release(Entry entry) {
+    if(--entry.references > 0) {
+      return;
+    }
+    HttpClient client = entry.client;
+    mEntries.remove(entry.key);
+    mByClient.remove(client);
+    if(entry.evictor != null) {
+      entry.evictor.shutdown();
+    }
+    entry.executor.shutdownNow();
+    ClientConnectionManager connectionManager = client.getConnectionManager();
+    if(connectionManager != null) {
+      connectionManager.shutdown();
+    }
+  }
+
+  private static List<Object> keyOf(ReadmillWrapper wrapper) {
+    Environment env = wrapper.getEnvironment();
+    return Arrays.<Object>asList(
+        env != null ? env.getApiHosts() : null,
+        env != null ? env.getWebHost() : null,
+        wrapper.getMaxConnectionsPerRoute(),
+        wrapper.getMaxConnections(),
+        wrapper.getKeepAlive(),
+        wrapper.getIdleConnectionTimeout());
+  }
+}
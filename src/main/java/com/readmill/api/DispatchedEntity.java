@@ -0,0 +1,92 @@
+package com.readmill.api;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.conn.EofSensorInputStream;
+import org.apache.http.conn.EofSensorWatcher;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Response entity that runs a callback once the entity has been read to the
+ * end, closed, consumed or aborted, which is when its connection goes back
+ * to the pool. Used to hold on to what a request needs until then, such as
+ * its slot in the dispatcher and the timer enforcing its deadline.
+ */
+class DispatchedEntity extends HttpEntityWrapper implements ConnectionReleaseTrigger, EofSensorWatcher {
+  private final Runnable mOnRelease;
+  private final AtomicBoolean mReleased = new AtomicBoolean();
+
+  DispatchedEntity(HttpEntity entity, Runnable onRelease) {
+    super(entity);
+    mOnRelease = onRelease;
+  }
+
+  @Override
+  public InputStream getContent() throws IOException {
+    return new EofSensorInputStream(wrappedEntity.getContent(), this);
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    try {
+      wrappedEntity.writeTo(out);
+    } finally {
+      release();
+    }
+  }
+
+  @Override
+  public void consumeContent() throws IOException {
+    try {
+      wrappedEntity.consumeContent();
+    } finally {
+      release();
+    }
+  }
+
+  public void releaseConnection() throws IOException {
+    try {
+      if(wrappedEntity instanceof ConnectionReleaseTrigger) {
+        ((ConnectionReleaseTrigger) wrappedEntity).releaseConnection();
+      }
+    } finally {
+      release();
+    }
+  }
+
+  public void abortConnection() throws IOException {
+    try {
+      if(wrappedEntity instanceof ConnectionReleaseTrigger) {
+        ((ConnectionReleaseTrigger) wrappedEntity).abortConnection();
+      }
+    } finally {
+      release();
+    }
+  }
+
+  public boolean eofDetected(InputStream wrapped) throws IOException {
+    release();
+    return true;
+  }
+
+  public boolean streamClosed(InputStream wrapped) throws IOException {
+    release();
+    return true;
+  }
+
+  public boolean streamAbort(InputStream wrapped) throws IOException {
+    release();
+    return true;
+  }
+
+  private void release() {
+    if(mReleased.compareAndSet(false, true)) {
+      mOnRelease.run();
+    }
+  }
+}
@@ -0,0 +1,484 @@
+package com.readmill.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Off-heap cache of entities (books, users, readings...) keyed by their
+ * numeric Readmill id.
+ * <p/>
+ * Entities are stored as serialized JSON in direct ByteBuffer slabs, outside
+ * of the Java heap, so holding millions of them neither grows the heap nor
+ * slows down garbage collection. The total size of the slabs is fixed up
+ * front, which keeps memory use predictable.
+ * <p/>
+ * Like memcached, slabs are carved into chunks of a size class (64 bytes,
+ * growing by 25% per class) and every entity is stored in the smallest
+ * chunk it fits in. Ids are mapped to chunks with an open addressing index
+ * of primitive longs per collection. When all slabs are in use, entities of
+ * the same size class are evicted in approximate LRU order using the clock
+ * algorithm: a read marks an entity as recently used, and the clock hand
+ * evicts the first entity it finds that has not been used since the hand
+ * last passed it.
+ * <p/>
+ * Set on a wrapper, the cache sits in front of {@link RequestBuilder#fetch(String)}
+ * for single entities (<code>GET /books/1</code>), and writes through the
+ * wrapper invalidate the entity they change. A fetch that races with such a
+ * write does not cache what it fetched.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  // 256MB of slabs, entries expire after an hour
+ *  EntityCache cache = new EntityCache(256 * 1024 * 1024);
+ *  cache.setTimeToLive(1, TimeUnit.HOURS);
+ *  wrapper.setEntityCache(cache);
+ *  JSONObject book = wrapper.get("/books/1").fetch("book");
+ * </pre>
+ * </code>
+ */
+public class EntityCache {
+  /**
+   * Default size of a slab, also the max size of a cached entity.
+   */
+  public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+  private static final int MIN_CHUNK_SIZE = 64;
+  private static final double GROWTH_FACTOR = 1.25;
+
+  // Chunk layout: length of the payload, id, expiry, collection, payload
+  private static final int HEADER_SIZE = 4 + 8 + 8 + 1;
+
+  private static final StreamingJsonCodec CODEC = new StreamingJsonCodec();
+
+  /**
+   * Number of invalidation counters, ids share a counter by hash.
+   */
+  private static final int GENERATIONS = 1024;
+
+  private final int mSlabSize;
+  private final int mMaxSlabs;
+  private final int[] mChunkSizes;
+  private final SizeClass[] mClasses;
+  private final List<Slab> mSlabs = new ArrayList<Slab>();
+
+  private final Map<String, Integer> mCollectionIds = new HashMap<String, Integer>();
+  private final List<String> mCollections = new ArrayList<String>();
+  private final List<LongLongMap> mIndexes = new ArrayList<LongLongMap>();
+
+  private final long[] mGenerations = new long[GENERATIONS];
+
+  private long mTimeToLiveMillis;
+  private long mHits, mMisses, mEvictions;
+  private int mEntries;
+
+  /**
+   * A direct buffer carved into chunks of one size class.
+   */
+  private static class Slab {
+    final ByteBuffer buffer;
+    final int chunkSize;
+    final int chunks;
+    final BitSet referenced;
+
+    Slab(int size, int chunkSize) {
+      this.buffer = ByteBuffer.allocateDirect(size);
+      this.chunkSize = chunkSize;
+      this.chunks = size / chunkSize;
+      this.referenced = new BitSet(chunks);
+    }
+  }
+
+  /**
+   * Slabs and free chunks of one chunk size.
+   */
+  private static class SizeClass {
+    final List<Integer> slabs = new ArrayList<Integer>();
+    long[] free = new long[16];
+    int freeCount;
+    // Clock hand, as an index into slabs and a chunk within that slab
+    int handSlab;
+    int handChunk;
+
+    void pushFree(long handle) {
+      if(freeCount == free.length) {
+        long[] grown = new long[free.length * 2];
+        System.arraycopy(free, 0, grown, 0, freeCount);
+        free = grown;
+      }
+      free[freeCount++] = handle;
+    }
+  }
+
+  /**
+   * Creates a cache with slabs of the default size.
+   *
+   * @param capacityBytes Total size of the slabs
+   */
+  public EntityCache(long capacityBytes) {
+    this(capacityBytes, DEFAULT_SLAB_SIZE);
+  }
+
+  /**
+   * Creates a cache.
+   *
+   * @param capacityBytes Total size of the slabs
+   * @param slabSize      Size of a slab, which is also the max size of a
+   *                      cached entity
+   */
+  public EntityCache(long capacityBytes, int slabSize) {
+    if(slabSize < MIN_CHUNK_SIZE || capacityBytes < slabSize) {
+      throw new IllegalArgumentException("capacity must hold at least one slab of at least " + MIN_CHUNK_SIZE + " bytes");
+    }
+    mSlabSize = slabSize;
+    mMaxSlabs = (int) Math.min(Integer.MAX_VALUE, capacityBytes / slabSize);
+
+    List<Integer> sizes = new ArrayList<Integer>();
+    for(double size = MIN_CHUNK_SIZE; size < slabSize; size *= GROWTH_FACTOR) {
+      // Keep chunks 8 byte aligned
+      sizes.add(((int) size + 7) & ~7);
+    }
+    sizes.add(slabSize);
+    mChunkSizes = new int[sizes.size()];
+    mClasses = new SizeClass[sizes.size()];
+    for(int i = 0; i < mChunkSizes.length; i++) {
+      mChunkSizes[i] = sizes.get(i);
+      mClasses[i] = new SizeClass();
+    }
+  }
+
+  /**
+   * Sets how long entities stay in the cache after they were stored.
+   *
+   * @param duration Time to live, or 0 to keep entities until evicted
+   * @param unit     Unit of the duration
+   */
+  public synchronized void setTimeToLive(long duration, TimeUnit unit) {
+    mTimeToLiveMillis = unit.toMillis(duration);
+  }
+
+  /**
+   * Gets a cached entity.
+   *
+   * @param collection Collection of the entity, e.g. "books"
+   * @param id         Id of the entity
+   * @return A new copy of the entity, or null if it is not cached
+   */
+  public JSONObject get(String collection, long id) {
+    byte[] payload;
+    synchronized(this) {
+      payload = read(collection, id);
+    }
+    if(payload == null) {
+      return null;
+    }
+
+    try {
+      return CODEC.readObject(payload, 0, payload.length);
+    } catch(JSONException e) {
+      throw new IllegalStateException("corrupt cache entry", e);
+    }
+  }
+
+  /**
+   * Stores an entity, replacing any cached version of it. Entities larger
+   * than a slab are not cached.
+   *
+   * @param collection Collection of the entity, e.g. "books"
+   * @param id         Id of the entity
+   * @param entity     The entity
+   * @return true if the entity was cached
+   */
+  public boolean put(String collection, long id, JSONObject entity) {
+    byte[] payload = encode(entity);
+    synchronized(this) {
+      return store(collection, id, payload);
+    }
+  }
+
+  /**
+   * Gets the invalidation generation of an entity, to pass to
+   * {@link #put(String, long, JSONObject, long)} after fetching it.
+   *
+   * @param collection Collection of the entity, e.g. "books"
+   * @param id         Id of the entity
+   * @return The generation
+   */
+  public synchronized long getGeneration(String collection, long id) {
+    return mGenerations[generationOf(collection, id)];
+  }
+
+  /**
+   * Stores an entity unless it has been invalidated since a generation was
+   * taken. A response that was on its way while a write changed the entity
+   * is then not cached over the invalidation.
+   *
+   * @param collection Collection of the entity, e.g. "books"
+   * @param id         Id of the entity
+   * @param entity     The entity
+   * @param generation Generation taken before the entity was fetched
+   * @return true if the entity was cached
+   * @see #getGeneration(String, long)
+   */
+  public boolean put(String collection, long id, JSONObject entity, long generation) {
+    byte[] payload = encode(entity);
+    synchronized(this) {
+      if(mGenerations[generationOf(collection, id)] != generation) {
+        return false;
+      }
+      return store(collection, id, payload);
+    }
+  }
+
+  /**
+   * Removes an entity from the cache.
+   *
+   * @param collection Collection of the entity, e.g. "books"
+   * @param id         Id of the entity
+   */
+  public synchronized void invalidate(String collection, long id) {
+    mGenerations[generationOf(collection, id)]++;
+    Integer collectionId = mCollectionIds.get(collection);
+    if(collectionId == null) {
+      return;
+    }
+    long handle = mIndexes.get(collectionId).remove(id);
+    if(handle >= 0) {
+      free(handle);
+    }
+  }
+
+  /**
+   * Removes all entities. The slabs stay allocated.
+   */
+  public synchronized void clear() {
+    for(int i = 0; i < GENERATIONS; i++) {
+      mGenerations[i]++;
+    }
+    for(LongLongMap index : mIndexes) {
+      index.clear();
+    }
+    for(int i = 0; i < mClasses.length; i++) {
+      SizeClass sizeClass = mClasses[i];
+      sizeClass.freeCount = 0;
+      for(int slab : sizeClass.slabs) {
+        addChunks(sizeClass, slab);
+      }
+    }
+    mEntries = 0;
+  }
+
+  public synchronized int size() {
+    return mEntries;
+  }
+
+  public synchronized long getHitCount() {
+    return mHits;
+  }
+
+  public synchronized long getMissCount() {
+    return mMisses;
+  }
+
+  public synchronized long getEvictionCount() {
+    return mEvictions;
+  }
+
+  /**
+   * Gets the off-heap memory allocated for slabs so far.
+   *
+   * @return Allocated bytes
+   */
+  public synchronized long getAllocatedBytes() {
+    return (long) mSlabs.size() * mSlabSize;
+  }
+
+  /*
+  * Private, must hold the lock
+  */
+
+  private boolean store(String collection, long id, byte[] payload) {
+    int collectionId = collectionId(collection);
+    LongLongMap index = mIndexes.get(collectionId);
+    long previous = index.remove(id);
+    if(previous >= 0) {
+      free(previous);
+    }
+
+    int sizeClass = sizeClassOf(HEADER_SIZE + payload.length);
+    if(sizeClass < 0) {
+      return false;
+    }
+    long handle = allocate(sizeClass);
+    if(handle < 0) {
+      return false;
+    }
+
+    long expiresAt = mTimeToLiveMillis > 0 ? System.currentTimeMillis() + mTimeToLiveMillis : Long.MAX_VALUE;
+    ByteBuffer buffer = slabOf(handle).buffer;
+    buffer.position(offsetOf(handle));
+    buffer.putInt(payload.length);
+    buffer.putLong(id);
+    buffer.putLong(expiresAt);
+    buffer.put((byte) collectionId);
+    buffer.put(payload);
+
+    index.put(id, handle);
+    mEntries++;
+    return true;
+  }
+
+  private byte[] read(String collection, long id) {
+    Integer collectionId = mCollectionIds.get(collection);
+    long handle = collectionId == null ? -1 : mIndexes.get(collectionId).get(id);
+    if(handle < 0) {
+      mMisses++;
+      return null;
+    }
+
+    Slab slab = slabOf(handle);
+    int offset = offsetOf(handle);
+    ByteBuffer buffer = slab.buffer;
+    if(buffer.getLong(offset + 12) <= System.currentTimeMillis()) {
+      mIndexes.get(collectionId).remove(id);
+      free(handle);
+      mMisses++;
+      return null;
+    }
+
+    slab.referenced.set(offset / slab.chunkSize);
+    byte[] payload = new byte[buffer.getInt(offset)];
+    buffer.position(offset + HEADER_SIZE);
+    buffer.get(payload);
+    mHits++;
+    return payload;
+  }
+
+  private int collectionId(String collection) {
+    Integer id = mCollectionIds.get(collection);
+    if(id == null) {
+      if(mCollections.size() > Byte.MAX_VALUE) {
+        throw new IllegalStateException("too many collections");
+      }
+      id = mCollections.size();
+      mCollectionIds.put(collection, id);
+      mCollections.add(collection);
+      mIndexes.add(new LongLongMap());
+    }
+    return id;
+  }
+
+  private int sizeClassOf(int size) {
+    for(int i = 0; i < mChunkSizes.length; i++) {
+      if(mChunkSizes[i] >= size) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Gets a free chunk of a size class, allocating a new slab or evicting an
+   * entity if there is none.
+   *
+   * @return Handle of the chunk, or -1 if the class has no slab and no more
+   *         slabs can be allocated
+   */
+  private long allocate(int classIndex) {
+    SizeClass sizeClass = mClasses[classIndex];
+    if(sizeClass.freeCount == 0 && mSlabs.size() < mMaxSlabs) {
+      mSlabs.add(new Slab(mSlabSize, mChunkSizes[classIndex]));
+      int slab = mSlabs.size() - 1;
+      sizeClass.slabs.add(slab);
+      addChunks(sizeClass, slab);
+    }
+    if(sizeClass.freeCount > 0) {
+      return sizeClass.free[--sizeClass.freeCount];
+    }
+    if(sizeClass.slabs.isEmpty()) {
+      return -1;
+    }
+    return evict(sizeClass);
+  }
+
+  /**
+   * Advances the clock hand of a size class until it finds an entity that
+   * has not been read since the hand last passed it, and evicts it.
+   */
+  private long evict(SizeClass sizeClass) {
+    while(true) {
+      int slabIndex = sizeClass.slabs.get(sizeClass.handSlab);
+      Slab slab = mSlabs.get(slabIndex);
+      int chunk = sizeClass.handChunk;
+
+      if(++sizeClass.handChunk == slab.chunks) {
+        sizeClass.handChunk = 0;
+        sizeClass.handSlab = (sizeClass.handSlab + 1) % sizeClass.slabs.size();
+      }
+
+      if(slab.referenced.get(chunk)) {
+        slab.referenced.clear(chunk);
+        continue;
+      }
+
+      // Every chunk is in use when evicting, since there are no free ones
+      int offset = chunk * slab.chunkSize;
+      long id = slab.buffer.getLong(offset + 4);
+      int collectionId = slab.buffer.get(offset + 20);
+      mIndexes.get(collectionId).remove(id);
+      mEntries--;
+      mEvictions++;
+      return handleOf(slabIndex, offset);
+    }
+  }
+
+  private void free(long handle) {
+    Slab slab = slabOf(handle);
+    int offset = offsetOf(handle);
+    slab.referenced.clear(offset / slab.chunkSize);
+    mClasses[sizeClassOf(slab.chunkSize)].pushFree(handle);
+    mEntries--;
+  }
+
+  private void addChunks(SizeClass sizeClass, int slabIndex) {
+    Slab slab = mSlabs.get(slabIndex);
+    slab.referenced.clear();
+    // Push in reverse, so chunks are handed out from the start of the slab
+    for(int chunk = slab.chunks - 1; chunk >= 0; chunk--) {
+      sizeClass.pushFree(handleOf(slabIndex, chunk * slab.chunkSize));
+    }
+  }
+
+  private Slab slabOf(long handle) {
+    return mSlabs.get((int) (handle >>> 32));
+  }
+
+  private static int offsetOf(long handle) {
+    return (int) handle;
+  }
+
+  private static long handleOf(int slab, int offset) {
+    return ((long) slab << 32) | offset;
+  }
+
+  private static byte[] encode(JSONObject entity) {
+    try {
+      return entity.toString().getBytes("UTF-8");
+    } catch(UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static int generationOf(String collection, long id) {
+    int hash = collection.hashCode() * 31 + (int) (id ^ (id >>> 32));
+    return (hash ^ (hash >>> 16)) & (GENERATIONS - 1);
+  }
+}
@@ -2,9 +2,14 @@ package com.readmill.api;
 
 import org.apache.http.HttpHost;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 @SuppressWarnings("UnusedDeclaration")
 public class Environment {
   private final HttpHost mApiHost, mWebHost;
+  private final List<HttpHost> mApiHosts;
 
   /**
    * Creates an environment for a Api Wrapper.
@@ -37,6 +42,37 @@ public class Environment {
     String scheme = useSSL ? "https" : "http";
     mApiHost = new HttpHost(apiHost, apiPort, scheme);
     mWebHost = new HttpHost(webHost, webPort, scheme);
+    mApiHosts = Collections.singletonList(mApiHost);
+  }
+
+  /**
+   * Creates an environment with several equivalent api hosts.
+   * <p/>
+   * Requests are spread across the api hosts by the wrapper's load balancer.
+   * The first host is the primary one, used for building urls.
+   *
+   * @param apiHosts Hosts to send requests to (at least one)
+   * @param webHost  Host where users can log in to the service
+   */
+  public Environment(List<HttpHost> apiHosts, HttpHost webHost) {
+    if(apiHosts == null || apiHosts.isEmpty()) {
+      throw new IllegalArgumentException("need at least one api host");
+    }
+    mApiHosts = Collections.unmodifiableList(new ArrayList<HttpHost>(apiHosts));
+    mApiHost = mApiHosts.get(0);
+    mWebHost = webHost;
+  }
+
+  /**
+   * Creates an environment with several equivalent api hosts.
+   *
+   * @param apiHosts Hosts to send requests to (at least one)
+   * @param webHost  Host where users can log in to the service
+   * @param useSSL   use secure connections or not
+   * @see #Environment(java.util.List, org.apache.http.HttpHost)
+   */
+  public Environment(String[] apiHosts, String webHost, boolean useSSL) {
+    this(toHttpHosts(apiHosts, useSSL), new HttpHost(webHost, -1, useSSL ? "https" : "http"));
   }
 
   /**
@@ -48,6 +84,15 @@ public class Environment {
     return mApiHost;
   }
 
+  /**
+   * Gets all api hosts for this environment.
+   *
+   * @return The api hosts, starting with the primary one
+   */
+  public List<HttpHost> getApiHosts() {
+    return mApiHosts;
+  }
+
   /**
    * Gets the web host for this environment
    *
@@ -81,4 +126,12 @@ public class Environment {
         " with API server: " + getApiUrl() +
         " and Web server: " + getWebUrl();
   }
+
+  private static List<HttpHost> toHttpHosts(String[] hosts, boolean useSSL) {
+    List<HttpHost> httpHosts = new ArrayList<HttpHost>();
+    for(String host : hosts) {
+      httpHosts.add(new HttpHost(host, -1, useSSL ? "https" : "http"));
+    }
+    return httpHosts;
+  }
 }
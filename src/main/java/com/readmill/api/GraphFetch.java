@@ -0,0 +1,394 @@
+package com.readmill.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches an object and its included relations, sending every request as
+ * soon as the object it depends on has arrived.
+ * <p/>
+ * The book and the highlights of a reading are fetched at the same time,
+ * and so are the comments of all highlights, so the time taken follows the
+ * depth of the include rather than the number of objects. Every URL is
+ * fetched once per graph, so objects that several others relate to, such
+ * as the user of all highlights of a reading, are shared.
+ * <p/>
+ * Only the caller waits for the graph. Every other part of it continues in
+ * the thread that fetched what it depends on, and the fetches of a graph
+ * share a few threads, so a wide graph does not hold a thread per object.
+ */
+class GraphFetch {
+  /**
+   * Collections are fetched as a single page of this many items.
+   */
+  static final int COLLECTION_COUNT = 100;
+
+  /**
+   * Maximum number of requests of one graph in flight at the same time.
+   */
+  static final int PARALLEL_FETCHES = 8;
+
+  private static final Map<String, Map<String, Relation>> SCHEMA = new HashMap<String, Map<String, Relation>>();
+
+  static {
+    relation("reading", "book", "book", "/books/%d", false);
+    relation("reading", "user", "user", "/users/%d", false);
+    relation("reading", "highlights", "highlight", "/readings/%d/highlights", true);
+    relation("reading", "comments", "comment", "/readings/%d/comments", true);
+    relation("highlight", "reading", "reading", "/readings/%d", false);
+    relation("highlight", "user", "user", "/users/%d", false);
+    relation("highlight", "comments", "comment", "/highlights/%d/comments", true);
+    relation("comment", "user", "user", "/users/%d", false);
+    relation("user", "readings", "reading", "/users/%d/readings", true);
+    relation("user", "highlights", "highlight", "/users/%d/highlights", true);
+    relation("book", "readings", "reading", "/books/%d/readings", true);
+  }
+
+  private static class Relation {
+    final String type;
+    final String resource;
+    final boolean many;
+
+    Relation(String type, String resource, boolean many) {
+      this.type = type;
+      this.resource = resource;
+      this.many = many;
+    }
+  }
+
+  private final ReadmillWrapper mWrapper;
+  private final ConcurrentHashMap<String, Pending> mFetches = new ConcurrentHashMap<String, Pending>();
+
+  // Fetches waiting for a worker, guarded by itself
+  private final ArrayDeque<Runnable> mQueue = new ArrayDeque<Runnable>();
+  private final List<Future<?>> mWorkers = new ArrayList<Future<?>>();
+  private int mRunning;
+  private boolean mStopped;
+
+  /**
+   * Continues a part of the graph with the value it depends on.
+   */
+  private interface Continuation {
+    void resume(Object value) throws Exception;
+  }
+
+  /**
+   * The value of a part of the graph, which continuations can wait for
+   * without holding a thread.
+   */
+  private static class Pending {
+    private boolean mDone;
+    private Object mValue;
+    private Throwable mFailure;
+    private List<Runnable> mListeners = new ArrayList<Runnable>();
+
+    void complete(Object value) {
+      settle(value, null);
+    }
+
+    void fail(Throwable failure) {
+      settle(null, failure);
+    }
+
+    /**
+     * Runs a continuation with the value once it is known, or fails the next
+     * part of the graph if this part or the continuation failed.
+     */
+    void then(final Pending next, final Continuation continuation) {
+      listen(new Runnable() {
+        @Override
+        public void run() {
+          Throwable failure;
+          Object value;
+          synchronized(Pending.this) {
+            failure = mFailure;
+            value = mValue;
+          }
+          if(failure != null) {
+            next.fail(failure);
+            return;
+          }
+          try {
+            continuation.resume(value);
+          } catch(Throwable t) {
+            next.fail(t);
+          }
+        }
+      });
+    }
+
+    /**
+     * Completes another part of the graph with the value of this one.
+     */
+    void forward(final Pending next) {
+      then(next, new Continuation() {
+        @Override
+        public void resume(Object value) {
+          next.complete(value);
+        }
+      });
+    }
+
+    synchronized Object await() throws IOException, JSONException {
+      try {
+        while(!mDone) {
+          wait();
+        }
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while fetching graph");
+      }
+      if(mFailure == null) {
+        return mValue;
+      } else if(mFailure instanceof IOException) {
+        throw (IOException) mFailure;
+      } else if(mFailure instanceof JSONException) {
+        throw (JSONException) mFailure;
+      } else if(mFailure instanceof RuntimeException) {
+        throw (RuntimeException) mFailure;
+      } else if(mFailure instanceof Error) {
+        throw (Error) mFailure;
+      }
+      throw new IllegalStateException(mFailure);
+    }
+
+    private void listen(Runnable listener) {
+      synchronized(this) {
+        if(!mDone) {
+          mListeners.add(listener);
+          return;
+        }
+      }
+      listener.run();
+    }
+
+    private void settle(Object value, Throwable failure) {
+      List<Runnable> listeners;
+      synchronized(this) {
+        if(mDone) {
+          return;
+        }
+        mDone = true;
+        mValue = value;
+        mFailure = failure;
+        listeners = mListeners;
+        mListeners = null;
+        notifyAll();
+      }
+      for(Runnable listener : listeners) {
+        listener.run();
+      }
+    }
+  }
+
+  GraphFetch(ReadmillWrapper wrapper) {
+    mWrapper = wrapper;
+  }
+
+  /**
+   * Fetches an object with its included relations.
+   *
+   * @param type    Type of the object, e.g. "reading"
+   * @param id      Id of the object
+   * @param include Relations to include
+   * @return The object, with the included relations in place of the
+   *         embedded ids
+   * @throws IOException   if a request failed
+   * @throws JSONException if a response was not properly formatted
+   */
+  JSONObject run(final String type, long id, final Include include) throws IOException, JSONException {
+    validate(type, include);
+    final Pending graph = new Pending();
+    fetch(String.format("/%ss/%d", type, id), type, false).then(graph, new Continuation() {
+      @Override
+      public void resume(Object root) throws Exception {
+        assemble(type, (JSONObject) root, include).forward(graph);
+      }
+    });
+    try {
+      return (JSONObject) graph.await();
+    } finally {
+      // Stop the rest of the graph if any part of it failed
+      synchronized(mQueue) {
+        mStopped = true;
+        mQueue.clear();
+        for(Future<?> worker : mWorkers) {
+          worker.cancel(true);
+        }
+      }
+    }
+  }
+
+  /*
+  * Private
+  */
+
+  private static void relation(String from, String name, String type, String resource, boolean many) {
+    Map<String, Relation> relations = SCHEMA.get(from);
+    if(relations == null) {
+      relations = new LinkedHashMap<String, Relation>();
+      SCHEMA.put(from, relations);
+    }
+    relations.put(name, new Relation(type, resource, many));
+  }
+
+  private static void validate(String type, Include include) {
+    for(String name : include.getRelations()) {
+      Map<String, Relation> relations = SCHEMA.get(type);
+      Relation relation = relations != null ? relations.get(name) : null;
+      if(relation == null) {
+        throw new IllegalArgumentException("a " + type + " has no relation " + name);
+      }
+      validate(relation.type, include.get(name));
+    }
+  }
+
+  /**
+   * Copies an object and puts its included relations in it once they have
+   * all been fetched.
+   */
+  private Pending assemble(String type, JSONObject object, Include include) throws JSONException {
+    final Pending assembled = new Pending();
+    if(include.isEmpty()) {
+      assembled.complete(object);
+      return assembled;
+    }
+    String[] names = JSONObject.getNames(object);
+    final JSONObject copy = names != null ? new JSONObject(object, names) : new JSONObject();
+
+    final AtomicInteger remaining = new AtomicInteger(include.getRelations().size());
+    for(final String name : include.getRelations()) {
+      related(object, SCHEMA.get(type).get(name), include.get(name), name).then(assembled, new Continuation() {
+        @Override
+        public void resume(Object value) throws JSONException {
+          synchronized(copy) {
+            copy.put(name, value);
+          }
+          if(remaining.decrementAndGet() == 0) {
+            assembled.complete(copy);
+          }
+        }
+      });
+    }
+    return assembled;
+  }
+
+  private Pending related(JSONObject object, final Relation relation, final Include include,
+                          String name) throws JSONException {
+    long id = relation.many ? object.getLong("id") : object.getJSONObject(name).getLong("id");
+    Pending fetched = fetch(String.format(relation.resource, id), relation.type, relation.many);
+    if(include.isEmpty()) {
+      return fetched;
+    }
+
+    final Pending related = new Pending();
+    fetched.then(related, new Continuation() {
+      @Override
+      public void resume(Object value) throws JSONException {
+        if(!relation.many) {
+          assemble(relation.type, (JSONObject) value, include).forward(related);
+          return;
+        }
+        JSONArray items = (JSONArray) value;
+        final Object[] assembled = new Object[items.length()];
+        final AtomicInteger remaining = new AtomicInteger(items.length());
+        if(items.length() == 0) {
+          related.complete(new JSONArray());
+        }
+        for(int i = 0; i < items.length(); i++) {
+          final int index = i;
+          assemble(relation.type, items.getJSONObject(i), include).then(related, new Continuation() {
+            @Override
+            public void resume(Object item) {
+              assembled[index] = item;
+              if(remaining.decrementAndGet() == 0) {
+                related.complete(new JSONArray(Arrays.asList(assembled)));
+              }
+            }
+          });
+        }
+      }
+    });
+    return related;
+  }
+
+  /**
+   * Fetches an object or collection, once per URL.
+   */
+  private Pending fetch(final String resource, final String type, final boolean many) {
+    Pending fetch = mFetches.get(resource);
+    if(fetch != null) {
+      return fetch;
+    }
+
+    final Pending fetched = new Pending();
+    fetch = mFetches.putIfAbsent(resource, fetched);
+    if(fetch != null) {
+      return fetch;
+    }
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        Object value;
+        try {
+          if(many) {
+            value = mWrapper.get(resource).count(COLLECTION_COUNT).fetchItemsOrThrow(type);
+          } else {
+            value = mWrapper.get(resource).fetchOrThrow(type);
+          }
+        } catch(Throwable t) {
+          fetched.fail(t);
+          return;
+        }
+        fetched.complete(value);
+      }
+    });
+    return fetched;
+  }
+
+  /**
+   * Runs a fetch on one of at most PARALLEL_FETCHES workers of this graph.
+   */
+  private void execute(Runnable fetch) {
+    synchronized(mQueue) {
+      if(mStopped) {
+        return;
+      }
+      mQueue.add(fetch);
+      if(mRunning == PARALLEL_FETCHES) {
+        return;
+      }
+      mRunning++;
+      mWorkers.add(mWrapper.getExecutor().submit(new Runnable() {
+        @Override
+        public void run() {
+          while(true) {
+            Runnable next;
+            synchronized(mQueue) {
+              next = mQueue.poll();
+              if(next == null) {
+                mRunning--;
+                return;
+              }
+            }
+            next.run();
+          }
+        }
+      }));
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package com.readmill.api;
+
+import java.util.Arrays;
+
+/**
+ * Decides when an idempotent request should be hedged.
+ * <p/>
+ * A hedge is a duplicate of a request that is sent when the original has not
+ * answered within a delay. The delay is taken from a percentile of recently
+ * observed latencies, so only the slowest requests get a duplicate. Whichever
+ * copy answers first is used and the other one is aborted.
+ * <p/>
+ * To keep hedging from overloading a struggling server, every request earns
+ * a fraction of a hedge and sending a hedge spends a whole one. With an extra
+ * load of 0.05, at most about 5% of requests are duplicated over time.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  // Hedge requests slower than the 95th percentile, but never before
+ *  // 50ms and for at most 5% of the requests
+ *  wrapper.setHedgePolicy(new HedgePolicy(0.95, 50, 0.05));
+ * </pre>
+ * </code>
+ */
+public class HedgePolicy {
+  /**
+   * Number of latency samples needed before any request is hedged.
+   */
+  static final int MIN_SAMPLES = 20;
+
+  private static final int WINDOW_SIZE = 1024;
+  private static final int RECOMPUTE_INTERVAL = 64;
+
+  private final double mPercentile;
+  private final long mMinDelayMillis;
+  private final double mMaxExtraLoad;
+  private final double mMaxBudget;
+
+  private final long[] mSamples = new long[WINDOW_SIZE];
+  private int mSampleCount;
+  private int mNextSample;
+  private long mDelayMillis = -1;
+
+  private double mBudget;
+  private long mHedged;
+
+  /**
+   * Creates a hedge policy.
+   *
+   * @param percentile     Latency percentile (0 to 1) to hedge after
+   * @param minDelayMillis Minimum delay before hedging
+   * @param maxExtraLoad   Max fraction of requests that may be duplicated
+   */
+  public HedgePolicy(double percentile, long minDelayMillis, double maxExtraLoad) {
+    if(percentile <= 0 || percentile >= 1) {
+      throw new IllegalArgumentException("percentile must be between 0 and 1");
+    }
+    mPercentile = percentile;
+    mMinDelayMillis = minDelayMillis;
+    mMaxExtraLoad = maxExtraLoad;
+    // Allow short bursts of hedges after quiet periods, but not unbounded ones
+    mMaxBudget = Math.max(1, maxExtraLoad * 100);
+  }
+
+  /**
+   * Gets how long to wait for a response before sending a hedge.
+   *
+   * @return Delay in milliseconds or -1 if not enough latencies have been
+   *         observed yet
+   */
+  public synchronized long getHedgeDelayMillis() {
+    return mDelayMillis < 0 ? -1 : Math.max(mMinDelayMillis, mDelayMillis);
+  }
+
+  /**
+   * Records the latency of a completed request.
+   *
+   * @param millis Latency in milliseconds
+   */
+  public synchronized void recordLatency(long millis) {
+    mSamples[mNextSample] = millis;
+    mNextSample = (mNextSample + 1) % WINDOW_SIZE;
+    mSampleCount++;
+
+    if(mSampleCount >= MIN_SAMPLES && (mDelayMillis < 0 || mSampleCount % RECOMPUTE_INTERVAL == 0)) {
+      int size = Math.min(mSampleCount, WINDOW_SIZE);
+      long[] sorted = Arrays.copyOf(mSamples, size);
+      Arrays.sort(sorted);
+      mDelayMillis = sorted[(int) Math.min(size - 1, Math.ceil(mPercentile * size) - 1)];
+    }
+  }
+
+  /**
+   * Registers a request that may be hedged, earning hedge budget.
+   */
+  public synchronized void onRequest() {
+    mBudget = Math.min(mMaxBudget, mBudget + mMaxExtraLoad);
+  }
+
+  /**
+   * Spends budget on a hedge, if there is enough left.
+   *
+   * @return true if a hedge may be sent
+   */
+  public synchronized boolean tryAcquireHedge() {
+    if(mBudget < 1) {
+      return false;
+    }
+    mBudget -= 1;
+    mHedged++;
+    return true;
+  }
+
+  /**
+   * Gets the number of hedges sent so far.
+   *
+   * @return The number of hedges
+   */
+  public synchronized long getHedgedCount() {
+    return mHedged;
+  }
+}
@@ -0,0 +1,354 @@
+package com.readmill.api;
+
+import org.apache.http.client.methods.HttpPost;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Imports highlights into a reading in bulk, such as highlights exported
+ * from another e-reader.
+ * <p/>
+ * Every highlight is posted to <code>/readings/:id/highlights</code>, with up
+ * to a given number of posts in flight at a time. Highlights are read from
+ * the iterator and encoded while earlier posts are still in flight, so the
+ * connections never wait for the next body. Bodies are encoded into pooled
+ * buffers rather than a query string per highlight.
+ * <p/>
+ * Posts beyond the per-route connection limit of the wrapper wait for a
+ * connection, see {@link ReadmillWrapper#setMaxConnections(int, int)}.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  HighlightImporter importer = new HighlightImporter(wrapper, readingId, 4);
+ *  importer.setListener(new HighlightImporter.Listener() {
+ *    public void onResult(HighlightImporter.Result result, int completed) {
+ *      progressBar.setProgress(completed);
+ *    }
+ *  });
+ *  for(HighlightImporter.Result result : importer.run(highlights.iterator())) {
+ *    if(!result.isSuccess()) {
+ *      retryLater(result.getHighlight());
+ *    }
+ *  }
+ * </pre>
+ * </code>
+ */
+public class HighlightImporter {
+  private static final String ISO8601 = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+
+  private final ReadmillWrapper mWrapper;
+  private final long mReadingId;
+  private final int mConcurrency;
+  private final BufferPool mBuffers;
+  private volatile Listener mListener;
+
+  private final AtomicInteger mCompleted = new AtomicInteger();
+  private final AtomicInteger mFailed = new AtomicInteger();
+
+  /**
+   * A highlight to import.
+   */
+  public static class Highlight {
+    private final String mContent;
+    private final double mPosition;
+    private final JSONObject mLocators;
+    private final Date mHighlightedAt;
+
+    /**
+     * Creates a highlight.
+     *
+     * @param content       The highlighted text
+     * @param position      Position in the book, from 0 to 1
+     * @param locators      Locators of the highlight, or null
+     * @param highlightedAt When the highlight was made, or null
+     */
+    public Highlight(String content, double position, JSONObject locators, Date highlightedAt) {
+      mContent = content;
+      mPosition = position;
+      mLocators = locators;
+      mHighlightedAt = highlightedAt;
+    }
+
+    public String getContent() {
+      return mContent;
+    }
+
+    public double getPosition() {
+      return mPosition;
+    }
+
+    public JSONObject getLocators() {
+      return mLocators;
+    }
+
+    public Date getHighlightedAt() {
+      return mHighlightedAt;
+    }
+  }
+
+  /**
+   * The outcome of importing one highlight.
+   */
+  public static class Result {
+    private final int mIndex;
+    private final Highlight mHighlight;
+    private final int mStatusCode;
+    private final long mHighlightId;
+    private final Exception mError;
+
+    Result(int index, Highlight highlight, int statusCode, long highlightId, Exception error) {
+      mIndex = index;
+      mHighlight = highlight;
+      mStatusCode = statusCode;
+      mHighlightId = highlightId;
+      mError = error;
+    }
+
+    /**
+     * Gets the position of the highlight in the imported iterator.
+     *
+     * @return Index of the highlight, from 0
+     */
+    public int getIndex() {
+      return mIndex;
+    }
+
+    public Highlight getHighlight() {
+      return mHighlight;
+    }
+
+    /**
+     * Gets the status code of the response.
+     *
+     * @return The status code, or 0 if no response was received
+     */
+    public int getStatusCode() {
+      return mStatusCode;
+    }
+
+    /**
+     * Gets the id of the created highlight.
+     *
+     * @return The id, or -1 if the highlight was not created
+     */
+    public long getHighlightId() {
+      return mHighlightId;
+    }
+
+    /**
+     * Gets why the post failed without a response, or why the response
+     * could not be read.
+     *
+     * @return The error, or null
+     */
+    public Exception getError() {
+      return mError;
+    }
+
+    /**
+     * Checks whether the highlight was created.
+     *
+     * @return true if the highlight was created
+     */
+    public boolean isSuccess() {
+      return mHighlightId >= 0;
+    }
+  }
+
+  /**
+   * Listener for the progress of an import. Called from the threads that
+   * post the highlights, in the order they complete.
+   */
+  public interface Listener {
+    /**
+     * Called when a highlight has been posted or has failed.
+     *
+     * @param result    The result of the highlight
+     * @param completed Number of highlights completed so far, including
+     *                  this one
+     */
+    void onResult(Result result, int completed);
+  }
+
+  /**
+   * Creates an importer.
+   *
+   * @param wrapper     Wrapper to post with
+   * @param readingId   Reading to import the highlights into
+   * @param concurrency Maximum number of posts in flight
+   */
+  public HighlightImporter(ReadmillWrapper wrapper, long readingId, int concurrency) {
+    if(concurrency < 1) {
+      throw new IllegalArgumentException("concurrency must be at least 1");
+    }
+    mWrapper = wrapper;
+    mReadingId = readingId;
+    mConcurrency = concurrency;
+    // One buffer per post in flight, plus one for the body being encoded
+    mBuffers = new BufferPool(2048, 64 * 1024, concurrency + 1);
+  }
+
+  /**
+   * Sets the listener notified as highlights complete.
+   *
+   * @param listener The listener, or null
+   */
+  public void setListener(Listener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * Gets the number of highlights completed, successfully or not.
+   *
+   * @return Completed highlights
+   */
+  public int getCompletedCount() {
+    return mCompleted.get();
+  }
+
+  /**
+   * Gets the number of highlights that failed.
+   *
+   * @return Failed highlights
+   */
+  public int getFailedCount() {
+    return mFailed.get();
+  }
+
+  /**
+   * Imports highlights, returning when all of them have completed.
+   * <p/>
+   * A failed highlight does not stop the import, its result holds the
+   * status code or error instead. If the calling thread is interrupted,
+   * posts in flight are cancelled and no more highlights are read.
+   *
+   * @param highlights The highlights to import
+   * @return A result per highlight, in the order of the iterator
+   * @throws InterruptedException if the calling thread was interrupted
+   */
+  public List<Result> run(Iterator<Highlight> highlights) throws InterruptedException {
+    final List<Result> results = new ArrayList<Result>();
+    final Set<Request> inFlight = Collections.synchronizedSet(
+        Collections.newSetFromMap(new IdentityHashMap<Request, Boolean>()));
+    final Semaphore permits = new Semaphore(mConcurrency);
+
+    SimpleDateFormat format = new SimpleDateFormat(ISO8601);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    try {
+      int index = 0;
+      while(highlights.hasNext()) {
+        final Highlight highlight = highlights.next();
+        final int position = index++;
+        final Request request = toRequest(highlight, format);
+        synchronized(results) {
+          results.add(null);
+        }
+
+        permits.acquire();
+        inFlight.add(request);
+        try {
+          mWrapper.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                Result result = post(position, highlight, request);
+                synchronized(results) {
+                  results.set(position, result);
+                }
+                if(!result.isSuccess()) {
+                  mFailed.incrementAndGet();
+                }
+                int completed = mCompleted.incrementAndGet();
+                Listener listener = mListener;
+                if(listener != null) {
+                  listener.onResult(result, completed);
+                }
+              } finally {
+                inFlight.remove(request);
+                permits.release();
+              }
+            }
+          });
+        } catch(RuntimeException e) {
+          inFlight.remove(request);
+          permits.release();
+          throw e;
+        }
+      }
+      permits.acquire(mConcurrency);
+      permits.release(mConcurrency);
+    } catch(InterruptedException e) {
+      synchronized(inFlight) {
+        for(Request request : inFlight) {
+          request.cancel();
+        }
+      }
+      throw e;
+    }
+
+    synchronized(results) {
+      return new ArrayList<Result>(results);
+    }
+  }
+
+  /*
+  * Private
+  */
+
+  private Request toRequest(Highlight highlight, SimpleDateFormat format) {
+    Request request = Request.to("/readings/%d/highlights", mReadingId)
+        .withParams("highlight[content]", highlight.getContent())
+        .withParams("highlight[position]", highlight.getPosition());
+    if(highlight.getLocators() != null) {
+      request.withParams("highlight[locators]", highlight.getLocators().toString());
+    }
+    if(highlight.getHighlightedAt() != null) {
+      request.withParams("highlight[highlighted_at]", format.format(highlight.getHighlightedAt()));
+    }
+    return request.withPriority(Priority.BACKGROUND).withBodyBuffers(mBuffers);
+  }
+
+  private Result post(int index, Highlight highlight, Request request) {
+    ManagedResponse response;
+    try {
+      response = mWrapper.open(request, HttpPost.class);
+    } catch(IOException e) {
+      return new Result(index, highlight, 0, -1, e);
+    } catch(RuntimeException e) {
+      return new Result(index, highlight, 0, -1, e);
+    }
+
+    int status = response.getStatusCode();
+    try {
+      if(status / 100 != 2) {
+        return new Result(index, highlight, status, -1, null);
+      }
+      long id = response.getJSON().getJSONObject("highlight").getLong("id");
+      return new Result(index, highlight, status, id, null);
+    } catch(IOException e) {
+      return new Result(index, highlight, status, -1, e);
+    } catch(JSONException e) {
+      return new Result(index, highlight, status, -1, e);
+    } finally {
+      try {
+        response.close();
+      } catch(IOException e) {
+        // The connection has been aborted instead, nothing left to release
+      }
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package com.readmill.api;
+
+import org.apache.http.HttpHost;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the health and load of a set of equivalent api hosts.
+ * <p/>
+ * A host is ejected after a number of consecutive failures and is not
+ * offered to the load balancer until it is readmitted, either by a
+ * successful health check or when its ejection period runs out. Each
+ * repeated ejection doubles the period, up to a maximum.
+ * <p/>
+ * If every host is ejected, all of them are offered anyway, since failing
+ * every request locally helps no one.
+ */
+public class HostPool {
+  static final int EJECT_AFTER_FAILURES = 3;
+  static final long MIN_EJECTION_MILLIS = 1000;
+  static final long MAX_EJECTION_MILLIS = 60 * 1000;
+
+  /**
+   * Weight of a new sample in the smoothed latency.
+   */
+  private static final double LATENCY_DECAY = 0.2;
+
+  private final List<Host> mHosts;
+
+  /**
+   * Per host load and health.
+   */
+  public static class Host {
+    private final HttpHost mHttpHost;
+    private final AtomicInteger mOutstanding = new AtomicInteger();
+    private double mLatencyMillis;
+    private int mConsecutiveFailures;
+    private long mEjectedUntil;
+    private long mEjectionMillis;
+
+    Host(HttpHost httpHost) {
+      mHttpHost = httpHost;
+    }
+
+    public HttpHost getHttpHost() {
+      return mHttpHost;
+    }
+
+    /**
+     * Gets the number of requests currently sent to this host.
+     *
+     * @return Requests in flight
+     */
+    public int getOutstanding() {
+      return mOutstanding.get();
+    }
+
+    /**
+     * Gets the exponentially smoothed latency of this host.
+     *
+     * @return Latency in milliseconds, 0 before the first response
+     */
+    public synchronized double getLatencyMillis() {
+      return mLatencyMillis;
+    }
+
+    /**
+     * Checks if this host is ejected.
+     *
+     * @return true if the host is currently not offered to the load balancer
+     */
+    public synchronized boolean isEjected() {
+      return mEjectedUntil > System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+      return mHttpHost.toString();
+    }
+  }
+
+  /**
+   * Creates a pool of hosts.
+   *
+   * @param hosts Equivalent hosts
+   */
+  public HostPool(List<HttpHost> hosts) {
+    List<Host> pooled = new ArrayList<Host>();
+    for(HttpHost host : hosts) {
+      pooled.add(new Host(host));
+    }
+    mHosts = Collections.unmodifiableList(pooled);
+  }
+
+  /**
+   * Gets all hosts, including ejected ones.
+   *
+   * @return The hosts
+   */
+  public List<Host> getHosts() {
+    return mHosts;
+  }
+
+  /**
+   * Finds the pooled host for an http host.
+   *
+   * @param httpHost The http host
+   * @return The pooled host or null if it is not part of this pool
+   */
+  public Host find(HttpHost httpHost) {
+    for(Host host : mHosts) {
+      if(host.mHttpHost.equals(httpHost)) {
+        return host;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Chooses a host with a load balancer among the healthy hosts.
+   *
+   * @param balancer The load balancer
+   * @return The chosen host
+   */
+  public Host choose(LoadBalancer balancer) {
+    if(mHosts.size() == 1) {
+      return mHosts.get(0);
+    }
+
+    List<Host> healthy = new ArrayList<Host>(mHosts.size());
+    for(Host host : mHosts) {
+      if(!host.isEjected()) {
+        healthy.add(host);
+      }
+    }
+    return balancer.choose(healthy.isEmpty() ? mHosts : healthy);
+  }
+
+  /**
+   * Records that a request has been sent to a host.
+   *
+   * @param host The host
+   */
+  public void onStart(Host host) {
+    host.mOutstanding.incrementAndGet();
+  }
+
+  /**
+   * Records a successful response from a host and readmits it if it was
+   * ejected.
+   *
+   * @param host          The host
+   * @param latencyMillis Time until the response arrived
+   */
+  public void onSuccess(Host host, long latencyMillis) {
+    host.mOutstanding.decrementAndGet();
+    synchronized(host) {
+      host.mLatencyMillis = host.mLatencyMillis == 0 ? latencyMillis :
+          host.mLatencyMillis + LATENCY_DECAY * (latencyMillis - host.mLatencyMillis);
+      host.mConsecutiveFailures = 0;
+      host.mEjectedUntil = 0;
+      host.mEjectionMillis = 0;
+    }
+  }
+
+  /**
+   * Records a request to a host that was aborted before it completed.
+   *
+   * @param host The host
+   */
+  public void onCancel(Host host) {
+    host.mOutstanding.decrementAndGet();
+  }
+
+  /**
+   * Records a failed request to a host, ejecting it after too many
+   * consecutive failures.
+   *
+   * @param host The host
+   * @return true if the host was ejected by this failure
+   */
+  public boolean onFailure(Host host) {
+    host.mOutstanding.decrementAndGet();
+    synchronized(host) {
+      if(++host.mConsecutiveFailures < EJECT_AFTER_FAILURES || host.isEjected()) {
+        return false;
+      }
+      eject(host);
+      return true;
+    }
+  }
+
+  /**
+   * Records the outcome of a health check of an ejected host.
+   *
+   * @param host    The host
+   * @param healthy Whether the host answered
+   * @return true if the host is still ejected and should be checked again
+   */
+  public boolean onHealthCheck(Host host, boolean healthy) {
+    synchronized(host) {
+      if(healthy) {
+        host.mConsecutiveFailures = 0;
+        host.mEjectedUntil = 0;
+        host.mEjectionMillis = 0;
+        return false;
+      }
+      eject(host);
+      return true;
+    }
+  }
+
+  /**
+   * Gets how long a host stays ejected for.
+   *
+   * @param host The host
+   * @return The current ejection period in milliseconds
+   */
+  public long getEjectionMillis(Host host) {
+    synchronized(host) {
+      return host.mEjectionMillis;
+    }
+  }
+
+  private static void eject(Host host) {
+    host.mEjectionMillis = host.mEjectionMillis == 0 ? MIN_EJECTION_MILLIS :
+        Math.min(MAX_EJECTION_MILLIS, host.mEjectionMillis * 2);
+    host.mEjectedUntil = System.currentTimeMillis() + host.mEjectionMillis;
+  }
+}
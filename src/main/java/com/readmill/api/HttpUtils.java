@@ -6,10 +6,14 @@ import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 @SuppressWarnings("UnusedDeclaration")
 public class HttpUtils {
+  private static final StreamingJsonCodec STREAMING_CODEC = new StreamingJsonCodec();
+
   /**
    * Consumes a http response as JSON.
    *
@@ -38,7 +42,62 @@ public class HttpUtils {
    * @throws JSONException When the response was not valid json
    */
   public static JSONObject getJSON(HttpResponse response) throws IOException, JSONException {
-    return new JSONObject(getString(response));
+    return getJSON(response, STREAMING_CODEC);
+  }
+
+  /**
+   * Consumes a http response as JSON, parsed with the given codec.
+   *
+   * @param response Response to parse.
+   * @param codec    Codec to parse the body with
+   * @return The parsed JSONObject
+   * @throws IOException When an error occurred while consuming the response
+   * @throws JSONException When the response was not valid json
+   */
+  public static JSONObject getJSON(HttpResponse response, JsonCodec codec) throws IOException, JSONException {
+    InputStream in = openUtf8(response);
+    try {
+      return codec.readObject(in);
+    } finally {
+      // Reads any remaining bytes so the connection can be reused
+      in.close();
+    }
+  }
+
+  /**
+   * Consumes a http response as JSON, keeping only the fields in a
+   * projection. The response is parsed as it streams in, so skipped fields
+   * are never held in memory.
+   *
+   * @param response   Response to parse.
+   * @param projection Fields to keep
+   * @return The parsed JSONObject
+   * @throws IOException When an error occurred while consuming the response
+   * @throws JSONException When the response was not valid json
+   */
+  public static JSONObject getJSON(HttpResponse response, Projection projection) throws IOException, JSONException {
+    return getJSON(response, projection, STREAMING_CODEC);
+  }
+
+  /**
+   * Consumes a http response as JSON, keeping only the fields in a
+   * projection, parsed with the given codec.
+   *
+   * @param response   Response to parse.
+   * @param projection Fields to keep
+   * @param codec      Codec to parse the body with
+   * @return The parsed JSONObject
+   * @throws IOException When an error occurred while consuming the response
+   * @throws JSONException When the response was not valid json
+   */
+  public static JSONObject getJSON(HttpResponse response, Projection projection, StreamingJsonCodec codec)
+      throws IOException, JSONException {
+    InputStream in = openUtf8(response);
+    try {
+      return codec.readObject(in, projection);
+    } finally {
+      in.close();
+    }
   }
 
   /**
@@ -53,6 +112,24 @@ public class HttpUtils {
     return EntityUtils.toString(entity);
   }
 
+  /**
+   * Opens the body of a response as UTF-8 encoded bytes. Bodies in UTF-8
+   * (or without a charset) are streamed as is, other charsets are decoded
+   * first.
+   */
+  private static InputStream openUtf8(HttpResponse response) throws IOException, JSONException {
+    HttpEntity entity = response.getEntity();
+    if(entity == null) {
+      throw new JSONException("Response has no body");
+    }
+
+    String charset = EntityUtils.getContentCharSet(entity);
+    if(charset == null || charset.equalsIgnoreCase("UTF-8") || charset.equalsIgnoreCase("US-ASCII")) {
+      return entity.getContent();
+    }
+    return new ByteArrayInputStream(EntityUtils.toString(entity).getBytes("UTF-8"));
+  }
+
   /**
    * Consumes a http response as a string.
    *
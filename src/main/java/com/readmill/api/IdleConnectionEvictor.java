@@ -0,0 +1,61 @@
+package com.readmill.api;
+
+import org.apache.http.conn.ClientConnectionManager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread that closes expired and idle pooled connections.
+ * <p/>
+ * A connection manager only notices that a pooled connection has expired
+ * when it is leased again. Connections the server has closed in the meantime
+ * stay in the pool as dead sockets, so they are swept periodically instead.
+ */
+class IdleConnectionEvictor extends Thread {
+  private final ClientConnectionManager mConnectionManager;
+  private final long mIdleTimeoutMillis;
+  private final long mIntervalMillis;
+  private volatile boolean mShutdown;
+
+  /**
+   * Creates an evictor for a connection manager.
+   *
+   * @param connectionManager Manager owning the pool
+   * @param idleTimeoutMillis Connections idle for longer than this are closed
+   */
+  IdleConnectionEvictor(ClientConnectionManager connectionManager, long idleTimeoutMillis) {
+    super("readmill-connection-evictor");
+    setDaemon(true);
+    mConnectionManager = connectionManager;
+    mIdleTimeoutMillis = idleTimeoutMillis;
+    mIntervalMillis = Math.max(1000, Math.min(idleTimeoutMillis / 2, 5000));
+  }
+
+  @Override
+  public void run() {
+    try {
+      while(!mShutdown) {
+        synchronized(this) {
+          wait(mIntervalMillis);
+        }
+        if(mShutdown) {
+          break;
+        }
+        mConnectionManager.closeExpiredConnections();
+        mConnectionManager.closeIdleConnections(mIdleTimeoutMillis, TimeUnit.MILLISECONDS);
+      }
+    } catch(InterruptedException ignored) {
+      // Terminate
+    }
+  }
+
+  /**
+   * Stops the evictor. Does not close the pool.
+   */
+  public void shutdown() {
+    mShutdown = true;
+    synchronized(this) {
+      notifyAll();
+    }
+  }
+}
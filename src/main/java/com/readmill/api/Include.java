@@ -0,0 +1,93 @@
+package com.readmill.api;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Related objects to fetch along with an object, for
+ * {@link ReadmillWrapper#fetchGraph(long, Include)}.
+ * <p/>
+ * Relations of related objects are included with a dot, so
+ * "highlights.comments" includes the highlights of a reading and the
+ * comments of each highlight.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  import static com.readmill.api.Include.include;
+ *
+ *  JSONObject reading = wrapper.fetchGraph(readingId, include("book", "highlights.comments"));
+ * </pre>
+ * </code>
+ */
+public class Include {
+  private final Map<String, Include> mRelations = new LinkedHashMap<String, Include>();
+
+  private Include() {}
+
+  /**
+   * Creates an include.
+   *
+   * @param paths Relations to include, with relations of related objects
+   *              separated by dots, e.g. "highlights.comments"
+   * @return The include
+   */
+  public static Include include(String... paths) {
+    Include include = new Include();
+    for(String path : paths) {
+      include.add(path);
+    }
+    return include;
+  }
+
+  /**
+   * Gets the names of the included relations.
+   *
+   * @return The relations, in the order they were first included
+   */
+  public Set<String> getRelations() {
+    return Collections.unmodifiableSet(mRelations.keySet());
+  }
+
+  /**
+   * Gets what to include of the objects of a relation.
+   *
+   * @param relation Name of the relation
+   * @return The include, empty if only the related objects are included, or
+   *         null if the relation is not included
+   */
+  public Include get(String relation) {
+    return mRelations.get(relation);
+  }
+
+  /**
+   * Checks whether nothing is included.
+   *
+   * @return true if no relations are included
+   */
+  public boolean isEmpty() {
+    return mRelations.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return mRelations.toString();
+  }
+
+  private void add(String path) {
+    if(path == null || path.length() == 0) {
+      throw new IllegalArgumentException("empty relation");
+    }
+    int dot = path.indexOf('.');
+    String name = dot < 0 ? path : path.substring(0, dot);
+    Include relation = mRelations.get(name);
+    if(relation == null) {
+      relation = new Include();
+      mRelations.put(name, relation);
+    }
+    if(dot >= 0) {
+      relation.add(path.substring(dot + 1));
+    }
+  }
+}
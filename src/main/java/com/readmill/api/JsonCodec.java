@@ -0,0 +1,30 @@
+package com.readmill.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parses response bodies into JSON objects.
+ * <p/>
+ * All responses parsed by the wrapper go through its codec, see
+ * {@link ReadmillWrapper#setJsonCodec(JsonCodec)}. Implementations must be
+ * thread safe.
+ *
+ * @see StreamingJsonCodec
+ * @see OrgJsonCodec
+ */
+public interface JsonCodec {
+  /**
+   * Parses a JSON object from a stream of UTF-8 encoded bytes. The stream is
+   * not closed.
+   *
+   * @param in The stream to read
+   * @return The parsed object
+   * @throws IOException   if reading the stream failed
+   * @throws JSONException if the stream did not contain a JSON object
+   */
+  JSONObject readObject(InputStream in) throws IOException, JSONException;
+}
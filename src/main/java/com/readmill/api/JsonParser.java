@@ -0,0 +1,567 @@
+package com.readmill.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parser that reads JSON straight from UTF-8 encoded bytes, without first
+ * decoding the whole document into a String.
+ * <p/>
+ * Values are the same types org.json produces: JSONObject, JSONArray,
+ * String, Integer, Long, Double, Boolean and JSONObject.NULL. Not thread
+ * safe, use a parser per document.
+ */
+class JsonParser {
+  private static final int MAX_DEPTH = 512;
+  private static final char REPLACEMENT = '\uFFFD';
+
+  private final InputStream mIn;
+  private final byte[] mBuffer;
+  private int mPos;
+  private int mLimit;
+  // Bytes read before the current buffer, for error messages
+  private long mBase;
+  private int mDepth;
+
+  // Scratch space for decoding strings and numbers
+  private char[] mChars = new char[64];
+
+  private StringPool mKeyPool;
+  private StringPool mValuePool;
+
+  /**
+   * Creates a parser reading from a stream.
+   *
+   * @param in The stream
+   */
+  JsonParser(InputStream in) {
+    mIn = in;
+    mBuffer = new byte[8192];
+  }
+
+  /**
+   * Creates a parser reading from bytes in memory.
+   *
+   * @param data   The bytes
+   * @param offset Start of the document
+   * @param length Length of the document
+   */
+  JsonParser(byte[] data, int offset, int length) {
+    mIn = null;
+    mBuffer = data;
+    mPos = offset;
+    mLimit = offset + length;
+    mBase = -offset;
+  }
+
+  /**
+   * Sets the pools that keys and string values are taken from.
+   *
+   * @param keys   Pool for object keys, or null to not pool keys
+   * @param values Pool for string values, or null to not pool values
+   */
+  void setStringPools(StringPool keys, StringPool values) {
+    mKeyPool = keys;
+    mValuePool = values;
+  }
+
+  /**
+   * Reads any value.
+   *
+   * @return The value
+   * @throws IOException   if reading the stream failed
+   * @throws JSONException if the input was not valid JSON
+   */
+  Object readValue() throws IOException, JSONException {
+    int c = peek();
+    switch(c) {
+      case '{':
+        return readObjectValue();
+      case '[':
+        return readArray();
+      case '"':
+        mPos++;
+        return readString(mValuePool);
+      case 't':
+        readLiteral("true");
+        return Boolean.TRUE;
+      case 'f':
+        readLiteral("false");
+        return Boolean.FALSE;
+      case 'n':
+        readLiteral("null");
+        return JSONObject.NULL;
+      default:
+        if(c == '-' || (c >= '0' && c <= '9')) {
+          return readNumber();
+        }
+        throw syntaxError(c == -1 ? "Unexpected end of input" : "Unexpected character '" + (char) c + "'");
+    }
+  }
+
+  /**
+   * Reads an object that is the value of a member or an array element.
+   * Parsers that build other kinds of objects override this.
+   *
+   * @return The object
+   */
+  Object readObjectValue() throws IOException, JSONException {
+    return readObject();
+  }
+
+  /**
+   * Reads an object.
+   *
+   * @return The object
+   * @throws IOException   if reading the stream failed
+   * @throws JSONException if the input was not a valid JSON object
+   */
+  JSONObject readObject() throws IOException, JSONException {
+    expect('{');
+    enter();
+    JSONObject object = new JSONObject();
+    if(peek() == '}') {
+      mPos++;
+    } else {
+      do {
+        String key = readKey();
+        object.put(key, readValue());
+      } while(nextElement('}'));
+    }
+    mDepth--;
+    return object;
+  }
+
+  /**
+   * Reads an array.
+   *
+   * @return The array
+   * @throws IOException   if reading the stream failed
+   * @throws JSONException if the input was not a valid JSON array
+   */
+  JSONArray readArray() throws IOException, JSONException {
+    expect('[');
+    enter();
+    JSONArray array = new JSONArray();
+    if(peek() == ']') {
+      mPos++;
+    } else {
+      do {
+        array.put(readValue());
+      } while(nextElement(']'));
+    }
+    mDepth--;
+    return array;
+  }
+
+  /**
+   * Reads a value, keeping only the fields of objects that are in a
+   * projection. Objects in arrays are projected too.
+   *
+   * @param projection Fields to keep, or null to keep everything
+   * @return The value
+   * @throws IOException   if reading the stream failed
+   * @throws JSONException if the input was not valid JSON
+   */
+  Object readValue(Projection projection) throws IOException, JSONException {
+    if(projection == null) {
+      return readValue();
+    }
+    int c = peek();
+    if(c == '{') {
+      return readObject(projection);
+    }
+    if(c == '[') {
+      expect('[');
+      enter();
+      JSONArray array = new JSONArray();
+      if(peek() == ']') {
+        mPos++;
+      } else {
+        do {
+          array.put(readValue(projection));
+        } while(nextElement(']'));
+      }
+      mDepth--;
+      return array;
+    }
+    return readValue();
+  }
+
+  /**
+   * Reads an object, keeping only the fields in a projection. Other fields
+   * are skipped without being decoded.
+   *
+   * @param projection Fields to keep
+   * @return The object
+   * @throws IOException   if reading the stream failed
+   * @throws JSONException if the input was not a valid JSON object
+   */
+  JSONObject readObject(Projection projection) throws IOException, JSONException {
+    expect('{');
+    enter();
+    JSONObject object = new JSONObject();
+    if(peek() == '}') {
+      mPos++;
+    } else {
+      do {
+        String key = readKey();
+        if(projection.includes(key)) {
+          object.put(key, readValue(projection.get(key)));
+        } else {
+          skipValue();
+        }
+      } while(nextElement('}'));
+    }
+    mDepth--;
+    return object;
+  }
+
+  /**
+   * Skips over any value without decoding it. Skipped numbers and literals
+   * are not validated.
+   *
+   * @throws IOException   if reading the stream failed
+   * @throws JSONException if the input ended within the value
+   */
+  void skipValue() throws IOException, JSONException {
+    int c = peek();
+    if(c == '"') {
+      mPos++;
+      skipString();
+    } else if(c == '{' || c == '[') {
+      int depth = 0;
+      do {
+        int b = read();
+        if(b == -1) {
+          throw syntaxError("Unexpected end of input");
+        } else if(b == '"') {
+          skipString();
+        } else if(b == '{' || b == '[') {
+          depth++;
+        } else if(b == '}' || b == ']') {
+          depth--;
+        }
+      } while(depth > 0);
+    } else if(c == -1) {
+      throw syntaxError("Unexpected end of input");
+    } else {
+      // Numbers and literals run until the next separator
+      while(mPos < mLimit || fill()) {
+        int b = mBuffer[mPos];
+        if(b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+          break;
+        }
+        mPos++;
+      }
+    }
+  }
+
+  /**
+   * Gets the offset of the next byte in the buffer, which is the offset in
+   * the document for parsers reading from memory.
+   *
+   * @return The offset
+   */
+  int position() {
+    return mPos;
+  }
+
+  /**
+   * Moves to an offset in the buffer.
+   *
+   * @param position The offset
+   */
+  void seek(int position) {
+    mPos = position;
+    mDepth = 0;
+  }
+
+  /**
+   * Reads the key of an object member, and the colon after it.
+   *
+   * @return The key
+   */
+  String readKey() throws IOException, JSONException {
+    expect('"');
+    String key = readString(mKeyPool);
+    expect(':');
+    return key;
+  }
+
+  /**
+   * Reads the separator after a member of an object or array.
+   *
+   * @param close The closing bracket of the object or array
+   * @return true if another member follows, false if the closing bracket
+   *         was read
+   */
+  boolean nextElement(char close) throws IOException, JSONException {
+    int c = peek();
+    if(c == ',') {
+      mPos++;
+      return true;
+    }
+    if(c == close) {
+      mPos++;
+      return false;
+    }
+    throw syntaxError("Expected ',' or '" + close + "'");
+  }
+
+  /**
+   * Skips whitespace and returns the next byte without consuming it.
+   *
+   * @return The next byte or -1 at the end of the input
+   */
+  int peek() throws IOException {
+    while(true) {
+      if(mPos == mLimit && !fill()) {
+        return -1;
+      }
+      int c = mBuffer[mPos];
+      if(c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        return c & 0xff;
+      }
+      mPos++;
+    }
+  }
+
+  void expect(char expected) throws IOException, JSONException {
+    if(peek() != expected) {
+      throw syntaxError("Expected '" + expected + "'");
+    }
+    mPos++;
+  }
+
+  void enter() throws JSONException {
+    if(++mDepth > MAX_DEPTH) {
+      throw syntaxError("Nesting too deep");
+    }
+  }
+
+  JSONException syntaxError(String message) {
+    return new JSONException(message + " at byte " + (mBase + mPos));
+  }
+
+  /**
+   * Reads a string, after its opening quote.
+   *
+   * @param pool Pool to get the string from, or null
+   */
+  String readString(StringPool pool) throws IOException, JSONException {
+    int length = 0;
+    while(true) {
+      if(mPos == mLimit && !fill()) {
+        throw syntaxError("Unterminated string");
+      }
+      int b = mBuffer[mPos++];
+      if(b == '"') {
+        return pool == null ? new String(mChars, 0, length) : pool.intern(mChars, 0, length);
+      }
+      if(length + 2 > mChars.length) {
+        char[] grown = new char[mChars.length * 2];
+        System.arraycopy(mChars, 0, grown, 0, length);
+        mChars = grown;
+      }
+      if(b == '\\') {
+        mChars[length++] = readEscape();
+      } else if(b >= 0) {
+        mChars[length++] = (char) b;
+      } else {
+        length = readMultiByte(b & 0xff, length);
+      }
+    }
+  }
+
+  private void skipString() throws IOException, JSONException {
+    while(true) {
+      int b = read();
+      if(b == -1) {
+        throw syntaxError("Unterminated string");
+      } else if(b == '\\') {
+        read();
+      } else if(b == '"') {
+        return;
+      }
+    }
+  }
+
+  private int read() throws IOException {
+    if(mPos == mLimit && !fill()) {
+      return -1;
+    }
+    return mBuffer[mPos++] & 0xff;
+  }
+
+  private boolean fill() throws IOException {
+    if(mIn == null) {
+      return false;
+    }
+    int read;
+    do {
+      read = mIn.read(mBuffer, 0, mBuffer.length);
+    } while(read == 0);
+    if(read == -1) {
+      return false;
+    }
+    mBase += mLimit;
+    mPos = 0;
+    mLimit = read;
+    return true;
+  }
+
+  private char readEscape() throws IOException, JSONException {
+    int c = read();
+    switch(c) {
+      case '"':
+      case '\\':
+      case '/':
+        return (char) c;
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'u':
+        int value = 0;
+        for(int i = 0; i < 4; i++) {
+          int digit = Character.digit(read(), 16);
+          if(digit < 0) {
+            throw syntaxError("Illegal unicode escape");
+          }
+          value = (value << 4) | digit;
+        }
+        return (char) value;
+      default:
+        throw syntaxError("Illegal escape");
+    }
+  }
+
+  /**
+   * Decodes a multi byte UTF-8 sequence into the scratch buffer. Malformed
+   * sequences are decoded as U+FFFD.
+   *
+   * @param lead   The first byte of the sequence
+   * @param length Chars decoded so far
+   * @return Chars decoded after the sequence
+   */
+  private int readMultiByte(int lead, int length) throws IOException, JSONException {
+    int codePoint;
+    int continuation;
+    if((lead & 0xe0) == 0xc0) {
+      codePoint = lead & 0x1f;
+      continuation = 1;
+    } else if((lead & 0xf0) == 0xe0) {
+      codePoint = lead & 0x0f;
+      continuation = 2;
+    } else if((lead & 0xf8) == 0xf0) {
+      codePoint = lead & 0x07;
+      continuation = 3;
+    } else {
+      mChars[length++] = REPLACEMENT;
+      return length;
+    }
+
+    for(int i = 0; i < continuation; i++) {
+      int b = read();
+      if(b == -1) {
+        throw syntaxError("Unterminated string");
+      }
+      if((b & 0xc0) != 0x80) {
+        // Not a continuation byte, decode it on its own
+        mPos--;
+        mChars[length++] = REPLACEMENT;
+        return length;
+      }
+      codePoint = (codePoint << 6) | (b & 0x3f);
+    }
+
+    if(codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+      codePoint -= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+      mChars[length++] = (char) (Character.MIN_HIGH_SURROGATE + (codePoint >>> 10));
+      mChars[length++] = (char) (Character.MIN_LOW_SURROGATE + (codePoint & 0x3ff));
+    } else {
+      mChars[length++] = (char) codePoint;
+    }
+    return length;
+  }
+
+  private void readLiteral(String literal) throws IOException, JSONException {
+    for(int i = 0; i < literal.length(); i++) {
+      if(read() != literal.charAt(i)) {
+        throw syntaxError("Expected " + literal);
+      }
+    }
+  }
+
+  /**
+   * Reads a number as an Integer or Long when it is integral and fits,
+   * otherwise as a Double, like org.json does.
+   */
+  private Object readNumber() throws IOException, JSONException {
+    int length = 0;
+    boolean integral = true;
+    while(mPos < mLimit || fill()) {
+      int b = mBuffer[mPos];
+      if(b == '.' || b == 'e' || b == 'E' || b == '+') {
+        integral = false;
+      } else if(b != '-' && (b < '0' || b > '9')) {
+        break;
+      }
+      if(length == mChars.length) {
+        char[] grown = new char[mChars.length * 2];
+        System.arraycopy(mChars, 0, grown, 0, length);
+        mChars = grown;
+      }
+      mChars[length++] = (char) b;
+      mPos++;
+    }
+
+    if(integral && length <= 18) {
+      boolean negative = mChars[0] == '-';
+      int start = negative ? 1 : 0;
+      if(start == length) {
+        throw syntaxError("Invalid number");
+      }
+      long value = 0;
+      for(int i = start; i < length; i++) {
+        char c = mChars[i];
+        if(c == '-') {
+          throw syntaxError("Invalid number");
+        }
+        value = value * 10 + (c - '0');
+      }
+      if(negative) {
+        value = -value;
+      }
+      if(value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+        return (int) value;
+      }
+      return value;
+    }
+
+    String number = new String(mChars, 0, length);
+    try {
+      if(integral) {
+        try {
+          return Long.parseLong(number);
+        } catch(NumberFormatException tooLarge) {
+          return Double.valueOf(number);
+        }
+      }
+      return Double.valueOf(number);
+    } catch(NumberFormatException e) {
+      throw syntaxError("Invalid number " + number);
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package com.readmill.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * JSONObject that decodes its values from the raw bytes of a response when
+ * they are first read.
+ * <p/>
+ * Until then, the object only knows the offsets of its members. Nested
+ * objects are lazy too, so the book, user and locators embedded in a
+ * reading are never decoded unless they are read. Arrays are decoded
+ * when read, but the objects in them are lazy.
+ * <p/>
+ * Reading all members (keys(), names(), write() or modifying the object)
+ * decodes the whole object. toString() returns the original bytes as long
+ * as neither the object nor any object nested in it was modified, and no
+ * array in it has been read. Arrays are plain JSONArrays that can be
+ * changed without the object knowing, so once one has been handed out the
+ * object is printed from its decoded members instead.
+ * <p/>
+ * The document is only checked for balanced brackets up front. A malformed
+ * value is reported when it is read: opt() returns null and get() throws
+ * a JSONException for it. All objects of a response share a lock, since
+ * reading decodes.
+ *
+ * @see LazyJsonCodec
+ */
+public class LazyJSONObject extends JSONObject {
+  private final LazyJsonDocument mDocument;
+  private final int mStart;
+  private final LazyJSONObject mParent;
+
+  // Keys and offsets of the values of the members, until the object is
+  // inflated. Objects are small, so they are searched linearly.
+  private String[] mKeys;
+  private int[] mOffsets;
+  private int mLength = -1;
+  private boolean mInflated;
+  private volatile boolean mModified;
+  private volatile boolean mArrayRead;
+
+  LazyJSONObject(LazyJsonDocument document, int start, LazyJSONObject parent) {
+    mDocument = document;
+    mStart = start;
+    mParent = parent;
+  }
+
+  @Override
+  public Object opt(String key) {
+    synchronized(mDocument) {
+      Object value = super.opt(key);
+      if(value != null || mInflated || key == null) {
+        if(value instanceof JSONArray) {
+          arrayRead();
+        }
+        return value;
+      }
+      int member = indexOf(key);
+      if(member < 0) {
+        return null;
+      }
+
+      try {
+        value = decode(mOffsets[member]);
+        super.put(key, value);
+        if(value instanceof JSONArray) {
+          arrayRead();
+        }
+        return value;
+      } catch(JSONException e) {
+        return null;
+      }
+    }
+  }
+
+  @Override
+  public boolean has(String key) {
+    synchronized(mDocument) {
+      return mInflated ? super.has(key) : indexOf(key) >= 0;
+    }
+  }
+
+  @Override
+  public int length() {
+    synchronized(mDocument) {
+      if(mInflated) {
+        return super.length();
+      }
+      scanMembers();
+      return mLength;
+    }
+  }
+
+  @Override
+  public Iterator keys() {
+    synchronized(mDocument) {
+      inflate();
+      return super.keys();
+    }
+  }
+
+  @Override
+  public Iterator sortedKeys() {
+    synchronized(mDocument) {
+      inflate();
+      return super.sortedKeys();
+    }
+  }
+
+  @Override
+  public JSONObject put(String key, Object value) throws JSONException {
+    synchronized(mDocument) {
+      inflate();
+      modified();
+      return super.put(key, value);
+    }
+  }
+
+  @Override
+  public Object remove(String key) {
+    synchronized(mDocument) {
+      inflate();
+      modified();
+      return super.remove(key);
+    }
+  }
+
+  @Override
+  public Writer write(Writer writer) throws JSONException {
+    synchronized(mDocument) {
+      inflate();
+      return super.write(writer);
+    }
+  }
+
+  @Override
+  public String toString() {
+    synchronized(mDocument) {
+      if(!mModified && !mArrayRead) {
+        return mDocument.text(mStart, mDocument.closeOf(mStart) + 1);
+      }
+      return super.toString();
+    }
+  }
+
+  @Override
+  public String toString(int indentFactor) throws JSONException {
+    synchronized(mDocument) {
+      // Nested objects are printed through a method that can not be
+      // overridden, so they have to be inflated as well
+      inflateDeep();
+      return super.toString(indentFactor);
+    }
+  }
+
+  /**
+   * Checks whether the object has been modified since it was read.
+   *
+   * @return true if this object or an object nested in it was modified
+   */
+  public boolean isModified() {
+    return mModified;
+  }
+
+  /*
+  * Private, must hold the lock of the document
+  */
+
+  private void modified() {
+    mModified = true;
+    if(mParent != null) {
+      mParent.modified();
+    }
+  }
+
+  private void arrayRead() {
+    mArrayRead = true;
+    if(mParent != null) {
+      mParent.arrayRead();
+    }
+  }
+
+  private int indexOf(String key) {
+    scanMembers();
+    for(int i = mLength - 1; i >= 0; i--) {
+      // Later duplicates win, like they do when parsing eagerly
+      if(mKeys[i].equals(key)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void scanMembers() {
+    if(mLength >= 0) {
+      return;
+    }
+    String[] keys = new String[8];
+    int[] offsets = new int[8];
+    int length = 0;
+
+    JsonParser parser = mDocument.parser(mStart, this);
+    try {
+      parser.expect('{');
+      if(parser.peek() != '}') {
+        do {
+          if(length == keys.length) {
+            keys = Arrays.copyOf(keys, length * 2);
+            offsets = Arrays.copyOf(offsets, length * 2);
+          }
+          keys[length] = parser.readKey();
+          parser.peek();
+          offsets[length++] = parser.position();
+          parser.skipValue();
+        } while(parser.nextElement('}'));
+      }
+    } catch(JSONException e) {
+      throw new IllegalStateException("Malformed JSON object", e);
+    } catch(IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    mKeys = keys;
+    mOffsets = offsets;
+    mLength = length;
+  }
+
+  private Object decode(int offset) throws JSONException {
+    try {
+      return mDocument.parser(offset, this).readValue();
+    } catch(IOException e) {
+      // Not thrown when parsing from memory
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void inflate() {
+    if(mInflated) {
+      return;
+    }
+    scanMembers();
+    for(int i = 0; i < mLength; i++) {
+      if(!super.has(mKeys[i]) && indexOf(mKeys[i]) == i) {
+        try {
+          super.put(mKeys[i], decode(mOffsets[i]));
+        } catch(JSONException e) {
+          throw new IllegalStateException("Malformed value of " + mKeys[i], e);
+        }
+      }
+    }
+    mInflated = true;
+    mKeys = null;
+    mOffsets = null;
+  }
+
+  private void inflateDeep() {
+    inflate();
+    for(Iterator keys = super.keys(); keys.hasNext(); ) {
+      inflateDeep(super.opt((String) keys.next()));
+    }
+  }
+
+  private static void inflateDeep(Object value) {
+    if(value instanceof LazyJSONObject) {
+      ((LazyJSONObject) value).inflateDeep();
+    } else if(value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      for(int i = 0; i < array.length(); i++) {
+        inflateDeep(array.opt(i));
+      }
+    }
+  }
+}
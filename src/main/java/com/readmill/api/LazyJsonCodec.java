@@ -0,0 +1,85 @@
+package com.readmill.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Codec that reads the body into memory and returns a
+ * {@link LazyJSONObject} view of it, which decodes fields when they are
+ * read.
+ * <p/>
+ * Pays off for wide objects of which only a few fields are read, like
+ * readings with their book, user and locators embedded. Code that reads
+ * every field is better off with {@link StreamingJsonCodec}.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  wrapper.setJsonCodec(new LazyJsonCodec());
+ *  // Only decodes the state, the rest of the reading stays bytes
+ *  String state = wrapper.get("/readings/1").fetch("reading").getString("state");
+ * </pre>
+ * </code>
+ */
+public class LazyJsonCodec implements JsonCodec {
+  private final StringPool mKeyPool;
+  private final StringPool mValuePool;
+
+  /**
+   * Creates a codec that shares keys and short string values through pools
+   * shared by all codecs.
+   */
+  public LazyJsonCodec() {
+    this(StringPool.KEYS, StringPool.VALUES);
+  }
+
+  /**
+   * Creates a codec that shares the keys and string values it decodes
+   * through the given pools.
+   *
+   * @param keys   Pool for object keys, or null to allocate every key
+   * @param values Pool for string values, or null to allocate every value
+   */
+  public LazyJsonCodec(StringPool keys, StringPool values) {
+    mKeyPool = keys;
+    mValuePool = values;
+  }
+
+  public JSONObject readObject(InputStream in) throws IOException, JSONException {
+    byte[] data = new byte[8192];
+    int length = 0;
+    int read;
+    while((read = in.read(data, length, data.length - length)) != -1) {
+      length += read;
+      if(length == data.length) {
+        data = Arrays.copyOf(data, data.length * 2);
+      }
+    }
+    return readObject(data, 0, length);
+  }
+
+  /**
+   * Creates a lazy view of a JSON object in memory. The bytes must not be
+   * changed while the view is in use.
+   *
+   * @param data   The bytes
+   * @param offset Start of the object
+   * @param length Length of the object
+   * @return The view
+   * @throws JSONException if the bytes are not a JSON object
+   */
+  public LazyJSONObject readObject(byte[] data, int offset, int length) throws JSONException {
+    return new LazyJsonDocument(data, offset, length, mKeyPool, mValuePool).getRoot(offset);
+  }
+
+  public StringPool getKeyPool() {
+    return mKeyPool;
+  }
+
+  public StringPool getValuePool() {
+    return mValuePool;
+  }
+}
@@ -0,0 +1,177 @@
+package com.readmill.api;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * Raw bytes of a JSON document, with the offsets of its objects and arrays.
+ * <p/>
+ * The bytes are scanned once up front for brackets, recording where each
+ * object and array ends. Everything else is decoded when a
+ * {@link LazyJSONObject} on the document is read, and nested values nobody
+ * reads can be jumped over without looking at their bytes again.
+ */
+class LazyJsonDocument {
+  private final byte[] mData;
+  private final int mEnd;
+
+  // Offsets of opening brackets in ascending order, and their closing brackets
+  private int[] mOpens = new int[64];
+  private int[] mCloses = new int[64];
+  private int mCount;
+
+  private final Parser mParser;
+
+  /**
+   * Indexes a document.
+   *
+   * @param data   The bytes
+   * @param offset Start of the document
+   * @param length Length of the document
+   * @param keys   Pool for object keys, or null to allocate every key
+   * @param values Pool for string values, or null to allocate every value
+   * @throws JSONException if the brackets of the document are unbalanced
+   */
+  LazyJsonDocument(byte[] data, int offset, int length, StringPool keys, StringPool values) throws JSONException {
+    mData = data;
+    mEnd = offset + length;
+    index(offset);
+    mParser = new Parser(keys, values);
+  }
+
+  /**
+   * Gets the root object of the document.
+   *
+   * @param offset Start of the document
+   * @return The root object
+   * @throws JSONException if the document is not an object
+   */
+  LazyJSONObject getRoot(int offset) throws JSONException {
+    synchronized(this) {
+      JsonParser parser = parser(offset, null);
+      try {
+        if(parser.peek() != '{') {
+          throw parser.syntaxError("A JSONObject text must begin with '{'");
+        }
+      } catch(IOException e) {
+        throw new IllegalStateException(e);
+      }
+      return new LazyJSONObject(this, parser.position(), null);
+    }
+  }
+
+  /**
+   * Gets the parser of the document, positioned at an offset. It reads
+   * objects as lazy objects and skips nested values using the index.
+   * <p/>
+   * There is one parser per document, callers must hold the lock of the
+   * document while they use it.
+   *
+   * @param position Offset to start at
+   * @param parent   Object that lazy objects read by the parser are nested
+   *                 in, or null
+   * @return The parser
+   */
+  JsonParser parser(int position, LazyJSONObject parent) {
+    mParser.seek(position);
+    mParser.mParent = parent;
+    return mParser;
+  }
+
+  private class Parser extends JsonParser {
+    LazyJSONObject mParent;
+
+    Parser(StringPool keys, StringPool values) {
+      super(mData, 0, mEnd);
+      setStringPools(keys, values);
+    }
+
+    @Override
+    Object readObjectValue() throws IOException, JSONException {
+      int start = position();
+      seek(closeOf(start) + 1);
+      return new LazyJSONObject(LazyJsonDocument.this, start, mParent);
+    }
+
+    @Override
+    void skipValue() throws IOException, JSONException {
+      int c = peek();
+      if(c == '{' || c == '[') {
+        seek(closeOf(position()) + 1);
+      } else {
+        super.skipValue();
+      }
+    }
+  }
+
+  /**
+   * Gets the offset of the bracket that closes an object or array.
+   *
+   * @param open Offset of the opening bracket
+   * @return Offset of the closing bracket
+   */
+  int closeOf(int open) {
+    int i = Arrays.binarySearch(mOpens, 0, mCount, open);
+    if(i < 0) {
+      throw new IllegalArgumentException("no object or array at " + open);
+    }
+    return mCloses[i];
+  }
+
+  /**
+   * Decodes a part of the document as a String.
+   *
+   * @param start Offset of the first byte
+   * @param end   Offset after the last byte
+   * @return The decoded text
+   */
+  String text(int start, int end) {
+    try {
+      return new String(mData, start, end - start, "UTF-8");
+    } catch(UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void index(int offset) throws JSONException {
+    int[] stack = new int[32];
+    int depth = 0;
+    boolean inString = false;
+
+    for(int i = offset; i < mEnd; i++) {
+      byte b = mData[i];
+      if(inString) {
+        if(b == '\\') {
+          i++;
+        } else if(b == '"') {
+          inString = false;
+        }
+      } else if(b == '"') {
+        inString = true;
+      } else if(b == '{' || b == '[') {
+        if(mCount == mOpens.length) {
+          mOpens = Arrays.copyOf(mOpens, mCount * 2);
+          mCloses = Arrays.copyOf(mCloses, mCount * 2);
+        }
+        if(depth == stack.length) {
+          stack = Arrays.copyOf(stack, depth * 2);
+        }
+        mOpens[mCount] = i;
+        stack[depth++] = mCount++;
+      } else if(b == '}' || b == ']') {
+        if(depth == 0 || mData[mOpens[stack[depth - 1]]] != (b == '}' ? '{' : '[')) {
+          throw new JSONException("Unbalanced '" + (char) b + "' at byte " + (i - offset));
+        }
+        mCloses[stack[--depth]] = i;
+        if(depth == 0) {
+          // Ignore anything after the root
+          return;
+        }
+      }
+    }
+    throw new JSONException("Unexpected end of input");
+  }
+}
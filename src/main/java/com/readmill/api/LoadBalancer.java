@@ -0,0 +1,88 @@
+package com.readmill.api;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks which api host to send a request to.
+ * <p/>
+ * The wrapper only offers hosts that are currently healthy, see
+ * {@link HostPool}.
+ */
+public interface LoadBalancer {
+  /**
+   * Chooses a host for the next request.
+   *
+   * @param candidates Healthy hosts to choose from (never empty)
+   * @return One of the candidates
+   */
+  public HostPool.Host choose(List<HostPool.Host> candidates);
+
+  /**
+   * Cycles through the hosts in order.
+   */
+  public static class RoundRobin implements LoadBalancer {
+    private final AtomicInteger mNext = new AtomicInteger();
+
+    @Override
+    public HostPool.Host choose(List<HostPool.Host> candidates) {
+      int next = mNext.getAndIncrement() & Integer.MAX_VALUE;
+      return candidates.get(next % candidates.size());
+    }
+  }
+
+  /**
+   * Picks the host with the fewest requests in flight.
+   * <p/>
+   * Ties are broken by rotating the starting point, so idle hosts share the
+   * load evenly.
+   */
+  public static class LeastOutstanding implements LoadBalancer {
+    private final AtomicInteger mStart = new AtomicInteger();
+
+    @Override
+    public HostPool.Host choose(List<HostPool.Host> candidates) {
+      int start = mStart.getAndIncrement() & Integer.MAX_VALUE;
+      HostPool.Host best = null;
+      for(int i = 0; i < candidates.size(); i++) {
+        HostPool.Host host = candidates.get((start + i) % candidates.size());
+        if(best == null || host.getOutstanding() < best.getOutstanding()) {
+          best = host;
+        }
+      }
+      return best;
+    }
+  }
+
+  /**
+   * Picks hosts at random, weighted towards the ones that answer fastest.
+   * <p/>
+   * A host's weight is the inverse of its smoothed latency times the number
+   * of requests it would have in flight, so a fast host still gets less
+   * traffic once requests start queueing on it.
+   */
+  public static class LatencyWeighted implements LoadBalancer {
+    private final Random mRandom = new Random();
+
+    @Override
+    public HostPool.Host choose(List<HostPool.Host> candidates) {
+      double[] weights = new double[candidates.size()];
+      double total = 0;
+      for(int i = 0; i < weights.length; i++) {
+        HostPool.Host host = candidates.get(i);
+        weights[i] = 1.0 / ((host.getLatencyMillis() + 1) * (host.getOutstanding() + 1));
+        total += weights[i];
+      }
+
+      double pick = mRandom.nextDouble() * total;
+      for(int i = 0; i < weights.length; i++) {
+        pick -= weights[i];
+        if(pick <= 0) {
+          return candidates.get(i);
+        }
+      }
+      return candidates.get(weights.length - 1);
+    }
+  }
+}
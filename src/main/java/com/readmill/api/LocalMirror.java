@@ -0,0 +1,720 @@
+package com.readmill.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Local, in-memory copy of a user's readings, highlights and comments.
+ * <p/>
+ * Entities are kept in maps keyed by their primitive Readmill id, and the
+ * text of every highlight and its comments is kept in an inverted index so
+ * that searching highlights does not need a round trip to the API.
+ * <p/>
+ * The mirror is filled incrementally. {@link #refresh()} uses a
+ * {@link SyncCursor} to fetch only readings and highlights that changed since
+ * the last refresh (plus all comments of changed highlights), and the
+ * <code>add</code> methods accept entities fetched elsewhere.
+ * <p/>
+ * Deleting an entity does not show up as a change, so deleted readings and
+ * highlights stay in the mirror until {@link #prune()} lists the ids of the
+ * user's collections and drops what has disappeared. Pruning costs a
+ * request per 100 readings or highlights, so it is meant to run far less
+ * often than refresh().
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  LocalMirror mirror = new LocalMirror(wrapper, userId, cursor);
+ *  mirror.refresh();
+ *  // Now and then
+ *  mirror.prune();
+ *  List&lt;JSONObject&gt; matches = mirror.searchHighlights("metamorph");
+ * </pre>
+ * </code>
+ * <p/>
+ * The mirror is safe to query from several threads while it is refreshed.
+ */
+public class LocalMirror {
+  /**
+   * Number of items requested per page.
+   */
+  private static final int PAGE_SIZE = 100;
+
+  /**
+   * Number of highlights whose comments are fetched at the same time.
+   */
+  private static final int COMMENT_FETCHERS = 8;
+
+  private final ReadmillWrapper mWrapper;
+  private final long mUserId;
+  private final SyncCursor mCursor;
+
+  private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+
+  private final LongObjectMap<JSONObject> mReadings = new LongObjectMap<JSONObject>();
+  private final LongObjectMap<JSONObject> mHighlights = new LongObjectMap<JSONObject>();
+  private final LongObjectMap<JSONObject> mComments = new LongObjectMap<JSONObject>();
+  private final LongObjectMap<Postings> mHighlightsByReading = new LongObjectMap<Postings>();
+  private final LongObjectMap<Postings> mCommentsByHighlight = new LongObjectMap<Postings>();
+
+  /**
+   * Inverted index from lower cased term to the ids of the highlights whose
+   * content or comments contain it. Sorted to allow prefix lookups.
+   */
+  private final TreeMap<String, Postings> mIndex = new TreeMap<String, Postings>();
+
+  /**
+   * The terms each highlight is currently indexed under, needed to unindex it.
+   */
+  private final LongObjectMap<String[]> mIndexedTerms = new LongObjectMap<String[]>();
+
+  /**
+   * Creates a mirror of a user's entities.
+   *
+   * @param wrapper Wrapper used to fetch entities
+   * @param userId  Id of the user to mirror
+   * @param cursor  Cursor that remembers what has been synced
+   */
+  public LocalMirror(ReadmillWrapper wrapper, long userId, SyncCursor cursor) {
+    mWrapper = wrapper;
+    mUserId = userId;
+    mCursor = cursor;
+  }
+
+  /**
+   * Fetches readings and highlights that changed since the last refresh, and
+   * the comments of the changed highlights.
+   * <p/>
+   * Comments are fetched for several highlights at a time, every page of
+   * them, so highlights with many comments are mirrored in full.
+   *
+   * @return The number of changed readings and highlights
+   * @throws Exception if a request failed
+   */
+  public synchronized int refresh() throws Exception {
+    int changed = mCursor.sync(mUserId, "readings", "reading", new SyncCursor.Listener() {
+      @Override
+      public void onChanges(JSONArray changes) throws JSONException {
+        addReadings(changes);
+      }
+    });
+
+    changed += mCursor.sync(mUserId, "highlights", "highlight", new SyncCursor.Listener() {
+      @Override
+      public void onChanges(JSONArray changes) throws Exception {
+        // Fetch comments before handing the highlights over, so a failure
+        // leaves the watermark untouched and the highlights are retried
+        List<Long> commented = new ArrayList<Long>();
+        Map<Long, JSONArray> comments = new HashMap<Long, JSONArray>();
+        for(int i = 0; i < changes.length(); i++) {
+          JSONObject highlight = changes.getJSONObject(i);
+          long id = highlight.getLong("id");
+          if(highlight.optInt("comments_count", 1) > 0) {
+            commented.add(id);
+          } else {
+            comments.put(id, new JSONArray());
+          }
+        }
+        comments.putAll(fetchComments(commented));
+
+        addHighlights(changes);
+        for(Map.Entry<Long, JSONArray> entry : comments.entrySet()) {
+          addComments(entry.getKey(), entry.getValue());
+        }
+      }
+    });
+
+    return changed;
+  }
+
+  /**
+   * Drops the readings and highlights that are no longer in the user's
+   * collections, with their comments, and refetches the comments of
+   * highlights whose comment count changed.
+   *
+   * @return The number of dropped readings and highlights
+   * @throws Exception if a request failed
+   */
+  public synchronized int prune() throws Exception {
+    Map<Long, JSONObject> readings = fetchAll(String.format("/users/%d/readings", mUserId), "reading");
+    Map<Long, JSONObject> highlights = fetchAll(String.format("/users/%d/highlights", mUserId), "highlight");
+
+    List<Long> recount = new ArrayList<Long>();
+    mLock.readLock().lock();
+    try {
+      for(JSONObject highlight : highlights.values()) {
+        long id = highlight.getLong("id");
+        Postings comments = mCommentsByHighlight.get(id);
+        if(mHighlights.get(id) != null && highlight.has("comments_count") &&
+            highlight.getInt("comments_count") != (comments == null ? 0 : comments.size)) {
+          recount.add(id);
+        }
+      }
+    } finally {
+      mLock.readLock().unlock();
+    }
+    Map<Long, JSONArray> comments = fetchComments(recount);
+
+    int dropped = 0;
+    mLock.writeLock().lock();
+    try {
+      for(long id : mHighlights.keys()) {
+        if(!highlights.containsKey(id)) {
+          removeHighlight(id);
+          dropped++;
+        }
+      }
+      for(long id : mReadings.keys()) {
+        if(!readings.containsKey(id)) {
+          removeReading(id);
+          dropped++;
+        }
+      }
+      for(Map.Entry<Long, JSONArray> entry : comments.entrySet()) {
+        addComments(entry.getKey(), entry.getValue());
+      }
+    } finally {
+      mLock.writeLock().unlock();
+    }
+    return dropped;
+  }
+
+  /**
+   * Adds or replaces readings.
+   *
+   * @param readings Unwrapped reading objects
+   * @throws JSONException if a reading has no id
+   */
+  public void addReadings(JSONArray readings) throws JSONException {
+    mLock.writeLock().lock();
+    try {
+      for(int i = 0; i < readings.length(); i++) {
+        JSONObject reading = readings.getJSONObject(i);
+        mReadings.put(reading.getLong("id"), reading);
+      }
+    } finally {
+      mLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Adds or replaces highlights and updates the search index.
+   *
+   * @param highlights Unwrapped highlight objects
+   * @throws JSONException if a highlight has no id
+   */
+  public void addHighlights(JSONArray highlights) throws JSONException {
+    mLock.writeLock().lock();
+    try {
+      for(int i = 0; i < highlights.length(); i++) {
+        JSONObject highlight = highlights.getJSONObject(i);
+        long id = highlight.getLong("id");
+
+        JSONObject previous = mHighlights.put(id, highlight);
+        if(previous != null) {
+          Postings byReading = mHighlightsByReading.get(readingIdOf(previous));
+          if(byReading != null) {
+            byReading.remove(id);
+          }
+        }
+        postingsFor(mHighlightsByReading, readingIdOf(highlight)).add(id);
+        reindex(id);
+      }
+    } finally {
+      mLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Replaces the comments of a highlight and updates the search index.
+   *
+   * @param highlightId Id of the commented highlight
+   * @param comments    All comments of the highlight (unwrapped)
+   * @throws JSONException if a comment has no id
+   */
+  public void addComments(long highlightId, JSONArray comments) throws JSONException {
+    mLock.writeLock().lock();
+    try {
+      Postings previous = mCommentsByHighlight.remove(highlightId);
+      if(previous != null) {
+        for(int i = 0; i < previous.size; i++) {
+          mComments.remove(previous.ids[i]);
+        }
+      }
+
+      Postings ids = postingsFor(mCommentsByHighlight, highlightId);
+      for(int i = 0; i < comments.length(); i++) {
+        JSONObject comment = comments.getJSONObject(i);
+        long id = comment.getLong("id");
+        mComments.put(id, comment);
+        ids.add(id);
+      }
+      reindex(highlightId);
+    } finally {
+      mLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes a reading with its highlights and their comments.
+   *
+   * @param id Reading id
+   */
+  public void removeReading(long id) {
+    mLock.writeLock().lock();
+    try {
+      mReadings.remove(id);
+      Postings highlights = mHighlightsByReading.remove(id);
+      if(highlights != null) {
+        for(long highlightId : Arrays.copyOf(highlights.ids, highlights.size)) {
+          removeHighlight(highlightId);
+        }
+      }
+    } finally {
+      mLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes a highlight with its comments, and unindexes it.
+   *
+   * @param id Highlight id
+   */
+  public void removeHighlight(long id) {
+    mLock.writeLock().lock();
+    try {
+      JSONObject highlight = mHighlights.remove(id);
+      if(highlight != null) {
+        Postings byReading = mHighlightsByReading.get(readingIdOf(highlight));
+        if(byReading != null && byReading.remove(id) && byReading.size == 0) {
+          mHighlightsByReading.remove(readingIdOf(highlight));
+        }
+      }
+      Postings comments = mCommentsByHighlight.remove(id);
+      if(comments != null) {
+        for(int i = 0; i < comments.size; i++) {
+          mComments.remove(comments.ids[i]);
+        }
+      }
+      reindex(id);
+    } finally {
+      mLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Gets a mirrored reading.
+   *
+   * @param id Reading id
+   * @return The reading or null if it is not mirrored
+   */
+  public JSONObject getReading(long id) {
+    mLock.readLock().lock();
+    try {
+      return mReadings.get(id);
+    } finally {
+      mLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets a mirrored highlight.
+   *
+   * @param id Highlight id
+   * @return The highlight or null if it is not mirrored
+   */
+  public JSONObject getHighlight(long id) {
+    mLock.readLock().lock();
+    try {
+      return mHighlights.get(id);
+    } finally {
+      mLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets a mirrored comment.
+   *
+   * @param id Comment id
+   * @return The comment or null if it is not mirrored
+   */
+  public JSONObject getComment(long id) {
+    mLock.readLock().lock();
+    try {
+      return mComments.get(id);
+    } finally {
+      mLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets the mirrored highlights of a reading.
+   *
+   * @param readingId Reading id
+   * @return The highlights, ordered by id
+   */
+  public List<JSONObject> getHighlights(long readingId) {
+    mLock.readLock().lock();
+    try {
+      return resolve(mHighlights, mHighlightsByReading.get(readingId));
+    } finally {
+      mLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets the mirrored comments of a highlight.
+   *
+   * @param highlightId Highlight id
+   * @return The comments, ordered by id
+   */
+  public List<JSONObject> getComments(long highlightId) {
+    mLock.readLock().lock();
+    try {
+      return resolve(mComments, mCommentsByHighlight.get(highlightId));
+    } finally {
+      mLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Searches the content and comments of the mirrored highlights.
+   * <p/>
+   * Every term in the query must match. The last term also matches as a
+   * prefix, so that results can be shown while the user is typing.
+   *
+   * @param query Search terms
+   * @return Matching highlights, ordered by id
+   */
+  public List<JSONObject> searchHighlights(String query) {
+    String[] terms = tokenize(query);
+    if(terms.length == 0) {
+      return Collections.emptyList();
+    }
+
+    mLock.readLock().lock();
+    try {
+      Postings matches = null;
+      for(int i = 0; i < terms.length; i++) {
+        Postings termMatches;
+        if(i == terms.length - 1) {
+          termMatches = Postings.union(mIndex.subMap(terms[i], terms[i] + Character.MAX_VALUE).values());
+        } else {
+          termMatches = mIndex.get(terms[i]);
+        }
+
+        if(termMatches == null || termMatches.size == 0) {
+          return Collections.emptyList();
+        }
+        matches = matches == null ? termMatches : matches.intersect(termMatches);
+      }
+      return resolve(mHighlights, matches);
+    } finally {
+      mLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Removes everything from the mirror. The sync cursor is left untouched.
+   */
+  public void clear() {
+    mLock.writeLock().lock();
+    try {
+      mReadings.clear();
+      mHighlights.clear();
+      mComments.clear();
+      mHighlightsByReading.clear();
+      mCommentsByHighlight.clear();
+      mIndex.clear();
+      mIndexedTerms.clear();
+    } finally {
+      mLock.writeLock().unlock();
+    }
+  }
+
+  /*
+  * Private
+  */
+
+  /**
+   * Fetches all comments of highlights, a few highlights at a time on the
+   * executor of the wrapper.
+   */
+  private Map<Long, JSONArray> fetchComments(List<Long> highlightIds) throws Exception {
+    final Map<Long, JSONArray> comments = new ConcurrentHashMap<Long, JSONArray>();
+    if(highlightIds.isEmpty()) {
+      return comments;
+    }
+
+    final Queue<Long> pending = new ConcurrentLinkedQueue<Long>(highlightIds);
+    List<Future<Void>> fetchers = new ArrayList<Future<Void>>();
+    for(int i = 0; i < Math.min(COMMENT_FETCHERS, highlightIds.size()); i++) {
+      fetchers.add(mWrapper.getExecutor().submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          Long id;
+          while((id = pending.poll()) != null) {
+            Map<Long, JSONObject> fetched = fetchAll(String.format("/highlights/%d/comments", id), "comment");
+            comments.put(id, new JSONArray(fetched.values()));
+          }
+          return null;
+        }
+      }));
+    }
+
+    try {
+      for(Future<Void> fetcher : fetchers) {
+        fetcher.get();
+      }
+    } catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+    } finally {
+      // Stop the other fetchers if one of them failed
+      pending.clear();
+      for(Future<Void> fetcher : fetchers) {
+        fetcher.cancel(true);
+      }
+    }
+    return comments;
+  }
+
+  /**
+   * Fetches every page of a collection, newest first.
+   * <p/>
+   * Like {@link SyncCursor}, pages backwards from the oldest item of the
+   * previous page, including its second, and drops the overlap by id.
+   */
+  private Map<Long, JSONObject> fetchAll(String resource, String itemKey) throws IOException, JSONException {
+    Map<Long, JSONObject> items = new LinkedHashMap<Long, JSONObject>();
+    String to = null;
+    while(true) {
+      RequestBuilder builder = mWrapper.get(resource).count(PAGE_SIZE);
+      if(to != null) {
+        builder.to(to);
+      }
+      JSONArray page = builder.fetchItemsOrThrow(itemKey);
+
+      String oldest = null;
+      int added = 0;
+      for(int i = 0; i < page.length(); i++) {
+        JSONObject item = page.getJSONObject(i);
+        if(items.put(item.getLong("id"), item) == null) {
+          added++;
+        }
+        String createdAt = item.optString("created_at");
+        if(oldest == null || createdAt.compareTo(oldest) < 0) {
+          oldest = createdAt;
+        }
+      }
+      // Without new items the page was within a single second, which
+      // cannot be paged any further
+      if(page.length() < PAGE_SIZE || added == 0 || oldest.length() == 0) {
+        return items;
+      }
+      to = SyncCursor.plusOneSecond(oldest);
+    }
+  }
+
+  /**
+   * Re-indexes a highlight from its content and comments. Must be called with
+   * the write lock held.
+   */
+  private void reindex(long highlightId) {
+    String[] previous = mIndexedTerms.remove(highlightId);
+    if(previous != null) {
+      for(String term : previous) {
+        Postings postings = mIndex.get(term);
+        if(postings != null && postings.remove(highlightId) && postings.size == 0) {
+          mIndex.remove(term);
+        }
+      }
+    }
+
+    JSONObject highlight = mHighlights.get(highlightId);
+    if(highlight == null) {
+      return;
+    }
+
+    Set<String> terms = new HashSet<String>(Arrays.asList(tokenize(highlight.optString("content"))));
+    Postings comments = mCommentsByHighlight.get(highlightId);
+    if(comments != null) {
+      for(int i = 0; i < comments.size; i++) {
+        JSONObject comment = mComments.get(comments.ids[i]);
+        if(comment != null) {
+          terms.addAll(Arrays.asList(tokenize(comment.optString("content"))));
+        }
+      }
+    }
+
+    for(String term : terms) {
+      postingsFor(mIndex, term).add(highlightId);
+    }
+    mIndexedTerms.put(highlightId, terms.toArray(new String[terms.size()]));
+  }
+
+  private static long readingIdOf(JSONObject highlight) {
+    JSONObject reading = highlight.optJSONObject("reading");
+    return reading == null ? highlight.optLong("reading_id") : reading.optLong("id");
+  }
+
+  private static Postings postingsFor(LongObjectMap<Postings> map, long key) {
+    Postings postings = map.get(key);
+    if(postings == null) {
+      postings = new Postings();
+      map.put(key, postings);
+    }
+    return postings;
+  }
+
+  private static Postings postingsFor(Map<String, Postings> map, String key) {
+    Postings postings = map.get(key);
+    if(postings == null) {
+      postings = new Postings();
+      map.put(key, postings);
+    }
+    return postings;
+  }
+
+  private static List<JSONObject> resolve(LongObjectMap<JSONObject> entities, Postings ids) {
+    if(ids == null) {
+      return Collections.emptyList();
+    }
+    List<JSONObject> resolved = new ArrayList<JSONObject>(ids.size);
+    for(int i = 0; i < ids.size; i++) {
+      JSONObject entity = entities.get(ids.ids[i]);
+      if(entity != null) {
+        resolved.add(entity);
+      }
+    }
+    return resolved;
+  }
+
+  /**
+   * Splits text into lower cased terms of letters and digits.
+   */
+  static String[] tokenize(String text) {
+    if(text == null) {
+      return new String[0];
+    }
+
+    List<String> terms = new ArrayList<String>();
+    int start = -1;
+    for(int i = 0; i <= text.length(); i++) {
+      boolean partOfTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if(partOfTerm && start < 0) {
+        start = i;
+      } else if(!partOfTerm && start >= 0) {
+        terms.add(text.substring(start, i).toLowerCase(Locale.ENGLISH));
+        start = -1;
+      }
+    }
+    return terms.toArray(new String[terms.size()]);
+  }
+
+  /**
+   * Sorted set of ids backed by a primitive array.
+   */
+  static class Postings {
+    long[] ids = new long[4];
+    int size;
+
+    void add(long id) {
+      int index = Arrays.binarySearch(ids, 0, size, id);
+      if(index >= 0) {
+        return;
+      }
+      index = -index - 1;
+      if(size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      System.arraycopy(ids, index, ids, index + 1, size - index);
+      ids[index] = id;
+      size++;
+    }
+
+    boolean remove(long id) {
+      int index = Arrays.binarySearch(ids, 0, size, id);
+      if(index < 0) {
+        return false;
+      }
+      System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+      size--;
+      return true;
+    }
+
+    Postings union(Postings other) {
+      Postings result = new Postings();
+      result.ids = new long[Math.max(size + other.size, 4)];
+      int i = 0, j = 0;
+      while(i < size && j < other.size) {
+        if(ids[i] < other.ids[j]) {
+          result.ids[result.size++] = ids[i++];
+        } else if(ids[i] > other.ids[j]) {
+          result.ids[result.size++] = other.ids[j++];
+        } else {
+          result.ids[result.size++] = ids[i];
+          i++;
+          j++;
+        }
+      }
+      while(i < size) {
+        result.ids[result.size++] = ids[i++];
+      }
+      while(j < other.size) {
+        result.ids[result.size++] = other.ids[j++];
+      }
+      return result;
+    }
+
+    Postings intersect(Postings other) {
+      Postings result = new Postings();
+      result.ids = new long[Math.max(Math.min(size, other.size), 4)];
+      int i = 0, j = 0;
+      while(i < size && j < other.size) {
+        if(ids[i] < other.ids[j]) {
+          i++;
+        } else if(ids[i] > other.ids[j]) {
+          j++;
+        } else {
+          result.ids[result.size++] = ids[i];
+          i++;
+          j++;
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Merges many sets, pairwise in rounds so that every id is copied once
+     * per round rather than once per set.
+     *
+     * @param sets The sets
+     * @return The union of the sets
+     */
+    static Postings union(Collection<Postings> sets) {
+      List<Postings> round = new ArrayList<Postings>(sets);
+      if(round.isEmpty()) {
+        return new Postings();
+      }
+      while(round.size() > 1) {
+        List<Postings> merged = new ArrayList<Postings>((round.size() + 1) / 2);
+        for(int i = 0; i < round.size(); i += 2) {
+          merged.add(i + 1 < round.size() ? round.get(i).union(round.get(i + 1)) : round.get(i));
+        }
+        round = merged;
+      }
+      return round.get(0);
+    }
+  }
+}
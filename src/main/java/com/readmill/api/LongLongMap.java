@@ -0,0 +1,150 @@
+package com.readmill.api;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from primitive <code>long</code> keys to
+ * non-negative <code>long</code> values.
+ * <p/>
+ * Like {@link LongObjectMap}, but without any objects per mapping at all,
+ * which keeps large indexes out of the garbage collector's way. Not thread
+ * safe.
+ */
+class LongLongMap {
+  private static final int MIN_CAPACITY = 16;
+  private static final long EMPTY = -1;
+
+  private long[] mKeys;
+  private long[] mValues;
+  private int mSize;
+
+  LongLongMap() {
+    this(MIN_CAPACITY);
+  }
+
+  LongLongMap(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while(capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    mKeys = new long[capacity];
+    mValues = new long[capacity];
+    Arrays.fill(mValues, EMPTY);
+  }
+
+  int size() {
+    return mSize;
+  }
+
+  /**
+   * Gets the value of a key.
+   *
+   * @param key The key
+   * @return The value or -1 if the key is not mapped
+   */
+  long get(long key) {
+    int mask = mKeys.length - 1;
+    for(int i = indexOf(key, mask); mValues[i] != EMPTY; i = (i + 1) & mask) {
+      if(mKeys[i] == key) {
+        return mValues[i];
+      }
+    }
+    return EMPTY;
+  }
+
+  /**
+   * Maps a key to a value.
+   *
+   * @param key   The key
+   * @param value The value (not negative)
+   * @return The previous value or -1
+   */
+  long put(long key, long value) {
+    if(value < 0) {
+      throw new IllegalArgumentException("negative values are not supported");
+    }
+
+    int mask = mKeys.length - 1;
+    int i = indexOf(key, mask);
+    for(; mValues[i] != EMPTY; i = (i + 1) & mask) {
+      if(mKeys[i] == key) {
+        long previous = mValues[i];
+        mValues[i] = value;
+        return previous;
+      }
+    }
+
+    mKeys[i] = key;
+    mValues[i] = value;
+    if(++mSize * 2 > mKeys.length) {
+      resize(mKeys.length << 1);
+    }
+    return EMPTY;
+  }
+
+  /**
+   * Removes a mapping, using backward shift deletion.
+   *
+   * @param key The key to remove
+   * @return The removed value or -1
+   */
+  long remove(long key) {
+    int mask = mKeys.length - 1;
+    int i = indexOf(key, mask);
+    for(; mValues[i] != EMPTY; i = (i + 1) & mask) {
+      if(mKeys[i] == key) {
+        break;
+      }
+    }
+    if(mValues[i] == EMPTY) {
+      return EMPTY;
+    }
+
+    long removed = mValues[i];
+    int hole = i;
+    for(int j = (i + 1) & mask; mValues[j] != EMPTY; j = (j + 1) & mask) {
+      int home = indexOf(mKeys[j], mask);
+      // Move the entry into the hole unless its home slot lies cyclically in (hole, j]
+      boolean inRange = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+      if(!inRange) {
+        mKeys[hole] = mKeys[j];
+        mValues[hole] = mValues[j];
+        hole = j;
+      }
+    }
+    mValues[hole] = EMPTY;
+    mSize--;
+    return removed;
+  }
+
+  void clear() {
+    Arrays.fill(mValues, EMPTY);
+    mSize = 0;
+  }
+
+  private void resize(int capacity) {
+    long[] oldKeys = mKeys;
+    long[] oldValues = mValues;
+    mKeys = new long[capacity];
+    mValues = new long[capacity];
+    Arrays.fill(mValues, EMPTY);
+
+    int mask = capacity - 1;
+    for(int i = 0; i < oldValues.length; i++) {
+      if(oldValues[i] != EMPTY) {
+        int j = indexOf(oldKeys[i], mask);
+        while(mValues[j] != EMPTY) {
+          j = (j + 1) & mask;
+        }
+        mKeys[j] = oldKeys[i];
+        mValues[j] = oldValues[i];
+      }
+    }
+  }
+
+  private static int indexOf(long key, int mask) {
+    // Spread the bits, ids are sequential and would otherwise cluster
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+}
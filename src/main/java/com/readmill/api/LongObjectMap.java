@@ -0,0 +1,190 @@
+package com.readmill.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open addressing hash map from primitive <code>long</code> keys to objects.
+ * <p/>
+ * Avoids boxing the key and allocating an entry per mapping, which matters
+ * when holding many thousands of entities keyed by their Readmill id. Null
+ * values are not supported. Not thread safe.
+ *
+ * @param <V> Value type
+ */
+class LongObjectMap<V> {
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] mKeys;
+  private Object[] mValues;
+  private int mSize;
+
+  LongObjectMap() {
+    this(MIN_CAPACITY);
+  }
+
+  LongObjectMap(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while(capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    mKeys = new long[capacity];
+    mValues = new Object[capacity];
+  }
+
+  int size() {
+    return mSize;
+  }
+
+  boolean isEmpty() {
+    return mSize == 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  V get(long key) {
+    int mask = mKeys.length - 1;
+    for(int i = indexOf(key, mask); mValues[i] != null; i = (i + 1) & mask) {
+      if(mKeys[i] == key) {
+        return (V) mValues[i];
+      }
+    }
+    return null;
+  }
+
+  boolean containsKey(long key) {
+    return get(key) != null;
+  }
+
+  /**
+   * Maps a key to a value.
+   *
+   * @param key   The key
+   * @param value The value (not null)
+   * @return The previous value or null
+   */
+  @SuppressWarnings("unchecked")
+  V put(long key, V value) {
+    if(value == null) {
+      throw new IllegalArgumentException("null values are not supported");
+    }
+
+    int mask = mKeys.length - 1;
+    int i = indexOf(key, mask);
+    for(; mValues[i] != null; i = (i + 1) & mask) {
+      if(mKeys[i] == key) {
+        V previous = (V) mValues[i];
+        mValues[i] = value;
+        return previous;
+      }
+    }
+
+    mKeys[i] = key;
+    mValues[i] = value;
+    if(++mSize * 2 > mKeys.length) {
+      resize(mKeys.length << 1);
+    }
+    return null;
+  }
+
+  /**
+   * Removes a mapping.
+   * <p/>
+   * Uses backward shift deletion so that no tombstones are left behind.
+   *
+   * @param key The key to remove
+   * @return The removed value or null
+   */
+  @SuppressWarnings("unchecked")
+  V remove(long key) {
+    int mask = mKeys.length - 1;
+    int i = indexOf(key, mask);
+    for(; mValues[i] != null; i = (i + 1) & mask) {
+      if(mKeys[i] == key) {
+        break;
+      }
+    }
+    if(mValues[i] == null) {
+      return null;
+    }
+
+    V removed = (V) mValues[i];
+    int hole = i;
+    for(int j = (i + 1) & mask; mValues[j] != null; j = (j + 1) & mask) {
+      int home = indexOf(mKeys[j], mask);
+      // Move the entry into the hole unless its home slot lies cyclically in (hole, j]
+      boolean inRange = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+      if(!inRange) {
+        mKeys[hole] = mKeys[j];
+        mValues[hole] = mValues[j];
+        hole = j;
+      }
+    }
+    mValues[hole] = null;
+    mSize--;
+    return removed;
+  }
+
+  void clear() {
+    for(int i = 0; i < mValues.length; i++) {
+      mValues[i] = null;
+    }
+    mSize = 0;
+  }
+
+  /**
+   * Gets a snapshot of all values, in no particular order.
+   *
+   * @return The values
+   */
+  @SuppressWarnings("unchecked")
+  List<V> values() {
+    List<V> values = new ArrayList<V>(mSize);
+    for(Object value : mValues) {
+      if(value != null) {
+        values.add((V) value);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Gets a snapshot of all keys, in no particular order.
+   *
+   * @return The keys
+   */
+  long[] keys() {
+    long[] keys = new long[mSize];
+    int size = 0;
+    for(int i = 0; i < mValues.length; i++) {
+      if(mValues[i] != null) {
+        keys[size++] = mKeys[i];
+      }
+    }
+    return keys;
+  }
+
+  private void resize(int capacity) {
+    long[] oldKeys = mKeys;
+    Object[] oldValues = mValues;
+    mKeys = new long[capacity];
+    mValues = new Object[capacity];
+
+    int mask = capacity - 1;
+    for(int i = 0; i < oldValues.length; i++) {
+      if(oldValues[i] != null) {
+        int j = indexOf(oldKeys[i], mask);
+        while(mValues[j] != null) {
+          j = (j + 1) & mask;
+        }
+        mKeys[j] = oldKeys[i];
+        mValues[j] = oldValues[i];
+      }
+    }
+  }
+
+  private static int indexOf(long key, int mask) {
+    // Spread the bits, ids are sequential and would otherwise cluster
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+}
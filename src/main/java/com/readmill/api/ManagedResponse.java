@@ -0,0 +1,125 @@
+package com.readmill.api;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Response that gives its pooled connection back when it is closed.
+ * <p/>
+ * A raw HttpResponse holds on to its connection until the entity has been
+ * read to the end. Forgetting to do so starves the pool, until every
+ * request blocks waiting for a connection. A managed response releases the
+ * connection when closed, when reading it with {@link #getText()} or
+ * {@link #getJSON()} (also if that fails), and as a last resort after it
+ * has been garbage collected without being closed, which is reported as a
+ * leak.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  ManagedResponse response = wrapper.get("/me").open();
+ *  try {
+ *    if(response.getStatusCode() == 200) {
+ *      handle(response.getEntity().getContent());
+ *    }
+ *  } finally {
+ *    response.close();
+ *  }
+ * </pre>
+ * </code>
+ *
+ * @see ReadmillWrapper#open(Request, Class)
+ * @see ReadmillWrapper#getLeakedResponseCount()
+ */
+public class ManagedResponse implements Closeable {
+  private final HttpResponse mResponse;
+  private final JsonCodec mCodec;
+  private final ResponseLeakDetector.Tracker mTracker;
+  private volatile boolean mClosed;
+
+  ManagedResponse(HttpResponse response, JsonCodec codec, ResponseLeakDetector detector, String description) {
+    mResponse = response;
+    mCodec = codec;
+    mTracker = detector.track(this, response.getEntity(), description);
+  }
+
+  /**
+   * Gets the raw response. Its entity must not be used after the managed
+   * response has been closed.
+   *
+   * @return The response
+   */
+  public HttpResponse getResponse() {
+    return mResponse;
+  }
+
+  public int getStatusCode() {
+    return mResponse.getStatusLine().getStatusCode();
+  }
+
+  public HttpEntity getEntity() {
+    return mResponse.getEntity();
+  }
+
+  /**
+   * Reads the body as text and closes the response.
+   *
+   * @return The body
+   * @throws IOException if reading the body failed
+   */
+  public String getText() throws IOException {
+    try {
+      return HttpUtils.getString(mResponse);
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Parses the body with the codec of the wrapper and closes the response.
+   *
+   * @return The parsed body
+   * @throws IOException   if reading the body failed
+   * @throws JSONException if the body was not a JSON object
+   */
+  public JSONObject getJSON() throws IOException, JSONException {
+    try {
+      return HttpUtils.getJSON(mResponse, mCodec);
+    } finally {
+      close();
+    }
+  }
+
+  public boolean isClosed() {
+    return mClosed;
+  }
+
+  /**
+   * Releases the connection of the response. The rest of the body is read
+   * so the connection can be reused, unless reading it fails, in which
+   * case the connection is closed.
+   *
+   * @throws IOException if reading the rest of the body failed
+   */
+  public void close() throws IOException {
+    if(mClosed) {
+      return;
+    }
+    mClosed = true;
+    mTracker.untrack();
+
+    HttpEntity entity = mResponse.getEntity();
+    if(entity != null) {
+      try {
+        entity.consumeContent();
+      } catch(IOException e) {
+        ResponseLeakDetector.release(entity);
+        throw e;
+      }
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package com.readmill.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Codec that reads the whole body into a String and parses it with
+ * org.json, like the wrapper always used to.
+ */
+public class OrgJsonCodec implements JsonCodec {
+  public JSONObject readObject(InputStream in) throws IOException, JSONException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while((read = in.read(buffer)) != -1) {
+      body.write(buffer, 0, read);
+    }
+    return new JSONObject(body.toString("UTF-8"));
+  }
+}
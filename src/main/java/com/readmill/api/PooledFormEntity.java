@@ -0,0 +1,146 @@
+package com.readmill.api;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An <code>application/x-www-form-urlencoded</code> body encoded straight
+ * into a pooled byte buffer.
+ * <p/>
+ * Encodes the same bytes as <code>URLEncodedUtils.format(params, "UTF-8")</code>
+ * without building the query string, and writes them to the connection
+ * from the buffer. The buffer goes back to the pool on release(), after
+ * which the entity must not be sent again.
+ */
+class PooledFormEntity extends AbstractHttpEntity {
+  private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+  private final BufferPool mPool;
+  private byte[] mBuffer;
+  private int mLength;
+
+  private PooledFormEntity(BufferPool pool) {
+    mPool = pool;
+    mBuffer = pool.acquire();
+    setContentType("application/x-www-form-urlencoded");
+  }
+
+  /**
+   * Encodes parameters into a buffer from a pool.
+   *
+   * @param params The parameters
+   * @param pool   Pool to take the buffer from
+   * @return The entity
+   */
+  static PooledFormEntity encode(List<NameValuePair> params, BufferPool pool) {
+    PooledFormEntity entity = new PooledFormEntity(pool);
+    for(NameValuePair param : params) {
+      if(entity.mLength > 0) {
+        entity.append((byte) '&');
+      }
+      entity.appendEncoded(param.getName());
+      if(param.getValue() != null) {
+        entity.append((byte) '=');
+        entity.appendEncoded(param.getValue());
+      }
+    }
+    return entity;
+  }
+
+  /**
+   * Returns the buffer of this entity to its pool.
+   */
+  void release() {
+    byte[] buffer = mBuffer;
+    mBuffer = null;
+    if(buffer != null) {
+      mPool.release(buffer);
+    }
+  }
+
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  public long getContentLength() {
+    return mLength;
+  }
+
+  public InputStream getContent() {
+    return new ByteArrayInputStream(buffer(), 0, mLength);
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    if(out == null) {
+      throw new IllegalArgumentException("Output stream may not be null");
+    }
+    out.write(buffer(), 0, mLength);
+    out.flush();
+  }
+
+  public boolean isStreaming() {
+    return false;
+  }
+
+  /*
+  * Private
+  */
+
+  private byte[] buffer() {
+    if(mBuffer == null) {
+      throw new IllegalStateException("entity has been released");
+    }
+    return mBuffer;
+  }
+
+  private void append(byte b) {
+    if(mLength == mBuffer.length) {
+      mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+    }
+    mBuffer[mLength++] = b;
+  }
+
+  private void appendEncoded(String s) {
+    for(int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+          || c == '.' || c == '-' || c == '*' || c == '_') {
+        append((byte) c);
+      } else if(c == ' ') {
+        append((byte) '+');
+      } else if(c < 0x80) {
+        appendPercent(c);
+      } else if(c < 0x800) {
+        appendPercent(0xc0 | (c >> 6));
+        appendPercent(0x80 | (c & 0x3f));
+      } else if(Character.isHighSurrogate(c) && i + 1 < s.length()
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        appendPercent(0xf0 | (codePoint >> 18));
+        appendPercent(0x80 | ((codePoint >> 12) & 0x3f));
+        appendPercent(0x80 | ((codePoint >> 6) & 0x3f));
+        appendPercent(0x80 | (codePoint & 0x3f));
+      } else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        // Unpaired surrogates encode as '?', like String.getBytes() does
+        appendPercent('?');
+      } else {
+        appendPercent(0xe0 | (c >> 12));
+        appendPercent(0x80 | ((c >> 6) & 0x3f));
+        appendPercent(0x80 | (c & 0x3f));
+      }
+    }
+  }
+
+  private void appendPercent(int b) {
+    append((byte) '%');
+    append(HEX[(b >> 4) & 0xf]);
+    append(HEX[b & 0xf]);
+  }
+}
@@ -0,0 +1,45 @@
+package com.readmill.api;
+
+/**
+ * Priority of a request, deciding how soon it is sent when requests are
+ * queued for a connection.
+ * <p/>
+ * Queued requests are served in proportion to the weights of their
+ * priorities. With interactive and background requests waiting, 16 of every
+ * 17 requests sent are interactive, so background work slows down but keeps
+ * moving.
+ *
+ * @see RequestDispatcher
+ */
+public enum Priority {
+  /**
+   * Requests the user is waiting for, such as opening a book.
+   */
+  INTERACTIVE(16),
+
+  /**
+   * The default priority.
+   */
+  NORMAL(4),
+
+  /**
+   * Work nobody is waiting for, such as syncs, pings and imports.
+   */
+  BACKGROUND(1);
+
+  private final int mWeight;
+
+  Priority(int weight) {
+    mWeight = weight;
+  }
+
+  /**
+   * Gets the share of queued requests served at this priority, relative to
+   * the other priorities.
+   *
+   * @return The weight
+   */
+  public int getWeight() {
+    return mWeight;
+  }
+}
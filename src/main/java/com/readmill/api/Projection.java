@@ -0,0 +1,98 @@
+package com.readmill.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fields to keep when parsing a response. Everything else is skipped while
+ * the response streams in, without being decoded or kept in memory.
+ * <p/>
+ * Fields of nested objects are selected with a dot. A projection applies to
+ * every object in an array.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  import static com.readmill.api.Projection.fields;
+ *
+ *  JSONArray highlights = wrapper.get("/readings/1/highlights")
+ *    .fetchItems("highlight", fields("id", "content", "position", "user.id"));
+ * </pre>
+ * </code>
+ */
+public class Projection {
+  // Projections of the kept fields, or null to keep the whole value
+  private final Map<String, Projection> mFields = new HashMap<String, Projection>();
+
+  private Projection() {}
+
+  /**
+   * Creates a projection.
+   *
+   * @param paths Names of the fields to keep, with nested fields separated
+   *              by dots, e.g. "book.title"
+   * @return The projection
+   */
+  public static Projection fields(String... paths) {
+    Projection projection = new Projection();
+    for(String path : paths) {
+      projection.add(path);
+    }
+    return projection;
+  }
+
+  /**
+   * Creates a projection that keeps one field, and projects its value.
+   *
+   * @param name       Name of the field
+   * @param projection Projection of its value, or null to keep all of it
+   * @return The projection
+   */
+  static Projection field(String name, Projection projection) {
+    Projection parent = new Projection();
+    parent.mFields.put(name, projection);
+    return parent;
+  }
+
+  /**
+   * Checks whether a field is kept.
+   *
+   * @param name Name of the field
+   * @return true if the field is kept
+   */
+  public boolean includes(String name) {
+    return mFields.containsKey(name);
+  }
+
+  /**
+   * Gets the projection of the value of a field.
+   *
+   * @param name Name of the field
+   * @return The projection, or null if the whole value is kept
+   */
+  public Projection get(String name) {
+    return mFields.get(name);
+  }
+
+  private void add(String path) {
+    int dot = path.indexOf('.');
+    String name = dot < 0 ? path : path.substring(0, dot);
+    if(name.length() == 0) {
+      throw new IllegalArgumentException("invalid field: " + path);
+    }
+
+    if(dot < 0) {
+      // Keeping the whole value overrides nested fields
+      mFields.put(name, null);
+      return;
+    }
+    if(mFields.containsKey(name) && mFields.get(name) == null) {
+      return;
+    }
+    Projection nested = mFields.get(name);
+    if(nested == null) {
+      nested = new Projection();
+      mFields.put(name, nested);
+    }
+    nested.add(path.substring(dot + 1));
+  }
+}
@@ -1,11 +1,16 @@
 package com.readmill.api;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.*;
 import org.apache.http.client.params.HttpClientParams;
-import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -13,17 +18,48 @@ import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
-import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.BasicHttpContext;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+
+public class ReadmillWrapper implements Closeable {
+  /**
+   * Scheduler shared by all wrappers. Its single thread is a daemon, only
+   * started once something is scheduled, and never holds on to a wrapper
+   * that has nothing scheduled.
+   */
+  private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "readmill-scheduler");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
 
-public class ReadmillWrapper {
   private String mClientId;
   private String mClientSecret;
   private Environment mEnv;
@@ -33,6 +69,39 @@ public class ReadmillWrapper {
   private String mScope;
   private String mUserAgent;
 
+  private long mKeepAliveMillis = 20 * 1000;
+  private long mIdleConnectionTimeoutMillis = 30 * 1000;
+  private long mCloseTimeoutMillis = 10 * 1000;
+  private int mMaxConnectionsPerRoute = 2;
+  private int mMaxConnections = 20;
+  private IdleConnectionEvictor mEvictor;
+  private ClientRegistry mClientRegistry;
+  private ClientRegistry mSharedFrom;
+  private ClientRegistry.Entry mShared;
+  private ExecutorService mExecutor;
+
+  /**
+   * Threads currently executing each in-flight http request. Watched so that
+   * interrupting a thread aborts the blocking socket operation it is stuck in.
+   */
+  private final ConcurrentHashMap<HttpRequestBase, Thread> mInFlightThreads = new ConcurrentHashMap<HttpRequestBase, Thread>();
+  private ScheduledFuture<?> mInterruptWatch;
+  private HedgePolicy mHedgePolicy;
+  private final HostPool mHostPool;
+  private LoadBalancer mLoadBalancer = new LoadBalancer.LeastOutstanding();
+  private WriteOutbox mOutbox;
+  private WriteCoalescer mWriteCoalescer;
+  private volatile EntityCache mEntityCache;
+  private volatile JsonCodec mJsonCodec = new StreamingJsonCodec();
+  private final ResponseLeakDetector mLeakDetector = new ResponseLeakDetector();
+  private ScheduledFuture<?> mLeakReaper;
+  private final RequestDispatcher mDispatcher;
+  private volatile AdaptiveLimiter mLimiter;
+
+  private final Object mInFlightLock = new Object();
+  private int mInFlight;
+  private volatile boolean mClosed;
+
   /**
    * A list of clients that are interested to know when the token has changed.
    */
@@ -49,6 +118,8 @@ public class ReadmillWrapper {
     mClientId = clientId;
     mClientSecret = clientSecret;
     mEnv = env;
+    mHostPool = env != null && env.getApiHosts().size() > 1 ? new HostPool(env.getApiHosts()) : null;
+    mDispatcher = new RequestDispatcher(defaultDispatchLimit());
   }
 
   /**
@@ -146,6 +217,307 @@ public class ReadmillWrapper {
       return mUserAgent;
   }
 
+  /**
+   * Sets how long pooled connections are kept alive when the server does not
+   * send a <code>Keep-Alive</code> timeout. Also caps the server's value.
+   * <p/>
+   * Only affects http clients created after the call.
+   *
+   * @param millis Keep alive duration in milliseconds
+   */
+  public void setKeepAlive(long millis) {
+    mKeepAliveMillis = millis;
+  }
+
+  /**
+   * Gets how long pooled connections are kept alive.
+   *
+   * @return Keep alive duration in milliseconds
+   */
+  public long getKeepAlive() {
+    return mKeepAliveMillis;
+  }
+
+  /**
+   * Sets how long a pooled connection may stay unused before it is closed
+   * by the background evictor.
+   * <p/>
+   * Only affects http clients created after the call.
+   *
+   * @param millis Idle timeout in milliseconds
+   */
+  public void setIdleConnectionTimeout(long millis) {
+    mIdleConnectionTimeoutMillis = millis;
+  }
+
+  /**
+   * Gets how long a pooled connection may stay unused.
+   *
+   * @return Idle timeout in milliseconds
+   */
+  public long getIdleConnectionTimeout() {
+    return mIdleConnectionTimeoutMillis;
+  }
+
+  /**
+   * Sets the size of the connection pool.
+   * <p/>
+   * Only affects http clients created after the call.
+   *
+   * @param perRoute Max number of connections to a single host
+   * @param total    Max number of connections in total
+   */
+  public void setMaxConnections(int perRoute, int total) {
+    mMaxConnectionsPerRoute = perRoute;
+    mMaxConnections = total;
+    if(mLimiter == null) {
+      mDispatcher.setLimit(defaultDispatchLimit());
+    }
+  }
+
+  /**
+   * Gets the max number of connections to a single host.
+   *
+   * @return Connections per route
+   */
+  public int getMaxConnectionsPerRoute() {
+    return mMaxConnectionsPerRoute;
+  }
+
+  /**
+   * Gets the max number of connections in total.
+   *
+   * @return Connections in total
+   */
+  public int getMaxConnections() {
+    return mMaxConnections;
+  }
+
+  /**
+   * Shares the http client, and with it the connection pool, with the other
+   * wrappers using the same registry, environment and connection settings.
+   * The client is released when this wrapper is closed, and shut down
+   * when the last wrapper using it is.
+   * <p/>
+   * The dispatcher is shared along with the client, so requests of all the
+   * wrappers queue by priority and tenant for the same pool.
+   * <p/>
+   * Only affects http clients created after the call. Override
+   * createHttpClient() with care, the client it creates for the first
+   * wrapper is used by all of them.
+   *
+   * @param registry The registry, or null for a client of this wrapper's own
+   * @see ClientRegistry
+   */
+  public synchronized void setClientRegistry(ClientRegistry registry) {
+    mClientRegistry = registry;
+  }
+
+  /**
+   * Gets the registry the http client is shared through.
+   *
+   * @return The registry, or null
+   */
+  public synchronized ClientRegistry getClientRegistry() {
+    return mClientRegistry;
+  }
+
+  /**
+   * Lets a limiter adapt the number of requests in flight to the latency of
+   * the server, instead of following the size of the connection pool.
+   * <p/>
+   * Requests beyond the limit wait in the dispatcher. A limit above the
+   * size of the connection pool lets requests wait in the pool instead, so
+   * the maximum of the limiter should not exceed it.
+   * <p/>
+   * With a shared client the first limiter set on one of the sharing
+   * wrappers drives the shared dispatcher, and is fed by all of them. Set it
+   * before the first request.
+   *
+   * @param limiter The limiter, or null to follow the connection pool
+   * @see AdaptiveLimiter
+   */
+  public void setAdaptiveLimiter(AdaptiveLimiter limiter) {
+    mLimiter = limiter;
+    mDispatcher.setLimit(limiter != null ? limiter.getLimit() : defaultDispatchLimit());
+  }
+
+  /**
+   * Gets the limiter adapting the number of requests in flight.
+   *
+   * @return The limiter, or null
+   */
+  public AdaptiveLimiter getAdaptiveLimiter() {
+    return mLimiter;
+  }
+
+  /**
+   * Gets the dispatcher that queues requests by priority in front of the
+   * connection pool.
+   * <p/>
+   * Its limit follows the size of the connection pool, set it after
+   * setMaxConnections() or when overriding createHttpClient() with a
+   * different pool. With a client shared through a {@link ClientRegistry}
+   * this is the dispatcher shared with the other wrappers.
+   *
+   * @return The dispatcher
+   * @see Request#withPriority(Priority)
+   */
+  public RequestDispatcher getDispatcher() {
+    ClientRegistry.Entry shared = sharedClient();
+    return shared != null ? shared.dispatcher : mDispatcher;
+  }
+
+  /**
+   * Enables hedging of GET and HEAD requests.
+   * <p/>
+   * Hedged requests are executed on a background thread, and the calling
+   * thread waits for the first response of either the original request or
+   * its duplicate.
+   *
+   * @param policy The hedge policy, or null to disable hedging
+   * @see HedgePolicy
+   */
+  public void setHedgePolicy(HedgePolicy policy) {
+    mHedgePolicy = policy;
+  }
+
+  /**
+   * Gets the current hedge policy.
+   *
+   * @return The hedge policy or null if hedging is disabled
+   */
+  public HedgePolicy getHedgePolicy() {
+    return mHedgePolicy;
+  }
+
+  /**
+   * Sets the strategy for spreading requests over the api hosts of the
+   * environment. Only used when the environment has more than one api host.
+   * <p/>
+   * Defaults to {@link LoadBalancer.LeastOutstanding}.
+   *
+   * @param loadBalancer The load balancer
+   */
+  public void setLoadBalancer(LoadBalancer loadBalancer) {
+    mLoadBalancer = loadBalancer;
+  }
+
+  /**
+   * Gets the health and load of the api hosts.
+   *
+   * @return The host pool or null if the environment has a single api host
+   */
+  public HostPool getHostPool() {
+    return mHostPool;
+  }
+
+  /**
+   * Sets the outbox that write requests sent with RequestBuilder.send() are
+   * queued in, instead of being sent right away.
+   *
+   * @param outbox The outbox, or null to send writes directly
+   * @see WriteOutbox
+   */
+  public void setOutbox(WriteOutbox outbox) {
+    mOutbox = outbox;
+  }
+
+  /**
+   * Gets the outbox that write requests are queued in.
+   *
+   * @return The outbox or null if writes are sent directly
+   */
+  public WriteOutbox getOutbox() {
+    return mOutbox;
+  }
+
+  /**
+   * Holds back PUT requests sent with RequestBuilder.send() for a window, and
+   * merges repeated updates to the same resource into a single request.
+   * <p/>
+   * Pending PUTs of a previous window are flushed.
+   *
+   * @param window Time to hold PUTs back, or 0 to send them right away
+   * @param unit   Unit of the window
+   * @throws IOException if flushing the pending PUTs failed
+   * @see WriteCoalescer
+   */
+  public void setWriteBehind(long window, TimeUnit unit) throws IOException {
+    WriteCoalescer previous;
+    synchronized (this) {
+      previous = mWriteCoalescer;
+      mWriteCoalescer = window > 0 ? new WriteCoalescer(this, window, unit) : null;
+    }
+    if (previous != null) {
+      previous.close();
+    }
+  }
+
+  /**
+   * Gets the coalescer that PUT requests are held back in.
+   *
+   * @return The coalescer or null if write-behind is disabled
+   */
+  public synchronized WriteCoalescer getWriteCoalescer() {
+    return mWriteCoalescer;
+  }
+
+  /**
+   * Sets the codec that responses are parsed with.
+   *
+   * @param codec The codec, defaults to a {@link StreamingJsonCodec}
+   */
+  public void setJsonCodec(JsonCodec codec) {
+    if(codec == null) {
+      throw new IllegalArgumentException("codec is null");
+    }
+    mJsonCodec = codec;
+  }
+
+  /**
+   * Gets the codec that responses are parsed with.
+   *
+   * @return The codec
+   */
+  public JsonCodec getJsonCodec() {
+    return mJsonCodec;
+  }
+
+  /**
+   * Sets the cache that single entities fetched with RequestBuilder.fetch(key)
+   * are served from. Writes sent through this wrapper invalidate the entity
+   * they change.
+   * <p/>
+   * The cache does not know about tokens, so only share it between wrappers
+   * whose users may see the same entities.
+   *
+   * @param cache The cache, or null to always fetch from the server
+   * @see EntityCache
+   */
+  public void setEntityCache(EntityCache cache) {
+    mEntityCache = cache;
+  }
+
+  /**
+   * Gets the cache that single entities are served from.
+   *
+   * @return The cache or null if entities are not cached
+   */
+  public EntityCache getEntityCache() {
+    return mEntityCache;
+  }
+
+  /**
+   * Sets how long close() waits for in-flight requests to finish before
+   * shutting down the connection pool.
+   *
+   * @param millis Drain timeout in milliseconds
+   */
+  public void setCloseTimeout(long millis) {
+    mCloseTimeoutMillis = millis;
+  }
+
   /**
    * Constructs a url to where the user can authenticate the wrapper.
    *
@@ -222,9 +594,7 @@ public class ReadmillWrapper {
       obtainRequest.withParams("scope", mScope);
     }
 
-    String tokenResponse = getResponseText(obtainRequest, HttpPost.class);
-    JSONObject tokenJson = new JSONObject(tokenResponse);
-    return new Token(tokenJson);
+    return new Token(getResponseJSON(obtainRequest, HttpPost.class));
   }
 
   /**
@@ -257,9 +627,7 @@ public class ReadmillWrapper {
       obtainRequest.withParams("scope", mScope);
     }
 
-    String tokenResponse = getResponseText(obtainRequest, HttpPost.class);
-    JSONObject tokenJson = new JSONObject(tokenResponse);
-    return new Token(tokenJson);
+    return new Token(getResponseJSON(obtainRequest, HttpPost.class));
   }
 
   /**
@@ -267,13 +635,90 @@ public class ReadmillWrapper {
    *
    * @return The HttpClient used for making requests with this wrapper
    */
-  public HttpClient getHttpClient() {
+  public synchronized HttpClient getHttpClient() {
     if (mHttpClient == null) {
+      if (mClosed) {
+        throw new IllegalStateException("wrapper has been closed");
+      }
+      if (mClientRegistry != null) {
+        mShared = mClientRegistry.acquire(this, defaultDispatchLimit());
+        mSharedFrom = mClientRegistry;
+        mHttpClient = mShared.client;
+        return mHttpClient;
+      }
       mHttpClient = createHttpClient();
+
+      ClientConnectionManager connectionManager = mHttpClient.getConnectionManager();
+      if (connectionManager != null) {
+        mEvictor = new IdleConnectionEvictor(connectionManager, mIdleConnectionTimeoutMillis);
+        mEvictor.start();
+      }
     }
     return mHttpClient;
   }
 
+  /**
+   * Closes the wrapper.
+   * <p/>
+   * Sends any PUTs held back by write-behind, stops accepting new requests,
+   * waits for in-flight requests to finish, including reading or closing
+   * their responses (see {@link #setCloseTimeout(long)}), and shuts down the
+   * connection pool.
+   * Calling close() more than once has no effect.
+   *
+   * @throws IOException if interrupted while waiting for in-flight requests
+   */
+  @Override
+  public void close() throws IOException {
+    WriteCoalescer coalescer;
+    synchronized (this) {
+      if (mClosed) {
+        return;
+      }
+      coalescer = mWriteCoalescer;
+    }
+
+    // Send the held back writes while requests are still accepted
+    if (coalescer != null) {
+      try {
+        coalescer.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    synchronized (this) {
+      if (mClosed) {
+        return;
+      }
+      mClosed = true;
+    }
+
+    try {
+      long deadline = System.currentTimeMillis() + mCloseTimeoutMillis;
+      synchronized (mInFlightLock) {
+        long remaining;
+        while (mInFlight > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+          mInFlightLock.wait(remaining);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while draining requests");
+    } finally {
+      shutdownHttpClient();
+    }
+  }
+
+  /**
+   * Checks if the wrapper has been closed.
+   *
+   * @return true if close() has been called
+   */
+  public boolean isClosed() {
+    return mClosed;
+  }
+
   /**
    * Creates the HttpClient used for making requests to the API.
    * <p/>
@@ -285,6 +730,8 @@ public class ReadmillWrapper {
     HttpParams httpParams = new BasicHttpParams();
 
     HttpClientParams.setRedirecting(httpParams, false);
+    ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(mMaxConnectionsPerRoute));
+    ConnManagerParams.setMaxTotalConnections(httpParams, mMaxConnections);
 
     Scheme httpScheme = new Scheme("http", PlainSocketFactory.getSocketFactory(), 80);
     Scheme httpsScheme = new Scheme("https", SSLSocketFactory.getSocketFactory(), 443);
@@ -293,16 +740,67 @@ public class ReadmillWrapper {
     registry.register(httpScheme);
     registry.register(httpsScheme);
 
-    return new DefaultHttpClient(new ThreadSafeClientConnManager(httpParams, registry), httpParams) {
-      {
-        setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
-          @Override
-          public long getKeepAliveDuration(HttpResponse httpResponse, HttpContext httpContext) {
-            return 20 * 1000;
+    DefaultHttpClient httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(httpParams, registry), httpParams);
+    httpClient.setKeepAliveStrategy(new ServerKeepAliveStrategy(mKeepAliveMillis));
+    return httpClient;
+  }
+
+  /**
+   * Opens pooled connections to the api and web hosts ahead of time.
+   * <p/>
+   * Resolves the hosts and opens (and for https, handshakes) the given number
+   * of connections to each host in parallel, then returns them to the pool
+   * so that the first real requests do not pay for it. The number of
+   * connections is capped by the per-route pool size, see
+   * {@link #setMaxConnections(int, int)}.
+   *
+   * @param connections Number of connections to open per host
+   * @return A future for the number of connections opened, completing when
+   *         all attempts have finished
+   */
+  public Future<Integer> warmUp(final int connections) {
+    final HttpClient httpClient = getHttpClient();
+    final ClientConnectionManager connectionManager = httpClient.getConnectionManager();
+
+    Set<HttpHost> hosts = new LinkedHashSet<HttpHost>();
+    hosts.add(mEnv.getApiHost());
+    hosts.add(mEnv.getWebHost());
+
+    final List<Future<Boolean>> attempts = new ArrayList<Future<Boolean>>();
+    if (connectionManager != null) {
+      int perHost = Math.min(connections, mMaxConnectionsPerRoute);
+      // Every connection is held until all are open, so that they are
+      // distinct rather than the same connection leased over and over
+      final CountDownLatch allOpened = new CountDownLatch(perHost * hosts.size());
+      for (HttpHost host : hosts) {
+        final HttpRoute route = new HttpRoute(host, null, "https".equals(host.getSchemeName()));
+        for (int i = 0; i < perHost; i++) {
+          attempts.add(getExecutor().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+              return openPooledConnection(connectionManager, route, httpClient.getParams(), allOpened);
+            }
+          }));
+        }
+      }
+    }
+
+    return getExecutor().submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        int opened = 0;
+        for (Future<Boolean> attempt : attempts) {
+          try {
+            if (attempt.get()) {
+              opened++;
+            }
+          } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
           }
-        });
+        }
+        return opened;
       }
-    };
+    });
   }
 
   /**
@@ -411,6 +909,107 @@ public class ReadmillWrapper {
     return execute(request, HttpDelete.class);
   }
 
+  /**
+   * Sends a request and returns a response that releases its connection when
+   * closed.
+   * <p/>
+   * Responses that are garbage collected without being closed have their
+   * connection released in the background, and are counted as leaks.
+   *
+   * @param request Request to send
+   * @param klass   HttpRequest class to send as (HttpPost, HttpGet etc)
+   * @return The response, which must be closed
+   * @throws IOException if a network error occurred
+   * @see ManagedResponse
+   */
+  public ManagedResponse open(Request request, Class<? extends HttpRequestBase> klass) throws IOException {
+    mLeakDetector.reap();
+    startLeakReaper();
+    HttpResponse response = execute(request, klass);
+    String description = klass.getSimpleName().substring(4).toUpperCase() + " " + request.getResource();
+    return new ManagedResponse(response, mJsonCodec, mLeakDetector, description);
+  }
+
+  /**
+   * Imports highlights into a reading, posting up to a given number of them
+   * at a time. Returns when every highlight has been posted or has failed.
+   *
+   * @param readingId   Reading to import the highlights into
+   * @param highlights  The highlights to import
+   * @param concurrency Maximum number of posts in flight
+   * @param listener    Listener notified as highlights complete, or null
+   * @return A result per highlight, in the order of the iterator
+   * @throws InterruptedException if the calling thread was interrupted
+   * @see HighlightImporter
+   */
+  public List<HighlightImporter.Result> importHighlights(long readingId, Iterator<HighlightImporter.Highlight> highlights,
+                                                        int concurrency, HighlightImporter.Listener listener) throws InterruptedException {
+    HighlightImporter importer = new HighlightImporter(this, readingId, concurrency);
+    importer.setListener(listener);
+    return importer.run(highlights);
+  }
+
+  /**
+   * Fetches a reading along with related objects, such as its book, its
+   * highlights and their comments.
+   * <p/>
+   * Related objects are fetched in parallel as soon as the object they
+   * belong to has arrived, so the time taken follows the depth of the
+   * include rather than the number of objects. Objects related to several
+   * others are fetched once. Collections are limited to their first 100
+   * items.
+   * <p/>
+   * Example: <code>
+   * <pre>
+   *  JSONObject reading = wrapper.fetchGraph(readingId, include("book", "highlights.comments"));
+   *  String title = reading.getJSONObject("book").getString("title");
+   *  JSONArray highlights = reading.getJSONArray("highlights");
+   *  JSONArray comments = highlights.getJSONObject(0).getJSONArray("comments");
+   * </pre>
+   * </code>
+   *
+   * @param readingId Id of the reading
+   * @param include   Related objects to include
+   * @return The reading, with each included relation in place of its
+   *         embedded object, or as an array for collections
+   * @throws IOException   if a request failed
+   * @throws JSONException if a response was not properly formatted
+   * @see Include
+   */
+  public JSONObject fetchGraph(long readingId, Include include) throws IOException, JSONException {
+    return new GraphFetch(this).run("reading", readingId, include);
+  }
+
+  /**
+   * Gets how many responses returned by open() were garbage collected
+   * without being closed. Anything but 0 is a bug worth alerting on.
+   *
+   * @return Number of leaked responses
+   */
+  public long getLeakedResponseCount() {
+    return mLeakDetector.getLeakCount();
+  }
+
+  /**
+   * Gets how many responses returned by open() have not been closed yet.
+   *
+   * @return Number of open responses
+   */
+  public int getOpenResponseCount() {
+    return mLeakDetector.getOpenCount();
+  }
+
+  /**
+   * Sets whether to record where responses are opened, so leaks report the
+   * code that forgot to close them. Costs a stack trace per response, so
+   * it is off by default.
+   *
+   * @param trace true to record where responses are opened
+   */
+  public void setResponseLeakTracing(boolean trace) {
+    mLeakDetector.setTraceAllocations(trace);
+  }
+
   /**
    * Expands a Request into a fully qualified URL.
    * @param request Base request
@@ -442,12 +1041,428 @@ public class ReadmillWrapper {
    * @throws java.io.IOException if a network error occurs
    */
   protected HttpResponse execute(Request request, Class<? extends HttpRequestBase> klass) throws IOException {
-    authorizeRequest(request);
-    HttpRequestBase httpRequest = request.build(klass);
-    if(mUserAgent != null) {
-        httpRequest.setHeader("User-Agent", mUserAgent);
+    if(mClosed) {
+      throw new IllegalStateException("wrapper has been closed");
+    }
+
+    synchronized(mInFlightLock) {
+      mInFlight++;
+    }
+    // Before sending, and again once the write has landed, so fetches that
+    // were answered before it are not cached
+    invalidateWritten(request, klass);
+    String tenant = null;
+    RequestDispatcher dispatcher = null;
+    boolean dispatched = false;
+    boolean inFlightUntilReleased = false;
+    try {
+      authorizeRequest(request);
+      HttpRequestBase httpRequest = request.build(klass);
+      if(mUserAgent != null) {
+          httpRequest.setHeader("User-Agent", mUserAgent);
+      }
+      tenant = tenantOf(request);
+      ClientRegistry.Entry shared = sharedClient();
+      dispatcher = shared != null ? shared.dispatcher : mDispatcher;
+      AdaptiveLimiter limiter = shared != null ? shared.limiter : mLimiter;
+      dispatcher.acquire(request, tenant);
+      dispatched = true;
+      int inFlight = dispatcher.getInFlight();
+      long sent = System.nanoTime();
+      HttpResponse response;
+      try {
+        HedgePolicy hedgePolicy = mHedgePolicy;
+        if(hedgePolicy != null && (httpRequest instanceof HttpGet || httpRequest instanceof HttpHead)) {
+          response = executeHedged(request, httpRequest, hedgePolicy, dispatcher, tenant);
+        } else {
+          response = executeAbortable(request, httpRequest);
+        }
+      } catch(IOException e) {
+        if(!request.isCancelled()) {
+          adaptLimit(limiter, dispatcher, -1, inFlight, null);
+        }
+        throw e;
+      }
+      adaptLimit(limiter, dispatcher, System.nanoTime() - sent, inFlight, response);
+      HttpEntity entity = response != null ? response.getEntity() : null;
+      if(entity != null && entity.isStreaming()) {
+        // The connection is held until the entity has been read
+        // and the request counts as in flight for close() until then
+        final RequestDispatcher entityDispatcher = dispatcher;
+        final String dispatchedTenant = tenant;
+        response.setEntity(new DispatchedEntity(entity, new Runnable() {
+          @Override
+          public void run() {
+            entityDispatcher.release(dispatchedTenant);
+            requestDone();
+          }
+        }));
+        dispatched = false;
+        inFlightUntilReleased = true;
+      }
+      return response;
+    } finally {
+      if(dispatched) {
+        dispatcher.release(tenant);
+      }
+      request.releaseBody();
+      invalidateWritten(request, klass);
+      if(!inFlightUntilReleased) {
+        requestDone();
+      }
+    }
+  }
+
+  /**
+   * Invalidates the cached entity a write request changes, e.g.
+   * PUT /readings/1. Reads and writes to other resources are ignored.
+   *
+   * @param request The request
+   * @param klass   HTTP verb of the request
+   */
+  void invalidateWritten(Request request, Class<? extends HttpRequestBase> klass) {
+    EntityCache cache = mEntityCache;
+    if(cache == null || !WriteOutbox.isMutating(klass)) {
+      return;
+    }
+    Matcher entity = RequestBuilder.ENTITY_RESOURCE.matcher(String.valueOf(request.getResource()));
+    if(entity.matches()) {
+      cache.invalidate(entity.group(1), Long.parseLong(entity.group(2)));
+    }
+  }
+
+  private void requestDone() {
+    synchronized(mInFlightLock) {
+      if(--mInFlight == 0) {
+        mInFlightLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Executes an http request while honoring the timeouts, deadline and
+   * cancellation of the request it was built from.
+   * <p/>
+   * The deadline and cancel() keep covering the response until its entity
+   * has been read or closed, so a stuck read of a large body can be aborted
+   * as well.
+   *
+   * @param request     The request
+   * @param httpRequest The http request built from it
+   * @return The HttpResponse
+   * @throws IOException if a network error occurs, or InterruptedIOException
+   *                     if the request was cancelled, interrupted or passed
+   *                     its deadline
+   */
+  private HttpResponse executeAbortable(final Request request, final HttpRequestBase httpRequest) throws IOException {
+    if(Thread.currentThread().isInterrupted()) {
+      throw new InterruptedIOException("interrupted before sending request");
+    }
+    if(request.isExpired()) {
+      throw new InterruptedIOException("deadline exceeded before sending request");
+    }
+
+    applyTimeouts(request, httpRequest);
+
+    final ScheduledFuture<?> deadline = scheduleDeadline(request, httpRequest);
+    request.setInFlight(httpRequest);
+    mInFlightThreads.put(httpRequest, Thread.currentThread());
+    watchForInterrupts();
+    boolean armedUntilReleased = false;
+    try {
+      HttpResponse response = send(resolveTarget(request), httpRequest);
+      armedUntilReleased = armUntilReleased(request, httpRequest, deadline, response);
+      return response;
+    } catch(IOException e) {
+      if(request.isCancelled()) {
+        throw (IOException) new InterruptedIOException("request cancelled").initCause(e);
+      } else if(request.isExpired()) {
+        throw (IOException) new InterruptedIOException("deadline exceeded").initCause(e);
+      } else if(Thread.currentThread().isInterrupted()) {
+        throw (IOException) new InterruptedIOException("interrupted").initCause(e);
+      }
+      throw e;
+    } finally {
+      mInFlightThreads.remove(httpRequest);
+      if(!armedUntilReleased) {
+        disarm(request, httpRequest, deadline);
+      }
+    }
+  }
+
+  /**
+   * Schedules the abort of an http request at the deadline of the request
+   * it was built from.
+   *
+   * @return The scheduled abort, or null if the request has no deadline
+   */
+  private ScheduledFuture<?> scheduleDeadline(Request request, final HttpRequestBase httpRequest) {
+    if(!request.hasDeadline()) {
+      return null;
+    }
+    return getScheduler().schedule(new Runnable() {
+      @Override
+      public void run() {
+        httpRequest.abort();
+      }
+    }, request.getRemainingMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Keeps the deadline and cancel() of a request covering the response of
+   * an http request until its entity has been read or closed.
+   *
+   * @return true if they stay armed, false if the response has no entity to
+   *         read and they should be disarmed now
+   */
+  private static boolean armUntilReleased(final Request request, final HttpRequestBase httpRequest,
+                                          final ScheduledFuture<?> deadline, HttpResponse response) {
+    HttpEntity entity = response != null ? response.getEntity() : null;
+    if(entity == null || !entity.isStreaming()) {
+      return false;
+    }
+    response.setEntity(new DispatchedEntity(entity, new Runnable() {
+      @Override
+      public void run() {
+        disarm(request, httpRequest, deadline);
+      }
+    }));
+    return true;
+  }
+
+  private static void disarm(Request request, HttpRequestBase httpRequest, ScheduledFuture<?> deadline) {
+    request.clearInFlight(httpRequest);
+    if(deadline != null) {
+      deadline.cancel(false);
+    }
+  }
+
+  /**
+   * Executes an idempotent http request, sending a duplicate if the first
+   * one is slower than the hedge policy allows.
+   * <p/>
+   * The duplicate needs a slot of the dispatcher of its own, and is not sent
+   * if none is free right away. Its slot is given back once one of the two
+   * attempts has been aborted. Like in executeAbortable(), the deadline and
+   * cancel() keep covering the winning response until its entity has been
+   * read or closed.
+   *
+   * @param request     The request
+   * @param httpRequest The http request built from it
+   * @param policy      The hedge policy
+   * @param dispatcher  The dispatcher the request holds a slot of
+   * @param tenant      Tenant the request is dispatched for
+   * @return The first successful HttpResponse
+   * @throws IOException if all attempts failed, or InterruptedIOException if
+   *                     the request was cancelled, interrupted or passed its
+   *                     deadline
+   */
+  private HttpResponse executeHedged(Request request, HttpRequestBase httpRequest, HedgePolicy policy,
+                                     RequestDispatcher dispatcher, String tenant) throws IOException {
+    if(request.isExpired()) {
+      throw new InterruptedIOException("deadline exceeded before sending request");
+    }
+    applyTimeouts(request, httpRequest);
+    policy.onRequest();
+
+    final HttpHost target = resolveTarget(request);
+    CompletionService<HttpResponse> completion = new ExecutorCompletionService<HttpResponse>(getExecutor());
+    Map<Future<HttpResponse>, HttpRequestBase> attempts = new HashMap<Future<HttpResponse>, HttpRequestBase>();
+    attempts.put(completion.submit(attempt(target, httpRequest)), httpRequest);
+
+    long started = System.currentTimeMillis();
+    long hedgeDelay = policy.getHedgeDelayMillis();
+    boolean hedged = hedgeDelay < 0;
+    int pending = 1;
+    IOException failure = null;
+    HttpRequestBase winner = null;
+    boolean hedgeDispatched = false;
+
+    try {
+      while(pending > 0) {
+        if(request.isCancelled()) {
+          throw new InterruptedIOException("request cancelled");
+        }
+        if(request.isExpired()) {
+          throw new InterruptedIOException("deadline exceeded");
+        }
+
+        long now = System.currentTimeMillis();
+        long wait = Math.min(50, request.getRemainingMillis());
+        if(!hedged) {
+          wait = Math.max(0, Math.min(wait, started + hedgeDelay - now));
+        }
+
+        Future<HttpResponse> done = completion.poll(wait, TimeUnit.MILLISECONDS);
+        if(done == null) {
+          if(!hedged && System.currentTimeMillis() - started >= hedgeDelay) {
+            hedged = true;
+            if(dispatcher.tryAcquire(tenant)) {
+              if(policy.tryAcquireHedge()) {
+                hedgeDispatched = true;
+                HttpRequestBase hedge = (HttpRequestBase) httpRequest.clone();
+                attempts.put(completion.submit(attempt(target, hedge)), hedge);
+                pending++;
+              } else {
+                dispatcher.release(tenant);
+              }
+            }
+          }
+          continue;
+        }
+
+        pending--;
+        HttpResponse response;
+        try {
+          response = done.get();
+        } catch(ExecutionException e) {
+          if(e.getCause() instanceof IOException) {
+            failure = (IOException) e.getCause();
+          } else {
+            throw new RuntimeException(e.getCause());
+          }
+          continue;
+        }
+        HttpRequestBase attempt = attempts.get(done);
+        policy.recordLatency(System.currentTimeMillis() - started);
+        ScheduledFuture<?> deadline = scheduleDeadline(request, attempt);
+        try {
+          request.setInFlight(attempt);
+        } catch(InterruptedIOException e) {
+          disarm(request, attempt, deadline);
+          throw e;
+        }
+        if(!armUntilReleased(request, attempt, deadline, response)) {
+          disarm(request, attempt, deadline);
+        }
+        winner = attempt;
+        return response;
+      }
+      throw failure;
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted");
+    } catch(CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    } finally {
+      // Abort every attempt but the winner, freeing their connections
+      for(HttpRequestBase attempt : attempts.values()) {
+        if(attempt != winner) {
+          attempt.abort();
+        }
+      }
+      // One connection at most is left, held with the slot of the request
+      if(hedgeDispatched) {
+        dispatcher.release(tenant);
+      }
+    }
+  }
+
+  private Callable<HttpResponse> attempt(final HttpHost target, final HttpRequestBase httpRequest) {
+    return new Callable<HttpResponse>() {
+      @Override
+      public HttpResponse call() throws IOException {
+        return send(target, httpRequest);
+      }
+    };
+  }
+
+  /**
+   * Sends an http request to a target host, tracking the load and health of
+   * the host if it is one of the pooled api hosts.
+   *
+   * @param target      The host to send to
+   * @param httpRequest The http request
+   * @return The HttpResponse
+   * @throws IOException if a network error occurs
+   */
+  private HttpResponse send(HttpHost target, HttpRequestBase httpRequest) throws IOException {
+    final HostPool.Host host = mHostPool == null ? null : mHostPool.find(target);
+    if(host == null) {
+      return getHttpClient().execute(target, httpRequest);
+    }
+
+    mHostPool.onStart(host);
+    long started = System.currentTimeMillis();
+    HttpResponse response = null;
+    try {
+      response = getHttpClient().execute(target, httpRequest);
+      return response;
+    } finally {
+      boolean serverError = response == null || response.getStatusLine().getStatusCode() >= 500;
+      if(!serverError) {
+        mHostPool.onSuccess(host, System.currentTimeMillis() - started);
+      } else if(httpRequest.isAborted()) {
+        // Cancelled or lost a hedge race, says nothing about the host
+        mHostPool.onCancel(host);
+      } else if(mHostPool.onFailure(host)) {
+        scheduleHealthCheck(host);
+      }
+    }
+  }
+
+  /**
+   * Checks an ejected host once its ejection period has passed, with a
+   * cheap HEAD request. Keeps checking until the host answers.
+   *
+   * @param host The ejected host
+   */
+  private void scheduleHealthCheck(final HostPool.Host host) {
+    final Runnable check = new Runnable() {
+      @Override
+      public void run() {
+        boolean healthy = false;
+        HttpHead probe = new HttpHead("/");
+        HttpConnectionParams.setConnectionTimeout(probe.getParams(), 5000);
+        HttpConnectionParams.setSoTimeout(probe.getParams(), 5000);
+        try {
+          HttpResponse response = getHttpClient().execute(host.getHttpHost(), probe);
+          healthy = response.getStatusLine().getStatusCode() < 500;
+        } catch(IOException ignored) {
+          // Still unhealthy
+        } catch(IllegalStateException closed) {
+          return;
+        } finally {
+          probe.abort();
+        }
+
+        if(mHostPool.onHealthCheck(host, healthy) && !mClosed) {
+          scheduleHealthCheck(host);
+        }
+      }
+    };
+
+    getScheduler().schedule(new Runnable() {
+      @Override
+      public void run() {
+        // Probing blocks, keep it off the scheduler thread
+        if(!mClosed) {
+          getExecutor().execute(check);
+        }
+      }
+    }, mHostPool.getEjectionMillis(host), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sets the timeouts of a request on the http request built from it.
+   *
+   * @param request     The request
+   * @param httpRequest The http request built from it
+   */
+  private void applyTimeouts(Request request, HttpRequestBase httpRequest) {
+    HttpParams params = httpRequest.getParams();
+    long connectTimeout = request.getConnectTimeoutMillis();
+    long readTimeout = request.getReadTimeoutMillis();
+    if(connectTimeout > 0) {
+      HttpConnectionParams.setConnectionTimeout(params, (int) Math.min(connectTimeout, Integer.MAX_VALUE));
+    }
+    if(readTimeout > 0) {
+      HttpConnectionParams.setSoTimeout(params, (int) Math.min(readTimeout, Integer.MAX_VALUE));
+    }
+    if(request.hasDeadline()) {
+      // Bounds the wait for a pooled connection
+      ConnManagerParams.setTimeout(params, Math.max(1, request.getRemainingMillis()));
     }
-    return getHttpClient().execute(resolveTarget(request), httpRequest);
   }
 
   /**
@@ -463,6 +1478,21 @@ public class ReadmillWrapper {
     return HttpUtils.getString(response);
   }
 
+  /**
+   * Executes a request and parses the response body with the codec of the
+   * wrapper.
+   *
+   * @param request Request to execute
+   * @param klass   HttpRequest class to execute as (HttpPost, HttpGet etc)
+   * @return The parsed response body
+   * @throws IOException   if a network error occurs
+   * @throws JSONException if the response was not a JSON object
+   */
+  protected JSONObject getResponseJSON(Request request, Class<? extends HttpRequestBase> klass) throws IOException, JSONException {
+    HttpResponse response = execute(request, klass);
+    return HttpUtils.getJSON(response, mJsonCodec);
+  }
+
   /**
    * Adds the strongest available authorization to a request.
    * <p/>
@@ -496,6 +1526,250 @@ public class ReadmillWrapper {
 
   // Private
 
+  /**
+   * Gets the executor used for background work such as warming up
+   * connections. Wrappers sharing a client through a registry share its
+   * executor too.
+   * <p/>
+   * Threads are daemons and are created on demand.
+   *
+   * @return The executor
+   */
+  protected synchronized ExecutorService getExecutor() {
+    ClientRegistry.Entry shared = sharedClient();
+    if (shared != null) {
+      return shared.executor;
+    }
+    if (mExecutor == null) {
+      mExecutor = newExecutor();
+    }
+    return mExecutor;
+  }
+
+  /**
+   * Creates an executor of daemon threads that are created on demand, and
+   * go away after a minute without work.
+   */
+  static ExecutorService newExecutor() {
+    return Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger mCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "readmill-worker-" + mCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Feeds the outcome of a request to the adaptive limiter, if any.
+   *
+   * @param limiter    The limiter, or null
+   * @param dispatcher The dispatcher the request was sent through
+   * @param rttNanos   Time to the response headers, or -1 if the request failed
+   * @param inFlight   Requests in flight when it was sent
+   * @param response   The response, or null
+   */
+  private void adaptLimit(AdaptiveLimiter limiter, RequestDispatcher dispatcher, long rttNanos, int inFlight,
+                          HttpResponse response) {
+    if(limiter == null) {
+      return;
+    }
+    int status = response != null ? response.getStatusLine().getStatusCode() : 0;
+    try {
+      if(rttNanos < 0 || status == 429 || status == 503) {
+        dispatcher.setLimit(limiter.onDrop());
+      } else {
+        dispatcher.setLimit(limiter.onSample(rttNanos, inFlight));
+      }
+    } catch(RuntimeException e) {
+      // The response has been obtained and must reach the caller, or its
+      // connection would never be released. The limit stays as it was.
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Gets the client shared through the registry, acquiring it if this
+   * wrapper has not sent a request yet.
+   *
+   * @return The shared client, or null if the client is not shared
+   */
+  private ClientRegistry.Entry sharedClient() {
+    synchronized (this) {
+      if (mShared != null || mClientRegistry == null || mClosed) {
+        return mShared;
+      }
+    }
+    getHttpClient();
+    synchronized (this) {
+      return mShared;
+    }
+  }
+
+  /**
+   * Gets the tenant a request is dispatched for: its tenant tag, or else a
+   * name derived from the access token it is sent with.
+   */
+  private String tenantOf(Request request) {
+    if(request.getTenant() != null) {
+      return request.getTenant();
+    }
+    Token token = request.getToken() != null ? request.getToken() : mToken;
+    return token != null && token.getAccessToken() != null ? tenantOfToken(token.getAccessToken()) : null;
+  }
+
+  /**
+   * Names the tenant of an access token. Tenant names end up in the metrics
+   * of the dispatcher, so the token itself must not be used: the name is a
+   * prefix of its SHA-256 hash.
+   *
+   * @param accessToken The access token
+   * @return The tenant name, e.g. "token:9f86d081884c7d65"
+   */
+  static String tenantOfToken(String accessToken) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(accessToken.getBytes("UTF-8"));
+      StringBuilder name = new StringBuilder("token:");
+      for(int i = 0; i < 8; i++) {
+        name.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+        name.append(Character.forDigit(digest[i] & 0xf, 16));
+      }
+      return name.toString();
+    } catch(NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    } catch(UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private int defaultDispatchLimit() {
+    int hosts = mEnv != null ? Math.max(1, mEnv.getApiHosts().size()) : 1;
+    return Math.max(1, Math.min(mMaxConnections, mMaxConnectionsPerRoute * hosts));
+  }
+
+  /**
+   * Starts releasing the connections of leaked responses every second. Stops
+   * again once no open responses are left.
+   */
+  private synchronized void startLeakReaper() {
+    if(mLeakReaper == null && !mClosed) {
+      mLeakReaper = getScheduler().scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          mLeakDetector.reap();
+          synchronized(ReadmillWrapper.this) {
+            if(mLeakDetector.getOpenCount() == 0 && mLeakReaper != null) {
+              mLeakReaper.cancel(false);
+              mLeakReaper = null;
+            }
+          }
+        }
+      }, 1, 1, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Gets the scheduler used for timed work such as aborting requests that
+   * pass their deadline. It is shared by all wrappers and must not be shut
+   * down.
+   *
+   * @return The scheduler
+   */
+  protected ScheduledExecutorService getScheduler() {
+    return SCHEDULER;
+  }
+
+  /**
+   * Starts polling the threads of in-flight requests for interrupts. Stops
+   * again once no requests are in flight, so an idle wrapper has nothing
+   * scheduled.
+   * <p/>
+   * Blocking socket IO does not react to Thread.interrupt(), so the request
+   * is aborted on the thread's behalf instead.
+   */
+  private synchronized void watchForInterrupts() {
+    if (mInterruptWatch == null) {
+      mInterruptWatch = getScheduler().scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          for (Map.Entry<HttpRequestBase, Thread> entry : mInFlightThreads.entrySet()) {
+            if (entry.getValue().isInterrupted()) {
+              entry.getKey().abort();
+            }
+          }
+          synchronized (ReadmillWrapper.this) {
+            // Requests register before calling watchForInterrupts(), which
+            // restarts the watch if it is stopped here
+            if (mInFlightThreads.isEmpty() && mInterruptWatch != null) {
+              mInterruptWatch.cancel(false);
+              mInterruptWatch = null;
+            }
+          }
+        }
+      }, 100, 100, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Leases, opens and releases a connection back into the pool.
+   */
+  private boolean openPooledConnection(ClientConnectionManager connectionManager, HttpRoute route,
+                                       HttpParams params, CountDownLatch allOpened) throws Exception {
+    ManagedClientConnection connection = null;
+    try {
+      connection = connectionManager.requestConnection(route, null).getConnection(mCloseTimeoutMillis, TimeUnit.MILLISECONDS);
+      if (!connection.isOpen()) {
+        connection.open(route, new BasicHttpContext(), params != null ? params : new BasicHttpParams());
+      }
+      connection.markReusable();
+      return true;
+    } finally {
+      allOpened.countDown();
+      if (connection != null) {
+        allOpened.await(mCloseTimeoutMillis, TimeUnit.MILLISECONDS);
+        connectionManager.releaseConnection(connection, mKeepAliveMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Stops the idle connection evictor and shuts down the connection pool.
+   */
+  private synchronized void shutdownHttpClient() {
+    if (mEvictor != null) {
+      mEvictor.shutdown();
+      mEvictor = null;
+    }
+    if (mExecutor != null) {
+      mExecutor.shutdownNow();
+      mExecutor = null;
+    }
+    if (mInterruptWatch != null) {
+      mInterruptWatch.cancel(false);
+      mInterruptWatch = null;
+    }
+    if (mLeakReaper != null) {
+      mLeakReaper.cancel(false);
+      mLeakReaper = null;
+    }
+    if (mHttpClient != null) {
+      if (mSharedFrom != null) {
+        mSharedFrom.release(mShared);
+        mSharedFrom = null;
+        mShared = null;
+      } else {
+        ClientConnectionManager connectionManager = mHttpClient.getConnectionManager();
+        if (connectionManager != null) {
+          connectionManager.shutdown();
+        }
+      }
+      mHttpClient = null;
+    }
+  }
+
   /**
    * Resolves the target host to use when executing HTTP requests.
    *
@@ -504,6 +1778,11 @@ public class ReadmillWrapper {
    */
   private HttpHost resolveTarget(Request request) {
     URI uri = URI.create(mEnv.getApiHost().toURI()).resolve(request.toUrl());
-    return new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+    HttpHost target = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+    if(mHostPool != null && target.equals(mEnv.getApiHost())) {
+      // Relative resources may go to any of the api hosts
+      return mHostPool.choose(mLoadBalancer).getHttpHost();
+    }
+    return target;
   }
 }
@@ -7,11 +7,13 @@ import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicNameValuePair;
 
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Convenience class for constructing HTTP requests.
@@ -35,6 +37,19 @@ public class Request {
   private Token mToken;
   protected String mResource;
 
+  private long mConnectTimeoutMillis;
+  private long mReadTimeoutMillis;
+  private long mDeadlineNanos;
+  private boolean mHasDeadline;
+  private Priority mPriority = Priority.NORMAL;
+  private String mTenant;
+
+  private volatile HttpRequestBase mInFlight;
+  private volatile boolean mCancelled;
+
+  private BufferPool mBodyBuffers;
+  private PooledFormEntity mBody;
+
   @SuppressWarnings("UnusedDeclaration")
 
   /**
@@ -114,6 +129,169 @@ public class Request {
     return this;
   }
 
+  /**
+   * Sets how long to wait for a connection to be established.
+   *
+   * @param timeout Timeout, or 0 for no timeout
+   * @param unit    Unit of the timeout
+   * @return this request
+   */
+  public Request withConnectTimeout(long timeout, TimeUnit unit) {
+    mConnectTimeoutMillis = unit.toMillis(timeout);
+    return this;
+  }
+
+  /**
+   * Sets how long to wait for data on the socket before giving up.
+   *
+   * @param timeout Timeout, or 0 for no timeout
+   * @param unit    Unit of the timeout
+   * @return this request
+   */
+  public Request withReadTimeout(long timeout, TimeUnit unit) {
+    mReadTimeoutMillis = unit.toMillis(timeout);
+    return this;
+  }
+
+  /**
+   * Sets a total deadline for this request, counted from now.
+   * <p/>
+   * The deadline covers waiting for a pooled connection, connecting and
+   * reading the response. When it passes the request is aborted and fails
+   * with an InterruptedIOException.
+   *
+   * @param duration Time the request may take in total
+   * @param unit     Unit of the duration
+   * @return this request
+   */
+  public Request withDeadline(long duration, TimeUnit unit) {
+    mDeadlineNanos = System.nanoTime() + unit.toNanos(duration);
+    mHasDeadline = true;
+    return this;
+  }
+
+  /**
+   * Sets the priority of this request, deciding how soon it is sent when
+   * requests are queued for a connection.
+   *
+   * @param priority The priority
+   * @return this request
+   * @see RequestDispatcher
+   */
+  public Request withPriority(Priority priority) {
+    if(priority == null) {
+      throw new IllegalArgumentException("priority may not be null");
+    }
+    mPriority = priority;
+    return this;
+  }
+
+  /**
+   * Gets the priority of this request.
+   *
+   * @return The priority, NORMAL unless set
+   */
+  public Priority getPriority() {
+    return mPriority;
+  }
+
+  /**
+   * Tags this request with the tenant it is sent for, such as the user of a
+   * multi-user backend. Requests are queued fairly between tenants, and
+   * untagged requests are grouped by the access token they are sent with,
+   * under a name that is a hash of the token.
+   *
+   * @param tenant The tenant, or null to group by access token
+   * @return this request
+   * @see RequestDispatcher
+   */
+  public Request withTenant(String tenant) {
+    mTenant = tenant;
+    return this;
+  }
+
+  /**
+   * Gets the tenant tag of this request.
+   *
+   * @return The tenant, or null if not tagged
+   */
+  public String getTenant() {
+    return mTenant;
+  }
+
+  /**
+   * Checks if this request has a total deadline.
+   *
+   * @return true if a deadline has been set
+   */
+  public boolean hasDeadline() {
+    return mHasDeadline;
+  }
+
+  /**
+   * Gets the time left until the deadline of this request.
+   *
+   * @return Remaining milliseconds (0 if passed), or Long.MAX_VALUE if the
+   *         request has no deadline
+   */
+  public long getRemainingMillis() {
+    if(!mHasDeadline) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(mDeadlineNanos - System.nanoTime()));
+  }
+
+  /**
+   * Checks if the deadline of this request has passed.
+   *
+   * @return true if the request has a deadline that has passed
+   */
+  public boolean isExpired() {
+    return mHasDeadline && System.nanoTime() - mDeadlineNanos >= 0;
+  }
+
+  /**
+   * Gets the connect timeout, bounded by the deadline.
+   *
+   * @return Timeout in milliseconds, or 0 for no timeout
+   */
+  public long getConnectTimeoutMillis() {
+    return boundedByDeadline(mConnectTimeoutMillis);
+  }
+
+  /**
+   * Gets the read timeout, bounded by the deadline.
+   *
+   * @return Timeout in milliseconds, or 0 for no timeout
+   */
+  public long getReadTimeoutMillis() {
+    return boundedByDeadline(mReadTimeoutMillis);
+  }
+
+  /**
+   * Cancels this request.
+   * <p/>
+   * Aborts the request if it is in flight, which frees its connection and
+   * makes the executing thread fail with an InterruptedIOException. Requests
+   * that are cancelled before they are sent fail immediately.
+   */
+  public void cancel() {
+    mCancelled = true;
+    HttpRequestBase inFlight = mInFlight;
+    if(inFlight != null) {
+      inFlight.abort();
+    }
+  }
+
+  /**
+   * Checks if this request has been cancelled.
+   *
+   * @return true if cancel() has been called
+   */
+  public boolean isCancelled() {
+    return mCancelled;
+  }
+
   /**
    * Returns the current token for this request.
    *
@@ -209,10 +387,79 @@ public class Request {
     return mResource;
   }
 
+  /**
+   * Gets the parameters of this request.
+   *
+   * @return The parameters, in the order they were added
+   */
+  List<NameValuePair> getParams() {
+    return params;
+  }
+
+  /**
+   * Encodes the body of this request into buffers from a pool instead of
+   * a String. The buffer is returned to the pool by releaseBody().
+   *
+   * @param pool Pool to take body buffers from, or null
+   * @return this request
+   */
+  Request withBodyBuffers(BufferPool pool) {
+    mBodyBuffers = pool;
+    return this;
+  }
+
+  /**
+   * Returns the buffer of the last built body to its pool, if it was
+   * encoded into one. Called once the http request has been sent.
+   */
+  void releaseBody() {
+    PooledFormEntity body = mBody;
+    mBody = null;
+    if(body != null) {
+      body.release();
+    }
+  }
+
+  /**
+   * Marks an http request as the one currently sending this request, so it
+   * can be aborted by cancel().
+   *
+   * @param httpRequest The http request in flight, or null when done
+   * @throws InterruptedIOException if this request has already been cancelled
+   */
+  void setInFlight(HttpRequestBase httpRequest) throws InterruptedIOException {
+    mInFlight = httpRequest;
+    if(httpRequest != null && mCancelled) {
+      mInFlight = null;
+      throw new InterruptedIOException("request cancelled");
+    }
+  }
+
+  /**
+   * Unmarks an http request as the one sending this request, unless another
+   * one has taken its place.
+   *
+   * @param httpRequest The http request that is done
+   */
+  void clearInFlight(HttpRequestBase httpRequest) {
+    if(mInFlight == httpRequest) {
+      mInFlight = null;
+    }
+  }
+
   /**
    * Private *
    */
 
+  private long boundedByDeadline(long timeoutMillis) {
+    if(!mHasDeadline) {
+      return timeoutMillis;
+    }
+    // Zero means "no timeout" to HttpClient, so never hand out less than 1ms
+    long remaining = Math.max(1, getRemainingMillis());
+    return timeoutMillis == 0 ? remaining : Math.min(timeoutMillis, remaining);
+  }
+
   /**
    * Attaches the params from this request to a HttpRequest
    *
@@ -224,7 +471,13 @@ public class Request {
       HttpEntityEnclosingRequestBase enclosingRequest = (HttpEntityEnclosingRequestBase) request;
       if(!params.isEmpty()) {
         request.setHeader("Content-Type", "application/x-www-form-urlencoded");
-        enclosingRequest.setEntity(new StringEntity(queryString()));
+        if(mBodyBuffers != null) {
+          releaseBody();
+          mBody = PooledFormEntity.encode(params, mBodyBuffers);
+          enclosingRequest.setEntity(mBody);
+        } else {
+          enclosingRequest.setEntity(new StringEntity(queryString()));
+        }
       }
       request.setURI(URI.create(getResource()));
     } else {
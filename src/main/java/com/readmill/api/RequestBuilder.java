@@ -2,6 +2,7 @@ package com.readmill.api;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
@@ -13,10 +14,16 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @SuppressWarnings("UnusedDeclaration")
 
 public class RequestBuilder {
+  // Single entities, e.g. /v2/books/1
+  static final Pattern ENTITY_RESOURCE = Pattern.compile("^/v2/([a-z_]+)/(\\d+)$");
+
   private ReadmillWrapper mWrapper;
   private Request mRequest;
 
@@ -47,6 +54,76 @@ public class RequestBuilder {
     return mRequestBaseClass;
   }
 
+  /**
+   * Sets a total deadline for the request, counted from now.
+   *
+   * @param duration Time the request may take in total
+   * @param unit     Unit of the duration
+   * @return this builder
+   * @see Request#withDeadline(long, TimeUnit)
+   */
+  public RequestBuilder withDeadline(long duration, TimeUnit unit) {
+    mRequest.withDeadline(duration, unit);
+    return this;
+  }
+
+  /**
+   * Sets the priority of the request.
+   *
+   * @param priority The priority
+   * @return this builder
+   * @see Request#withPriority(Priority)
+   */
+  public RequestBuilder withPriority(Priority priority) {
+    mRequest.withPriority(priority);
+    return this;
+  }
+
+  /**
+   * Tags the request with the tenant it is sent for.
+   *
+   * @param tenant The tenant
+   * @return this builder
+   * @see Request#withTenant(String)
+   */
+  public RequestBuilder withTenant(String tenant) {
+    mRequest.withTenant(tenant);
+    return this;
+  }
+
+  /**
+   * Sets how long to wait for a connection to be established.
+   *
+   * @param timeout Timeout, or 0 for no timeout
+   * @param unit    Unit of the timeout
+   * @return this builder
+   */
+  public RequestBuilder withConnectTimeout(long timeout, TimeUnit unit) {
+    mRequest.withConnectTimeout(timeout, unit);
+    return this;
+  }
+
+  /**
+   * Sets how long to wait for data on the socket before giving up.
+   *
+   * @param timeout Timeout, or 0 for no timeout
+   * @param unit    Unit of the timeout
+   * @return this builder
+   */
+  public RequestBuilder withReadTimeout(long timeout, TimeUnit unit) {
+    mRequest.withReadTimeout(timeout, unit);
+    return this;
+  }
+
+  /**
+   * Cancels the request if it is in flight, or before it is sent.
+   *
+   * @see Request#cancel()
+   */
+  public void cancel() {
+    mRequest.cancel();
+  }
+
   /**
    * Executes the built request and parses the result as JSON.
    *
@@ -67,14 +144,32 @@ public class RequestBuilder {
   /**
    * Executes the built request and parses the result as JSON. Also unwraps the
    * given top level object.
+   * <p/>
+   * If the wrapper has an entity cache, single entities are served from it.
    *
    * @param key top level object to unwrap.
    * @return The parsed JSONObject or null if the the request failed or the
    *         response was not properly formatted.
+   * @see ReadmillWrapper#setEntityCache(EntityCache)
    */
   public JSONObject fetch(String key) {
+    EntityCache cache = mWrapper.getEntityCache();
+    Matcher cacheKey = matchCacheableEntity(cache);
+    long generation = 0;
+    if(cacheKey != null) {
+      JSONObject cached = cache.get(cacheKey.group(1), Long.parseLong(cacheKey.group(2)));
+      if(cached != null) {
+        return cached;
+      }
+      generation = cache.getGeneration(cacheKey.group(1), Long.parseLong(cacheKey.group(2)));
+    }
     JSONObject fetched = fetch();
-    return fetched == null ? null : fetched.optJSONObject(key);
+    JSONObject entity = fetched == null ? null : fetched.optJSONObject(key);
+    if(cacheKey != null && entity != null) {
+      // Not over an invalidation by a write that raced with this fetch
+      cache.put(cacheKey.group(1), Long.parseLong(cacheKey.group(2)), entity, generation);
+    }
+    return entity;
   }
 
   /**
@@ -85,21 +180,39 @@ public class RequestBuilder {
    * @throws JSONException if the response was not valid JSON
    */
   public JSONObject fetchOrThrow() throws IOException, JSONException {
-    return new JSONObject(getResponseText());
+    return HttpUtils.getJSON(sendRequest(), mWrapper.getJsonCodec());
   }
 
   /**
    * Executes the built request and parses the result as JSON. Also unwraps the
    * given top level object.
+   * <p/>
+   * If the wrapper has an entity cache, single entities are served from it.
    *
    * @param key The top level object to unwrap
    * @return The parsed JSON object.
    * @throws IOException   if the request failed
    * @throws JSONException if the response was not valid JSON
+   * @see ReadmillWrapper#setEntityCache(EntityCache)
    */
   public JSONObject fetchOrThrow(String key) throws IOException, JSONException {
-    JSONObject fetched = new JSONObject(getResponseText());
-    return fetched.getJSONObject(key);
+    EntityCache cache = mWrapper.getEntityCache();
+    Matcher cacheKey = matchCacheableEntity(cache);
+    long generation = 0;
+    if(cacheKey != null) {
+      JSONObject cached = cache.get(cacheKey.group(1), Long.parseLong(cacheKey.group(2)));
+      if(cached != null) {
+        return cached;
+      }
+      generation = cache.getGeneration(cacheKey.group(1), Long.parseLong(cacheKey.group(2)));
+    }
+    JSONObject fetched = fetchOrThrow();
+    JSONObject entity = fetched.getJSONObject(key);
+    if(cacheKey != null) {
+      // Not over an invalidation by a write that raced with this fetch
+      cache.put(cacheKey.group(1), Long.parseLong(cacheKey.group(2)), entity, generation);
+    }
+    return entity;
   }
 
   /**
@@ -219,24 +332,110 @@ public class RequestBuilder {
     return new JSONArray(unwrapped);
   }
 
+  /**
+   * Like {@link #fetchItems(String)}, but only keeps the fields of each item
+   * that are in a projection.
+   *
+   * @param key        Top level key of objects to unwrap
+   * @param projection Fields of the objects to keep
+   * @return The parsed JSONArray or null if the request failed, or the response
+   *         was not properly formatted.
+   * @see #fetchItemsOrThrow(String, Projection)
+   */
+  public JSONArray fetchItems(String key, Projection projection) {
+    try {
+      return fetchItemsOrThrow(key, projection);
+    } catch(IOException e) {
+      e.printStackTrace();
+    } catch(JSONException e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  /**
+   * Like {@link #fetchItemsOrThrow(String)}, but only keeps the fields of
+   * each item that are in a projection.
+   * <p/>
+   * Fields that are not in the projection are skipped while the response
+   * streams in, so memory held for a page grows with the fields asked for,
+   * not with the size of the items.
+   * <p/>
+   * Always parses with the streaming parser, whatever the codec of the
+   * wrapper, but shares strings through the pools of the wrapper's codec.
+   *
+   * @param key        Top level key of objects to unwrap
+   * @param projection Fields of the objects to keep
+   * @return The parsed JSONArray
+   * @throws java.io.IOException    If the request was not successful
+   * @throws org.json.JSONException If the response was not properly formatted
+   * @see Projection#fields(String...)
+   */
+  public JSONArray fetchItemsOrThrow(String key, Projection projection) throws IOException, JSONException {
+    Projection document = Projection.field("items", Projection.field(key, projection));
+    JSONArray items = HttpUtils.getJSON(sendRequest(), document, streamingCodec()).getJSONArray("items");
+    ArrayList<JSONObject> unwrapped = new ArrayList<JSONObject>(items.length());
+
+    for(int i = 0; i < items.length(); i++) {
+      unwrapped.add(items.getJSONObject(i).getJSONObject(key));
+    }
+
+    return new JSONArray(unwrapped);
+  }
+
   /**
    * Alias for #fetch() that does not return a value.
+   * <p/>
+   * If the wrapper has an outbox, POST, PUT and DELETE requests are queued in
+   * it instead of being sent right away. With write-behind enabled, PUTs are
+   * held back and merged first.
+   *
+   * @see ReadmillWrapper#setOutbox(WriteOutbox)
+   * @see ReadmillWrapper#setWriteBehind(long, TimeUnit)
    */
   public void send() {
+    try {
+      if(deferWrite()) {
+        return;
+      }
+    } catch(IOException e) {
+      e.printStackTrace();
+      return;
+    }
     fetch();
   }
 
   /**
    * Alias for fetchOrThrow() that does not return a value.
+   * <p/>
+   * If the wrapper has an outbox, POST, PUT and DELETE requests are queued in
+   * it instead of being sent right away. With write-behind enabled, PUTs are
+   * held back and merged first.
    *
-   * @throws IOException when the request was not successful.
+   * @throws IOException when the request was not successful, or could not
+   *                     be queued.
    * @throws JSONException if the server did not provide an expected response
    */
   public void sendOrThrow() throws IOException, JSONException {
+    if(deferWrite()) {
+      return;
+    }
     fetchItemsOrThrow();
   }
 
 
+  /**
+   * Executes the built request and returns a response that releases its
+   * connection when closed.
+   *
+   * @return The response, which must be closed
+   * @throws IOException if the request fails
+   * @see ReadmillWrapper#open(Request, Class)
+   */
+  public ManagedResponse open() throws IOException {
+    return mWrapper.open(mRequest, mRequestBaseClass);
+  }
+
   /**
    * Executes the built request and returns the text body of the response.
    *
@@ -563,10 +762,65 @@ public class RequestBuilder {
 
   // Helpers
 
+  private boolean deferWrite() throws IOException {
+    // Delivery invalidates again, see ReadmillWrapper.execute()
+    mWrapper.invalidateWritten(mRequest, mRequestBaseClass);
+    WriteCoalescer coalescer = mWrapper.getWriteCoalescer();
+    if(coalescer != null && coalescer.submit(mRequest, mRequestBaseClass)) {
+      return true;
+    }
+    WriteOutbox outbox = mWrapper.getOutbox();
+    if(outbox == null || !WriteOutbox.isMutating(mRequestBaseClass)) {
+      return false;
+    }
+    outbox.enqueue(mRequest, mRequestBaseClass);
+    return true;
+  }
+
   private HttpResponse sendRequest() throws IOException {
     return mWrapper.execute(mRequest, mRequestBaseClass);
   }
 
+  /**
+   * Matches the resource of this request if it is a single entity, e.g.
+   * /books/1.
+   *
+   * @return The match with the collection and id, or null
+   */
+  private Matcher matchEntity() {
+    Matcher matcher = ENTITY_RESOURCE.matcher(String.valueOf(mRequest.getResource()));
+    return matcher.matches() ? matcher : null;
+  }
+
+  /**
+   * Matches the resource of this request if it is a GET of a single entity
+   * without parameters, which can be served from the cache. Must be called
+   * before the request is sent, since sending adds the credentials.
+   */
+  private Matcher matchCacheableEntity(EntityCache cache) {
+    if(cache == null || mRequestBaseClass != HttpGet.class || !mRequest.getParams().isEmpty()) {
+      return null;
+    }
+    return matchEntity();
+  }
+
+  /**
+   * Gets a streaming codec that shares strings through the same pools as
+   * the codec of the wrapper. Codecs without pools of their own get the
+   * default streaming codec.
+   */
+  private StreamingJsonCodec streamingCodec() {
+    JsonCodec codec = mWrapper.getJsonCodec();
+    if(codec instanceof StreamingJsonCodec) {
+      return (StreamingJsonCodec) codec;
+    }
+    if(codec instanceof LazyJsonCodec) {
+      LazyJsonCodec lazy = (LazyJsonCodec) codec;
+      return new StreamingJsonCodec(lazy.getKeyPool(), lazy.getValuePool());
+    }
+    return new StreamingJsonCodec();
+  }
+
   private RequestBuilder args(String key, String value) {
     mRequest.withParams(key, value);
     return this;
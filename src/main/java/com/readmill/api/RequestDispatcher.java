@@ -0,0 +1,501 @@
+package com.readmill.api;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Limits the number of requests in flight, queueing the rest by priority
+ * and tenant.
+ * <p/>
+ * Sits in front of the connection pool so that the order requests get a
+ * connection in is decided here rather than by the pool. When a request
+ * completes, the next one is picked in two steps:
+ * <ol>
+ * <li>A priority, by smooth weighted round-robin over the priorities that
+ * have requests waiting. Higher priorities are served first and more
+ * often, but every priority gets its share of the weights, so background
+ * work is never starved.</li>
+ * <li>A tenant within that priority, by deficit round-robin. Every tenant
+ * with requests waiting gets as many requests per round as its weight, so
+ * a user syncing 50k highlights does not stall the requests of everybody
+ * else.</li>
+ * </ol>
+ * Tenants can also be capped to a number of requests in flight, keeping
+ * the slots they leave free for other tenants even when nobody else is
+ * waiting yet.
+ * <p/>
+ * Requests whose deadline passes while they are queued are dropped without
+ * being sent, and fail with an InterruptedIOException.
+ * <p/>
+ * A request holds its slot until its response has been consumed or closed,
+ * since that is when its connection goes back to the pool.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  RequestDispatcher dispatcher = wrapper.getDispatcher();
+ *  // No user may hold more than half of the connections
+ *  dispatcher.setTenantLimit(dispatcher.getLimit() / 2);
+ *  // Requests of the admin tool get twice the share of a user
+ *  dispatcher.setTenantWeight("admin", 2);
+ *  wrapper.get("/users/1/readings").withTenant("admin").fetch("readings");
+ * </pre>
+ * </code>
+ *
+ * @see Priority
+ * @see Request#withTenant(String)
+ */
+public class RequestDispatcher {
+  /**
+   * How often queued requests check whether they have been cancelled.
+   */
+  private static final long POLL_MILLIS = 100;
+
+  private int mLimit;
+  private int mTenantLimit = Integer.MAX_VALUE;
+  private int mInFlight;
+  private int mQueued;
+  private long mDropped;
+
+  private final Map<String, Tenant> mTenants = new HashMap<String, Tenant>();
+  private final Map<String, Integer> mWeights = new HashMap<String, Integer>();
+  // Tenants with requests waiting, in round-robin order, per priority
+  private final ArrayDeque<Tenant>[] mRounds;
+  // Number of requests waiting, per priority
+  private final int[] mQueuedByPriority;
+  // Current weights of the smooth weighted round-robin, per priority
+  private final int[] mCredits;
+
+  private static class Waiter {
+    final Request request;
+    final Tenant tenant;
+    final int priority;
+    boolean granted;
+    boolean dropped;
+
+    Waiter(Request request, Tenant tenant) {
+      this.request = request;
+      this.tenant = tenant;
+      this.priority = request.getPriority().ordinal();
+    }
+  }
+
+  private static class Tenant {
+    final String name;
+    final ArrayDeque<Waiter>[] queues;
+    final int[] deficits;
+    int queued;
+    int inFlight;
+
+    @SuppressWarnings("unchecked")
+    Tenant(String name, int priorities) {
+      this.name = name;
+      this.queues = new ArrayDeque[priorities];
+      for(int i = 0; i < priorities; i++) {
+        queues[i] = new ArrayDeque<Waiter>();
+      }
+      this.deficits = new int[priorities];
+    }
+  }
+
+  /**
+   * Creates a dispatcher.
+   *
+   * @param limit Maximum number of requests in flight
+   */
+  @SuppressWarnings("unchecked")
+  public RequestDispatcher(int limit) {
+    setLimit(limit);
+    int priorities = Priority.values().length;
+    mRounds = new ArrayDeque[priorities];
+    for(int i = 0; i < priorities; i++) {
+      mRounds[i] = new ArrayDeque<Tenant>();
+    }
+    mQueuedByPriority = new int[priorities];
+    mCredits = new int[priorities];
+  }
+
+  /**
+   * Sets the maximum number of requests in flight. Lowering the limit lets
+   * requests already in flight complete.
+   *
+   * @param limit Maximum number of requests in flight
+   */
+  public synchronized void setLimit(int limit) {
+    if(limit < 1) {
+      throw new IllegalArgumentException("limit must be at least 1");
+    }
+    mLimit = limit;
+    if(mRounds != null) {
+      dispatch();
+    }
+  }
+
+  /**
+   * Gets the maximum number of requests in flight.
+   *
+   * @return The limit
+   */
+  public synchronized int getLimit() {
+    return mLimit;
+  }
+
+  /**
+   * Sets the maximum number of requests in flight for any single tenant.
+   *
+   * @param limit Maximum number of requests in flight per tenant
+   */
+  public synchronized void setTenantLimit(int limit) {
+    if(limit < 1) {
+      throw new IllegalArgumentException("limit must be at least 1");
+    }
+    mTenantLimit = limit;
+    dispatch();
+  }
+
+  /**
+   * Gets the maximum number of requests in flight for any single tenant.
+   *
+   * @return The limit, Integer.MAX_VALUE unless set
+   */
+  public synchronized int getTenantLimit() {
+    return mTenantLimit;
+  }
+
+  /**
+   * Sets how many requests a tenant gets per round, relative to other
+   * tenants of the same priority.
+   *
+   * @param tenant The tenant
+   * @param weight Requests per round, 1 by default
+   */
+  public synchronized void setTenantWeight(String tenant, int weight) {
+    if(weight < 1) {
+      throw new IllegalArgumentException("weight must be at least 1");
+    }
+    if(weight == 1) {
+      mWeights.remove(key(tenant));
+    } else {
+      mWeights.put(key(tenant), weight);
+    }
+  }
+
+  /**
+   * Gets the number of requests holding a slot.
+   *
+   * @return Requests in flight
+   */
+  public synchronized int getInFlight() {
+    return mInFlight;
+  }
+
+  /**
+   * Gets the number of requests of a tenant holding a slot.
+   *
+   * @param tenant The tenant
+   * @return Requests of the tenant in flight
+   */
+  public synchronized int getInFlight(String tenant) {
+    Tenant state = mTenants.get(key(tenant));
+    return state != null ? state.inFlight : 0;
+  }
+
+  /**
+   * Gets the number of requests waiting for a slot.
+   *
+   * @return Queued requests
+   */
+  public synchronized int getQueueLength() {
+    return mQueued;
+  }
+
+  /**
+   * Gets the number of requests of a priority waiting for a slot.
+   *
+   * @param priority The priority
+   * @return Queued requests of the priority
+   */
+  public synchronized int getQueueLength(Priority priority) {
+    return mQueuedByPriority[priority.ordinal()];
+  }
+
+  /**
+   * Gets the number of requests of a tenant waiting for a slot.
+   *
+   * @param tenant The tenant
+   * @return Queued requests of the tenant
+   */
+  public synchronized int getQueueLength(String tenant) {
+    Tenant state = mTenants.get(key(tenant));
+    return state != null ? state.queued : 0;
+  }
+
+  /**
+   * Gets the number of requests waiting for a slot, for every tenant that
+   * has requests waiting.
+   *
+   * @return Queued requests by tenant
+   */
+  public synchronized Map<String, Integer> getQueueLengths() {
+    Map<String, Integer> lengths = new HashMap<String, Integer>();
+    for(Tenant tenant : mTenants.values()) {
+      if(tenant.queued > 0) {
+        lengths.put(tenant.name, tenant.queued);
+      }
+    }
+    return lengths;
+  }
+
+  /**
+   * Gets the number of requests dropped because their deadline passed
+   * while they were queued.
+   *
+   * @return Dropped requests
+   */
+  public synchronized long getDroppedCount() {
+    return mDropped;
+  }
+
+  /**
+   * Waits for a slot for a request. The slot must be given back with
+   * release() once the request has completed.
+   *
+   * @param request The request
+   * @param tenant  Tenant the request is sent for, or null
+   * @throws InterruptedIOException if the request was cancelled, passed its
+   *                                deadline or the thread was interrupted
+   *                                while queued
+   */
+  synchronized void acquire(Request request, String tenant) throws InterruptedIOException {
+    Tenant state = tenant(tenant);
+    if(mQueued == 0 && mInFlight < mLimit && state.inFlight < mTenantLimit) {
+      mInFlight++;
+      state.inFlight++;
+      return;
+    }
+
+    Waiter waiter = new Waiter(request, state);
+    enqueue(waiter);
+    // Slots may be free while only capped tenants are waiting
+    dispatch();
+    try {
+      while(!waiter.granted) {
+        if(waiter.dropped || request.isExpired()) {
+          dequeue(waiter);
+          mDropped++;
+          throw new InterruptedIOException("deadline exceeded while queued");
+        }
+        if(request.isCancelled()) {
+          dequeue(waiter);
+          throw new InterruptedIOException("request cancelled");
+        }
+        wait(Math.min(POLL_MILLIS, Math.max(1, request.getRemainingMillis())));
+      }
+    } catch(InterruptedException e) {
+      if(waiter.granted) {
+        release(tenant);
+      } else {
+        dequeue(waiter);
+      }
+      throw new InterruptedIOException("interrupted while queued");
+    }
+  }
+
+  /**
+   * Takes a slot if one is free and nobody is waiting for it. The slot must
+   * be given back with release().
+   *
+   * @param tenant Tenant the slot is taken for, or null
+   * @return true if a slot was taken
+   */
+  synchronized boolean tryAcquire(String tenant) {
+    Tenant state = tenant(tenant);
+    if(mQueued == 0 && mInFlight < mLimit && state.inFlight < mTenantLimit) {
+      mInFlight++;
+      state.inFlight++;
+      return true;
+    }
+    forgetIfIdle(state);
+    return false;
+  }
+
+  /**
+   * Gives back the slot of a completed request.
+   *
+   * @param tenant Tenant the request was sent for, or null
+   */
+  synchronized void release(String tenant) {
+    mInFlight--;
+    Tenant state = mTenants.get(key(tenant));
+    if(state != null) {
+      state.inFlight--;
+      forgetIfIdle(state);
+    }
+    dispatch();
+  }
+
+  /*
+  * Private, must hold the lock
+  */
+
+  private static String key(String tenant) {
+    return tenant != null ? tenant : "";
+  }
+
+  private Tenant tenant(String name) {
+    Tenant tenant = mTenants.get(key(name));
+    if(tenant == null) {
+      tenant = new Tenant(key(name), mRounds.length);
+      mTenants.put(tenant.name, tenant);
+    }
+    return tenant;
+  }
+
+  private void forgetIfIdle(Tenant tenant) {
+    if(tenant.queued == 0 && tenant.inFlight == 0) {
+      mTenants.remove(tenant.name);
+    }
+  }
+
+  private void enqueue(Waiter waiter) {
+    ArrayDeque<Waiter> queue = waiter.tenant.queues[waiter.priority];
+    if(queue.isEmpty()) {
+      mRounds[waiter.priority].add(waiter.tenant);
+    }
+    queue.add(waiter);
+    waiter.tenant.queued++;
+    mQueuedByPriority[waiter.priority]++;
+    mQueued++;
+  }
+
+  private void dequeue(Waiter waiter) {
+    ArrayDeque<Waiter> queue = waiter.tenant.queues[waiter.priority];
+    if(queue.remove(waiter)) {
+      removed(waiter);
+    }
+  }
+
+  /**
+   * Updates the counts and rounds after a waiter left its queue.
+   */
+  private void removed(Waiter waiter) {
+    Tenant tenant = waiter.tenant;
+    if(tenant.queues[waiter.priority].isEmpty()) {
+      mRounds[waiter.priority].remove(tenant);
+      tenant.deficits[waiter.priority] = 0;
+    }
+    tenant.queued--;
+    mQueuedByPriority[waiter.priority]--;
+    mQueued--;
+    forgetIfIdle(tenant);
+  }
+
+  private void dispatch() {
+    boolean changed = dropExpired();
+    while(mInFlight < mLimit) {
+      Waiter next = pick();
+      if(next == null) {
+        break;
+      }
+      next.granted = true;
+      mInFlight++;
+      changed = true;
+    }
+    if(changed) {
+      notifyAll();
+    }
+  }
+
+  private Waiter pick() {
+    Priority[] priorities = Priority.values();
+    int best = -1;
+    int total = 0;
+    for(int i = 0; i < priorities.length; i++) {
+      if(!hasEligibleTenant(i)) {
+        // Idle priorities do not save up credit
+        mCredits[i] = 0;
+        continue;
+      }
+      mCredits[i] += priorities[i].getWeight();
+      total += priorities[i].getWeight();
+      // Ties go to the higher priority
+      if(best < 0 || mCredits[i] > mCredits[best]) {
+        best = i;
+      }
+    }
+    if(best < 0) {
+      return null;
+    }
+    mCredits[best] -= total;
+    return pickTenant(best);
+  }
+
+  private boolean hasEligibleTenant(int priority) {
+    for(Tenant tenant : mRounds[priority]) {
+      if(tenant.inFlight < mTenantLimit) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Takes the next waiter of a priority by deficit round-robin. Every
+   * request costs 1, so a tenant is served as many requests in a row as its
+   * weight before the round moves on.
+   */
+  private Waiter pickTenant(int priority) {
+    ArrayDeque<Tenant> round = mRounds[priority];
+    while(true) {
+      Tenant tenant = round.poll();
+      if(tenant.inFlight >= mTenantLimit) {
+        // Capped tenants keep their place in the next round
+        round.add(tenant);
+        continue;
+      }
+      if(tenant.deficits[priority] == 0) {
+        Integer weight = mWeights.get(tenant.name);
+        tenant.deficits[priority] = weight != null ? weight : 1;
+      }
+      Waiter waiter = tenant.queues[priority].poll();
+      tenant.deficits[priority]--;
+      if(!tenant.queues[priority].isEmpty()) {
+        // Stay at the head of the round until the deficit is spent
+        if(tenant.deficits[priority] > 0) {
+          round.addFirst(tenant);
+        } else {
+          round.add(tenant);
+        }
+      }
+      // Counted in flight before the waiter is counted out, so the tenant
+      // is not forgotten in between
+      tenant.inFlight++;
+      removed(waiter);
+      return waiter;
+    }
+  }
+
+  /**
+   * Takes requests whose deadline has passed off the queues, so they do not
+   * use up slots. Their threads notice when woken.
+   */
+  private boolean dropExpired() {
+    boolean dropped = false;
+    for(Tenant tenant : mTenants.values().toArray(new Tenant[mTenants.size()])) {
+      for(int p = 0; p < tenant.queues.length; p++) {
+        for(Iterator<Waiter> it = tenant.queues[p].iterator(); it.hasNext(); ) {
+          Waiter waiter = it.next();
+          if(waiter.request.isExpired()) {
+            it.remove();
+            waiter.dropped = true;
+            dropped = true;
+            removed(waiter);
+          }
+        }
+      }
+    }
+    return dropped;
+  }
+}
@@ -0,0 +1,121 @@
+package com.readmill.api;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds managed responses that became unreachable without being closed,
+ * and releases their connections back to the pool.
+ * <p/>
+ * Each open response is tracked by a phantom reference holding its entity,
+ * so the entity can still be released after the response itself has been
+ * collected.
+ */
+class ResponseLeakDetector {
+  private final ReferenceQueue<ManagedResponse> mQueue = new ReferenceQueue<ManagedResponse>();
+  // Keeps the trackers of open responses reachable until they are reaped
+  private final Set<Tracker> mOpen = Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+  private final AtomicLong mLeaked = new AtomicLong();
+  private volatile boolean mTraceAllocations;
+
+  /**
+   * Tracks an open response.
+   */
+  static class Tracker extends PhantomReference<ManagedResponse> {
+    private final ResponseLeakDetector mDetector;
+    private final HttpEntity mEntity;
+    private final Throwable mAllocationSite;
+    private final String mDescription;
+
+    Tracker(ManagedResponse response, ResponseLeakDetector detector, HttpEntity entity, String description) {
+      super(response, detector.mQueue);
+      mDetector = detector;
+      mEntity = entity;
+      mDescription = description;
+      mAllocationSite = detector.mTraceAllocations ? new Throwable("Response to " + description + " opened here") : null;
+    }
+
+    /**
+     * Stops tracking, when the response was closed.
+     */
+    void untrack() {
+      mDetector.mOpen.remove(this);
+      clear();
+    }
+  }
+
+  /**
+   * Sets whether to record where responses are opened, which is reported
+   * when they leak. Costs a stack trace per response.
+   *
+   * @param trace true to record allocation sites
+   */
+  void setTraceAllocations(boolean trace) {
+    mTraceAllocations = trace;
+  }
+
+  Tracker track(ManagedResponse response, HttpEntity entity, String description) {
+    Tracker tracker = new Tracker(response, this, entity, description);
+    mOpen.add(tracker);
+    return tracker;
+  }
+
+  /**
+   * Releases the connections of leaked responses.
+   *
+   * @return Number of leaks found
+   */
+  int reap() {
+    int reaped = 0;
+    Reference<? extends ManagedResponse> reference;
+    while((reference = mQueue.poll()) != null) {
+      Tracker tracker = (Tracker) reference;
+      if(!mOpen.remove(tracker)) {
+        continue;
+      }
+      reaped++;
+      mLeaked.incrementAndGet();
+      release(tracker.mEntity);
+
+      if(tracker.mAllocationSite != null) {
+        new IllegalStateException("Leaked a response that was never closed", tracker.mAllocationSite).printStackTrace();
+      } else {
+        System.err.println("Leaked a response to " + tracker.mDescription + " that was never closed. " +
+            "Enable ReadmillWrapper.setResponseLeakTracing() to see where it was opened.");
+      }
+    }
+    return reaped;
+  }
+
+  long getLeakCount() {
+    return mLeaked.get();
+  }
+
+  int getOpenCount() {
+    return mOpen.size();
+  }
+
+  /**
+   * Releases the connection of an entity without reading the rest of it.
+   */
+  static void release(HttpEntity entity) {
+    try {
+      if(entity instanceof ConnectionReleaseTrigger) {
+        ((ConnectionReleaseTrigger) entity).abortConnection();
+      } else if(entity != null) {
+        entity.consumeContent();
+      }
+    } catch(IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
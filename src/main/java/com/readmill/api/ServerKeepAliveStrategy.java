@@ -0,0 +1,46 @@
+package com.readmill.api;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Keeps connections alive for as long as the server says it will.
+ * <p/>
+ * Uses the <code>timeout</code> parameter of the <code>Keep-Alive</code>
+ * response header when present. Otherwise a default duration is used, since
+ * reusing a connection the server has already dropped fails the request
+ * (typically with a <code>NoHttpResponseException</code>).
+ */
+public class ServerKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+  private final long mDefaultKeepAliveMillis;
+
+  /**
+   * Creates a strategy with a fallback duration.
+   *
+   * @param defaultKeepAliveMillis Duration to use when the server gives no hint
+   */
+  public ServerKeepAliveStrategy(long defaultKeepAliveMillis) {
+    mDefaultKeepAliveMillis = defaultKeepAliveMillis;
+  }
+
+  @Override
+  public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+    HeaderElementIterator elements = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+    while(elements.hasNext()) {
+      HeaderElement element = elements.nextElement();
+      if("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+        try {
+          long serverMillis = Long.parseLong(element.getValue().trim()) * 1000;
+          // Never keep a connection longer than our own limit
+          return Math.min(serverMillis, mDefaultKeepAliveMillis);
+        } catch(NumberFormatException ignored) {}
+      }
+    }
+    return mDefaultKeepAliveMillis;
+  }
+}
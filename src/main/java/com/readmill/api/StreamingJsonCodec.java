@@ -0,0 +1,91 @@
+package com.readmill.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Codec that parses JSON straight from the bytes of a response as they
+ * arrive, without copying the body into a String first or going through
+ * org.json's char by char tokenizer.
+ * <p/>
+ * Produces the same JSONObject trees as {@link OrgJsonCodec}. This is the
+ * default codec of the wrapper.
+ */
+public class StreamingJsonCodec implements JsonCodec {
+  private final StringPool mKeyPool;
+  private final StringPool mValuePool;
+
+  /**
+   * Creates a codec that shares keys and short string values through pools
+   * shared by all codecs.
+   */
+  public StreamingJsonCodec() {
+    this(StringPool.KEYS, StringPool.VALUES);
+  }
+
+  /**
+   * Creates a codec that shares keys and string values through the given
+   * pools. Collections repeat the same keys, states and timestamps for
+   * every item, so pooling them saves much of the memory a parsed
+   * collection holds on to.
+   *
+   * @param keys   Pool for object keys, or null to allocate every key
+   * @param values Pool for string values, or null to allocate every value
+   */
+  public StreamingJsonCodec(StringPool keys, StringPool values) {
+    mKeyPool = keys;
+    mValuePool = values;
+  }
+
+  public JSONObject readObject(InputStream in) throws IOException, JSONException {
+    return parser(new JsonParser(in)).readObject();
+  }
+
+  /**
+   * Parses a JSON object from a stream of UTF-8 encoded bytes, keeping only
+   * the fields in a projection. The stream is not closed.
+   *
+   * @param in         The stream to read
+   * @param projection Fields to keep
+   * @return The parsed object
+   * @throws IOException   if reading the stream failed
+   * @throws JSONException if the stream did not contain a JSON object
+   */
+  public JSONObject readObject(InputStream in, Projection projection) throws IOException, JSONException {
+    return parser(new JsonParser(in)).readObject(projection);
+  }
+
+  /**
+   * Parses a JSON object from UTF-8 encoded bytes in memory.
+   *
+   * @param data   The bytes
+   * @param offset Start of the object
+   * @param length Length of the object
+   * @return The parsed object
+   * @throws JSONException if the bytes did not contain a JSON object
+   */
+  public JSONObject readObject(byte[] data, int offset, int length) throws JSONException {
+    try {
+      return parser(new JsonParser(data, offset, length)).readObject();
+    } catch(IOException e) {
+      // Not thrown when parsing from memory
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public StringPool getKeyPool() {
+    return mKeyPool;
+  }
+
+  public StringPool getValuePool() {
+    return mValuePool;
+  }
+
+  private JsonParser parser(JsonParser parser) {
+    parser.setStringPools(mKeyPool, mValuePool);
+    return parser;
+  }
+}
@@ -0,0 +1,123 @@
+package com.readmill.api;
+
+/**
+ * Bounded pool of canonical strings, used to share the keys and short
+ * repetitive values (states, timestamps...) of parsed responses instead of
+ * allocating them again for every item of a collection.
+ * <p/>
+ * The pool is a fixed size table in which a new string pushes out the
+ * least recently added string of its bucket, so memory stays bounded no matter how many distinct strings
+ * pass through it, and a lookup never allocates. Strings longer than the
+ * max length are never pooled.
+ * <p/>
+ * Thread safe: slots are read and written without locking, which at worst
+ * makes two threads allocate the same string twice.
+ */
+public class StringPool {
+  /**
+   * Shared pool for object keys.
+   */
+  static final StringPool KEYS = new StringPool(2048, 64);
+
+  /**
+   * Shared pool for short values.
+   */
+  static final StringPool VALUES = new StringPool(8192, 32);
+
+  private final String[] mSlots;
+  private final int mMaxLength;
+
+  /**
+   * Creates a pool.
+   *
+   * @param capacity  Number of slots, rounded up to a power of two (at
+   *                  least 2)
+   * @param maxLength Max length of pooled strings
+   */
+  public StringPool(int capacity, int maxLength) {
+    int size = 2;
+    while(size < capacity) {
+      size <<= 1;
+    }
+    mSlots = new String[size];
+    mMaxLength = maxLength;
+  }
+
+  /**
+   * Gets the canonical string of a range of chars.
+   *
+   * @param chars  The chars
+   * @param offset Start of the string
+   * @param length Length of the string
+   * @return The pooled string, or a new string if it is too long to pool
+   */
+  public String intern(char[] chars, int offset, int length) {
+    if(length > mMaxLength) {
+      return new String(chars, offset, length);
+    }
+
+    int hash = 0;
+    for(int i = offset; i < offset + length; i++) {
+      hash = 31 * hash + chars[i];
+    }
+    // Buckets of two slots, so two hot strings with the same hash bits do
+    // not keep evicting each other
+    int first = ((hash ^ (hash >>> 16)) << 1) & (mSlots.length - 1);
+    int second = first + 1;
+
+    String pooled = mSlots[first];
+    if(pooled != null && matches(pooled, chars, offset, length)) {
+      return pooled;
+    }
+    pooled = mSlots[second];
+    if(pooled != null && matches(pooled, chars, offset, length)) {
+      return pooled;
+    }
+
+    String string = new String(chars, offset, length);
+    mSlots[second] = mSlots[first];
+    mSlots[first] = string;
+    return string;
+  }
+
+  public int getMaxLength() {
+    return mMaxLength;
+  }
+
+  /**
+   * Gets the number of slots of the pool, which is the most strings it ever
+   * holds on to.
+   *
+   * @return Number of slots
+   */
+  public int getCapacity() {
+    return mSlots.length;
+  }
+
+  /**
+   * Counts the strings held by the pool.
+   *
+   * @return Number of slots in use
+   */
+  int size() {
+    int size = 0;
+    for(String slot : mSlots) {
+      if(slot != null) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  private static boolean matches(String pooled, char[] chars, int offset, int length) {
+    if(pooled.length() != length) {
+      return false;
+    }
+    for(int i = 0; i < length; i++) {
+      if(pooled.charAt(i) != chars[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
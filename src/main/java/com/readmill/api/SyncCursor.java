@@ -0,0 +1,320 @@
+package com.readmill.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Incrementally syncs user collections by remembering how far each one has
+ * been read.
+ * <p/>
+ * A cursor keeps one watermark per user and collection: the newest
+ * <code>touched_at</code> (or <code>created_at</code>) timestamp seen so far,
+ * together with the ids of the items carrying exactly that timestamp. A sync
+ * only asks the API for items ordered by <code>touched_at</code> from the
+ * watermark and onwards, so the cost of polling is proportional to the number
+ * of changes rather than to the size of the collection.
+ * <p/>
+ * Pages are requested backwards from the oldest item of the previous page,
+ * including the second of that item, and items already seen are dropped by
+ * id. The API cannot page within a second though: if more than a page of
+ * items were touched within the same second, only the first page of them
+ * is read and the sync moves on to older seconds. The rest are picked up
+ * once they are touched again, see {@link #getTruncatedCount()}.
+ * <p/>
+ * Watermarks are persisted to a local file by writing a temporary file and
+ * renaming it over the old one. A watermark is only advanced after the
+ * listener has accepted the changes, so a crash in between replays the same
+ * changes on the next sync instead of skipping them.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  SyncCursor cursor = new SyncCursor(wrapper, new File("sync.properties"));
+ *  cursor.sync(userId, "readings", "reading", new SyncCursor.Listener() {
+ *    public void onChanges(JSONArray changes) {
+ *      store(changes);
+ *    }
+ *  });
+ * </pre>
+ * </code>
+ */
+public class SyncCursor {
+  private static final String ISO8601 = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+  private static final String KEY_IDS_SUFFIX = ".ids";
+
+  /**
+   * Number of items requested per page.
+   */
+  private static final int PAGE_SIZE = 100;
+
+  private final ReadmillWrapper mWrapper;
+  private final File mStateFile;
+  private final Properties mWatermarks = new Properties();
+  private int mTruncated;
+
+  /**
+   * Receives the changes found by a sync.
+   */
+  public interface Listener {
+    /**
+     * Called with the items that changed since the last sync, newest first.
+     * <p/>
+     * The watermark is only advanced if this method returns normally.
+     *
+     * @param changes The changed items (unwrapped)
+     * @throws Exception to abort the sync without advancing the watermark
+     */
+    public void onChanges(JSONArray changes) throws Exception;
+  }
+
+  /**
+   * Creates a cursor that persists its watermarks to the given file.
+   * <p/>
+   * Watermarks already stored in the file are loaded, so a new cursor resumes
+   * where the previous one stopped.
+   *
+   * @param wrapper   Wrapper used to fetch collections
+   * @param stateFile File to persist watermarks in
+   * @throws IOException if an existing state file could not be read
+   */
+  public SyncCursor(ReadmillWrapper wrapper, File stateFile) throws IOException {
+    mWrapper = wrapper;
+    mStateFile = stateFile;
+    load();
+  }
+
+  /**
+   * Fetches the items of a user collection that changed since the last sync.
+   * <p/>
+   * The collection is requested from <code>/users/{userId}/{collection}</code>
+   * and each item is unwrapped with <code>itemKey</code>, like
+   * {@link RequestBuilder#fetchItemsOrThrow(String)}.
+   *
+   * @param userId     Id of the user owning the collection
+   * @param collection Name of the collection (e.g. "readings")
+   * @param itemKey    Top level key of the items (e.g. "reading")
+   * @param listener   Receives the changes before the watermark is advanced
+   * @return The number of changed items
+   * @throws IOException   if a request failed or the watermark could not be saved
+   * @throws JSONException if a response was not properly formatted
+   * @throws Exception     if the listener failed
+   */
+  public int sync(long userId, String collection, String itemKey, Listener listener) throws Exception {
+    String key = watermarkKey(userId, collection);
+    String watermark = getWatermark(userId, collection);
+    Set<Long> seenAtWatermark = getIdsAtWatermark(key);
+
+    Map<Long, JSONObject> changes = new LinkedHashMap<Long, JSONObject>();
+    Set<Long> seen = new HashSet<Long>();
+    String to = null;
+
+    while(true) {
+      RequestBuilder builder = mWrapper.get(String.format("/users/%d/%s", userId, collection))
+          .order("touched_at")
+          .count(PAGE_SIZE);
+      if(watermark != null) {
+        builder.from(watermark);
+      }
+      if(to != null) {
+        builder.to(to);
+      }
+
+      JSONArray page = builder.fetchItemsOrThrow(itemKey);
+      String oldest = null;
+      int added = 0;
+      for(int i = 0; i < page.length(); i++) {
+        JSONObject item = page.getJSONObject(i);
+        long id = item.optLong("id");
+        String touchedAt = timestampOf(item);
+        if(oldest == null || touchedAt.compareTo(oldest) < 0) {
+          oldest = touchedAt;
+        }
+        if(seen.add(id)) {
+          added++;
+        }
+        if(touchedAt.equals(watermark) && seenAtWatermark.contains(id)) {
+          continue;
+        }
+        if(watermark != null && touchedAt.compareTo(watermark) < 0) {
+          continue;
+        }
+        if(!changes.containsKey(id)) {
+          changes.put(id, item);
+        }
+      }
+
+      // Collections are always ordered descending, so page backwards from
+      // the oldest item seen. "to" is non-inclusive, so step one second past
+      // it to get the rest of that second, and drop the overlap by id.
+      if(page.length() < PAGE_SIZE) {
+        break;
+      }
+      if(added > 0) {
+        to = plusOneSecond(oldest);
+      } else {
+        // A whole page within one second, which cannot be paged any
+        // further. Skip the rest of that second rather than stall forever.
+        synchronized(this) {
+          mTruncated++;
+        }
+        to = oldest;
+      }
+    }
+
+    if(changes.isEmpty()) {
+      return 0;
+    }
+
+    listener.onChanges(new JSONArray(changes.values()));
+    advance(key, watermark, seenAtWatermark, changes.values());
+    return changes.size();
+  }
+
+  /**
+   * Gets the current watermark of a collection.
+   *
+   * @param userId     Id of the user owning the collection
+   * @param collection Name of the collection
+   * @return The ISO 8601 timestamp of the newest synced item or null if the
+   *         collection has never been synced.
+   */
+  public synchronized String getWatermark(long userId, String collection) {
+    return mWatermarks.getProperty(watermarkKey(userId, collection));
+  }
+
+  /**
+   * Gets the number of times a sync had to skip items, because more than a
+   * page of them were touched within the same second.
+   *
+   * @return The number of skipped seconds since the cursor was created
+   */
+  public synchronized int getTruncatedCount() {
+    return mTruncated;
+  }
+
+  /**
+   * Forgets the watermark of a collection so that the next sync fetches it
+   * from the beginning.
+   *
+   * @param userId     Id of the user owning the collection
+   * @param collection Name of the collection
+   * @throws IOException if the watermarks could not be saved
+   */
+  public synchronized void reset(long userId, String collection) throws IOException {
+    String key = watermarkKey(userId, collection);
+    mWatermarks.remove(key);
+    mWatermarks.remove(key + KEY_IDS_SUFFIX);
+    save();
+  }
+
+  /*
+  * Private
+  */
+
+  private synchronized Set<Long> getIdsAtWatermark(String key) {
+    Set<Long> ids = new HashSet<Long>();
+    String value = mWatermarks.getProperty(key + KEY_IDS_SUFFIX);
+    if(value != null && value.length() > 0) {
+      for(String id : value.split(",")) {
+        ids.add(Long.parseLong(id));
+      }
+    }
+    return ids;
+  }
+
+  private synchronized void advance(String key, String watermark, Set<Long> seenAtWatermark,
+                                    Collection<JSONObject> changes) throws IOException {
+    String newest = watermark;
+    for(JSONObject item : changes) {
+      String touchedAt = timestampOf(item);
+      if(newest == null || touchedAt.compareTo(newest) > 0) {
+        newest = touchedAt;
+      }
+    }
+
+    Set<Long> ids = newest != null && newest.equals(watermark) ? seenAtWatermark : new HashSet<Long>();
+    for(JSONObject item : changes) {
+      if(timestampOf(item).equals(newest)) {
+        ids.add(item.optLong("id"));
+      }
+    }
+
+    StringBuilder joined = new StringBuilder();
+    for(Long id : ids) {
+      if(joined.length() > 0) {
+        joined.append(',');
+      }
+      joined.append(id);
+    }
+
+    mWatermarks.setProperty(key, newest);
+    mWatermarks.setProperty(key + KEY_IDS_SUFFIX, joined.toString());
+    save();
+  }
+
+  private synchronized void load() throws IOException {
+    if(!mStateFile.exists()) {
+      return;
+    }
+    FileInputStream in = new FileInputStream(mStateFile);
+    try {
+      mWatermarks.load(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes all watermarks to a temporary file, syncs it to disk and renames
+   * it over the state file, so a crash leaves either the old or the new
+   * state behind, never a partial one.
+   */
+  private synchronized void save() throws IOException {
+    File parent = mStateFile.getAbsoluteFile().getParentFile();
+    File temp = new File(parent, mStateFile.getName() + ".tmp");
+
+    FileOutputStream out = new FileOutputStream(temp);
+    try {
+      mWatermarks.store(out, "Readmill sync watermarks");
+      out.flush();
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+
+    if(!temp.renameTo(mStateFile)) {
+      // Some platforms refuse to rename over an existing file
+      if(!mStateFile.delete() || !temp.renameTo(mStateFile)) {
+        throw new IOException("Failed to replace sync state file " + mStateFile);
+      }
+    }
+  }
+
+  private static String watermarkKey(long userId, String collection) {
+    return userId + "." + collection;
+  }
+
+  private static String timestampOf(JSONObject item) {
+    String touchedAt = item.optString("touched_at");
+    return touchedAt.length() > 0 ? touchedAt : item.optString("created_at");
+  }
+
+  static String plusOneSecond(String timestamp) {
+    SimpleDateFormat format = new SimpleDateFormat(ISO8601);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    try {
+      Date date = format.parse(timestamp);
+      return format.format(new Date(date.getTime() + 1000));
+    } catch(ParseException e) {
+      return timestamp;
+    }
+  }
+}
@@ -0,0 +1,331 @@
+package com.readmill.api;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.util.EntityUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds back PUT requests for a short window and merges repeated updates to
+ * the same resource into a single request.
+ * <p/>
+ * Parameters of PUTs to a resource that arrive within the window are merged,
+ * with the value of the latest PUT winning for each parameter. When the
+ * window passes the merged PUT is sent (or queued in the wrapper's outbox,
+ * if there is one). A DELETE of the resource cancels its pending PUT, and a
+ * POST to it flushes the pending PUT first so that writes keep their order.
+ * <p/>
+ * Merged PUTs to a resource are delivered one after the other, and DELETEs
+ * and POSTs wait for a merged PUT that is being delivered, so a write never
+ * overtakes an earlier one to the same resource.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  wrapper.setWriteBehind(2, TimeUnit.SECONDS);
+ *  // Only one PUT with reading[state]=finished and reading[private]=true is sent
+ *  wrapper.put("/readings/1").readingState("reading").send();
+ *  wrapper.put("/readings/1").readingPrivate(true).send();
+ *  wrapper.put("/readings/1").readingState("finished").send();
+ * </pre>
+ * </code>
+ *
+ * @see ReadmillWrapper#setWriteBehind(long, TimeUnit)
+ */
+public class WriteCoalescer implements Closeable {
+  private final ReadmillWrapper mWrapper;
+  private final long mWindowMillis;
+
+  // Guarded by this
+  private final Map<String, PendingWrite> mPending = new HashMap<String, PendingWrite>();
+  private final Map<String, Lane> mLanes = new HashMap<String, Lane>();
+  private long mCoalesced;
+  private long mCancelled;
+  private boolean mClosed;
+
+  /**
+   * Merged parameters of the PUTs held back for a resource.
+   */
+  private static class PendingWrite {
+    final Map<String, String> params = new LinkedHashMap<String, String>();
+    Request latest;
+    ScheduledFuture<?> flush;
+
+    void merge(Request request) {
+      for(NameValuePair param : request.getParams()) {
+        // Re-insert so the merged request lists params in the order last written
+        params.remove(param.getName());
+        params.put(param.getName(), param.getValue());
+      }
+      latest = request;
+    }
+
+    Request toRequest() {
+      Request request = Request.to(latest.mResource).usingToken(latest.getToken())
+          .withPriority(latest.getPriority()).withTenant(latest.getTenant());
+      for(Map.Entry<String, String> param : params.entrySet()) {
+        request.withParams(param.getKey(), param.getValue());
+      }
+      return request;
+    }
+  }
+
+  /**
+   * Turns to deliver writes to a resource, handed out in the order the
+   * writes left the coalescer.
+   */
+  private static class Lane {
+    long issued;
+    long served;
+  }
+
+  /**
+   * Creates a coalescer that holds PUTs back for a given window.
+   *
+   * @param wrapper Wrapper used to send the merged requests
+   * @param window  Time to hold a PUT back, counted from the first PUT to a
+   *                resource
+   * @param unit    Unit of the window
+   */
+  public WriteCoalescer(ReadmillWrapper wrapper, long window, TimeUnit unit) {
+    mWrapper = wrapper;
+    mWindowMillis = unit.toMillis(window);
+  }
+
+  /**
+   * Offers a write request to the coalescer.
+   * <p/>
+   * PUTs are held back and true is returned. DELETEs cancel the pending PUT
+   * to the same resource, other requests flush it. The caller is responsible
+   * for sending any request for which false is returned.
+   *
+   * @param request The request
+   * @param klass   The http verb
+   * @return true if the request was taken over by the coalescer
+   * @throws IOException if a pending PUT that had to be flushed first failed
+   */
+  public boolean submit(Request request, Class<? extends HttpRequestBase> klass) throws IOException {
+    final String resource = request.getResource();
+    PendingWrite flushFirst;
+    long turn;
+
+    synchronized(this) {
+      if(mClosed) {
+        return false;
+      }
+
+      if(klass == HttpPut.class) {
+        PendingWrite pending = mPending.get(resource);
+        if(pending == null) {
+          final PendingWrite created = new PendingWrite();
+          created.flush = mWrapper.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+              flushInBackground(resource, created);
+            }
+          }, mWindowMillis, TimeUnit.MILLISECONDS);
+          mPending.put(resource, created);
+          pending = created;
+        } else {
+          mCoalesced++;
+        }
+        pending.merge(request);
+        return true;
+      }
+
+      flushFirst = mPending.remove(resource);
+      if(flushFirst != null) {
+        flushFirst.flush.cancel(false);
+        if(klass == HttpDelete.class) {
+          // No point in updating a resource that is about to be deleted
+          mCancelled++;
+          flushFirst = null;
+        }
+      }
+      if(flushFirst == null && !mLanes.containsKey(resource)) {
+        return false;
+      }
+      // Wait for merged PUTs on their way, so this write does not overtake them
+      turn = takeTurn(resource);
+    }
+
+    deliverInTurn(resource, turn, flushFirst);
+    return false;
+  }
+
+  /**
+   * Sends all pending PUTs right away.
+   *
+   * @throws IOException if any of them failed, after trying all of them
+   */
+  public void flush() throws IOException {
+    List<String> resources;
+    List<PendingWrite> pending;
+    List<Long> turns = new ArrayList<Long>();
+    synchronized(this) {
+      resources = new ArrayList<String>(mPending.keySet());
+      pending = new ArrayList<PendingWrite>(mPending.values());
+      for(String resource : resources) {
+        turns.add(takeTurn(resource));
+      }
+      mPending.clear();
+    }
+
+    IOException failure = null;
+    for(int i = 0; i < pending.size(); i++) {
+      pending.get(i).flush.cancel(false);
+      try {
+        deliverInTurn(resources.get(i), turns.get(i), pending.get(i));
+      } catch(IOException e) {
+        failure = e;
+      }
+    }
+    if(failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Sends all pending PUTs and stops holding back new ones.
+   *
+   * @throws IOException if any of the pending PUTs failed
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized(this) {
+      mClosed = true;
+    }
+    flush();
+  }
+
+  /**
+   * Gets the number of PUTs that were merged into another one instead of
+   * being sent on their own.
+   *
+   * @return The number of coalesced PUTs
+   */
+  public synchronized long getCoalescedCount() {
+    return mCoalesced;
+  }
+
+  /**
+   * Gets the number of pending PUTs dropped because their resource was
+   * deleted.
+   *
+   * @return The number of cancelled PUTs
+   */
+  public synchronized long getCancelledCount() {
+    return mCancelled;
+  }
+
+  /**
+   * Gets the number of resources with a pending PUT.
+   *
+   * @return The number of pending PUTs
+   */
+  public synchronized int getPendingCount() {
+    return mPending.size();
+  }
+
+  /*
+  * Private
+  */
+
+  private void flushInBackground(final String resource, final PendingWrite pending) {
+    final long turn;
+    synchronized(this) {
+      // Already flushed or cancelled, possibly replaced by a newer write
+      if(mPending.get(resource) != pending) {
+        return;
+      }
+      mPending.remove(resource);
+      turn = takeTurn(resource);
+    }
+
+    // Keep the single scheduler thread free for timed work, such as
+    // aborting requests that pass their deadline
+    mWrapper.getExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          deliverInTurn(resource, turn, pending);
+        } catch(IOException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+  }
+
+  /**
+   * Takes the next turn to write to a resource. Must hold the lock on this.
+   */
+  private long takeTurn(String resource) {
+    Lane lane = mLanes.get(resource);
+    if(lane == null) {
+      lane = new Lane();
+      mLanes.put(resource, lane);
+    }
+    return lane.issued++;
+  }
+
+  /**
+   * Waits for a turn, delivers a merged PUT (if any) and hands the resource
+   * to the next turn. Waiting is not interruptible, since skipping a turn
+   * would reorder the writes; the earlier writes are bounded by the request
+   * timeouts.
+   */
+  private void deliverInTurn(String resource, long turn, PendingWrite pending) throws IOException {
+    boolean interrupted = false;
+    synchronized(this) {
+      while(mLanes.get(resource).served != turn) {
+        try {
+          wait();
+        } catch(InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if(interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    try {
+      if(pending != null) {
+        deliver(pending);
+      }
+    } finally {
+      synchronized(this) {
+        Lane lane = mLanes.get(resource);
+        if(++lane.served == lane.issued) {
+          mLanes.remove(resource);
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  private void deliver(PendingWrite pending) throws IOException {
+    Request request = pending.toRequest();
+    WriteOutbox outbox = mWrapper.getOutbox();
+    if(outbox != null) {
+      outbox.enqueue(request, HttpPut.class);
+      return;
+    }
+
+    HttpResponse response = mWrapper.execute(request, HttpPut.class);
+    if(response != null && response.getEntity() != null) {
+      EntityUtils.toString(response.getEntity());
+    }
+  }
+}
@@ -0,0 +1,717 @@
+package com.readmill.api;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.util.EntityUtils;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.*;
+
+/**
+ * Durable queue of write requests (POST, PUT and DELETE) that are delivered
+ * in the background.
+ * <p/>
+ * Requests are appended to a journal file and synced to disk before
+ * {@link #enqueue(Request, Class)} returns, so they survive crashes and
+ * periods when the API cannot be reached. Concurrent enqueues share a single
+ * sync of the journal.
+ * <p/>
+ * A fixed number of drainer threads deliver the queued requests. Requests to
+ * the same resource are delivered one at a time and in the order they were
+ * queued; requests to different resources are delivered concurrently.
+ * Network errors, 5xx responses, 408 and 429 are retried with exponential
+ * backoff. A 401 or 403 parks the requests to that resource until
+ * {@link #resume(Token)} is called, typically once the user has authorized
+ * again. Other 4xx responses mean the request can never succeed and it is
+ * dropped; dropped requests go to the listener, or are kept for
+ * {@link #takeRejected()} if there is none. Delivered and dropped requests
+ * are acknowledged in the journal, which is compacted once most of it is
+ * acknowledged.
+ * <p/>
+ * Delivery is at-least-once: a request that was delivered just before a
+ * crash may be delivered again after it.
+ * <p/>
+ * Note that the journal stores the access token of requests that carry one.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  WriteOutbox outbox = new WriteOutbox(wrapper, new File("outbox.journal"), 4);
+ *  wrapper.setOutbox(outbox);
+ *  // Queued in the outbox instead of sent right away
+ *  wrapper.post("/readings/1/pings").pingProgress(0.5).send();
+ * </pre>
+ * </code>
+ */
+public class WriteOutbox implements Closeable {
+  private static final String UTF8 = "UTF-8";
+  private static final String ADDED = "A";
+  private static final String ACKED = "K";
+
+  /**
+   * Compact when at least this many acknowledgements are in the journal, and
+   * they outnumber the pending entries.
+   */
+  private static final int COMPACT_THRESHOLD = 1000;
+
+  private static final long MIN_BACKOFF_MILLIS = 1000;
+  private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+  private final ReadmillWrapper mWrapper;
+  private final File mJournalFile;
+  private final List<Thread> mDrainers = new ArrayList<Thread>();
+  private volatile Listener mListener;
+
+  // Journal state, guarded by mJournalLock
+  private final Object mJournalLock = new Object();
+  private FileOutputStream mJournal;
+  private long mWritten;
+  private int mAckedInJournal;
+  // Entries in the journal that are not in the delivery queues yet
+  private final Map<Long, Entry> mUnqueued = new HashMap<Long, Entry>();
+
+  // Sync state, guarded by mSyncLock
+  private final Object mSyncLock = new Object();
+  private long mSynced;
+
+  // Delivery state, guarded by this
+  private final Map<String, ArrayDeque<Entry>> mQueues = new LinkedHashMap<String, ArrayDeque<Entry>>();
+  private final Set<String> mBusy = new HashSet<String>();
+  private final Map<String, Long> mRetryAt = new HashMap<String, Long>();
+  private final Map<String, Long> mBackoff = new HashMap<String, Long>();
+  private final Set<String> mParked = new HashSet<String>();
+  private final List<Request> mRejected = new ArrayList<Request>();
+  private long mNextSeq = 1;
+  private int mPending;
+  private boolean mClosed;
+
+  /**
+   * Receives the outcome of delivered requests.
+   */
+  public interface Listener {
+    /**
+     * Called when a queued request has been delivered.
+     *
+     * @param request    The request
+     * @param statusCode The http status of the response
+     */
+    public void onDelivered(Request request, int statusCode);
+
+    /**
+     * Called when the server permanently rejected a queued request, or the
+     * request was cancelled before it was delivered. The request is dropped
+     * from the outbox.
+     *
+     * @param request    The request
+     * @param statusCode The http status of the response, or -1 if the
+     *                   request was cancelled
+     */
+    public void onRejected(Request request, int statusCode);
+
+    /**
+     * Called when the server answered a queued request with a 401 or 403.
+     * The request and the ones queued after it for the same resource stay
+     * in the outbox until {@link WriteOutbox#resume(Token)} is called.
+     *
+     * @param request    The request
+     * @param statusCode The http status of the response
+     */
+    public void onUnauthorized(Request request, int statusCode);
+  }
+
+  /**
+   * A queued request.
+   */
+  private static class Entry {
+    final long seq;
+    final Class<? extends HttpRequestBase> klass;
+    final Request request;
+    // Replaced when parked requests are resumed with a new token
+    volatile Token token;
+
+    Entry(long seq, Class<? extends HttpRequestBase> klass, Request request) {
+      this.seq = seq;
+      this.klass = klass;
+      this.request = request;
+      this.token = request.getToken();
+    }
+
+    String resourceKey() {
+      return request.getResource();
+    }
+
+    /**
+     * Creates the request to send for one delivery attempt, from what is
+     * stored in the journal. The deadline and cancellation of the queued
+     * request apply to queueing it, not to delivering it, and would
+     * otherwise fail every attempt.
+     */
+    Request attempt() {
+      Request attempt = Request.to(request.mResource)
+          .usingToken(token)
+          .withTenant(request.getTenant())
+          .withPriority(Priority.BACKGROUND);
+      for(NameValuePair param : request.getParams()) {
+        attempt.withParams(param.getName(), param.getValue());
+      }
+      return attempt;
+    }
+  }
+
+  /**
+   * Opens an outbox, replays any requests left in its journal and starts
+   * delivering them.
+   *
+   * @param wrapper     Wrapper used to deliver requests
+   * @param journalFile File to keep the journal in
+   * @param concurrency Max number of requests delivered at the same time
+   * @throws IOException if the journal could not be read or opened
+   */
+  public WriteOutbox(ReadmillWrapper wrapper, File journalFile, int concurrency) throws IOException {
+    this(wrapper, journalFile, concurrency, null);
+  }
+
+  /**
+   * Opens an outbox with a listener, which is also notified about the
+   * requests replayed from its journal.
+   *
+   * @param wrapper     Wrapper used to deliver requests
+   * @param journalFile File to keep the journal in
+   * @param concurrency Max number of requests delivered at the same time
+   * @param listener    The listener, or null
+   * @throws IOException if the journal could not be read or opened
+   */
+  public WriteOutbox(ReadmillWrapper wrapper, File journalFile, int concurrency, Listener listener)
+      throws IOException {
+    mWrapper = wrapper;
+    mJournalFile = journalFile;
+    mListener = listener;
+    recover();
+
+    for(int i = 0; i < concurrency; i++) {
+      Thread drainer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      }, "readmill-outbox-" + (i + 1));
+      drainer.setDaemon(true);
+      drainer.start();
+      mDrainers.add(drainer);
+    }
+  }
+
+  /**
+   * Sets the listener notified about delivered and rejected requests.
+   * Called from the drainer threads. Requests replayed from the journal may
+   * be delivered before it is set; pass the listener to the constructor to
+   * be notified about those too.
+   *
+   * @param listener The listener, or null
+   */
+  public void setListener(Listener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * Checks if requests of a given verb are queued by an outbox.
+   *
+   * @param klass The http verb
+   * @return true for POST, PUT and DELETE
+   */
+  public static boolean isMutating(Class<? extends HttpRequestBase> klass) {
+    return klass == HttpPost.class || klass == HttpPut.class || klass == HttpDelete.class;
+  }
+
+  /**
+   * Queues a write request for delivery.
+   * <p/>
+   * Returns once the request is durably stored in the journal.
+   *
+   * @param request The request
+   * @param klass   The http verb (HttpPost, HttpPut or HttpDelete)
+   * @throws IOException if the request could not be written to the journal
+   */
+  public void enqueue(Request request, Class<? extends HttpRequestBase> klass) throws IOException {
+    if(!isMutating(klass)) {
+      throw new IllegalArgumentException("only POST, PUT and DELETE can be queued");
+    }
+
+    long seq;
+    synchronized(this) {
+      if(mClosed) {
+        throw new IllegalStateException("outbox has been closed");
+      }
+      seq = mNextSeq++;
+    }
+
+    // The entry is in the journal from the moment it is appended, so a
+    // compaction before it is queued must keep it
+    Entry entry = new Entry(seq, klass, request);
+    String record = encode(entry);
+    long position;
+    synchronized(mJournalLock) {
+      position = append(record);
+      mUnqueued.put(seq, entry);
+    }
+    try {
+      sync(position);
+    } catch(IOException e) {
+      synchronized(mJournalLock) {
+        mUnqueued.remove(seq);
+      }
+      throw e;
+    }
+
+    synchronized(mJournalLock) {
+      synchronized(this) {
+        mUnqueued.remove(seq);
+        queueOf(entry.resourceKey()).add(entry);
+        mPending++;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Delivers the requests parked after a 401 or 403 again.
+   *
+   * @param token Token to deliver them with from now on, or null to keep
+   *              the tokens they were queued with
+   * @throws IOException if the new token could not be written to the journal
+   */
+  public void resume(Token token) throws IOException {
+    List<Entry> parked = new ArrayList<Entry>();
+    synchronized(this) {
+      for(String resource : mParked) {
+        ArrayDeque<Entry> queue = mQueues.get(resource);
+        if(queue != null) {
+          parked.addAll(queue);
+        }
+      }
+    }
+
+    if(token != null && !parked.isEmpty()) {
+      // Replayed entries with the same sequence number replace earlier ones
+      long position = 0;
+      for(Entry entry : parked) {
+        entry.token = token;
+        position = append(encode(entry));
+      }
+      sync(position);
+    }
+
+    synchronized(this) {
+      mParked.clear();
+      notifyAll();
+    }
+  }
+
+  /**
+   * Takes the requests dropped since the last call. Only kept while no
+   * listener is set, which gets them instead.
+   *
+   * @return The dropped requests, oldest first
+   */
+  public synchronized List<Request> takeRejected() {
+    List<Request> rejected = new ArrayList<Request>(mRejected);
+    mRejected.clear();
+    return rejected;
+  }
+
+  /**
+   * Gets the number of requests that have not been delivered yet.
+   *
+   * @return The number of pending requests
+   */
+  public synchronized int getPendingCount() {
+    return mPending;
+  }
+
+  /**
+   * Waits until every queued request has been delivered or dropped.
+   *
+   * @param timeoutMillis Max time to wait
+   * @return true if the outbox is empty
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long remaining;
+    while(mPending > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+      wait(remaining);
+    }
+    return mPending == 0;
+  }
+
+  /**
+   * Stops delivering requests and closes the journal. Pending requests stay
+   * in the journal and are delivered when it is opened again.
+   *
+   * @throws IOException if the journal could not be closed
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized(this) {
+      if(mClosed) {
+        return;
+      }
+      mClosed = true;
+      notifyAll();
+    }
+    for(Thread drainer : mDrainers) {
+      drainer.interrupt();
+    }
+    synchronized(mJournalLock) {
+      mJournal.close();
+    }
+  }
+
+  /*
+  * Delivery
+  */
+
+  private synchronized boolean isClosed() {
+    return mClosed;
+  }
+
+  private void drain() {
+    while(true) {
+      Entry entry;
+      try {
+        entry = takeNext();
+      } catch(InterruptedException e) {
+        return;
+      }
+      if(entry == null) {
+        return;
+      }
+
+      String resource = entry.resourceKey();
+      boolean cancelled = entry.request.isCancelled();
+      int status = -1;
+      if(!cancelled) {
+        try {
+          HttpResponse response = mWrapper.execute(entry.attempt(), entry.klass);
+          status = response.getStatusLine().getStatusCode();
+          if(response.getEntity() != null) {
+            EntityUtils.toString(response.getEntity());
+          }
+        } catch(IOException e) {
+          if(isClosed()) {
+            return;
+          }
+          // Retried below, the outbox exists for exactly these failures
+        } catch(IllegalStateException e) {
+          // The wrapper has been closed
+          return;
+        }
+      }
+
+      boolean retry = !cancelled && (status < 0 || status >= 500 || status == 408 || status == 429);
+      if(retry) {
+        retryLater(resource);
+        continue;
+      }
+      if(status == 401 || status == 403) {
+        park(resource);
+        Listener listener = mListener;
+        if(listener != null) {
+          listener.onUnauthorized(entry.request, status);
+        }
+        continue;
+      }
+
+      if(isClosed()) {
+        // Journal is closed, the request is delivered again after reopening
+        return;
+      }
+      try {
+        append(ACKED + "\t" + entry.seq + "\n");
+      } catch(IOException e) {
+        // Delivered anyway, at worst it is delivered again after a restart
+        e.printStackTrace();
+      }
+
+      // Notify before releasing the resource, so listeners see requests to
+      // the same resource in order
+      Listener listener = mListener;
+      if(listener != null) {
+        if(status >= 200 && status < 400) {
+          listener.onDelivered(entry.request, status);
+        } else {
+          listener.onRejected(entry.request, status);
+        }
+      } else if(status < 200 || status >= 400) {
+        synchronized(this) {
+          mRejected.add(entry.request);
+        }
+      }
+      delivered(entry);
+      maybeCompact();
+    }
+  }
+
+  /**
+   * Takes the head of the next resource queue that is neither being
+   * delivered nor backing off, waiting for one if there is none.
+   *
+   * @return The entry or null if the outbox has been closed
+   */
+  private synchronized Entry takeNext() throws InterruptedException {
+    while(!mClosed) {
+      long now = System.currentTimeMillis();
+      long wakeAt = Long.MAX_VALUE;
+      for(Map.Entry<String, ArrayDeque<Entry>> queue : mQueues.entrySet()) {
+        String resource = queue.getKey();
+        if(mBusy.contains(resource) || mParked.contains(resource)) {
+          continue;
+        }
+        Long retryAt = mRetryAt.get(resource);
+        if(retryAt != null && retryAt > now) {
+          wakeAt = Math.min(wakeAt, retryAt);
+          continue;
+        }
+        mBusy.add(resource);
+        return queue.getValue().peek();
+      }
+      if(wakeAt == Long.MAX_VALUE) {
+        wait();
+      } else {
+        wait(wakeAt - now);
+      }
+    }
+    return null;
+  }
+
+  private synchronized void retryLater(String resource) {
+    Long previous = mBackoff.get(resource);
+    long backoff = previous == null ? MIN_BACKOFF_MILLIS : Math.min(MAX_BACKOFF_MILLIS, previous * 2);
+    mBackoff.put(resource, backoff);
+    mRetryAt.put(resource, System.currentTimeMillis() + backoff);
+    mBusy.remove(resource);
+    notifyAll();
+  }
+
+  private synchronized void park(String resource) {
+    mParked.add(resource);
+    mBusy.remove(resource);
+    mRetryAt.remove(resource);
+    mBackoff.remove(resource);
+    notifyAll();
+  }
+
+  private synchronized void delivered(Entry entry) {
+    String resource = entry.resourceKey();
+    ArrayDeque<Entry> queue = mQueues.get(resource);
+    queue.poll();
+    if(queue.isEmpty()) {
+      mQueues.remove(resource);
+    }
+    mBusy.remove(resource);
+    mRetryAt.remove(resource);
+    mBackoff.remove(resource);
+    mPending--;
+    notifyAll();
+  }
+
+  private ArrayDeque<Entry> queueOf(String resource) {
+    ArrayDeque<Entry> queue = mQueues.get(resource);
+    if(queue == null) {
+      queue = new ArrayDeque<Entry>();
+      mQueues.put(resource, queue);
+    }
+    return queue;
+  }
+
+  /*
+  * Journal
+  */
+
+  /**
+   * Appends a record to the journal, without syncing it.
+   *
+   * @return The position to sync up to for the record to be durable
+   */
+  private long append(String record) throws IOException {
+    byte[] bytes = record.getBytes(UTF8);
+    synchronized(mJournalLock) {
+      mJournal.write(bytes);
+      if(record.startsWith(ACKED)) {
+        mAckedInJournal++;
+      }
+      return ++mWritten;
+    }
+  }
+
+  /**
+   * Syncs the journal to disk up to a position. Callers arriving while a
+   * sync is in progress are usually covered by the next one, which batches
+   * the syncs of concurrent enqueues.
+   */
+  private void sync(long position) throws IOException {
+    synchronized(mSyncLock) {
+      if(mSynced >= position) {
+        return;
+      }
+      long written;
+      FileOutputStream journal;
+      synchronized(mJournalLock) {
+        written = mWritten;
+        journal = mJournal;
+      }
+      journal.getFD().sync();
+      mSynced = written;
+    }
+  }
+
+  /**
+   * Rewrites the journal with only the pending entries once it is mostly
+   * made up of acknowledged ones.
+   */
+  private void maybeCompact() {
+    synchronized(mSyncLock) {
+      synchronized(mJournalLock) {
+        int pending = getPendingCount();
+        if(mAckedInJournal < COMPACT_THRESHOLD || mAckedInJournal < pending) {
+          return;
+        }
+        try {
+          rewriteJournal();
+        } catch(IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes all pending entries, queued or about to be, to a new journal and
+   * renames it into place. Must hold both the sync and journal locks (or be
+   * called before the drainers start).
+   */
+  private void rewriteJournal() throws IOException {
+    List<Entry> pending = new ArrayList<Entry>(mUnqueued.values());
+    synchronized(this) {
+      for(ArrayDeque<Entry> queue : mQueues.values()) {
+        pending.addAll(queue);
+      }
+    }
+    Collections.sort(pending, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry a, Entry b) {
+        return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+      }
+    });
+
+    File temp = new File(mJournalFile.getAbsoluteFile().getParentFile(), mJournalFile.getName() + ".tmp");
+    FileOutputStream out = new FileOutputStream(temp);
+    try {
+      for(Entry entry : pending) {
+        out.write(encode(entry).getBytes(UTF8));
+      }
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+
+    if(mJournal != null) {
+      mJournal.close();
+    }
+    if(!temp.renameTo(mJournalFile)) {
+      if(!mJournalFile.delete() || !temp.renameTo(mJournalFile)) {
+        throw new IOException("Failed to replace outbox journal " + mJournalFile);
+      }
+    }
+    mJournal = new FileOutputStream(mJournalFile, true);
+    mAckedInJournal = 0;
+    mSynced = mWritten;
+  }
+
+  /**
+   * Reads the journal and queues every entry that has not been acknowledged.
+   * A torn record at the end (from a crash during a write) is ignored.
+   */
+  private void recover() throws IOException {
+    Map<Long, Entry> entries = new TreeMap<Long, Entry>();
+    if(mJournalFile.exists()) {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournalFile), UTF8));
+      try {
+        String line;
+        while((line = reader.readLine()) != null) {
+          String[] fields = line.split("\t", -1);
+          try {
+            if(fields[0].equals(ADDED) && fields.length == 6) {
+              Entry entry = decode(fields);
+              entries.put(entry.seq, entry);
+            } else if(fields[0].equals(ACKED) && fields.length == 2) {
+              entries.remove(Long.parseLong(fields[1]));
+            }
+          } catch(RuntimeException ignored) {
+            // Torn or corrupt record
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+
+    synchronized(this) {
+      for(Entry entry : entries.values()) {
+        queueOf(entry.resourceKey()).add(entry);
+        mNextSeq = Math.max(mNextSeq, entry.seq + 1);
+        mPending++;
+      }
+    }
+
+    // Start from a compact journal without any torn tail
+    rewriteJournal();
+  }
+
+  private static String encode(Entry entry) throws UnsupportedEncodingException {
+    Token token = entry.token;
+    return ADDED +
+        "\t" + entry.seq +
+        "\t" + verbOf(entry.klass) +
+        "\t" + URLEncoder.encode(entry.request.mResource, UTF8) +
+        "\t" + entry.request.queryString() +
+        "\t" + (token == null || token.getAccessToken() == null ? "" : URLEncoder.encode(token.getAccessToken(), UTF8)) +
+        "\n";
+  }
+
+  private static Entry decode(String[] fields) {
+    try {
+      Request request = Request.to(URLDecoder.decode(fields[3], UTF8));
+      List<NameValuePair> params = new ArrayList<NameValuePair>();
+      URLEncodedUtils.parse(params, new Scanner(fields[4]), UTF8);
+      for(NameValuePair param : params) {
+        request.withParams(param.getName(), param.getValue());
+      }
+      if(fields[5].length() > 0) {
+        request.usingToken(new Token(URLDecoder.decode(fields[5], UTF8)));
+      }
+      return new Entry(Long.parseLong(fields[1]), classOf(fields[2]), request);
+    } catch(UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String verbOf(Class<? extends HttpRequestBase> klass) {
+    if(klass == HttpPost.class) return HttpPost.METHOD_NAME;
+    if(klass == HttpPut.class) return HttpPut.METHOD_NAME;
+    return HttpDelete.METHOD_NAME;
+  }
+
+  private static Class<? extends HttpRequestBase> classOf(String verb) {
+    if(verb.equals(HttpPost.METHOD_NAME)) return HttpPost.class;
+    if(verb.equals(HttpPut.METHOD_NAME)) return HttpPut.class;
+    if(verb.equals(HttpDelete.METHOD_NAME)) return HttpDelete.class;
+    throw new IllegalArgumentException("unknown verb " + verb);
+  }
+}
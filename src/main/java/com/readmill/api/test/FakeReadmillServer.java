@@ -0,0 +1,613 @@
+package com.readmill.api.test;
+
+import com.readmill.api.Environment;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-in for the Readmill API that serves fixture data over http on the
+ * loopback interface, for load testing the whole stack including sockets
+ * and connection pooling.
+ * <p/>
+ * Serves the main endpoints of the API (v2) and the token endpoint of the
+ * web host:
+ * <ul>
+ * <li>GET /books, /books/:id</li>
+ * <li>GET /users/:id/readings, /readings/:id, PUT and DELETE /readings/:id</li>
+ * <li>GET /users/:id/highlights, /readings/:id/highlights, /highlights/:id,
+ * POST /readings/:id/highlights</li>
+ * <li>GET /highlights/:id/comments</li>
+ * <li>POST /readings/:id/pings</li>
+ * <li>POST /oauth/token</li>
+ * </ul>
+ * Collections are paginated like the real API: ordered descending by
+ * <code>order</code> (created_at or touched_at), limited by <code>count</code>
+ * and filtered with an inclusive <code>from</code> and a non-inclusive
+ * <code>to</code>.
+ * <p/>
+ * Latency, error rates and throttling can be injected to see how the client
+ * behaves when the API struggles.
+ * <p/>
+ * The JDK server writes headers and body separately, which with Nagle's
+ * algorithm and delayed acks adds ~40ms to every response. Launch the JVM
+ * with <code>-Dsun.net.httpserver.nodelay=true</code> when measuring
+ * latency, as {@link LoadGenerator#main(String[])} does.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  FakeReadmillServer server = new FakeReadmillServer();
+ *  server.generateFixtures(100, 50, 20, 10);
+ *  server.setLatency(5, 50, TimeUnit.MILLISECONDS);
+ *  server.setErrorRate(0.01);
+ *  server.start();
+ *  ReadmillWrapper wrapper = new ReadmillWrapper(clientId, clientSecret, server.getEnvironment());
+ * </pre>
+ * </code>
+ */
+public class FakeReadmillServer implements Closeable {
+  private static final String UTF8 = "UTF-8";
+  private static final String ISO8601 = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+  private static final int DEFAULT_COUNT = 20;
+  private static final int MAX_COUNT = 100;
+
+  private static final Pattern BOOKS = Pattern.compile("/v2/books(?:/(\\d+))?");
+  private static final Pattern READINGS = Pattern.compile("/v2/readings/(\\d+)");
+  private static final Pattern CHILDREN = Pattern.compile("/v2/(users|readings|highlights)/(\\d+)/(readings|highlights|comments|pings)");
+  private static final Pattern HIGHLIGHTS = Pattern.compile("/v2/highlights/(\\d+)");
+
+  private final HttpServer mServer;
+  private final ExecutorService mExecutor;
+  private final Random mRandom = new Random();
+
+  // Fixture data per type ("book", "reading", "highlight", "comment")
+  private final Map<String, ConcurrentSkipListMap<Long, JSONObject>> mItems = new ConcurrentHashMap<String, ConcurrentSkipListMap<Long, JSONObject>>();
+  private final AtomicLong mNextId = new AtomicLong(1000000);
+
+  private volatile long mMinLatencyMillis;
+  private volatile long mMaxLatencyMillis;
+  private volatile double mErrorRate;
+
+  // Token bucket for throttling, guarded by this
+  private double mRateLimit;
+  private double mTokens;
+  private long mRefilledAt;
+
+  private final AtomicLong mRequests = new AtomicLong();
+  private final AtomicLong mErrors = new AtomicLong();
+  private final AtomicLong mThrottled = new AtomicLong();
+  private final AtomicLong mPings = new AtomicLong();
+
+  /**
+   * Creates a server on a free port of the loopback interface, handling
+   * requests on up to 32 threads.
+   *
+   * @throws IOException if the server could not be bound
+   */
+  public FakeReadmillServer() throws IOException {
+    this(0, 32);
+  }
+
+  /**
+   * Creates a server on the loopback interface.
+   *
+   * @param port    Port to listen on, or 0 for any free port
+   * @param threads Number of threads handling requests
+   * @throws IOException if the server could not be bound
+   */
+  public FakeReadmillServer(int port, int threads) throws IOException {
+    for(String type : new String[]{"book", "reading", "highlight", "comment"}) {
+      mItems.put(type, new ConcurrentSkipListMap<Long, JSONObject>());
+    }
+
+    mServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 128);
+    mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger mCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "fake-readmill-" + mCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    mServer.setExecutor(mExecutor);
+    mServer.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          FakeReadmillServer.this.handle(exchange);
+        } catch(IllegalArgumentException e) {
+          // Malformed parameters or ids, e.g. NumberFormatException
+          respond(exchange, 400, error("bad request"));
+        } catch(JSONException e) {
+          e.printStackTrace();
+          respond(exchange, 500, error("internal error"));
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Starts serving requests.
+   */
+  public void start() {
+    mServer.start();
+  }
+
+  /**
+   * Stops the server right away.
+   */
+  @Override
+  public void close() {
+    mServer.stop(0);
+    mExecutor.shutdownNow();
+  }
+
+  /**
+   * Gets the port the server listens on.
+   *
+   * @return The port
+   */
+  public int getPort() {
+    return mServer.getAddress().getPort();
+  }
+
+  /**
+   * Gets an environment that points both the api and web host at this
+   * server.
+   *
+   * @return The environment
+   */
+  public Environment getEnvironment() {
+    return new Environment("127.0.0.1", getPort(), "127.0.0.1", getPort(), false);
+  }
+
+  /*
+  * Fault injection
+  */
+
+  /**
+   * Delays every response by a random time between min and max.
+   *
+   * @param min  Minimum latency
+   * @param max  Maximum latency
+   * @param unit Unit of the latencies
+   */
+  public void setLatency(long min, long max, TimeUnit unit) {
+    if(max < min) {
+      throw new IllegalArgumentException("max latency is lower than min latency");
+    }
+    mMinLatencyMillis = unit.toMillis(min);
+    mMaxLatencyMillis = unit.toMillis(max);
+  }
+
+  /**
+   * Answers a fraction of the requests with a 500 error.
+   *
+   * @param errorRate Fraction of requests that fail, from 0 to 1
+   */
+  public void setErrorRate(double errorRate) {
+    mErrorRate = errorRate;
+  }
+
+  /**
+   * Answers requests beyond a rate with 429 (Too Many Requests).
+   *
+   * @param requestsPerSecond Allowed rate, which may burst up to a second's
+   *                          worth of requests, or 0 for no limit
+   */
+  public synchronized void setRateLimit(double requestsPerSecond) {
+    mRateLimit = requestsPerSecond;
+    mTokens = requestsPerSecond;
+    mRefilledAt = System.nanoTime();
+  }
+
+  public long getRequestCount() {
+    return mRequests.get();
+  }
+
+  public long getErrorCount() {
+    return mErrors.get();
+  }
+
+  public long getThrottledCount() {
+    return mThrottled.get();
+  }
+
+  public long getPingCount() {
+    return mPings.get();
+  }
+
+  /*
+  * Fixtures
+  */
+
+  /**
+   * Adds a book. The book is given an id and timestamps if it has none.
+   *
+   * @param book The book
+   * @return The book id
+   */
+  public long addBook(JSONObject book) {
+    return addItem("book", book);
+  }
+
+  /**
+   * Adds a reading of a book by a user.
+   *
+   * @param userId  Id of the reader
+   * @param bookId  Id of the book
+   * @param reading The reading
+   * @return The reading id
+   */
+  public long addReading(long userId, long bookId, JSONObject reading) {
+    try {
+      reading.put("user", new JSONObject().put("id", userId));
+      JSONObject book = mItems.get("book").get(bookId);
+      reading.put("book", book != null ? book : new JSONObject().put("id", bookId));
+    } catch(JSONException e) {
+      throw new IllegalArgumentException(e);
+    }
+    return addItem("reading", reading);
+  }
+
+  /**
+   * Adds a highlight to a reading.
+   *
+   * @param readingId Id of the reading
+   * @param highlight The highlight
+   * @return The highlight id
+   */
+  public long addHighlight(long readingId, JSONObject highlight) {
+    try {
+      JSONObject reading = mItems.get("reading").get(readingId);
+      highlight.put("reading", new JSONObject().put("id", readingId));
+      if(reading != null) {
+        highlight.put("user", reading.getJSONObject("user"));
+      }
+    } catch(JSONException e) {
+      throw new IllegalArgumentException(e);
+    }
+    return addItem("highlight", highlight);
+  }
+
+  /**
+   * Adds a comment to a highlight.
+   *
+   * @param highlightId Id of the highlight
+   * @param comment     The comment
+   * @return The comment id
+   */
+  public long addComment(long highlightId, JSONObject comment) {
+    try {
+      comment.put("highlight", new JSONObject().put("id", highlightId));
+    } catch(JSONException e) {
+      throw new IllegalArgumentException(e);
+    }
+    return addItem("comment", comment);
+  }
+
+  /**
+   * Generates fixture data: users 1 to <code>users</code> each reading
+   * <code>readingsPerUser</code> of the books, with highlights on every
+   * reading. Timestamps are spread out one minute apart.
+   *
+   * @param users                Number of users
+   * @param books                Number of books
+   * @param readingsPerUser      Readings per user (at most one per book)
+   * @param highlightsPerReading Highlights per reading
+   */
+  public void generateFixtures(int users, int books, int readingsPerUser, int highlightsPerReading) {
+    try {
+      long[] bookIds = new long[books];
+      for(int i = 0; i < books; i++) {
+        bookIds[i] = addBook(new JSONObject()
+            .put("title", "Book " + (i + 1))
+            .put("author", "Author " + (i % 17 + 1)));
+      }
+      for(long user = 1; user <= users; user++) {
+        for(int r = 0; r < Math.min(readingsPerUser, books); r++) {
+          long readingId = addReading(user, bookIds[(int) ((user + r) % books)], new JSONObject()
+              .put("state", r % 3 == 0 ? "finished" : "reading")
+              .put("private", false)
+              .put("progress", (r % 10) / 10.0));
+          for(int h = 0; h < highlightsPerReading; h++) {
+            addHighlight(readingId, new JSONObject()
+                .put("content", "Highlight " + (h + 1) + " of reading " + readingId)
+                .put("position", h / (double) highlightsPerReading));
+          }
+        }
+      }
+    } catch(JSONException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private long addItem(String type, JSONObject item) {
+    try {
+      long id = item.optLong("id", 0);
+      if(id == 0) {
+        id = mNextId.incrementAndGet();
+        item.put("id", id);
+      }
+      if(!item.has("created_at")) {
+        // Spread items out so that pagination by timestamp has something to work with
+        item.put("created_at", timestamp(id));
+      }
+      if(!item.has("touched_at")) {
+        item.put("touched_at", item.getString("created_at"));
+      }
+      mItems.get(type).put(id, item);
+      return id;
+    } catch(JSONException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /*
+  * Request handling
+  */
+
+  private void handle(HttpExchange exchange) throws IOException, JSONException {
+    mRequests.incrementAndGet();
+    delay();
+
+    if(!tryAcquire()) {
+      mThrottled.incrementAndGet();
+      exchange.getResponseHeaders().set("Retry-After", "1");
+      respond(exchange, 429, error("rate limit exceeded"));
+      return;
+    }
+    if(mErrorRate > 0 && mRandom.nextDouble() < mErrorRate) {
+      mErrors.incrementAndGet();
+      respond(exchange, 500, error("injected error"));
+      return;
+    }
+
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath();
+    Map<String, String> params = parseParams(exchange);
+
+    if(path.equals("/oauth/token") && method.equals("POST")) {
+      respond(exchange, 200, new JSONObject()
+          .put("access_token", "fake-" + Long.toHexString(mRandom.nextLong()))
+          .put("refresh_token", "fake-refresh-" + Long.toHexString(mRandom.nextLong()))
+          .put("scope", params.containsKey("scope") ? params.get("scope") : "non-expiring")
+          .put("expires_in", 3600));
+      return;
+    }
+
+    Matcher m;
+    if((m = BOOKS.matcher(path)).matches() && method.equals("GET")) {
+      if(m.group(1) == null) {
+        respond(exchange, 200, collection("book", null, 0, params));
+      } else {
+        respondWithItem(exchange, "book", Long.parseLong(m.group(1)));
+      }
+    } else if((m = READINGS.matcher(path)).matches()) {
+      long id = Long.parseLong(m.group(1));
+      if(method.equals("GET")) {
+        respondWithItem(exchange, "reading", id);
+      } else if(method.equals("PUT")) {
+        updateReading(exchange, id, params);
+      } else if(method.equals("DELETE")) {
+        respond(exchange, mItems.get("reading").remove(id) != null ? 200 : 404, new JSONObject());
+      } else {
+        respond(exchange, 405, error("method not allowed"));
+      }
+    } else if((m = HIGHLIGHTS.matcher(path)).matches() && method.equals("GET")) {
+      respondWithItem(exchange, "highlight", Long.parseLong(m.group(1)));
+    } else if((m = CHILDREN.matcher(path)).matches()) {
+      handleChildren(exchange, method, m.group(1), Long.parseLong(m.group(2)), m.group(3), params);
+    } else {
+      respond(exchange, 404, error("not found"));
+    }
+  }
+
+  private void handleChildren(HttpExchange exchange, String method, String parents, long parentId,
+                              String children, Map<String, String> params) throws IOException, JSONException {
+    if(children.equals("pings")) {
+      if(method.equals("POST") && parents.equals("readings")) {
+        mPings.incrementAndGet();
+        respond(exchange, 201, new JSONObject());
+      } else {
+        respond(exchange, 405, error("method not allowed"));
+      }
+      return;
+    }
+
+    String type = children.substring(0, children.length() - 1);
+    String parentType = parents.substring(0, parents.length() - 1);
+    if(method.equals("GET")) {
+      respond(exchange, 200, collection(type, parentType, parentId, params));
+    } else if(method.equals("POST") && type.equals("highlight") && parentType.equals("reading")) {
+      JSONObject highlight = new JSONObject();
+      for(Map.Entry<String, String> param : params.entrySet()) {
+        if(param.getKey().startsWith("highlight[")) {
+          highlight.put(param.getKey().substring(10, param.getKey().length() - 1), param.getValue());
+        }
+      }
+      addHighlight(parentId, highlight);
+      respond(exchange, 201, new JSONObject().put("highlight", highlight));
+    } else {
+      respond(exchange, 405, error("method not allowed"));
+    }
+  }
+
+  private void updateReading(HttpExchange exchange, long id, Map<String, String> params) throws IOException, JSONException {
+    JSONObject reading = mItems.get("reading").get(id);
+    if(reading == null) {
+      respond(exchange, 404, error("not found"));
+      return;
+    }
+
+    // Update a copy, other threads may be serializing the current one
+    JSONObject updated = new JSONObject(reading, JSONObject.getNames(reading));
+    for(Map.Entry<String, String> param : params.entrySet()) {
+      if(param.getKey().startsWith("reading[")) {
+        updated.put(param.getKey().substring(8, param.getKey().length() - 1), param.getValue());
+      }
+    }
+    // Later than any existing item
+    updated.put("touched_at", timestamp(mNextId.incrementAndGet()));
+    mItems.get("reading").put(id, updated);
+    respond(exchange, 200, new JSONObject());
+  }
+
+  private void respondWithItem(HttpExchange exchange, String type, long id) throws IOException, JSONException {
+    JSONObject item = mItems.get(type).get(id);
+    if(item == null) {
+      respond(exchange, 404, error("not found"));
+    } else {
+      respond(exchange, 200, new JSONObject().put(type, item));
+    }
+  }
+
+  /**
+   * Builds a page of a collection, optionally only the items belonging to a
+   * parent (such as the readings of a user).
+   */
+  private JSONObject collection(String type, String parentType, long parentId, Map<String, String> params) throws JSONException {
+    String order = params.containsKey("order") && params.get("order").equals("touched_at") ? "touched_at" : "created_at";
+    int count = DEFAULT_COUNT;
+    if(params.containsKey("count")) {
+      count = Math.max(1, Math.min(MAX_COUNT, Integer.parseInt(params.get("count"))));
+    }
+    String from = params.get("from");
+    String to = params.get("to");
+
+    List<JSONObject> matching = new ArrayList<JSONObject>();
+    for(JSONObject item : mItems.get(type).values()) {
+      if(parentType != null) {
+        JSONObject parent = item.optJSONObject(parentType);
+        if(parent == null || parent.optLong("id") != parentId) {
+          continue;
+        }
+      }
+      String timestamp = item.optString(order);
+      if((from != null && timestamp.compareTo(from) < 0) || (to != null && timestamp.compareTo(to) >= 0)) {
+        continue;
+      }
+      matching.add(item);
+    }
+
+    final String orderKey = order;
+    Collections.sort(matching, new Comparator<JSONObject>() {
+      @Override
+      public int compare(JSONObject a, JSONObject b) {
+        int byTime = b.optString(orderKey).compareTo(a.optString(orderKey));
+        return byTime != 0 ? byTime : (b.optLong("id") < a.optLong("id") ? -1 : (b.optLong("id") == a.optLong("id") ? 0 : 1));
+      }
+    });
+
+    JSONArray items = new JSONArray();
+    for(JSONObject item : matching.subList(0, Math.min(count, matching.size()))) {
+      items.put(new JSONObject().put(type, item));
+    }
+    return new JSONObject().put("items", items);
+  }
+
+  /*
+  * Helpers
+  */
+
+  private void delay() {
+    long min = mMinLatencyMillis, max = mMaxLatencyMillis;
+    if(max <= 0) {
+      return;
+    }
+    long millis = min + (max > min ? (long) (mRandom.nextDouble() * (max - min)) : 0);
+    try {
+      Thread.sleep(millis);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private synchronized boolean tryAcquire() {
+    if(mRateLimit <= 0) {
+      return true;
+    }
+    long now = System.nanoTime();
+    mTokens = Math.min(mRateLimit, mTokens + (now - mRefilledAt) / 1e9 * mRateLimit);
+    mRefilledAt = now;
+    if(mTokens < 1) {
+      return false;
+    }
+    mTokens -= 1;
+    return true;
+  }
+
+  private static Map<String, String> parseParams(HttpExchange exchange) throws IOException {
+    List<NameValuePair> pairs = new ArrayList<NameValuePair>();
+    String query = exchange.getRequestURI().getRawQuery();
+    if(query != null) {
+      URLEncodedUtils.parse(pairs, new Scanner(query), UTF8);
+    }
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    InputStream in = exchange.getRequestBody();
+    byte[] buffer = new byte[4096];
+    int read;
+    while((read = in.read(buffer)) != -1) {
+      body.write(buffer, 0, read);
+    }
+    if(body.size() > 0) {
+      URLEncodedUtils.parse(pairs, new Scanner(body.toString(UTF8)), UTF8);
+    }
+
+    Map<String, String> params = new LinkedHashMap<String, String>();
+    for(NameValuePair pair : pairs) {
+      params.put(pair.getName(), pair.getValue());
+    }
+    return params;
+  }
+
+  private static void respond(HttpExchange exchange, int status, JSONObject json) throws IOException {
+    byte[] body = json.toString().getBytes(UTF8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  private static JSONObject error(String message) {
+    try {
+      return new JSONObject().put("error", message);
+    } catch(JSONException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String timestamp(long id) {
+    // One minute apart per id, counting back from 2012-06-01
+    SimpleDateFormat format = new SimpleDateFormat(ISO8601);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date(1338508800000L - (2000000 - id) * 60000L));
+  }
+}
@@ -0,0 +1,131 @@
+package com.readmill.api.test;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds with about 1.5% precision, that
+ * can be recorded into from many threads without locking.
+ * <p/>
+ * Values below 128us are counted exactly. Larger values are counted in
+ * buckets of 64 per power of two, so the relative error stays the same from
+ * milliseconds to minutes. Values above about an hour are counted as the
+ * maximum trackable value.
+ * <p/>
+ * To correct for coordinated omission, {@link #recordValue(long, long)} back
+ * fills the samples a stalled load generator did not get to take: a 1s stall
+ * with an expected interval of 10ms also records 990ms, 980ms, ... 10ms.
+ */
+public class LatencyHistogram {
+  private static final int EXACT = 128;
+  private static final int SUB_BUCKET_BITS = 6;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 31;
+  private static final long MAX_TRACKABLE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+  private final AtomicLongArray mCounts = new AtomicLongArray(EXACT + (MAX_EXPONENT - 6) * SUB_BUCKETS);
+  private final AtomicLong mTotal = new AtomicLong();
+  private final AtomicLong mSum = new AtomicLong();
+  private final AtomicLong mMax = new AtomicLong();
+
+  /**
+   * Records a latency.
+   *
+   * @param micros Latency in microseconds
+   */
+  public void recordValue(long micros) {
+    long value = Math.max(0, Math.min(MAX_TRACKABLE, micros));
+    mCounts.incrementAndGet(indexOf(value));
+    mTotal.incrementAndGet();
+    mSum.addAndGet(value);
+
+    long max;
+    while(value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+      // Retry until the max is at least this value
+    }
+  }
+
+  /**
+   * Records a latency, correcting for coordinated omission.
+   *
+   * @param micros                 Latency in microseconds
+   * @param expectedIntervalMicros Interval between requests when the server
+   *                               keeps up, or 0 for no correction
+   */
+  public void recordValue(long micros, long expectedIntervalMicros) {
+    recordValue(micros);
+    if(expectedIntervalMicros <= 0) {
+      return;
+    }
+    for(long missed = micros - expectedIntervalMicros; missed >= expectedIntervalMicros; missed -= expectedIntervalMicros) {
+      recordValue(missed);
+    }
+  }
+
+  public long getCount() {
+    return mTotal.get();
+  }
+
+  public long getMaxValue() {
+    return mMax.get();
+  }
+
+  public double getMean() {
+    long total = mTotal.get();
+    return total == 0 ? 0 : mSum.get() / (double) total;
+  }
+
+  /**
+   * Gets the value at a percentile.
+   *
+   * @param percentile Percentile, from 0 to 100
+   * @return The highest value that is equivalent (within the precision of
+   *         the histogram) to the value at the percentile, in microseconds
+   */
+  public long getValueAtPercentile(double percentile) {
+    long total = mTotal.get();
+    if(total == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * total));
+    long seen = 0;
+    for(int i = 0; i < mCounts.length(); i++) {
+      seen += mCounts.get(i);
+      if(seen >= target) {
+        return Math.min(highestEquivalentValue(i), getMaxValue());
+      }
+    }
+    return getMaxValue();
+  }
+
+  /**
+   * Clears all recorded values. Values recorded concurrently may be lost.
+   */
+  public void reset() {
+    for(int i = 0; i < mCounts.length(); i++) {
+      mCounts.set(i, 0);
+    }
+    mTotal.set(0);
+    mSum.set(0);
+    mMax.set(0);
+  }
+
+  static int indexOf(long value) {
+    if(value < EXACT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return EXACT + (exponent - 7) * SUB_BUCKETS + subBucket;
+  }
+
+  static long highestEquivalentValue(int index) {
+    if(index < EXACT) {
+      return index;
+    }
+    int exponent = (index - EXACT) / SUB_BUCKETS + 7;
+    int subBucket = (index - EXACT) % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return (SUB_BUCKETS + subBucket) * width + width - 1;
+  }
+}
@@ -0,0 +1,413 @@
+package com.readmill.api.test;
+
+import com.readmill.api.ReadmillWrapper;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives sustained concurrent load through a ReadmillWrapper and reports
+ * throughput, latency percentiles, connection pool and GC statistics.
+ * <p/>
+ * Two kinds of workloads are supported:
+ * <ul>
+ * <li>Open loop: operations are started at a fixed rate, whether or not
+ * earlier ones have finished, like independent users would. Latency is
+ * measured from the time an operation should have started, so time spent
+ * waiting for a free worker counts.</li>
+ * <li>Closed loop: a fixed number of threads each run operations back to
+ * back. Slow responses hold back the requests that would have followed
+ * them (coordinated omission); with an expected interval set these missed
+ * samples are back filled, see {@link LatencyHistogram#recordValue(long, long)}.</li>
+ * </ul>
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  LoadGenerator load = new LoadGenerator(wrapper, new LoadGenerator.Operation() {
+ *    public void run(ReadmillWrapper wrapper) throws Exception {
+ *      wrapper.get("/books").count(20).fetchItemsOrThrow("book");
+ *    }
+ *  });
+ *  load.setWarmUp(5, TimeUnit.SECONDS);
+ *  System.out.println(load.runOpenLoop(500, 64, 60, TimeUnit.SECONDS));
+ * </pre>
+ * </code>
+ */
+public class LoadGenerator {
+  private static final long POOL_SAMPLE_MILLIS = 50;
+
+  private final ReadmillWrapper mWrapper;
+  private final Operation mOperation;
+  private long mWarmUpNanos;
+  private long mThinkTimeNanos;
+  private long mExpectedIntervalNanos;
+
+  /**
+   * A single operation of a workload, such as fetching a page of readings.
+   */
+  public interface Operation {
+    /**
+     * Runs the operation once. Throwing counts the operation as failed.
+     *
+     * @param wrapper The wrapper to make requests with
+     * @throws Exception if the operation failed
+     */
+    public void run(ReadmillWrapper wrapper) throws Exception;
+  }
+
+  /**
+   * Results of a load test.
+   */
+  public static class Report {
+    private final String mWorkload;
+    private final LatencyHistogram mLatencies;
+    private final long mOperations;
+    private final long mErrors;
+    private final long mElapsedNanos;
+    private final long mGcCount;
+    private final long mGcMillis;
+    private final int mPeakPooledConnections;
+
+    Report(String workload, LatencyHistogram latencies, long operations, long errors, long elapsedNanos,
+           long gcCount, long gcMillis, int peakPooledConnections) {
+      mWorkload = workload;
+      mLatencies = latencies;
+      mOperations = operations;
+      mErrors = errors;
+      mElapsedNanos = elapsedNanos;
+      mGcCount = gcCount;
+      mGcMillis = gcMillis;
+      mPeakPooledConnections = peakPooledConnections;
+    }
+
+    /**
+     * Gets the recorded latencies, including back filled samples.
+     *
+     * @return The latency histogram, in microseconds
+     */
+    public LatencyHistogram getLatencies() {
+      return mLatencies;
+    }
+
+    public long getOperations() {
+      return mOperations;
+    }
+
+    public long getErrors() {
+      return mErrors;
+    }
+
+    /**
+     * Gets the number of completed operations per second, after warm-up.
+     *
+     * @return The throughput
+     */
+    public double getThroughput() {
+      return mElapsedNanos == 0 ? 0 : mOperations / (mElapsedNanos / 1e9);
+    }
+
+    public long getGcCount() {
+      return mGcCount;
+    }
+
+    public long getGcMillis() {
+      return mGcMillis;
+    }
+
+    /**
+     * Gets the highest number of connections seen in the pool, or -1 if the
+     * http client has no pool to inspect.
+     *
+     * @return The number of pooled connections
+     */
+    public int getPeakPooledConnections() {
+      return mPeakPooledConnections;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%s: %d ops, %d errors in %.1fs (%.1f ops/s)%n" +
+              "  latency ms: p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f mean=%.2f%n" +
+              "  pool: peak %d connections, gc: %d collections, %dms",
+          mWorkload, mOperations, mErrors, mElapsedNanos / 1e9, getThroughput(),
+          mLatencies.getValueAtPercentile(50) / 1000.0,
+          mLatencies.getValueAtPercentile(90) / 1000.0,
+          mLatencies.getValueAtPercentile(99) / 1000.0,
+          mLatencies.getValueAtPercentile(99.9) / 1000.0,
+          mLatencies.getMaxValue() / 1000.0,
+          mLatencies.getMean() / 1000.0,
+          mPeakPooledConnections, mGcCount, mGcMillis);
+    }
+  }
+
+  /**
+   * Creates a load generator.
+   *
+   * @param wrapper   The wrapper under test
+   * @param operation The operation to run repeatedly
+   */
+  public LoadGenerator(ReadmillWrapper wrapper, Operation operation) {
+    mWrapper = wrapper;
+    mOperation = operation;
+  }
+
+  /**
+   * Sets a period at the start of each run whose operations are not
+   * recorded, to let connections, caches and the JIT warm up.
+   *
+   * @param duration Warm-up duration
+   * @param unit     Unit of the duration
+   */
+  public void setWarmUp(long duration, TimeUnit unit) {
+    mWarmUpNanos = unit.toNanos(duration);
+  }
+
+  /**
+   * Sets the pause between operations of a closed loop thread.
+   *
+   * @param duration Think time
+   * @param unit     Unit of the duration
+   */
+  public void setThinkTime(long duration, TimeUnit unit) {
+    mThinkTimeNanos = unit.toNanos(duration);
+  }
+
+  /**
+   * Sets the interval at which each closed loop thread would start
+   * operations if the server kept up. Latencies above it are corrected for
+   * coordinated omission.
+   *
+   * @param interval Expected interval, or 0 for no correction
+   * @param unit     Unit of the interval
+   */
+  public void setExpectedInterval(long interval, TimeUnit unit) {
+    mExpectedIntervalNanos = unit.toNanos(interval);
+  }
+
+  /**
+   * Runs an open loop workload, starting operations at a fixed rate.
+   *
+   * @param ratePerSecond  Operations to start per second
+   * @param maxConcurrency Max number of operations running at once, later
+   *                       ones wait (and their latency includes the wait)
+   * @param duration       Duration of the run, including warm-up
+   * @param unit           Unit of the duration
+   * @return The report
+   * @throws InterruptedException if interrupted while running
+   */
+  public Report runOpenLoop(double ratePerSecond, int maxConcurrency, long duration, TimeUnit unit) throws InterruptedException {
+    final Run run = new Run();
+    ExecutorService workers = Executors.newFixedThreadPool(maxConcurrency, daemonThreads("readmill-load"));
+    long periodNanos = (long) (1e9 / ratePerSecond);
+    long end = run.start + unit.toNanos(duration);
+
+    try {
+      for(long intended = run.start; intended < end; intended += periodNanos) {
+        long wait;
+        while((wait = intended - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(wait);
+          if(Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+        }
+        final long intendedStart = intended;
+        workers.execute(new Runnable() {
+          @Override
+          public void run() {
+            run.runOnce(intendedStart, 0);
+          }
+        });
+      }
+      workers.shutdown();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } finally {
+      workers.shutdownNow();
+    }
+    return run.finish(String.format("open loop at %.0f/s", ratePerSecond));
+  }
+
+  /**
+   * Runs a closed loop workload, with threads running operations back to
+   * back (with the think time in between).
+   *
+   * @param threads  Number of threads
+   * @param duration Duration of the run, including warm-up
+   * @param unit     Unit of the duration
+   * @return The report
+   * @throws InterruptedException if interrupted while running
+   */
+  public Report runClosedLoop(int threads, long duration, TimeUnit unit) throws InterruptedException {
+    final Run run = new Run();
+    final long end = run.start + unit.toNanos(duration);
+    ExecutorService workers = Executors.newFixedThreadPool(threads, daemonThreads("readmill-load"));
+
+    try {
+      for(int i = 0; i < threads; i++) {
+        workers.execute(new Runnable() {
+          @Override
+          public void run() {
+            long intended = System.nanoTime();
+            while(intended < end && !Thread.currentThread().isInterrupted()) {
+              run.runOnce(intended, mExpectedIntervalNanos);
+              if(mThinkTimeNanos > 0) {
+                LockSupport.parkNanos(mThinkTimeNanos);
+              }
+              intended = System.nanoTime();
+            }
+          }
+        });
+      }
+      workers.shutdown();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } finally {
+      workers.shutdownNow();
+    }
+    return run.finish(String.format("closed loop with %d threads", threads));
+  }
+
+  /**
+   * State of a single run.
+   */
+  private class Run {
+    final long start = System.nanoTime();
+    final long recordFrom = start + mWarmUpNanos;
+    final LatencyHistogram latencies = new LatencyHistogram();
+    final AtomicLong operations = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong lastCompletion = new AtomicLong(recordFrom);
+    final AtomicInteger peakPooled = new AtomicInteger(-1);
+    final long gcCountBefore = gcCount();
+    final long gcMillisBefore = gcMillis();
+    final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(daemonThreads("readmill-load-sampler"));
+
+    Run() {
+      final ClientConnectionManager manager = mWrapper.getHttpClient().getConnectionManager();
+      if(manager instanceof ThreadSafeClientConnManager) {
+        peakPooled.set(0);
+        sampler.scheduleAtFixedRate(new Runnable() {
+          @Override
+          public void run() {
+            int pooled = ((ThreadSafeClientConnManager) manager).getConnectionsInPool();
+            int peak;
+            while(pooled > (peak = peakPooled.get()) && !peakPooled.compareAndSet(peak, pooled)) {
+              // Retry until the peak is at least this value
+            }
+          }
+        }, 0, POOL_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    void runOnce(long intendedStart, long expectedIntervalNanos) {
+      boolean failed = false;
+      try {
+        mOperation.run(mWrapper);
+      } catch(Exception e) {
+        failed = true;
+      }
+      long now = System.nanoTime();
+      if(intendedStart < recordFrom) {
+        return;
+      }
+      latencies.recordValue((now - intendedStart) / 1000, expectedIntervalNanos / 1000);
+      operations.incrementAndGet();
+      if(failed) {
+        errors.incrementAndGet();
+      }
+      long last;
+      while(now > (last = lastCompletion.get()) && !lastCompletion.compareAndSet(last, now)) {
+        // Retry until the last completion is at least now
+      }
+    }
+
+    Report finish(String workload) {
+      sampler.shutdownNow();
+      return new Report(workload, latencies, operations.get(), errors.get(), lastCompletion.get() - recordFrom,
+          gcCount() - gcCountBefore, gcMillis() - gcMillisBefore, peakPooled.get());
+    }
+  }
+
+  private static long gcCount() {
+    long count = 0;
+    for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long gcMillis() {
+    long millis = 0;
+    for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    return millis;
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    return new ThreadFactory() {
+      private final AtomicInteger mCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name + "-" + mCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * Runs open and closed loop workloads against a FakeReadmillServer.
+   * <p/>
+   * Usage: LoadGenerator [rate per second] [threads] [seconds]
+   *
+   * @param args Optional rate, thread count and duration
+   * @throws Exception if the server could not be started
+   */
+  public static void main(String[] args) throws Exception {
+    double rate = args.length > 0 ? Double.parseDouble(args[0]) : 500;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+    // Read by the JDK server when the first server is created, see FakeReadmillServer
+    if(System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+    FakeReadmillServer server = new FakeReadmillServer();
+    server.generateFixtures(100, 200, 20, 5);
+    server.setLatency(1, 10, TimeUnit.MILLISECONDS);
+    server.start();
+
+    ReadmillWrapper wrapper = new ReadmillWrapper("load-client", "load-secret", server.getEnvironment());
+    wrapper.setMaxConnections(threads, threads * 2);
+    final Random random = new Random(42);
+
+    LoadGenerator load = new LoadGenerator(wrapper, new Operation() {
+      @Override
+      public void run(ReadmillWrapper wrapper) throws Exception {
+        long user;
+        synchronized(random) {
+          user = random.nextInt(100) + 1;
+        }
+        wrapper.get(String.format("/users/%d/readings", user)).order("touched_at").count(20).fetchItemsOrThrow("reading");
+      }
+    });
+    load.setWarmUp(seconds / 4, TimeUnit.SECONDS);
+
+    try {
+      System.out.println(load.runOpenLoop(rate, threads * 4, seconds, TimeUnit.SECONDS));
+      load.setExpectedInterval((long) (threads * 1e6 / rate), TimeUnit.MICROSECONDS);
+      System.out.println(load.runClosedLoop(threads, seconds, TimeUnit.SECONDS));
+    } finally {
+      wrapper.close();
+      server.close();
+    }
+  }
+}
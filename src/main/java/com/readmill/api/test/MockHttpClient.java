@@ -4,6 +4,7 @@ import org.apache.http.*;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.entity.StringEntity;
@@ -11,19 +12,240 @@ import org.apache.http.impl.EnglishReasonPhraseCatalog;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.HttpContext;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 /**
  * Mockable HttpClient
+ * <p/>
+ * By default every request is answered with the same canned response, see
+ * {@link #respondWithText(String)}. For more realistic tests, routes can be
+ * programmed to answer requests matching a method and path pattern with a
+ * sequence of responses and faults, after a random latency:
+ * <code>
+ * <pre>
+ *  client.when("GET", "/v2/books/\\d+")
+ *    .withLatency(MockHttpClient.Latency.uniform(5, 50, TimeUnit.MILLISECONDS))
+ *    .thenRespond(503, "")
+ *    .thenRespond(200, "{ \"book\": { \"id\": 1 } }");
+ * </pre>
+ * </code>
+ * Thread safe. Every request received is logged, see {@link #getRequests()}.
  */
 public class MockHttpClient implements HttpClient {
-  private HttpResponse mCannedResponse = createMockResponse(200);
-  private HttpRequest mLastRequest;
-  private boolean mRaiseIOException = false;
+  private final Random mRandom = new Random();
+  private final List<Route> mRoutes = new CopyOnWriteArrayList<Route>();
+  private final ConcurrentLinkedQueue<HttpRequest> mRequests = new ConcurrentLinkedQueue<HttpRequest>();
+
+  private volatile Outcome mCannedOutcome = Outcome.response(200, null);
+  private volatile HttpRequest mLastRequest;
+
+  /**
+   * Latency distribution of a route.
+   */
+  public static abstract class Latency {
+    /**
+     * Picks the latency of a request.
+     *
+     * @param random Source of randomness
+     * @return Latency in nanoseconds
+     */
+    public abstract long nextNanos(Random random);
+
+    public static Latency fixed(long latency, TimeUnit unit) {
+      final long nanos = unit.toNanos(latency);
+      return new Latency() {
+        @Override
+        public long nextNanos(Random random) {
+          return nanos;
+        }
+      };
+    }
+
+    public static Latency uniform(long min, long max, TimeUnit unit) {
+      final long minNanos = unit.toNanos(min);
+      final long spread = unit.toNanos(max) - minNanos;
+      return new Latency() {
+        @Override
+        public long nextNanos(Random random) {
+          return minNanos + (long) (random.nextDouble() * spread);
+        }
+      };
+    }
+
+    /**
+     * A long tailed distribution: exponentially distributed around a mean,
+     * on top of a minimum and capped at a maximum.
+     */
+    public static Latency exponential(long min, long mean, long max, TimeUnit unit) {
+      final long minNanos = unit.toNanos(min);
+      final double meanNanos = unit.toNanos(mean) - minNanos;
+      final long maxNanos = unit.toNanos(max);
+      return new Latency() {
+        @Override
+        public long nextNanos(Random random) {
+          return Math.min(maxNanos, minNanos + (long) (-Math.log(1 - random.nextDouble()) * meanNanos));
+        }
+      };
+    }
+  }
+
+  /**
+   * What a request gets: a response, or an exception.
+   */
+  private static class Outcome {
+    final int statusCode;
+    final String responseText;
+    final IOException fault;
+
+    private Outcome(int statusCode, String responseText, IOException fault) {
+      this.statusCode = statusCode;
+      this.responseText = responseText;
+      this.fault = fault;
+    }
+
+    static Outcome response(int statusCode, String responseText) {
+      return new Outcome(statusCode, responseText, null);
+    }
+
+    static Outcome fault(IOException fault) {
+      return new Outcome(0, null, fault);
+    }
+
+    HttpResponse produce() throws IOException {
+      if(fault != null) {
+        // Fresh exception, so the stack trace points at the request
+        IOException thrown = fault instanceof SocketTimeoutException ? new SocketTimeoutException(fault.getMessage())
+            : fault instanceof SocketException ? new SocketException(fault.getMessage())
+            : new IOException(fault.getMessage());
+        throw thrown;
+      }
+      return responseText == null ? createMockResponse(statusCode) : createMockResponse(statusCode, responseText);
+    }
+  }
+
+  /**
+   * Requests matching a method and path pattern, and how to answer them.
+   */
+  public class Route {
+    private final String mMethod;
+    private final Pattern mPath;
+    private final List<Outcome> mOutcomes = new CopyOnWriteArrayList<Outcome>();
+    private final AtomicInteger mHits = new AtomicInteger();
+    private volatile Latency mLatency;
+    private volatile double mTimeoutRate, mResetRate, mServerErrorRate;
+
+    Route(String method, String pathPattern) {
+      mMethod = method;
+      mPath = Pattern.compile(pathPattern);
+    }
+
+    /**
+     * Delays responses (and faults) of this route.
+     *
+     * @param latency The latency distribution
+     * @return this route
+     */
+    public Route withLatency(Latency latency) {
+      mLatency = latency;
+      return this;
+    }
+
+    /**
+     * Adds random faults on top of the programmed responses.
+     *
+     * @param timeoutRate     Fraction of requests that time out
+     * @param resetRate       Fraction of requests whose connection is reset
+     * @param serverErrorRate Fraction of requests answered with a 500
+     * @return this route
+     */
+    public Route withFaults(double timeoutRate, double resetRate, double serverErrorRate) {
+      mTimeoutRate = timeoutRate;
+      mResetRate = resetRate;
+      mServerErrorRate = serverErrorRate;
+      return this;
+    }
+
+    /**
+     * Appends a response to the sequence of this route. Requests get the
+     * responses in order, and the last one once the sequence is used up.
+     *
+     * @param statusCode   Http status code
+     * @param responseText Response body
+     * @return this route
+     */
+    public Route thenRespond(int statusCode, String responseText) {
+      mOutcomes.add(Outcome.response(statusCode, responseText));
+      return this;
+    }
+
+    /**
+     * Appends a read timeout to the sequence of this route.
+     *
+     * @return this route
+     */
+    public Route thenTimeout() {
+      mOutcomes.add(Outcome.fault(new SocketTimeoutException("Read timed out")));
+      return this;
+    }
+
+    /**
+     * Appends a connection reset to the sequence of this route.
+     *
+     * @return this route
+     */
+    public Route thenReset() {
+      mOutcomes.add(Outcome.fault(new SocketException("Connection reset")));
+      return this;
+    }
+
+    /**
+     * Gets the number of requests this route has answered.
+     *
+     * @return The number of matching requests
+     */
+    public int getHitCount() {
+      return mHits.get();
+    }
+
+    boolean matches(String method, String path) {
+      return (mMethod.equals("*") || mMethod.equalsIgnoreCase(method)) && mPath.matcher(path).matches();
+    }
+
+    Outcome next() {
+      int hit = mHits.getAndIncrement();
+      double dice;
+      synchronized(mRandom) {
+        dice = mRandom.nextDouble();
+      }
+      if(dice < mTimeoutRate) {
+        return Outcome.fault(new SocketTimeoutException("Read timed out"));
+      } else if(dice < mTimeoutRate + mResetRate) {
+        return Outcome.fault(new SocketException("Connection reset"));
+      } else if(dice < mTimeoutRate + mResetRate + mServerErrorRate) {
+        return Outcome.response(500, "{ \"error\": \"injected\" }");
+      }
+
+      if(mOutcomes.isEmpty()) {
+        return Outcome.response(200, null);
+      }
+      return mOutcomes.get(Math.min(hit, mOutcomes.size() - 1));
+    }
+  }
 
   @Override
   public HttpParams getParams() {
@@ -37,48 +259,66 @@ public class MockHttpClient implements HttpClient {
 
   @Override
   public HttpResponse execute(HttpUriRequest httpUriRequest) throws IOException, ClientProtocolException {
-    mLastRequest = httpUriRequest;
-    return mockedResponse();
+    return mockedResponse(httpUriRequest);
   }
 
   @Override
   public HttpResponse execute(HttpUriRequest httpUriRequest, HttpContext httpContext) throws IOException, ClientProtocolException {
-    mLastRequest = httpUriRequest;
-    return mockedResponse();
+    return mockedResponse(httpUriRequest);
   }
 
   @Override
   public HttpResponse execute(HttpHost httpHost, HttpRequest httpRequest) throws IOException, ClientProtocolException {
-    mLastRequest = httpRequest;
-    return mockedResponse();
+    return mockedResponse(httpRequest);
   }
 
   @Override
   public HttpResponse execute(HttpHost httpHost, HttpRequest httpRequest, HttpContext httpContext) throws IOException, ClientProtocolException {
-    mLastRequest = httpRequest;
-    return mockedResponse();
+    return mockedResponse(httpRequest);
   }
 
-  // Generic execute methods not currently supported
-
   @Override
   public <T> T execute(HttpUriRequest httpUriRequest, ResponseHandler<? extends T> responseHandler) throws IOException, ClientProtocolException {
-    throw new NotImplementedException();
+    return responseHandler.handleResponse(mockedResponse(httpUriRequest));
   }
 
   @Override
   public <T> T execute(HttpUriRequest httpUriRequest, ResponseHandler<? extends T> responseHandler, HttpContext httpContext) throws IOException, ClientProtocolException {
-    throw new NotImplementedException();
+    return responseHandler.handleResponse(mockedResponse(httpUriRequest));
   }
 
   @Override
   public <T> T execute(HttpHost httpHost, HttpRequest httpRequest, ResponseHandler<? extends T> responseHandler) throws IOException, ClientProtocolException {
-    throw new NotImplementedException();
+    return responseHandler.handleResponse(mockedResponse(httpRequest));
   }
 
   @Override
   public <T> T execute(HttpHost httpHost, HttpRequest httpRequest, ResponseHandler<? extends T> responseHandler, HttpContext httpContext) throws IOException, ClientProtocolException {
-    throw new NotImplementedException();
+    return responseHandler.handleResponse(mockedResponse(httpRequest));
+  }
+
+  /**
+   * Programs a route. Routes are matched in the order they were added, and
+   * requests that match no route get the canned response.
+   *
+   * @param method      Http method, or "*" for any
+   * @param pathPattern Regular expression matching the whole request path
+   *                    (without query string), e.g. "/v2/readings/\\d+"
+   * @return The route, to add responses to
+   */
+  public Route when(String method, String pathPattern) {
+    Route route = new Route(method, pathPattern);
+    mRoutes.add(route);
+    return route;
+  }
+
+  /**
+   * Removes all routes and forgets all logged requests.
+   */
+  public void reset() {
+    mRoutes.clear();
+    mRequests.clear();
+    mLastRequest = null;
   }
 
   /**
@@ -96,10 +336,7 @@ public class MockHttpClient implements HttpClient {
    * @param responseText text body of the response
    */
   public void respondWithStatusAndText(int httpStatus, String responseText) {
-    HttpResponse resp = createMockResponse(httpStatus);
-    resp.setEntity(getStringEntity(responseText));
-    mCannedResponse = resp;
-    mRaiseIOException = false;
+    mCannedOutcome = Outcome.response(httpStatus, responseText);
   }
 
   /**
@@ -111,12 +348,21 @@ public class MockHttpClient implements HttpClient {
     return mLastRequest;
   }
 
+  /**
+   * Gets all requests received so far, in the order they arrived.
+   *
+   * @return A snapshot of the request log
+   */
+  public List<HttpRequest> getRequests() {
+    return new ArrayList<HttpRequest>(mRequests);
+  }
+
   /**
    * Raises an IOException when a request is made
    * TODO: Extend this to accept any Exception class
    */
   public void respondWithIOException() {
-    mRaiseIOException = true;
+    mCannedOutcome = Outcome.fault(new IOException());
   }
 
   /**
@@ -144,20 +390,66 @@ public class MockHttpClient implements HttpClient {
   }
 
   /**
-   * Creates a simple StringEntity with the given text.
+   * Creates a simple UTF-8 StringEntity with the given text.
    */
   private static HttpEntity getStringEntity(String responseText) {
     try {
-      return new StringEntity(responseText);
+      return new StringEntity(responseText, "UTF-8");
     } catch(UnsupportedEncodingException e) {
       throw new RuntimeException("Failed to create a http string response entity", e);
     }
   }
 
-  private HttpResponse mockedResponse() throws IOException {
-    if(mRaiseIOException) {
-      throw new IOException();
+  private HttpResponse mockedResponse(HttpRequest request) throws IOException {
+    mRequests.add(request);
+    mLastRequest = request;
+
+    String path = pathOf(request);
+    for(Route route : mRoutes) {
+      if(route.matches(request.getRequestLine().getMethod(), path)) {
+        Outcome outcome = route.next();
+        Latency latency = route.mLatency;
+        if(latency != null) {
+          long nanos;
+          synchronized(mRandom) {
+            nanos = latency.nextNanos(mRandom);
+          }
+          sleep(request, nanos);
+        }
+        return outcome.produce();
+      }
+    }
+    return mCannedOutcome.produce();
+  }
+
+  /**
+   * Waits out a latency, giving up early like a real connection would when
+   * the request is aborted or the thread interrupted.
+   */
+  private static void sleep(HttpRequest request, long nanos) throws IOException {
+    long deadline = System.nanoTime() + nanos;
+    long remaining;
+    while((remaining = deadline - System.nanoTime()) > 0) {
+      if(request instanceof HttpRequestBase && ((HttpRequestBase) request).isAborted()) {
+        throw new InterruptedIOException("request aborted");
+      }
+      try {
+        TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(5)));
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted");
+      }
+    }
+  }
+
+  private static String pathOf(HttpRequest request) {
+    String uri = request.getRequestLine().getUri();
+    try {
+      String path = URI.create(uri).getPath();
+      return path == null ? uri : path;
+    } catch(IllegalArgumentException e) {
+      int query = uri.indexOf('?');
+      return query < 0 ? uri : uri.substring(0, query);
     }
-    return mCannedResponse;
   }
 }
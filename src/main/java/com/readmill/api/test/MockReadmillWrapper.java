@@ -5,11 +5,13 @@ import com.readmill.api.ReadmillWrapper;
 import org.apache.http.HttpRequest;
 import org.apache.http.client.HttpClient;
 
+import java.util.List;
+
 /**
  * Mockable wrapper for use in tests
  */
 public class MockReadmillWrapper extends ReadmillWrapper {
-  private MockHttpClient mMockHttpClient = new MockHttpClient();
+  private final MockHttpClient mMockHttpClient = new MockHttpClient();
 
   /**
    * Empty constructor provided for ease of use.
@@ -58,4 +60,27 @@ public class MockReadmillWrapper extends ReadmillWrapper {
   public HttpRequest getLastRequest() {
     return mMockHttpClient.getLastRequest();
   }
+
+  /**
+   * Access of all http requests made, in order
+   */
+  public List<HttpRequest> getRequests() {
+    return mMockHttpClient.getRequests();
+  }
+
+  /**
+   * Program the responses to requests matching a method and path pattern.
+   *
+   * @see MockHttpClient#when(String, String)
+   */
+  public MockHttpClient.Route when(String method, String pathPattern) {
+    return mMockHttpClient.when(method, pathPattern);
+  }
+
+  /**
+   * Access of the mocked http client
+   */
+  public MockHttpClient getMockHttpClient() {
+    return mMockHttpClient;
+  }
 }
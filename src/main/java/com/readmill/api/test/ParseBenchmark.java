@@ -0,0 +1,207 @@
+package com.readmill.api.test;
+
+import com.readmill.api.JsonCodec;
+import com.readmill.api.LazyJsonCodec;
+import com.readmill.api.OrgJsonCodec;
+import com.readmill.api.StreamingJsonCodec;
+import com.readmill.api.StringPool;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures how much heap a parsed collection holds on to, and how long it
+ * takes to parse, for each codec and string pool setting.
+ * <p/>
+ * Parses a collection of readings with their user and book embedded, like
+ * /users/1/readings returns them. The collection is generated with a fixed
+ * seed, so runs compare the same bytes. A body saved from the real API can
+ * be measured instead by passing its file.
+ * <p/>
+ * Retained heap is the heap in use after a full GC while the parsed object
+ * is reachable, minus the heap in use before parsing. Run with a fixed heap
+ * so GCs are comparable, e.g. <code>java -Xms512m -Xmx512m</code>.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  java -cp ... com.readmill.api.test.ParseBenchmark 10000
+ *  java -cp ... com.readmill.api.test.ParseBenchmark readings.json
+ * </pre>
+ * </code>
+ */
+public class ParseBenchmark {
+  private static final String[] STATES = {"interesting", "reading", "finished", "abandoned"};
+
+  /**
+   * Generates a collection of readings.
+   *
+   * @param count Number of readings
+   * @param seed  Seed of the generated values
+   * @return The collection as UTF-8 encoded JSON
+   */
+  public static byte[] readingsFixture(int count, long seed) {
+    Random random = new Random(seed);
+    StringBuilder json = new StringBuilder(count * 512);
+    json.append("{\"items\": [");
+    for(int i = 0; i < count; i++) {
+      long id = 100000 + i;
+      int user = 1 + random.nextInt(200);
+      int book = 1 + random.nextInt(500);
+      String state = STATES[random.nextInt(STATES.length)];
+      String touchedAt = timestamp(random);
+
+      if(i > 0) {
+        json.append(',');
+      }
+      json.append("{\"reading\": {")
+          .append("\"id\": ").append(id)
+          .append(", \"state\": ").append(JSONObject.quote(state))
+          .append(", \"private\": ").append(random.nextInt(10) == 0)
+          .append(", \"recommended\": ").append(random.nextBoolean())
+          .append(", \"progress\": ").append(random.nextInt(101) / 100.0)
+          .append(", \"estimated_time_left\": ").append(random.nextInt(40000))
+          .append(", \"duration\": ").append(random.nextInt(200000))
+          .append(", \"highlights_count\": ").append(random.nextInt(30))
+          .append(", \"comments_count\": ").append(random.nextInt(10))
+          .append(", \"created_at\": ").append(JSONObject.quote(timestamp(random)))
+          .append(", \"touched_at\": ").append(JSONObject.quote(touchedAt))
+          .append(", \"started_at\": ").append(JSONObject.quote(touchedAt))
+          .append(", \"closing_remark\": ")
+          .append(state.equals("finished")
+              ? JSONObject.quote("Finished reading " + id + ", a lot better than the first chapters let on.")
+              : "null")
+          .append(", \"permalink_url\": ").append(JSONObject.quote("https://readmill.com/user" + user + "/reads/" + id))
+          .append(", \"user\": {")
+          .append("\"id\": ").append(user)
+          .append(", \"username\": ").append(JSONObject.quote("user" + user))
+          .append(", \"fullname\": ").append(JSONObject.quote("User Number " + user))
+          .append(", \"avatar_url\": ").append(JSONObject.quote("https://readmill.com/avatars/" + user + "/medium.png"))
+          .append(", \"followers_count\": ").append(user * 7 % 300)
+          .append(", \"followings_count\": ").append(user * 11 % 200)
+          .append("}")
+          .append(", \"book\": {")
+          .append("\"id\": ").append(book)
+          .append(", \"title\": ").append(JSONObject.quote("Book " + book))
+          .append(", \"author\": ").append(JSONObject.quote("Author " + (book % 97 + 1)))
+          .append(", \"language\": ").append(JSONObject.quote(book % 5 == 0 ? "sv" : "en"))
+          .append(", \"cover_url\": ").append(JSONObject.quote("https://readmill.com/covers/" + book + ".png"))
+          .append(", \"permalink\": ").append(JSONObject.quote("book-" + book))
+          .append("}")
+          .append("}}");
+    }
+    json.append("]}");
+    try {
+      return json.toString().getBytes("UTF-8");
+    } catch(IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Measures each codec on a body.
+   *
+   * @param data       The body
+   * @param iterations Timed parses per codec
+   * @throws Exception if parsing failed
+   */
+  public static void run(byte[] data, int iterations) throws Exception {
+    Map<String, JsonCodec> codecs = new LinkedHashMap<String, JsonCodec>();
+    codecs.put("org.json", new OrgJsonCodec());
+    codecs.put("streaming, no pools", new StreamingJsonCodec(null, null));
+    codecs.put("streaming, keys pooled", new StreamingJsonCodec(new StringPool(2048, 64), null));
+    codecs.put("streaming, keys+values pooled",
+        new StreamingJsonCodec(new StringPool(2048, 64), new StringPool(8192, 32)));
+    codecs.put("lazy, keys+values pooled", new LazyJsonCodec(new StringPool(2048, 64), new StringPool(8192, 32)));
+
+    System.out.println(String.format("%d KB of JSON", data.length / 1024));
+    System.out.println(String.format("%-32s %12s %12s", "codec", "retained", "parse"));
+    for(Map.Entry<String, JsonCodec> codec : codecs.entrySet()) {
+      long parseNanos = time(codec.getValue(), data, iterations);
+      long retained = retained(codec.getValue(), data);
+      System.out.println(String.format("%-32s %9.1f MB %9.1f ms",
+          codec.getKey(), retained / (1024.0 * 1024.0), parseNanos / 1e6));
+    }
+  }
+
+  private static long time(JsonCodec codec, byte[] data, int iterations) throws Exception {
+    // Warm up
+    for(int i = 0; i < iterations; i++) {
+      touch(codec.readObject(new ByteArrayInputStream(data)));
+    }
+    long start = System.nanoTime();
+    for(int i = 0; i < iterations; i++) {
+      touch(codec.readObject(new ByteArrayInputStream(data)));
+    }
+    return (System.nanoTime() - start) / iterations;
+  }
+
+  private static long retained(JsonCodec codec, byte[] data) throws Exception {
+    long before = usedHeap();
+    JSONObject parsed = codec.readObject(new ByteArrayInputStream(data));
+    long after = usedHeap();
+    touch(parsed);
+    return after - before;
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for(int i = 0; i < 4; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  private static void touch(JSONObject parsed) throws Exception {
+    if(parsed.getJSONArray("items").length() < 0) {
+      throw new IllegalStateException();
+    }
+  }
+
+  private static String timestamp(Random random) {
+    return String.format("2012-%02d-%02dT%02d:%02d:%02dZ", 1 + random.nextInt(12), 1 + random.nextInt(28),
+        random.nextInt(24), random.nextInt(60), random.nextInt(60));
+  }
+
+  private static byte[] readFile(String path) throws IOException {
+    InputStream in = new FileInputStream(path);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args Number of generated readings (10000 by default) or a file
+   *             with a collection to parse, and the number of timed parses
+   *             per codec (10 by default)
+   * @throws Exception if parsing failed
+   */
+  public static void main(String[] args) throws Exception {
+    byte[] data;
+    if(args.length > 0 && !args[0].matches("\\d+")) {
+      data = readFile(args[0]);
+    } else {
+      data = readingsFixture(args.length > 0 ? Integer.parseInt(args[0]) : 10000, 42);
+    }
+    run(data, args.length > 1 ? Integer.parseInt(args[1]) : 10);
+  }
+}
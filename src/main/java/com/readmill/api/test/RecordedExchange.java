@@ -0,0 +1,179 @@
+package com.readmill.api.test;
+
+import org.apache.http.*;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.URI;
+import java.util.regex.Pattern;
+
+/**
+ * A recorded request and the response it got, as stored by
+ * {@link RecordingHttpClient} and served by {@link ReplayHttpClient}.
+ * <p/>
+ * Requests are identified by a key made of the method, the path and query,
+ * and the body of requests that have one. Credentials (access token, client
+ * id and secret) are left out of the key, so traffic recorded with one user
+ * or client can be replayed with another.
+ */
+public class RecordedExchange {
+  static final int MAGIC = 0x524d5452; // "RMTR"
+  static final int VERSION = 1;
+
+  private static final Pattern CREDENTIALS = Pattern.compile("(^|&)(access_token|client_id|client_secret)=[^&]*");
+
+  private final String mKey;
+  private final int mStatusCode;
+  private final String mReasonPhrase;
+  private final Header[] mHeaders;
+  private final byte[] mBody;
+  private final long mLatencyMicros;
+
+  public RecordedExchange(String key, int statusCode, String reasonPhrase, Header[] headers, byte[] body, long latencyMicros) {
+    mKey = key;
+    mStatusCode = statusCode;
+    mReasonPhrase = reasonPhrase;
+    mHeaders = headers;
+    mBody = body;
+    mLatencyMicros = latencyMicros;
+  }
+
+  public String getKey() {
+    return mKey;
+  }
+
+  public int getStatusCode() {
+    return mStatusCode;
+  }
+
+  public byte[] getBody() {
+    return mBody;
+  }
+
+  /**
+   * Gets the time it took to get the response when it was recorded.
+   *
+   * @return Latency in microseconds
+   */
+  public long getLatencyMicros() {
+    return mLatencyMicros;
+  }
+
+  /**
+   * Creates a new response with the recorded status, headers and body.
+   *
+   * @return The response
+   */
+  public HttpResponse toResponse() {
+    BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, mStatusCode, mReasonPhrase);
+    response.setHeaders(mHeaders);
+    if(mBody != null) {
+      ByteArrayEntity entity = new ByteArrayEntity(mBody);
+      Header contentType = response.getFirstHeader(HTTP.CONTENT_TYPE);
+      if(contentType != null) {
+        entity.setContentType(contentType);
+      }
+      response.setEntity(entity);
+    }
+    return response;
+  }
+
+  /**
+   * Computes the key a request is recorded and replayed under.
+   * <p/>
+   * Reads the body of requests with a repeatable entity, which the wrapper
+   * always uses.
+   *
+   * @param request The request
+   * @return The key
+   * @throws IOException if the body could not be read
+   */
+  public static String keyOf(HttpRequest request) throws IOException {
+    String method = request.getRequestLine().getMethod();
+    String uri = request.getRequestLine().getUri();
+    try {
+      URI parsed = new URI(uri);
+      if(parsed.isAbsolute()) {
+        uri = parsed.getRawPath() + (parsed.getRawQuery() == null ? "" : "?" + parsed.getRawQuery());
+      }
+    } catch(Exception ignored) {
+      // Use the uri as is
+    }
+
+    StringBuilder key = new StringBuilder(method).append(' ');
+    int query = uri.indexOf('?');
+    if(query < 0) {
+      key.append(uri);
+    } else {
+      key.append(uri.substring(0, query));
+      String params = withoutCredentials(uri.substring(query + 1));
+      if(params.length() > 0) {
+        key.append('?').append(params);
+      }
+    }
+
+    if(request instanceof HttpEntityEnclosingRequest) {
+      HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+      if(entity != null && entity.isRepeatable()) {
+        key.append(' ').append(withoutCredentials(EntityUtils.toString(entity, "UTF-8")));
+      }
+    }
+    return key.toString();
+  }
+
+  void writeTo(DataOutput out) throws IOException {
+    writeBytes(out, mKey.getBytes("UTF-8"));
+    out.writeShort(mStatusCode);
+    out.writeUTF(mReasonPhrase == null ? "" : mReasonPhrase);
+    out.writeShort(mHeaders.length);
+    for(Header header : mHeaders) {
+      out.writeUTF(header.getName());
+      out.writeUTF(header.getValue());
+    }
+    writeBytes(out, mBody);
+    out.writeLong(mLatencyMicros);
+  }
+
+  static RecordedExchange readFrom(DataInput in) throws IOException {
+    String key = new String(readBytes(in), "UTF-8");
+    int statusCode = in.readUnsignedShort();
+    String reasonPhrase = in.readUTF();
+    Header[] headers = new Header[in.readUnsignedShort()];
+    for(int i = 0; i < headers.length; i++) {
+      headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+    }
+    byte[] body = readBytes(in);
+    long latencyMicros = in.readLong();
+    return new RecordedExchange(key, statusCode, reasonPhrase, headers, body, latencyMicros);
+  }
+
+  private static String withoutCredentials(String params) {
+    String stripped = CREDENTIALS.matcher(params).replaceAll("");
+    return stripped.startsWith("&") ? stripped.substring(1) : stripped;
+  }
+
+  private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+    if(bytes == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static byte[] readBytes(DataInput in) throws IOException {
+    int length = in.readInt();
+    if(length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
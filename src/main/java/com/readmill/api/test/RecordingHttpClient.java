@@ -0,0 +1,156 @@
+package com.readmill.api.test;
+
+import org.apache.http.*;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.*;
+import java.net.URI;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HttpClient that passes requests on to another client and records every
+ * request and response to a file, for replaying with {@link ReplayHttpClient}.
+ * <p/>
+ * Response bodies are read into memory so they can be both recorded and
+ * returned. The recording is gzipped and only complete once the client is
+ * closed.
+ * <p/>
+ * Example: <code>
+ * <pre>
+ *  HttpClient client = new ReadmillWrapper(clientId, clientSecret, env).getHttpClient();
+ *  final RecordingHttpClient recorder = new RecordingHttpClient(client, new File("traffic.rec"));
+ *  ReadmillWrapper wrapper = new ReadmillWrapper(clientId, clientSecret, env) {
+ *    protected HttpClient createHttpClient() {
+ *      return recorder;
+ *    }
+ *  };
+ *  // ... make requests with the wrapper, then
+ *  recorder.close();
+ * </pre>
+ * </code>
+ */
+public class RecordingHttpClient implements HttpClient, Closeable {
+  private final HttpClient mClient;
+  private final DataOutputStream mOut;
+  private int mRecorded;
+
+  /**
+   * Creates a recording client.
+   *
+   * @param client Client that makes the real requests
+   * @param file   File to record to, replaced if it exists
+   * @throws IOException if the file could not be created
+   */
+  public RecordingHttpClient(HttpClient client, File file) throws IOException {
+    mClient = client;
+    mOut = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+    mOut.writeInt(RecordedExchange.MAGIC);
+    mOut.writeInt(RecordedExchange.VERSION);
+  }
+
+  /**
+   * Gets the number of exchanges recorded so far.
+   *
+   * @return The number of recorded exchanges
+   */
+  public synchronized int getRecordedCount() {
+    return mRecorded;
+  }
+
+  /**
+   * Finishes the recording. Does not close the underlying client.
+   *
+   * @throws IOException if the recording could not be written
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    mOut.close();
+  }
+
+  @Override
+  public HttpParams getParams() {
+    return mClient.getParams();
+  }
+
+  @Override
+  public ClientConnectionManager getConnectionManager() {
+    return mClient.getConnectionManager();
+  }
+
+  @Override
+  public HttpResponse execute(HttpUriRequest request) throws IOException {
+    return execute(request, (HttpContext) null);
+  }
+
+  @Override
+  public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+    return execute(targetOf(request), request, context);
+  }
+
+  @Override
+  public HttpResponse execute(HttpHost target, HttpRequest request) throws IOException {
+    return execute(target, request, (HttpContext) null);
+  }
+
+  @Override
+  public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+    String key = RecordedExchange.keyOf(request);
+    long started = System.nanoTime();
+    HttpResponse response = mClient.execute(target, request, context);
+
+    byte[] body = null;
+    HttpEntity entity = response.getEntity();
+    if(entity != null) {
+      body = EntityUtils.toByteArray(entity);
+      ByteArrayEntity buffered = new ByteArrayEntity(body);
+      buffered.setContentType(entity.getContentType());
+      buffered.setContentEncoding(entity.getContentEncoding());
+      response.setEntity(buffered);
+    }
+    long latencyMicros = (System.nanoTime() - started) / 1000;
+
+    StatusLine status = response.getStatusLine();
+    record(new RecordedExchange(key, status.getStatusCode(), status.getReasonPhrase(),
+        response.getAllHeaders(), body, latencyMicros));
+    return response;
+  }
+
+  @Override
+  public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException, ClientProtocolException {
+    return execute(targetOf(request), request, handler, null);
+  }
+
+  @Override
+  public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler, HttpContext context) throws IOException, ClientProtocolException {
+    return execute(targetOf(request), request, handler, context);
+  }
+
+  @Override
+  public <T> T execute(HttpHost target, HttpRequest request, ResponseHandler<? extends T> handler) throws IOException, ClientProtocolException {
+    return execute(target, request, handler, null);
+  }
+
+  @Override
+  public <T> T execute(HttpHost target, HttpRequest request, ResponseHandler<? extends T> handler, HttpContext context) throws IOException, ClientProtocolException {
+    // The body has already been read into memory, there is no connection to release
+    return handler.handleResponse(execute(target, request, context));
+  }
+
+  private synchronized void record(RecordedExchange exchange) throws IOException {
+    exchange.writeTo(mOut);
+    mRecorded++;
+  }
+
+  static HttpHost targetOf(HttpUriRequest request) {
+    URI uri = request.getURI();
+    return uri.isAbsolute() ? new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme()) : null;
+  }
+}
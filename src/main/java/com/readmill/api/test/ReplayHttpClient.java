@@ -0,0 +1,184 @@
+package com.readmill.api.test;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * HttpClient that answers requests with responses recorded by
+ * {@link RecordingHttpClient}, without any network access.
+ * <p/>
+ * Requests are matched by their key (see {@link RecordedExchange#keyOf}).
+ * When the same request was recorded several times, the recorded responses
+ * are served in order and start over once all of them have been served.
+ * Requests that were never recorded fail with an IOException.
+ * <p/>
+ * By default responses are served right away. With pacing enabled, each
+ * response is delayed by the latency it had when it was recorded.
+ * <p/>
+ * Thread safe, so it can be shared by concurrent benchmark threads.
+ */
+public class ReplayHttpClient implements HttpClient {
+  private final Map<String, Replay> mReplays = new HashMap<String, Replay>();
+  private final HttpParams mParams = new BasicHttpParams();
+  private final AtomicLong mMisses = new AtomicLong();
+  private volatile boolean mPaced;
+
+  /**
+   * Recorded responses to one request, served round robin.
+   */
+  private static class Replay {
+    final List<RecordedExchange> exchanges = new ArrayList<RecordedExchange>();
+    final AtomicInteger next = new AtomicInteger();
+
+    RecordedExchange next() {
+      int i = next.getAndIncrement() % exchanges.size();
+      return exchanges.get(i < 0 ? i + exchanges.size() : i);
+    }
+  }
+
+  /**
+   * Loads a recording.
+   *
+   * @param file File written by a RecordingHttpClient
+   * @throws IOException if the file could not be read or is not a recording
+   */
+  public ReplayHttpClient(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+    try {
+      if(in.readInt() != RecordedExchange.MAGIC || in.readInt() != RecordedExchange.VERSION) {
+        throw new IOException("Not a recording: " + file);
+      }
+      while(true) {
+        RecordedExchange exchange;
+        try {
+          exchange = RecordedExchange.readFrom(in);
+        } catch(EOFException done) {
+          break;
+        }
+        Replay replay = mReplays.get(exchange.getKey());
+        if(replay == null) {
+          replay = new Replay();
+          mReplays.put(exchange.getKey(), replay);
+        }
+        replay.exchanges.add(exchange);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Sets whether responses are delayed by their recorded latency.
+   *
+   * @param paced true for realistic pacing, false to serve at full speed
+   */
+  public void setPaced(boolean paced) {
+    mPaced = paced;
+  }
+
+  /**
+   * Gets the number of distinct requests in the recording.
+   *
+   * @return The number of recorded request keys
+   */
+  public int getRecordedKeyCount() {
+    return mReplays.size();
+  }
+
+  /**
+   * Gets the number of requests that had no recorded response.
+   *
+   * @return The number of misses
+   */
+  public long getMissCount() {
+    return mMisses.get();
+  }
+
+  @Override
+  public HttpParams getParams() {
+    return mParams;
+  }
+
+  @Override
+  public ClientConnectionManager getConnectionManager() {
+    return null;
+  }
+
+  @Override
+  public HttpResponse execute(HttpUriRequest request) throws IOException {
+    return replay(request);
+  }
+
+  @Override
+  public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+    return replay(request);
+  }
+
+  @Override
+  public HttpResponse execute(HttpHost target, HttpRequest request) throws IOException {
+    return replay(request);
+  }
+
+  @Override
+  public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+    return replay(request);
+  }
+
+  @Override
+  public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException, ClientProtocolException {
+    return handler.handleResponse(replay(request));
+  }
+
+  @Override
+  public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler, HttpContext context) throws IOException, ClientProtocolException {
+    return handler.handleResponse(replay(request));
+  }
+
+  @Override
+  public <T> T execute(HttpHost target, HttpRequest request, ResponseHandler<? extends T> handler) throws IOException, ClientProtocolException {
+    return handler.handleResponse(replay(request));
+  }
+
+  @Override
+  public <T> T execute(HttpHost target, HttpRequest request, ResponseHandler<? extends T> handler, HttpContext context) throws IOException, ClientProtocolException {
+    return handler.handleResponse(replay(request));
+  }
+
+  private HttpResponse replay(HttpRequest request) throws IOException {
+    String key = RecordedExchange.keyOf(request);
+    Replay replay = mReplays.get(key);
+    if(replay == null) {
+      mMisses.incrementAndGet();
+      throw new IOException("No recorded response for " + key);
+    }
+
+    RecordedExchange exchange = replay.next();
+    if(mPaced && exchange.getLatencyMicros() > 0) {
+      try {
+        Thread.sleep(exchange.getLatencyMicros() / 1000, (int) (exchange.getLatencyMicros() % 1000) * 1000);
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while pacing replay");
+      }
+    }
+    return exchange.toResponse();
+  }
+}
@@ -0,0 +1,116 @@
+package com.readmill.api;
+
+import com.readmill.api.test.FakeReadmillServer;
+import com.readmill.api.test.MockReadmillWrapper;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class AdaptiveLimiterTest {
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void growsWhileLatencyIsSteady() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(4, 1, 20);
+    for(int i = 0; i < 200; i++) {
+      limiter.onSample(10 * MILLIS, limiter.getLimit());
+    }
+    assertThat(limiter.getLimit(), is(20));
+    assertThat(limiter.getBaselineRttMillis(), is(10L));
+  }
+
+  @Test
+  public void shrinksWhenLatencyRises() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(4, 1, 20);
+    for(int i = 0; i < 200; i++) {
+      limiter.onSample(10 * MILLIS, limiter.getLimit());
+    }
+    for(int i = 0; i < 50; i++) {
+      limiter.onSample(60 * MILLIS, limiter.getLimit());
+    }
+    assertThat(limiter.getLimit(), lessThan(10));
+    assertThat(limiter.getLimit(), greaterThanOrEqualTo(1));
+  }
+
+  @Test
+  public void doesNotGrowWithoutLoad() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(8, 1, 20);
+    for(int i = 0; i < 200; i++) {
+      limiter.onSample(10 * MILLIS, 1);
+    }
+    assertThat(limiter.getLimit(), is(8));
+  }
+
+  @Test
+  public void backsOffOnDrops() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(10, 2, 20);
+    assertThat(limiter.onDrop(), is(9));
+    for(int i = 0; i < 20; i++) {
+      limiter.onDrop();
+    }
+    assertThat(limiter.getLimit(), is(2));
+    assertThat(limiter.getDropCount(), is(21L));
+  }
+
+  @Test
+  public void zeroRttDoesNotBreakTheLimit() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(4, 1, 20);
+    limiter.onSample(0, 4);
+    for(int i = 0; i < 10; i++) {
+      limiter.onSample(0, limiter.getLimit());
+    }
+    assertThat(limiter.getLimit(), is(both(greaterThanOrEqualTo(1)).and(lessThanOrEqualTo(20))));
+  }
+
+  @Test
+  public void failingLimiterDoesNotLoseTheResponse() throws Exception {
+    MockReadmillWrapper wrapper = new MockReadmillWrapper();
+    wrapper.respondWithText("{ \"book\": { \"id\": 1 } }");
+    wrapper.setAdaptiveLimiter(new AdaptiveLimiter(4, 1, 20) {
+      @Override
+      public synchronized int onSample(long rttNanos, int inFlight) {
+        throw new IllegalStateException("broken limiter");
+      }
+    });
+
+    HttpResponse response = wrapper.execute(Request.to("/books/1"), HttpGet.class);
+    assertThat(HttpUtils.getString(response), containsString("book"));
+    assertThat(wrapper.getDispatcher().getInFlight(), is(0));
+    assertThat(wrapper.getDispatcher().getLimit(), is(4));
+  }
+
+  @Test
+  public void drivesTheDispatcherLimit() throws Exception {
+    FakeReadmillServer server = new FakeReadmillServer(0, 2);
+    long bookId = server.addBook(new JSONObject().put("title", "Metamorphosis"));
+    server.setErrorRate(1.0);
+    server.start();
+    ReadmillWrapper wrapper = new ReadmillWrapper("client-id", "client-secret", server.getEnvironment());
+    try {
+      AdaptiveLimiter limiter = new AdaptiveLimiter(8, 1, 8);
+      wrapper.setAdaptiveLimiter(limiter);
+      assertThat(wrapper.getDispatcher().getLimit(), is(8));
+
+      // Injected 500s are answers, not drops
+      wrapper.get("/books/" + bookId).fetch();
+      assertThat(limiter.getDropCount(), is(0L));
+
+      server.setRateLimit(0.001);
+      for(int i = 0; i < 3; i++) {
+        wrapper.get("/books/" + bookId).fetch();
+      }
+      assertThat(limiter.getDropCount(), greaterThan(0L));
+      assertThat(wrapper.getDispatcher().getLimit(), is(limiter.getLimit()));
+      assertThat(limiter.getLimit(), lessThan(8));
+    } finally {
+      wrapper.close();
+      server.close();
+    }
+  }
+}
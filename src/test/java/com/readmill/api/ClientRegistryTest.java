@@ -0,0 +1,134 @@
+package com.readmill.api;
+
+import com.readmill.api.test.FakeReadmillServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ClientRegistryTest {
+  private FakeReadmillServer mServer;
+  private ClientRegistry mRegistry;
+  private long mBookId;
+
+  @Before
+  public void startServer() throws Exception {
+    mServer = new FakeReadmillServer(0, 4);
+    mBookId = mServer.addBook(new JSONObject().put("title", "Metamorphosis"));
+    mServer.start();
+    mRegistry = new ClientRegistry();
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    mServer.close();
+  }
+
+  @Test
+  public void sharesTheClientUntilTheLastWrapperCloses() throws Exception {
+    ReadmillWrapper first = createWrapper();
+    ReadmillWrapper second = createWrapper();
+
+    HttpClient client = first.getHttpClient();
+    assertThat(second.getHttpClient(), is(sameInstance(client)));
+    assertThat(mRegistry.getClientCount(), is(1));
+    assertThat(mRegistry.getReferenceCount(client), is(2));
+
+    first.close();
+    assertThat(mRegistry.getReferenceCount(client), is(1));
+    assertThat(second.get("/books/" + mBookId).fetchOrThrow("book").getString("title"), is("Metamorphosis"));
+
+    second.close();
+    assertThat(mRegistry.getClientCount(), is(0));
+    assertThat(mRegistry.getReferenceCount(client), is(0));
+  }
+
+  @Test
+  public void separatesClientsWithDifferentSettings() throws Exception {
+    ReadmillWrapper first = createWrapper();
+    ReadmillWrapper second = createWrapper();
+    second.setMaxConnections(2, 2);
+    try {
+      assertThat(second.getHttpClient(), is(not(sameInstance(first.getHttpClient()))));
+      assertThat(mRegistry.getClientCount(), is(2));
+    } finally {
+      first.close();
+      second.close();
+    }
+    assertThat(mRegistry.getClientCount(), is(0));
+  }
+
+  @Test
+  public void sharesTheDispatcherInFrontOfTheClient() throws Exception {
+    ReadmillWrapper first = createWrapper();
+    ReadmillWrapper second = createWrapper();
+    first.setMaxConnections(1, 1);
+    second.setMaxConnections(1, 1);
+    try {
+      RequestDispatcher dispatcher = first.getDispatcher();
+      assertThat(second.getDispatcher(), is(sameInstance(dispatcher)));
+      assertThat(mRegistry.getDispatcher(first.getHttpClient()), is(sameInstance(dispatcher)));
+      assertThat(dispatcher.getLimit(), is(1));
+
+      // The only slot is taken by a response of the first wrapper
+      HttpResponse held = first.execute(Request.to("/books/%d", mBookId), HttpGet.class);
+      assertThat(dispatcher.getInFlight(), is(1));
+      try {
+        second.execute(Request.to("/books/%d", mBookId).withDeadline(200, TimeUnit.MILLISECONDS), HttpGet.class);
+        throw new AssertionError("second wrapper got past the shared limit");
+      } catch(InterruptedIOException expected) {}
+      assertThat(dispatcher.getDroppedCount(), is(1L));
+
+      HttpUtils.getString(held);
+      assertThat(HttpUtils.getString(second.execute(Request.to("/books/%d", mBookId), HttpGet.class)),
+          containsString("Metamorphosis"));
+    } finally {
+      first.close();
+      second.close();
+    }
+  }
+
+  @Test
+  public void sharesTheExecutorUntilTheLastWrapperCloses() throws Exception {
+    ReadmillWrapper first = createWrapper();
+    ReadmillWrapper second = createWrapper();
+
+    ExecutorService executor = first.getExecutor();
+    assertThat(second.getExecutor(), is(sameInstance(executor)));
+    assertThat(mRegistry.getExecutor(first.getHttpClient()), is(sameInstance(executor)));
+
+    first.close();
+    assertThat(executor.isShutdown(), is(false));
+    second.close();
+    assertThat(executor.isShutdown(), is(true));
+  }
+
+  @Test
+  public void keepsOwnClientsOutOfTheRegistry() throws Exception {
+    ReadmillWrapper own = new ReadmillWrapper("client-id", "client-secret", mServer.getEnvironment());
+    ReadmillWrapper shared = createWrapper();
+    try {
+      assertThat(own.getHttpClient(), is(not(sameInstance(shared.getHttpClient()))));
+      assertThat(mRegistry.getReferenceCount(own.getHttpClient()), is(0));
+    } finally {
+      own.close();
+      shared.close();
+    }
+  }
+
+  private ReadmillWrapper createWrapper() {
+    ReadmillWrapper wrapper = new ReadmillWrapper("client-id", "client-secret", mServer.getEnvironment());
+    wrapper.setClientRegistry(mRegistry);
+    return wrapper;
+  }
+}
@@ -0,0 +1,183 @@
+package com.readmill.api;
+
+import com.readmill.api.test.MockHttpClient;
+import com.readmill.api.test.MockReadmillWrapper;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class EntityCacheTest {
+
+  @Test
+  public void storesEntitiesPerCollection() throws Exception {
+    EntityCache cache = new EntityCache(64 * 1024, 4096);
+    assertThat(cache.put("books", 1, new JSONObject("{\"id\":1,\"title\":\"Metamorphosis\"}")), is(true));
+    cache.put("users", 1, new JSONObject("{\"id\":1,\"username\":\"franz\"}"));
+
+    assertThat(cache.get("books", 1).getString("title"), is("Metamorphosis"));
+    assertThat(cache.get("users", 1).getString("username"), is("franz"));
+    assertThat(cache.get("books", 2), is(nullValue()));
+    assertThat(cache.getHitCount(), is(2L));
+    assertThat(cache.getMissCount(), is(1L));
+
+    cache.put("books", 1, new JSONObject("{\"id\":1,\"title\":\"The Trial\"}"));
+    assertThat(cache.get("books", 1).getString("title"), is("The Trial"));
+    assertThat(cache.size(), is(2));
+
+    cache.invalidate("books", 1);
+    assertThat(cache.get("books", 1), is(nullValue()));
+    assertThat(cache.size(), is(1));
+  }
+
+  @Test
+  public void evictsEntitiesThatWereNotReadRecently() throws Exception {
+    // A single slab of 16 chunks of 64 bytes
+    EntityCache cache = new EntityCache(1024, 1024);
+    for(long id = 0; id < 16; id++) {
+      cache.put("books", id, new JSONObject().put("id", id));
+    }
+    assertThat(cache.getEvictionCount(), is(0L));
+
+    // Books read since the last sweep survive it
+    cache.get("books", 0);
+    cache.get("books", 1);
+    cache.put("books", 16, new JSONObject().put("id", 16));
+
+    assertThat(cache.getEvictionCount(), is(1L));
+    assertThat(cache.get("books", 0), is(notNullValue()));
+    assertThat(cache.get("books", 1), is(notNullValue()));
+    assertThat(cache.get("books", 2), is(nullValue()));
+    assertThat(cache.get("books", 16), is(notNullValue()));
+    assertThat(cache.size(), is(16));
+    assertThat(cache.getAllocatedBytes(), is(1024L));
+  }
+
+  @Test
+  public void doesNotCacheEntitiesLargerThanASlab() throws Exception {
+    EntityCache cache = new EntityCache(1024, 256);
+    StringBuilder title = new StringBuilder();
+    while(title.length() < 300) {
+      title.append("title ");
+    }
+    assertThat(cache.put("books", 1, new JSONObject().put("title", title)), is(false));
+    assertThat(cache.get("books", 1), is(nullValue()));
+  }
+
+  @Test
+  public void expiresEntities() throws Exception {
+    EntityCache cache = new EntityCache(64 * 1024, 4096);
+    cache.setTimeToLive(10, TimeUnit.MILLISECONDS);
+    cache.put("books", 1, new JSONObject().put("id", 1));
+    Thread.sleep(50);
+    assertThat(cache.get("books", 1), is(nullValue()));
+    assertThat(cache.size(), is(0));
+  }
+
+  @Test
+  public void doesNotCacheOverAnInvalidation() throws Exception {
+    EntityCache cache = new EntityCache(64 * 1024, 4096);
+    long generation = cache.getGeneration("books", 1);
+    cache.invalidate("books", 1);
+
+    // Fetched before the write, so stale
+    assertThat(cache.put("books", 1, new JSONObject().put("title", "Old"), generation), is(false));
+    assertThat(cache.get("books", 1), is(nullValue()));
+
+    generation = cache.getGeneration("books", 1);
+    assertThat(cache.put("books", 1, new JSONObject().put("title", "New"), generation), is(true));
+    assertThat(cache.get("books", 1).getString("title"), is("New"));
+
+    generation = cache.getGeneration("books", 2);
+    cache.clear();
+    assertThat(cache.put("books", 2, new JSONObject().put("title", "Old"), generation), is(false));
+  }
+
+  @Test
+  public void servesFetchFromCacheUntilWritten() throws Exception {
+    MockReadmillWrapper wrapper = new MockReadmillWrapper();
+    wrapper.respondWithText("{\"reading\":{\"id\":1,\"state\":\"reading\"}}");
+    wrapper.setEntityCache(new EntityCache(64 * 1024, 4096));
+
+    assertThat(wrapper.get("/readings/1").fetch("reading").getString("state"), is("reading"));
+    assertThat(wrapper.get("/readings/1").fetchOrThrow("reading").getString("state"), is("reading"));
+    assertThat(wrapper.getRequests().size(), is(1));
+
+    // Requests with parameters are not cached
+    wrapper.get("/readings/1").count(5).fetch("reading");
+    assertThat(wrapper.getRequests().size(), is(2));
+
+    wrapper.put("/readings/1").readingState("finished").send();
+    wrapper.respondWithText("{\"reading\":{\"id\":1,\"state\":\"finished\"}}");
+    assertThat(wrapper.get("/readings/1").fetch("reading").getString("state"), is("finished"));
+    assertThat(wrapper.getRequests().size(), is(4));
+  }
+
+  @Test
+  public void writesThroughTheWrapperInvalidate() throws Exception {
+    MockReadmillWrapper wrapper = new MockReadmillWrapper();
+    EntityCache cache = new EntityCache(64 * 1024, 4096);
+    wrapper.setEntityCache(cache);
+    cache.put("readings", 1, new JSONObject("{\"id\":1,\"state\":\"reading\"}"));
+
+    wrapper.respondWithText("{}");
+    wrapper.put(Request.to("/readings/1").withParams("reading[state]", "finished"));
+    assertThat(cache.get("readings", 1), is(nullValue()));
+  }
+
+  @Test
+  public void outboxDeliveryInvalidates() throws Exception {
+    MockReadmillWrapper wrapper = new MockReadmillWrapper();
+    EntityCache cache = new EntityCache(64 * 1024, 4096);
+    wrapper.setEntityCache(cache);
+    wrapper.when("GET", "/v2/readings/1").thenRespond(200, "{\"reading\":{\"id\":1,\"state\":\"reading\"}}");
+    // The first attempt fails, so the write is delivered after a backoff
+    MockHttpClient.Route put = wrapper.when("PUT", "/v2/readings/1").thenRespond(503, "{}").thenRespond(200, "{}");
+    File journal = File.createTempFile("outbox", ".journal");
+    journal.delete();
+    WriteOutbox outbox = new WriteOutbox(wrapper, journal, 1);
+    wrapper.setOutbox(outbox);
+    try {
+      wrapper.put("/readings/1").readingState("finished").send();
+      // Fetched and cached while the write is still queued. The failed first
+      // attempt invalidates once more as it finishes, then backs off for a
+      // second before the next one.
+      long until = System.currentTimeMillis() + 5000;
+      while(put.getHitCount() == 0 && System.currentTimeMillis() < until) {
+        Thread.sleep(5);
+      }
+      do {
+        assertThat(wrapper.get("/readings/1").fetch("reading").getString("state"), is("reading"));
+      } while(cache.get("readings", 1) == null && System.currentTimeMillis() < until);
+      assertThat(put.getHitCount(), is(1));
+      assertThat(cache.get("readings", 1), is(notNullValue()));
+
+      assertThat(outbox.awaitEmpty(10000), is(true));
+      assertThat(cache.get("readings", 1), is(nullValue()));
+    } finally {
+      outbox.close();
+      journal.delete();
+    }
+  }
+
+  @Test
+  public void writeBehindDeliveryInvalidates() throws Exception {
+    MockReadmillWrapper wrapper = new MockReadmillWrapper();
+    EntityCache cache = new EntityCache(64 * 1024, 4096);
+    wrapper.setEntityCache(cache);
+    wrapper.respondWithText("{\"reading\":{\"id\":1,\"state\":\"reading\"}}");
+    wrapper.setWriteBehind(1, TimeUnit.MINUTES);
+
+    wrapper.put("/readings/1").readingState("finished").send();
+    // Fetched and cached while the write is held back
+    wrapper.get("/readings/1").fetch("reading");
+    assertThat(cache.get("readings", 1), is(notNullValue()));
+
+    wrapper.getWriteCoalescer().flush();
+    assertThat(cache.get("readings", 1), is(nullValue()));
+  }
+}
@@ -36,4 +36,14 @@ public class EnvironmentTest {
     assertEquals("https://some.api.host", env.getApiUrl()); // standard port
     assertEquals("https://some.web.host:8080", env.getWebUrl());
   }
+
+  @Test
+  public void multipleApiHosts() {
+    Environment env = new Environment(new String[] { "eu.api.host", "us.api.host" }, "some.web.host", true);
+    assertEquals(2, env.getApiHosts().size());
+    assertEquals("eu.api.host", env.getApiHost().getHostName());
+    assertEquals("us.api.host", env.getApiHosts().get(1).getHostName());
+    assertEquals("https://eu.api.host", env.getApiUrl());
+    assertEquals(1, new Environment("some.api.host", "some.web.host", true).getApiHosts().size());
+  }
 }
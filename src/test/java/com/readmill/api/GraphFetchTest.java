@@ -0,0 +1,126 @@
+package com.readmill.api;
+
+import com.readmill.api.test.FakeReadmillServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.readmill.api.Include.include;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class GraphFetchTest {
+  private static final long LATENCY_MILLIS = 100;
+
+  private FakeReadmillServer mServer;
+  private ReadmillWrapper mWrapper;
+  private long mReadingId;
+
+  @Before
+  public void startServer() throws Exception {
+    mServer = new FakeReadmillServer(0, 16);
+    long bookId = mServer.addBook(new JSONObject().put("title", "Metamorphosis"));
+    mReadingId = mServer.addReading(1, bookId, new JSONObject().put("state", "reading"));
+    for(int h = 0; h < 5; h++) {
+      long highlightId = mServer.addHighlight(mReadingId, new JSONObject().put("content", "Highlight " + h));
+      for(int c = 0; c < 2; c++) {
+        mServer.addComment(highlightId, new JSONObject().put("content", "Comment " + c + " on " + h));
+      }
+    }
+    mServer.setLatency(LATENCY_MILLIS, LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+    mServer.start();
+    mWrapper = new ReadmillWrapper("client-id", "client-secret", mServer.getEnvironment());
+    mWrapper.setMaxConnections(8, 8);
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    mWrapper.close();
+    mServer.close();
+  }
+
+  @Test
+  public void fetchesTheGraphInParallel() throws Exception {
+    // Open a connection and load the classes involved, so that only the
+    // graph itself is timed
+    mWrapper.get("/books").fetchItemsOrThrow("book");
+    long warmUp = mServer.getRequestCount();
+
+    long started = System.currentTimeMillis();
+    JSONObject reading = mWrapper.fetchGraph(mReadingId, include("book", "highlights.comments"));
+    long elapsed = System.currentTimeMillis() - started;
+
+    assertThat(reading.getString("state"), is("reading"));
+    assertThat(reading.getJSONObject("book").getString("title"), is("Metamorphosis"));
+    JSONArray highlights = reading.getJSONArray("highlights");
+    assertThat(highlights.length(), is(5));
+    for(int i = 0; i < highlights.length(); i++) {
+      JSONArray comments = highlights.getJSONObject(i).getJSONArray("comments");
+      assertThat(comments.length(), is(2));
+      assertThat(comments.getJSONObject(0).getString("content"),
+          endsWith(highlights.getJSONObject(i).getString("content").substring(10)));
+    }
+
+    // Reading, book, highlights and 5 comment collections
+    assertThat(mServer.getRequestCount() - warmUp, is(8L));
+    // Three levels deep, where one request after the other would take eight
+    assertThat(elapsed, lessThan(6 * LATENCY_MILLIS));
+  }
+
+  @Test
+  public void wideGraphsShareAFewThreads() throws Exception {
+    for(int h = 0; h < 40; h++) {
+      long highlightId = mServer.addHighlight(mReadingId, new JSONObject().put("content", "More " + h));
+      mServer.addComment(highlightId, new JSONObject().put("content", "Comment on more " + h));
+    }
+
+    JSONObject reading = mWrapper.fetchGraph(mReadingId, include("highlights.comments"));
+
+    JSONArray highlights = reading.getJSONArray("highlights");
+    assertThat(highlights.length(), is(45));
+    for(int i = 0; i < highlights.length(); i++) {
+      assertThat(highlights.getJSONObject(i).getJSONArray("comments").length(), is(greaterThan(0)));
+    }
+    // No thread waits for a part of the graph, only the fetches take one
+    ThreadPoolExecutor executor = (ThreadPoolExecutor) mWrapper.getExecutor();
+    assertThat(executor.getLargestPoolSize(), is(lessThanOrEqualTo(GraphFetch.PARALLEL_FETCHES)));
+  }
+
+  @Test
+  public void fetchesSharedObjectsOnce() throws Exception {
+    JSONObject reading = mWrapper.fetchGraph(mReadingId, include("highlights.reading"));
+
+    JSONArray highlights = reading.getJSONArray("highlights");
+    for(int i = 0; i < highlights.length(); i++) {
+      assertThat(highlights.getJSONObject(i).getJSONObject("reading").getString("state"), is("reading"));
+    }
+    // The reading of every highlight is the reading itself
+    assertThat(mServer.getRequestCount(), is(2L));
+  }
+
+  @Test(expected = JSONException.class)
+  public void failsWhenABranchFails() throws Exception {
+    long orphan = mServer.addReading(1, 404404, new JSONObject());
+    mWrapper.fetchGraph(orphan, include("book", "highlights"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsUnknownRelations() throws Exception {
+    mWrapper.fetchGraph(mReadingId, include("highlights.pages"));
+  }
+
+  @Test
+  public void mergesIncludedPaths() {
+    Include include = include("book", "highlights.comments", "highlights.user");
+    assertThat(include.getRelations(), contains("book", "highlights"));
+    assertThat(include.get("book").isEmpty(), is(true));
+    assertThat(include.get("highlights").getRelations(), contains("comments", "user"));
+    assertThat(include.get("pings"), is(nullValue()));
+  }
+}
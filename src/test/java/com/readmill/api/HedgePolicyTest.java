@@ -0,0 +1,51 @@
+package com.readmill.api;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class HedgePolicyTest {
+
+  @Test
+  public void noDelayUntilEnoughSamples() {
+    HedgePolicy policy = new HedgePolicy(0.9, 0, 0.1);
+    for(int i = 0; i < HedgePolicy.MIN_SAMPLES - 1; i++) {
+      policy.recordLatency(10);
+    }
+    assertThat(policy.getHedgeDelayMillis(), is(-1L));
+  }
+
+  @Test
+  public void delayFollowsPercentile() {
+    HedgePolicy policy = new HedgePolicy(0.9, 0, 0.1);
+    for(int i = 1; i <= 100; i++) {
+      policy.recordLatency(i);
+    }
+    // Recomputed on every RECOMPUTE_INTERVAL:th sample, last at sample 64
+    assertThat(policy.getHedgeDelayMillis(), is(58L));
+  }
+
+  @Test
+  public void delayIsAtLeastMinDelay() {
+    HedgePolicy policy = new HedgePolicy(0.5, 200, 0.1);
+    for(int i = 0; i < HedgePolicy.MIN_SAMPLES; i++) {
+      policy.recordLatency(10);
+    }
+    assertThat(policy.getHedgeDelayMillis(), is(200L));
+  }
+
+  @Test
+  public void budgetCapsExtraLoad() {
+    HedgePolicy policy = new HedgePolicy(0.9, 0, 0.25);
+    int hedges = 0;
+    for(int i = 0; i < 1000; i++) {
+      policy.onRequest();
+      if(policy.tryAcquireHedge()) {
+        hedges++;
+      }
+    }
+    assertThat(hedges, is(250));
+    assertThat(policy.getHedgedCount(), is(250L));
+  }
+}
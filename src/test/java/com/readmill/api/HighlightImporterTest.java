@@ -0,0 +1,138 @@
+package com.readmill.api;
+
+import com.readmill.api.test.FakeReadmillServer;
+import org.apache.http.client.methods.HttpGet;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class HighlightImporterTest {
+  private FakeReadmillServer mServer;
+  private ReadmillWrapper mWrapper;
+  private long mReadingId;
+
+  @Before
+  public void startServer() throws Exception {
+    mServer = new FakeReadmillServer(0, 4);
+    long bookId = mServer.addBook(new JSONObject().put("title", "Metamorphosis"));
+    mReadingId = mServer.addReading(1, bookId, new JSONObject());
+    mServer.start();
+    mWrapper = new ReadmillWrapper("client-id", "client-secret", mServer.getEnvironment());
+    mWrapper.setMaxConnections(4, 4);
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    mWrapper.close();
+    mServer.close();
+  }
+
+  @Test
+  public void importsHighlightsInOrder() throws Exception {
+    List<HighlightImporter.Highlight> highlights = new ArrayList<HighlightImporter.Highlight>();
+    for(int i = 0; i < 40; i++) {
+      highlights.add(new HighlightImporter.Highlight("Gregor #" + i + " & the é ☃ 𝄞 = 1+1",
+          i / 40.0, new JSONObject().put("pre", "a b"), new Date(1330346702000L)));
+    }
+
+    final AtomicInteger notified = new AtomicInteger();
+    List<HighlightImporter.Result> results = mWrapper.importHighlights(mReadingId, highlights.iterator(), 4,
+        new HighlightImporter.Listener() {
+          @Override
+          public void onResult(HighlightImporter.Result result, int completed) {
+            notified.incrementAndGet();
+          }
+        });
+
+    assertThat(results.size(), is(40));
+    assertThat(notified.get(), is(40));
+    Set<Long> ids = new HashSet<Long>();
+    for(int i = 0; i < results.size(); i++) {
+      HighlightImporter.Result result = results.get(i);
+      assertThat(result.isSuccess(), is(true));
+      assertThat(result.getIndex(), is(i));
+      assertThat(result.getStatusCode(), is(201));
+      ids.add(result.getHighlightId());
+    }
+    assertThat(ids.size(), is(40));
+
+    HighlightImporter.Result last = results.get(39);
+    JSONObject highlight = mWrapper.open(Request.to("/highlights/%d", last.getHighlightId()), HttpGet.class)
+        .getJSON().getJSONObject("highlight");
+    assertThat(highlight.getString("content"), is(last.getHighlight().getContent()));
+    assertThat(highlight.getString("highlighted_at"), is("2012-02-27T12:45:02Z"));
+    assertThat(new JSONObject(highlight.getString("locators")).getString("pre"), is("a b"));
+    assertThat(mWrapper.getOpenResponseCount(), is(0));
+  }
+
+  @Test
+  public void reportsFailuresPerHighlight() throws Exception {
+    mServer.setErrorRate(1.0);
+    List<HighlightImporter.Highlight> highlights = new ArrayList<HighlightImporter.Highlight>();
+    for(int i = 0; i < 5; i++) {
+      highlights.add(new HighlightImporter.Highlight("Highlight " + i, 0.5, null, null));
+    }
+
+    HighlightImporter importer = new HighlightImporter(mWrapper, mReadingId, 2);
+    List<HighlightImporter.Result> results = importer.run(highlights.iterator());
+
+    assertThat(results.size(), is(5));
+    for(HighlightImporter.Result result : results) {
+      assertThat(result.isSuccess(), is(false));
+      assertThat(result.getStatusCode(), is(500));
+      assertThat(result.getHighlightId(), is(-1L));
+    }
+    assertThat(importer.getCompletedCount(), is(5));
+    assertThat(importer.getFailedCount(), is(5));
+  }
+
+  @Test
+  public void pooledBodyMatchesQueryString() throws Exception {
+    Request request = Request.to("/readings/1/highlights")
+        .withParams("highlight[content]", "Café ☃ 𝄞 ~!*'();:@&=+$,/?#")
+        .withParams("empty", "")
+        .withParams("access_token", "abc.def-ghi_jkl");
+    // Forces the buffer to grow
+    StringBuilder longValue = new StringBuilder();
+    for(int i = 0; i < 200; i++) {
+      longValue.append("åäö ");
+    }
+    request.withParams("long", longValue);
+
+    BufferPool pool = new BufferPool(16, 4096, 2);
+    PooledFormEntity entity = PooledFormEntity.encode(request.getParams(), pool);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+
+    assertThat(out.toString("US-ASCII"), is(request.queryString()));
+    assertThat(entity.getContentLength(), is((long) out.size()));
+    assertThat(entity.isRepeatable(), is(true));
+
+    entity.release();
+    assertThat(pool.getPooledCount(), is(1));
+  }
+
+  @Test
+  public void releasedBuffersAreReused() throws Exception {
+    BufferPool pool = new BufferPool(64, 64, 1);
+    byte[] buffer = pool.acquire();
+    pool.release(buffer);
+    assertThat(pool.acquire(), is(sameInstance(buffer)));
+
+    // Buffers grown past the maximum are dropped
+    pool.release(new byte[128]);
+    assertThat(pool.getPooledCount(), is(0));
+  }
+}
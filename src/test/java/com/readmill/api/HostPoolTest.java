@@ -0,0 +1,91 @@
+package com.readmill.api;
+
+import org.apache.http.HttpHost;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class HostPoolTest {
+  private HostPool mPool;
+  private HostPool.Host mFirst, mSecond;
+
+  @Before
+  public void createPool() {
+    mPool = new HostPool(Arrays.asList(new HttpHost("one.example.com"), new HttpHost("two.example.com")));
+    mFirst = mPool.getHosts().get(0);
+    mSecond = mPool.getHosts().get(1);
+  }
+
+  @Test
+  public void roundRobinAlternates() {
+    LoadBalancer balancer = new LoadBalancer.RoundRobin();
+    assertThat(mPool.choose(balancer), is(not(mPool.choose(balancer))));
+  }
+
+  @Test
+  public void leastOutstandingAvoidsBusyHost() {
+    mPool.onStart(mFirst);
+    LoadBalancer balancer = new LoadBalancer.LeastOutstanding();
+    for(int i = 0; i < 10; i++) {
+      assertThat(mPool.choose(balancer), is(mSecond));
+    }
+  }
+
+  @Test
+  public void latencyWeightedPrefersFastHost() {
+    mPool.onStart(mFirst);
+    mPool.onSuccess(mFirst, 10);
+    mPool.onStart(mSecond);
+    mPool.onSuccess(mSecond, 1000);
+
+    Map<HostPool.Host, Integer> picks = new HashMap<HostPool.Host, Integer>();
+    picks.put(mFirst, 0);
+    picks.put(mSecond, 0);
+    LoadBalancer balancer = new LoadBalancer.LatencyWeighted();
+    for(int i = 0; i < 1000; i++) {
+      HostPool.Host host = mPool.choose(balancer);
+      picks.put(host, picks.get(host) + 1);
+    }
+    assertThat(picks.get(mFirst), greaterThan(900));
+  }
+
+  @Test
+  public void ejectsAfterConsecutiveFailuresAndReadmitsOnHealthCheck() {
+    for(int i = 1; i < HostPool.EJECT_AFTER_FAILURES; i++) {
+      mPool.onStart(mFirst);
+      assertThat(mPool.onFailure(mFirst), is(false));
+    }
+    mPool.onStart(mFirst);
+    assertThat(mPool.onFailure(mFirst), is(true));
+    assertThat(mFirst.isEjected(), is(true));
+    assertThat(mPool.getEjectionMillis(mFirst), is(HostPool.MIN_EJECTION_MILLIS));
+
+    LoadBalancer balancer = new LoadBalancer.RoundRobin();
+    for(int i = 0; i < 10; i++) {
+      assertThat(mPool.choose(balancer), is(mSecond));
+    }
+
+    assertThat(mPool.onHealthCheck(mFirst, false), is(true));
+    assertThat(mPool.getEjectionMillis(mFirst), is(2 * HostPool.MIN_EJECTION_MILLIS));
+
+    assertThat(mPool.onHealthCheck(mFirst, true), is(false));
+    assertThat(mFirst.isEjected(), is(false));
+  }
+
+  @Test
+  public void offersAllHostsWhenAllAreEjected() {
+    for(HostPool.Host host : mPool.getHosts()) {
+      for(int i = 0; i < HostPool.EJECT_AFTER_FAILURES; i++) {
+        mPool.onStart(host);
+        mPool.onFailure(host);
+      }
+    }
+    assertThat(mPool.choose(new LoadBalancer.RoundRobin()), is(notNullValue()));
+  }
+}
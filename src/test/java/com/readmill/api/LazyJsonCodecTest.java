@@ -0,0 +1,123 @@
+package com.readmill.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class LazyJsonCodecTest {
+  private static final String READING = "{\"reading\": {" +
+      "\"id\": 12345678901, \"state\": \"finished\", \"private\": false, \"via\": null," +
+      "\"progress\": 0.25, \"closing_remark\": \"Tr\\u00e4ff {\\\"quoted\\\"} [\\\\]\"," +
+      "\"book\": {\"id\": 1, \"title\": \"Metamorphosis\", \"authors\": [\"Franz Kafka\"]}," +
+      "\"user\": {\"id\": 7, \"username\": \"franz\"}," +
+      "\"highlights\": [{\"highlight\": {\"id\": 3}}, {\"highlight\": {\"id\": 4}}]" +
+      "}}";
+
+  private final LazyJsonCodec mCodec = new LazyJsonCodec();
+
+  @Test
+  public void readsFieldsLikeOrgJson() throws Exception {
+    JSONObject expected = new JSONObject(READING).getJSONObject("reading");
+    JSONObject reading = read(READING).getJSONObject("reading");
+
+    assertThat(reading, is(instanceOf(LazyJSONObject.class)));
+    assertThat(reading.length(), is(expected.length()));
+    assertThat(reading.getLong("id"), is(12345678901L));
+    assertThat(reading.getString("state"), is("finished"));
+    assertThat(reading.getBoolean("private"), is(false));
+    assertThat(reading.isNull("via"), is(true));
+    assertThat(reading.getDouble("progress"), is(0.25));
+    assertThat(reading.getString("closing_remark"), is(expected.getString("closing_remark")));
+    assertThat(reading.getJSONObject("book").getJSONArray("authors").getString(0), is("Franz Kafka"));
+    assertThat(reading.getJSONArray("highlights").getJSONObject(1).getJSONObject("highlight").getInt("id"), is(4));
+    assertThat(reading.has("book"), is(true));
+    assertThat(reading.has("missing"), is(false));
+    assertThat(reading.opt("missing"), is(nullValue()));
+  }
+
+  @Test
+  public void returnsOriginalTextUntilModified() throws Exception {
+    JSONObject root = read(READING);
+    assertThat(root.toString(), is(READING));
+
+    JSONObject user = root.getJSONObject("reading").getJSONObject("user");
+    user.put("username", "kafka");
+    assertThat(((LazyJSONObject) root).isModified(), is(true));
+    assertThat(new JSONObject(root.toString()).getJSONObject("reading").getJSONObject("user").getString("username"), is("kafka"));
+    assertThat(new JSONObject(root.toString()).getJSONObject("reading").getJSONObject("book").getString("title"), is("Metamorphosis"));
+  }
+
+  @Test
+  public void printsChangesMadeThroughArrays() throws Exception {
+    JSONObject root = read(READING);
+    root.getJSONObject("reading").getJSONObject("book").getJSONArray("authors").put("Max Brod");
+    assertThat(new JSONObject(root.toString()).getJSONObject("reading").getJSONObject("book")
+        .getJSONArray("authors").length(), is(2));
+
+    root = read(READING);
+    JSONObject highlight = root.getJSONObject("reading").getJSONArray("highlights").getJSONObject(0);
+    highlight.getJSONObject("highlight").put("id", 5);
+    assertThat(new JSONObject(root.toString()).getJSONObject("reading").getJSONArray("highlights")
+        .getJSONObject(0).getJSONObject("highlight").getInt("id"), is(5));
+  }
+
+  @Test
+  public void inflatesWhenIterated() throws Exception {
+    JSONObject reading = read(READING).getJSONObject("reading");
+    int keys = 0;
+    for(Iterator iterator = reading.keys(); iterator.hasNext(); iterator.next()) {
+      keys++;
+    }
+    assertThat(keys, is(9));
+    assertThat(reading.remove("book"), is(notNullValue()));
+    assertThat(reading.length(), is(8));
+
+    JSONObject pretty = new JSONObject(read(READING).toString(2));
+    assertThat(pretty.getJSONObject("reading").getJSONObject("book").getString("title"), is("Metamorphosis"));
+  }
+
+  @Test
+  public void reportsMalformedValuesWhenRead() throws Exception {
+    JSONObject object = read("{\"good\": 1, \"bad\": tru}");
+    assertThat(object.getInt("good"), is(1));
+    assertThat(object.opt("bad"), is(nullValue()));
+    try {
+      object.get("bad");
+      throw new AssertionError("read a malformed value");
+    } catch(JSONException expected) {
+    }
+  }
+
+  @Test
+  public void rejectsUnbalancedDocuments() throws Exception {
+    String[] invalid = {"", "[]", "{", "{\"a\": [}", "{\"a\": \"}\""};
+    for(String json : invalid) {
+      try {
+        read(json);
+        throw new AssertionError("read " + json);
+      } catch(JSONException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void worksAsWrapperCodec() throws Exception {
+    com.readmill.api.test.MockReadmillWrapper wrapper = new com.readmill.api.test.MockReadmillWrapper();
+    wrapper.setJsonCodec(mCodec);
+    wrapper.respondWithText("{\"items\": [{\"book\": {\"id\": 1}}, {\"book\": {\"id\": 2}}]}");
+    JSONArray books = wrapper.get("/books").fetchItemsOrThrow("book");
+    assertThat(books.getJSONObject(1).getInt("id"), is(2));
+  }
+
+  private JSONObject read(String json) throws IOException, JSONException {
+    return mCodec.readObject(new ByteArrayInputStream(json.getBytes("UTF-8")));
+  }
+}
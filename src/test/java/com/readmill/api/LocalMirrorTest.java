@@ -0,0 +1,195 @@
+package com.readmill.api;
+
+import com.readmill.api.test.MockHttpClient;
+import com.readmill.api.test.MockReadmillWrapper;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class LocalMirrorTest {
+  private LocalMirror mMirror;
+
+  @Before
+  public void createMirror() throws JSONException {
+    mMirror = new LocalMirror(null, 1, null);
+    mMirror.addReadings(new JSONArray("[{ \"id\": 10, \"state\": \"reading\" }]"));
+    mMirror.addHighlights(new JSONArray("[" +
+        "{ \"id\": 100, \"content\": \"One morning, Gregor Samsa woke\", \"reading\": { \"id\": 10 } }," +
+        "{ \"id\": 101, \"content\": \"a monstrous vermin\", \"reading\": { \"id\": 10 } }" +
+        "]"));
+  }
+
+  @Test
+  public void idLookups() {
+    assertThat(mMirror.getReading(10).optString("state"), is("reading"));
+    assertThat(mMirror.getHighlight(101).optString("content"), is("a monstrous vermin"));
+    assertThat(mMirror.getHighlight(102), is(nullValue()));
+    assertThat(mMirror.getHighlights(10).size(), is(2));
+  }
+
+  @Test
+  public void searchRequiresAllTermsAndMatchesLastAsPrefix() {
+    assertThat(ids(mMirror.searchHighlights("gregor")), contains(100L));
+    assertThat(ids(mMirror.searchHighlights("Samsa mor")), contains(100L));
+    assertThat(ids(mMirror.searchHighlights("mo")), contains(100L, 101L));
+    assertThat(mMirror.searchHighlights("gregor vermin").isEmpty(), is(true));
+    assertThat(mMirror.searchHighlights("  ").isEmpty(), is(true));
+  }
+
+  @Test
+  public void updatesReplaceIndexedTerms() throws JSONException {
+    mMirror.addHighlights(new JSONArray("[{ \"id\": 101, \"content\": \"an insect\", \"reading\": { \"id\": 10 } }]"));
+
+    assertThat(mMirror.searchHighlights("vermin").isEmpty(), is(true));
+    assertThat(ids(mMirror.searchHighlights("insect")), contains(101L));
+    assertThat(mMirror.getHighlights(10).size(), is(2));
+  }
+
+  @Test
+  public void commentsAreSearchable() throws JSONException {
+    mMirror.addComments(101, new JSONArray("[{ \"id\": 7, \"content\": \"Kafkaesque\" }]"));
+    assertThat(ids(mMirror.searchHighlights("kafka")), contains(101L));
+    assertThat(mMirror.getComment(7).optString("content"), is("Kafkaesque"));
+
+    mMirror.addComments(101, new JSONArray("[]"));
+    assertThat(mMirror.searchHighlights("kafka").isEmpty(), is(true));
+    assertThat(mMirror.getComment(7), is(nullValue()));
+  }
+
+  @Test
+  public void prefixMatchesManyTerms() throws JSONException {
+    JSONArray highlights = new JSONArray();
+    for(int i = 0; i < 500; i++) {
+      highlights.put(new JSONObject()
+          .put("id", 1000 + (i * 7919) % 500)
+          .put("content", "monster" + i + (i % 2 == 0 ? " even" : ""))
+          .put("reading", new JSONObject().put("id", 10)));
+    }
+    mMirror.addHighlights(highlights);
+
+    List<Long> matches = ids(mMirror.searchHighlights("mon"));
+    assertThat(matches.size(), is(501));
+    assertThat(matches.get(0), is(101L));
+    assertThat(matches.get(500), is(1499L));
+    for(int i = 1; i < matches.size(); i++) {
+      assertThat(matches.get(i), is(greaterThan(matches.get(i - 1))));
+    }
+    assertThat(mMirror.searchHighlights("even monster1").size(), is(55));
+  }
+
+  @Test
+  public void removingAReadingRemovesItsHighlightsAndComments() throws JSONException {
+    mMirror.addComments(101, new JSONArray("[{ \"id\": 7, \"content\": \"Kafkaesque\" }]"));
+    mMirror.removeReading(10);
+
+    assertThat(mMirror.getReading(10), is(nullValue()));
+    assertThat(mMirror.getHighlight(100), is(nullValue()));
+    assertThat(mMirror.getHighlights(10).isEmpty(), is(true));
+    assertThat(mMirror.getComment(7), is(nullValue()));
+    assertThat(mMirror.searchHighlights("kafka").isEmpty(), is(true));
+    assertThat(mMirror.searchHighlights("gregor").isEmpty(), is(true));
+  }
+
+  @Test
+  public void refreshFetchesEveryPageOfComments() throws Exception {
+    MockReadmillWrapper wrapper = new MockReadmillWrapper();
+    wrapper.when("GET", "/v2/users/1/readings").thenRespond(200, "{ \"items\": [] }");
+    wrapper.when("GET", "/v2/users/1/highlights").thenRespond(200, page("highlight",
+        "{ \"id\": 200, \"content\": \"first\", \"comments_count\": 150, \"reading\": { \"id\": 10 }, " +
+            "\"created_at\": \"2012-03-01T10:00:00Z\" }",
+        "{ \"id\": 201, \"content\": \"second\", \"comments_count\": 0, \"reading\": { \"id\": 10 }, " +
+            "\"created_at\": \"2012-03-01T10:00:00Z\" }"));
+    wrapper.when("GET", "/v2/highlights/200/comments")
+        .thenRespond(200, page("comment", comments(1150, 100, 0)))
+        .thenRespond(200, page("comment", comments(1051, 51, 99)));
+
+    LocalMirror mirror = new LocalMirror(wrapper, 1, cursor(wrapper));
+    mirror.refresh();
+
+    assertThat(mirror.getComments(200).size(), is(150));
+    assertThat(ids(mirror.searchHighlights("comment1001")), contains(200L));
+    assertThat(mirror.getHighlight(201).optString("content"), is("second"));
+    // No comments, nothing to fetch
+    for(HttpRequest request : wrapper.getRequests()) {
+      assertThat(((HttpUriRequest) request).getURI().getPath(), not(containsString("/highlights/201/")));
+    }
+  }
+
+  @Test
+  public void pruneDropsDeletedEntities() throws Exception {
+    MockReadmillWrapper wrapper = new MockReadmillWrapper();
+    wrapper.when("GET", "/v2/users/1/readings").thenRespond(200, page("reading", "{ \"id\": 11 }"));
+    wrapper.when("GET", "/v2/users/1/highlights").thenRespond(200, page("highlight",
+        "{ \"id\": 110, \"content\": \"kept\", \"comments_count\": 0, \"reading\": { \"id\": 11 } }"));
+    // Its comment count changed, so its comments are fetched again
+    MockHttpClient.Route comments = wrapper.when("GET", "/v2/highlights/110/comments").thenRespond(200, page("comment"));
+
+    LocalMirror mirror = new LocalMirror(wrapper, 1, null);
+    mirror.addReadings(new JSONArray("[{ \"id\": 10 }, { \"id\": 11 }]"));
+    mirror.addHighlights(new JSONArray("[" +
+        "{ \"id\": 100, \"content\": \"deleted reading\", \"reading\": { \"id\": 10 } }," +
+        "{ \"id\": 110, \"content\": \"kept\", \"reading\": { \"id\": 11 } }," +
+        "{ \"id\": 111, \"content\": \"deleted highlight\", \"reading\": { \"id\": 11 } }" +
+        "]"));
+    mirror.addComments(110, new JSONArray("[{ \"id\": 7, \"content\": \"deleted comment\" }]"));
+    mirror.addComments(111, new JSONArray("[{ \"id\": 8, \"content\": \"gone too\" }]"));
+
+    assertThat(mirror.prune(), is(3));
+
+    assertThat(mirror.getReading(10), is(nullValue()));
+    assertThat(mirror.getReading(11), is(notNullValue()));
+    assertThat(ids(mirror.getHighlights(11)), contains(110L));
+    assertThat(mirror.getComment(7), is(nullValue()));
+    assertThat(mirror.getComment(8), is(nullValue()));
+    assertThat(ids(mirror.searchHighlights("deleted")), is(empty()));
+    assertThat(ids(mirror.searchHighlights("kept")), contains(110L));
+    assertThat(comments.getHitCount(), is(1));
+  }
+
+  private SyncCursor cursor(ReadmillWrapper wrapper) throws IOException {
+    File state = File.createTempFile("mirror", ".properties");
+    state.delete();
+    state.deleteOnExit();
+    return new SyncCursor(wrapper, state);
+  }
+
+  // Comments numbered down from firstId, one second apart counting back
+  // from secondsBack seconds before 10:00
+  private static String[] comments(long firstId, int count, int secondsBack) {
+    String[] comments = new String[count];
+    for(int i = 0; i < count; i++) {
+      int seconds = 3600 - secondsBack - i;
+      comments[i] = String.format("{ \"id\": %d, \"content\": \"comment%d\", " +
+          "\"created_at\": \"2012-03-01T09:%02d:%02dZ\" }", firstId - i, firstId - i, seconds / 60, seconds % 60);
+    }
+    return comments;
+  }
+
+  private static String page(String itemKey, String... items) {
+    StringBuilder page = new StringBuilder("{ \"items\": [");
+    for(int i = 0; i < items.length; i++) {
+      page.append(i > 0 ? "," : "").append("{ \"").append(itemKey).append("\": ").append(items[i]).append(" }");
+    }
+    return page.append("] }").toString();
+  }
+
+  private static List<Long> ids(List<JSONObject> highlights) {
+    List<Long> ids = new ArrayList<Long>(highlights.size());
+    for(JSONObject highlight : highlights) {
+      ids.add(highlight.optLong("id"));
+    }
+    return ids;
+  }
+}
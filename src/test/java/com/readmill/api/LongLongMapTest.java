@@ -0,0 +1,49 @@
+package com.readmill.api;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class LongLongMapTest {
+
+  @Test
+  public void putGetRemove() {
+    LongLongMap map = new LongLongMap();
+    assertThat(map.put(1, 10), is(-1L));
+    assertThat(map.put(1, 11), is(10L));
+    assertThat(map.get(1), is(11L));
+    assertThat(map.size(), is(1));
+    assertThat(map.remove(1), is(11L));
+    assertThat(map.get(1), is(-1L));
+    assertThat(map.size(), is(0));
+  }
+
+  @Test
+  public void behavesLikeHashMapUnderRandomOperations() {
+    LongLongMap map = new LongLongMap();
+    Map<Long, Long> expected = new HashMap<Long, Long>();
+    Random random = new Random(42);
+
+    for(int i = 0; i < 20000; i++) {
+      long key = random.nextInt(500);
+      if(random.nextBoolean()) {
+        Long previous = expected.put(key, (long) i);
+        assertThat(map.put(key, i), is(previous == null ? -1L : previous));
+      } else {
+        Long removed = expected.remove(key);
+        assertThat(map.remove(key), is(removed == null ? -1L : removed));
+      }
+    }
+
+    assertThat(map.size(), is(expected.size()));
+    for(long key = 0; key < 500; key++) {
+      Long value = expected.get(key);
+      assertThat(map.get(key), is(value == null ? -1L : value));
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.readmill.api;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class LongObjectMapTest {
+
+  @Test
+  public void putGetRemove() {
+    LongObjectMap<String> map = new LongObjectMap<String>();
+    assertThat(map.put(1, "one"), is(nullValue()));
+    assertThat(map.put(1, "uno"), is("one"));
+    assertThat(map.get(1), is("uno"));
+    assertThat(map.size(), is(1));
+    assertThat(map.remove(1), is("uno"));
+    assertThat(map.get(1), is(nullValue()));
+    assertThat(map.isEmpty(), is(true));
+  }
+
+  @Test
+  public void behavesLikeHashMapUnderRandomOperations() {
+    LongObjectMap<Long> map = new LongObjectMap<Long>();
+    Map<Long, Long> expected = new HashMap<Long, Long>();
+    Random random = new Random(42);
+
+    for(int i = 0; i < 20000; i++) {
+      long key = random.nextInt(500);
+      if(random.nextBoolean()) {
+        assertThat(map.put(key, (long) i), is(expected.put(key, (long) i)));
+      } else {
+        assertThat(map.remove(key), is(expected.remove(key)));
+      }
+    }
+
+    assertThat(map.size(), is(expected.size()));
+    for(long key = 0; key < 500; key++) {
+      assertThat(map.get(key), is(expected.get(key)));
+    }
+  }
+
+  @Test
+  public void keysAreASnapshot() {
+    LongObjectMap<String> map = new LongObjectMap<String>();
+    for(long key = 1; key <= 40; key++) {
+      map.put(key * 1000, "value");
+    }
+    map.remove(2000);
+
+    long[] keys = map.keys();
+    assertThat(keys.length, is(39));
+    for(long key : keys) {
+      map.remove(key);
+    }
+    assertThat(map.isEmpty(), is(true));
+  }
+}
@@ -0,0 +1,82 @@
+package com.readmill.api;
+
+import com.readmill.api.test.FakeReadmillServer;
+import org.apache.http.client.methods.HttpGet;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ManagedResponseTest {
+  private FakeReadmillServer mServer;
+  private ReadmillWrapper mWrapper;
+  private String mBook;
+
+  @Before
+  public void startServer() throws Exception {
+    mServer = new FakeReadmillServer(0, 4);
+    mBook = "/books/" + mServer.addBook(new JSONObject().put("title", "Metamorphosis"));
+    mServer.start();
+    mWrapper = new ReadmillWrapper("client-id", "client-secret", mServer.getEnvironment());
+    // A single connection, so any leak blocks the next request
+    mWrapper.setMaxConnections(1, 1);
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    mWrapper.close();
+    mServer.close();
+  }
+
+  @Test
+  public void closeReleasesTheConnection() throws Exception {
+    for(int i = 0; i < 5; i++) {
+      ManagedResponse response = mWrapper.get(mBook).withDeadline(5, TimeUnit.SECONDS).open();
+      assertThat(response.getStatusCode(), is(200));
+      response.close();
+      assertThat(response.isClosed(), is(true));
+    }
+    assertThat(mWrapper.getOpenResponseCount(), is(0));
+    assertThat(mWrapper.getLeakedResponseCount(), is(0L));
+  }
+
+  @Test
+  public void readingTheBodyCloses() throws Exception {
+    for(int i = 0; i < 3; i++) {
+      assertThat(mWrapper.get(mBook).withDeadline(5, TimeUnit.SECONDS).open().getJSON().has("book"), is(true));
+    }
+    ManagedResponse missing = mWrapper.open(Request.to("/books/404").withDeadline(5, TimeUnit.SECONDS), HttpGet.class);
+    assertThat(missing.getStatusCode(), is(404));
+    missing.getText();
+    assertThat(mWrapper.getOpenResponseCount(), is(0));
+  }
+
+  @Test
+  public void releasesLeakedResponses() throws Exception {
+    mWrapper.setResponseLeakTracing(true);
+    leakResponse();
+    assertThat(mWrapper.getOpenResponseCount(), is(1));
+
+    long deadline = System.currentTimeMillis() + 10000;
+    while(mWrapper.getLeakedResponseCount() == 0 && System.currentTimeMillis() < deadline) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    assertThat(mWrapper.getLeakedResponseCount(), is(1L));
+    assertThat(mWrapper.getOpenResponseCount(), is(0));
+
+    // The connection is back in the pool
+    ManagedResponse response = mWrapper.get(mBook).withDeadline(5, TimeUnit.SECONDS).open();
+    assertThat(response.getStatusCode(), is(200));
+    response.close();
+  }
+
+  private void leakResponse() throws Exception {
+    mWrapper.get(mBook).withDeadline(5, TimeUnit.SECONDS).open();
+  }
+}
@@ -0,0 +1,59 @@
+package com.readmill.api;
+
+import com.readmill.api.test.MockReadmillWrapper;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+
+import static com.readmill.api.Projection.fields;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ProjectionTest {
+  private static final String HIGHLIGHTS = "{\"items\": [" +
+      "{\"highlight\": {\"id\": 1, \"content\": \"A great highlight\", \"position\": 0.5," +
+      " \"locators\": {\"pre\": \"before\", \"post\": \"after\", \"xpath\": [\"/p[1]\", \"/p[2]\"]}," +
+      " \"user\": {\"id\": 7, \"username\": \"franz\", \"avatar_url\": \"http://example.com/7.png\"}," +
+      " \"comments\": [{\"id\": 9, \"content\": \"Indeed\"}, {\"id\": 10, \"content\": \"\\\"Yes\\\"\"}]}}," +
+      "{\"highlight\": {\"id\": 2, \"content\": \"Another\", \"position\": 0.75, \"locators\": null}}" +
+      "], \"pagination\": {\"next\": \"http://example.com/next\"}}";
+
+  @Test
+  public void keepsOnlyProjectedFields() throws Exception {
+    Projection projection = Projection.field("items", Projection.field("highlight",
+        fields("id", "content", "user.username", "comments.id")));
+    JSONObject parsed = new StreamingJsonCodec().readObject(new ByteArrayInputStream(HIGHLIGHTS.getBytes("UTF-8")), projection);
+
+    assertThat(parsed.has("pagination"), is(false));
+    JSONObject first = parsed.getJSONArray("items").getJSONObject(0).getJSONObject("highlight");
+    assertThat(first.length(), is(4));
+    assertThat(first.getString("content"), is("A great highlight"));
+    assertThat(first.has("locators"), is(false));
+    assertThat(first.getJSONObject("user").length(), is(1));
+    assertThat(first.getJSONObject("user").getString("username"), is("franz"));
+    assertThat(first.getJSONArray("comments").getJSONObject(1).length(), is(1));
+    assertThat(first.getJSONArray("comments").getJSONObject(1).getInt("id"), is(10));
+  }
+
+  @Test
+  public void wholeValueOverridesNestedFields() throws Exception {
+    Projection projection = fields("user.id", "user", "locators.pre");
+    assertThat(projection.includes("user"), is(true));
+    assertThat(projection.get("user"), is(nullValue()));
+    assertThat(projection.get("locators").includes("pre"), is(true));
+    assertThat(projection.includes("content"), is(false));
+  }
+
+  @Test
+  public void projectsFetchedItems() throws Exception {
+    MockReadmillWrapper wrapper = new MockReadmillWrapper();
+    wrapper.respondWithText(HIGHLIGHTS);
+
+    JSONArray highlights = wrapper.get("/readings/1/highlights").fetchItems("highlight", fields("id", "position"));
+    assertThat(highlights.length(), is(2));
+    assertThat(highlights.getJSONObject(0).length(), is(2));
+    assertThat(highlights.getJSONObject(1).getDouble("position"), is(0.75));
+  }
+}
@@ -3,19 +3,39 @@ package com.readmill.api;
 import org.apache.http.Header;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import com.readmill.api.test.FakeReadmillServer;
+import com.readmill.api.test.MockHttpClient;
+import com.readmill.api.test.MockReadmillWrapper;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.*;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
@@ -154,7 +174,7 @@ public class ReadmillWrapperTest {
 
     ArgumentCaptor<Request> requestArgument = ArgumentCaptor.forClass(Request.class);
     mWrapper = Mockito.spy(mWrapper);
-    Mockito.doReturn(tokenJSON).when(mWrapper).getResponseText(requestArgument.capture(), Mockito.eq(HttpPost.class));
+    Mockito.doReturn(textResponse(tokenJSON)).when(mWrapper).execute(requestArgument.capture(), Mockito.eq(HttpPost.class));
 
     Token obtainedToken = mWrapper.obtainTokenOrThrow("authcode2000");
 
@@ -192,7 +212,7 @@ public class ReadmillWrapperTest {
     mWrapper.setScope("non-expiring");
     ArgumentCaptor<Request> requestArgument = ArgumentCaptor.forClass(Request.class);
     mWrapper = Mockito.spy(mWrapper);
-    Mockito.doReturn(tokenJSON).when(mWrapper).getResponseText(requestArgument.capture(), Mockito.eq(HttpPost.class));
+    Mockito.doReturn(textResponse(tokenJSON)).when(mWrapper).execute(requestArgument.capture(), Mockito.eq(HttpPost.class));
 
     mWrapper.obtainTokenOrThrow("my-code");
 
@@ -211,7 +231,7 @@ public class ReadmillWrapperTest {
 
     ArgumentCaptor<Request> requestArgument = ArgumentCaptor.forClass(Request.class);
     mWrapper = Mockito.spy(mWrapper);
-    Mockito.doReturn(tokenJSON).when(mWrapper).getResponseText(requestArgument.capture(), Mockito.eq(HttpPost.class));
+    Mockito.doReturn(textResponse(tokenJSON)).when(mWrapper).execute(requestArgument.capture(), Mockito.eq(HttpPost.class));
 
     Token obtainedToken = mWrapper.login("testusername", "testpassword");
 
@@ -283,8 +303,385 @@ public class ReadmillWrapperTest {
     assertThat(actual, is(expected));
   }
 
+  @Test
+  public void closeShutsDownConnectionPool() throws IOException {
+    mWrapper.getHttpClient();
+    mWrapper.close();
+
+    assertThat(mWrapper.isClosed(), is(true));
+    try {
+      mWrapper.execute(Request.to("/users/1"), HttpGet.class);
+      throw new AssertionError("closed wrapper accepted a request");
+    } catch(IllegalStateException expected) {}
+
+    mWrapper.close(); // no-op
+  }
+
+  @Test(timeout = 10000)
+  public void closeWaitsForResponsesBeingRead() throws Exception {
+    FakeReadmillServer server = new FakeReadmillServer(0, 2);
+    long bookId = server.addBook(new JSONObject().put("title", "Metamorphosis"));
+    server.start();
+    try {
+      final ReadmillWrapper wrapper = new ReadmillWrapper("client-id", "client-secret", server.getEnvironment());
+      HttpResponse response = wrapper.execute(Request.to("/books/%d", bookId), HttpGet.class);
+
+      Thread closer = new Thread() {
+        @Override
+        public void run() {
+          try {
+            wrapper.close();
+          } catch(IOException ignored) {}
+        }
+      };
+      closer.start();
+      closer.join(300);
+      assertThat(closer.isAlive(), is(true));
+
+      // The pool is still open for the body, and close() finishes once it is read
+      assertThat(HttpUtils.getString(response), containsString("Metamorphosis"));
+      closer.join(5000);
+      assertThat(closer.isAlive(), is(false));
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void warmUpOpensDistinctPooledConnections() throws Exception {
+    final ServerSocket server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+    final AtomicInteger accepted = new AtomicInteger();
+    Thread acceptor = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while(true) {
+            server.accept();
+            accepted.incrementAndGet();
+          }
+        } catch(IOException ignored) {}
+      }
+    };
+    acceptor.start();
+
+    try {
+      int port = server.getLocalPort();
+      ReadmillWrapper wrapper = new ReadmillWrapper("id", "secret", new Environment("127.0.0.1", port, "127.0.0.1", port, false));
+      wrapper.setMaxConnections(4, 20);
+
+      assertThat(wrapper.warmUp(3).get(5, TimeUnit.SECONDS), is(3));
+      for(int i = 0; i < 100 && accepted.get() < 3; i++) {
+        Thread.sleep(20); // the acceptor may lag behind the connects
+      }
+      assertThat(accepted.get(), is(3));
+      wrapper.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void deadlineAbortsUnresponsiveRequest() throws Exception {
+    ServerSocket server = silentServer();
+    try {
+      ReadmillWrapper wrapper = wrapperFor(server);
+      long started = System.currentTimeMillis();
+      try {
+        wrapper.get("/users/1").withDeadline(300, TimeUnit.MILLISECONDS).getResponseText();
+        throw new AssertionError("request did not time out");
+      } catch(InterruptedIOException expected) {}
+      assertThat(System.currentTimeMillis() - started, lessThan(2000L));
+      wrapper.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void interruptAbortsRequest() throws Exception {
+    ServerSocket server = silentServer();
+    try {
+      final ReadmillWrapper wrapper = wrapperFor(server);
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      Thread caller = new Thread() {
+        @Override
+        public void run() {
+          try {
+            wrapper.get("/users/1").getResponseText();
+          } catch(Throwable e) {
+            failure.set(e);
+          }
+        }
+      };
+      caller.start();
+      Thread.sleep(200);
+      caller.interrupt();
+      caller.join();
+
+      assertThat(failure.get(), is(instanceOf(InterruptedIOException.class)));
+      wrapper.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void deadlineCoversReadingTheBody() throws Exception {
+    ServerSocket server = stallingServer();
+    try {
+      ReadmillWrapper wrapper = wrapperFor(server);
+      long started = System.currentTimeMillis();
+      try {
+        wrapper.get("/users/1").withDeadline(300, TimeUnit.MILLISECONDS).getResponseText();
+        throw new AssertionError("body read did not time out");
+      } catch(IOException expected) {}
+      assertThat(System.currentTimeMillis() - started, lessThan(2000L));
+      wrapper.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void cancelAbortsReadingTheBody() throws Exception {
+    ServerSocket server = stallingServer();
+    try {
+      ReadmillWrapper wrapper = wrapperFor(server);
+      final Request request = Request.to("/users/1");
+      HttpResponse response = wrapper.execute(request, HttpGet.class);
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            Thread.sleep(200);
+          } catch(InterruptedException ignored) {}
+          request.cancel();
+        }
+      }.start();
+      try {
+        HttpUtils.getString(response);
+        throw new AssertionError("cancel did not abort the body read");
+      } catch(IOException expected) {}
+      wrapper.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void wrappersThatAreNotClosedCanBeCollected() throws Exception {
+    WeakReference<ReadmillWrapper> wrapper = sendAndForget();
+    while(wrapper.get() != null) {
+      System.gc();
+      Thread.sleep(50);
+    }
+  }
+
+  @Test
+  public void wrappersShareOneScheduler() {
+    assertThat(new MockReadmillWrapper().getScheduler(), is(sameInstance(new MockReadmillWrapper().getScheduler())));
+  }
+
+  @Test
+  public void interruptedCallerKeepsItsInterruptFlag() throws IOException {
+    stubbedHttpClient();
+    Thread.currentThread().interrupt();
+    try {
+      mWrapper.execute(Request.to("/users/1"), HttpGet.class);
+      throw new AssertionError("interrupted request was sent");
+    } catch(InterruptedIOException expected) {
+      assertThat(Thread.interrupted(), is(true));
+    }
+  }
+
+  @Test
+  public void cancelledRequestIsNotSent() throws IOException {
+    HttpClient httpClient = stubbedHttpClient();
+    Request request = Request.to("/users/1");
+    request.cancel();
+
+    try {
+      mWrapper.execute(request, HttpGet.class);
+      throw new AssertionError("cancelled request was sent");
+    } catch(InterruptedIOException expected) {}
+    Mockito.verifyZeroInteractions(httpClient);
+  }
+
+  @Test(timeout = 5000)
+  public void slowGetIsHedged() throws Exception {
+    HttpClient httpClient = stubbedHttpClient();
+    final List<HttpRequestBase> sent = new CopyOnWriteArrayList<HttpRequestBase>();
+    Mockito.when(httpClient.execute(Mockito.any(HttpHost.class), Mockito.any(HttpRequest.class))).thenAnswer(new Answer<HttpResponse>() {
+      @Override
+      public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+        HttpRequestBase request = (HttpRequestBase) invocation.getArguments()[1];
+        sent.add(request);
+        if(sent.size() == 1) {
+          Thread.sleep(2000); // the first attempt is stuck
+        }
+        return MockHttpClient.createMockResponse(200, "hedged");
+      }
+    });
+
+    HedgePolicy policy = hedgingPolicy();
+    mWrapper.setHedgePolicy(policy);
+
+    HttpResponse response = mWrapper.execute(Request.to("/users/1/readings"), HttpGet.class);
+    assertThat(HttpUtils.getString(response), is("hedged"));
+    assertThat(sent.size(), is(2));
+    assertThat(sent.get(0).isAborted(), is(true));
+    assertThat(policy.getHedgedCount(), is(1L));
+  }
+
+  @Test(timeout = 5000)
+  public void hedgeNeedsAFreeDispatcherSlot() throws Exception {
+    HttpClient httpClient = stubbedHttpClient();
+    final List<HttpRequestBase> sent = new CopyOnWriteArrayList<HttpRequestBase>();
+    Mockito.when(httpClient.execute(Mockito.any(HttpHost.class), Mockito.any(HttpRequest.class))).thenAnswer(new Answer<HttpResponse>() {
+      @Override
+      public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+        sent.add((HttpRequestBase) invocation.getArguments()[1]);
+        Thread.sleep(200);
+        return MockHttpClient.createMockResponse(200, "slow");
+      }
+    });
+
+    mWrapper.setHedgePolicy(hedgingPolicy());
+    mWrapper.getDispatcher().setLimit(1);
+
+    HttpResponse response = mWrapper.execute(Request.to("/users/1/readings"), HttpGet.class);
+    assertThat(HttpUtils.getString(response), is("slow"));
+    assertThat(sent.size(), is(1));
+    assertThat(mWrapper.getDispatcher().getInFlight(), is(0));
+  }
+
+  @Test(timeout = 5000)
+  public void hedgedDeadlineCoversReadingTheBody() throws Exception {
+    ServerSocket server = stallingServer();
+    try {
+      ReadmillWrapper wrapper = wrapperFor(server);
+      wrapper.setHedgePolicy(hedgingPolicy());
+      long started = System.currentTimeMillis();
+      try {
+        wrapper.get("/users/1").withDeadline(300, TimeUnit.MILLISECONDS).getResponseText();
+        throw new AssertionError("body read did not time out");
+      } catch(IOException expected) {}
+      assertThat(System.currentTimeMillis() - started, lessThan(2000L));
+      wrapper.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void cancelAbortsReadingAHedgedBody() throws Exception {
+    ServerSocket server = stallingServer();
+    try {
+      ReadmillWrapper wrapper = wrapperFor(server);
+      wrapper.setHedgePolicy(hedgingPolicy());
+      final Request request = Request.to("/users/1");
+      HttpResponse response = wrapper.execute(request, HttpGet.class);
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            Thread.sleep(200);
+          } catch(InterruptedException ignored) {}
+          request.cancel();
+        }
+      }.start();
+      try {
+        HttpUtils.getString(response);
+        throw new AssertionError("cancel did not abort the body read");
+      } catch(IOException expected) {}
+      wrapper.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void spreadsRequestsOverApiHosts() throws IOException {
+    Environment env = new Environment(new String[] { "one.example.com", "two.example.com" }, "www.example.com", true);
+    mWrapper = new ReadmillWrapper("my_client_id", "my_client_secret", env);
+    mWrapper.setLoadBalancer(new LoadBalancer.RoundRobin());
+    HttpClient httpClient = stubbedHttpClient();
+    Mockito.when(httpClient.execute(Mockito.any(HttpHost.class), Mockito.any(HttpRequest.class)))
+        .thenReturn(MockHttpClient.createMockResponse(200));
+    ArgumentCaptor<HttpHost> targetArgument = ArgumentCaptor.forClass(HttpHost.class);
+
+    mWrapper.execute(Request.to("/users/1"), HttpGet.class);
+    mWrapper.execute(Request.to("/users/1"), HttpGet.class);
+    mWrapper.execute(Request.to("https://www.example.com/oauth/token"), HttpPost.class);
+    Mockito.verify(httpClient, Mockito.times(3)).execute(targetArgument.capture(), Mockito.any(HttpRequest.class));
+
+    List<HttpHost> targets = targetArgument.getAllValues();
+    assertThat(targets.get(0).getHostName(), is(not(targets.get(1).getHostName())));
+    assertThat(targets.get(2).getHostName(), is("www.example.com"));
+  }
+
   // Helpers
 
+  // A server that accepts connections but never answers
+  private static WeakReference<ReadmillWrapper> sendAndForget() throws IOException {
+    MockReadmillWrapper wrapper = new MockReadmillWrapper();
+    wrapper.respondWithText("{}");
+    wrapper.get("/users/1").withDeadline(50, TimeUnit.MILLISECONDS).send();
+    return new WeakReference<ReadmillWrapper>(wrapper);
+  }
+
+  private ServerSocket silentServer() throws IOException {
+    final ServerSocket server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+    new Thread() {
+      @Override
+      public void run() {
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
+          while(true) {
+            sockets.add(server.accept());
+          }
+        } catch(IOException ignored) {}
+      }
+    }.start();
+    return server;
+  }
+
+  // A policy that hedges every request after about 20ms
+  private static HedgePolicy hedgingPolicy() {
+    HedgePolicy policy = new HedgePolicy(0.5, 0, 1.0);
+    for(int i = 0; i < HedgePolicy.MIN_SAMPLES; i++) {
+      policy.recordLatency(20);
+    }
+    return policy;
+  }
+
+  // A server that sends the headers and the start of a large body, then stalls
+  private ServerSocket stallingServer() throws IOException {
+    final ServerSocket server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+    new Thread() {
+      @Override
+      public void run() {
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
+          while(true) {
+            Socket socket = server.accept();
+            sockets.add(socket);
+            socket.getOutputStream().write(("HTTP/1.1 200 OK\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Content-Length: 1000000\r\n\r\n{\"items\":[").getBytes("US-ASCII"));
+            socket.getOutputStream().flush();
+          }
+        } catch(IOException ignored) {}
+      }
+    }.start();
+    return server;
+  }
+
+  private ReadmillWrapper wrapperFor(ServerSocket server) {
+    int port = server.getLocalPort();
+    return new ReadmillWrapper("id", "secret", new Environment("127.0.0.1", port, "127.0.0.1", port, false));
+  }
+
   private HttpClient stubbedHttpClient() {
     HttpClient httpClient = Mockito.mock(HttpClient.class);
     mWrapper = Mockito.spy(mWrapper);
@@ -292,6 +689,12 @@ public class ReadmillWrapperTest {
     return httpClient;
   }
 
+  private HttpResponse textResponse(String text) throws IOException {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setEntity(new StringEntity(text, "UTF-8"));
+    return response;
+  }
+
   // Pull out a header from a captured http request argument
   private String extractHeader(ArgumentCaptor<? extends HttpRequest> captor, String headerName) {
     Header[] headers = captor.getValue().getHeaders(headerName);
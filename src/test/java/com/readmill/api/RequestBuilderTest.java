@@ -1,6 +1,10 @@
 package com.readmill.api;
 
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -85,8 +89,10 @@ public class RequestBuilderTest {
   /* Private helpers */
 
   private RequestBuilder builderWithStubbedResponseText(String jsonText) throws JSONException, IOException {
-    RequestBuilder builder = Mockito.spy(instance);
-    Mockito.doReturn(jsonText).when(builder).getResponseText();
-    return builder;
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setEntity(new StringEntity(jsonText, "UTF-8"));
+    ReadmillWrapper wrapper = Mockito.spy(mWrapper);
+    Mockito.doReturn(response).when(wrapper).execute(Mockito.any(Request.class), Mockito.eq(HttpGet.class));
+    return new RequestBuilder(wrapper, HttpGet.class, "/users/1/readings");
   }
 }
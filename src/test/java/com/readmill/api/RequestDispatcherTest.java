@@ -0,0 +1,239 @@
+package com.readmill.api;
+
+import com.readmill.api.test.FakeReadmillServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class RequestDispatcherTest {
+
+  @Test
+  public void servesHigherPrioritiesFirst() throws Exception {
+    RequestDispatcher dispatcher = new RequestDispatcher(1);
+    dispatcher.acquire(new Request(), null);
+
+    List<Priority> served = Collections.synchronizedList(new ArrayList<Priority>());
+    for(int i = 0; i < 3; i++) {
+      queue(dispatcher, new Request().withPriority(Priority.BACKGROUND), served);
+    }
+    awaitQueueLength(dispatcher, 3);
+    for(int i = 0; i < 3; i++) {
+      queue(dispatcher, new Request().withPriority(Priority.INTERACTIVE), served);
+    }
+    awaitQueueLength(dispatcher, 6);
+    assertThat(dispatcher.getQueueLength(Priority.INTERACTIVE), is(3));
+
+    releaseAll(dispatcher, served, 6);
+    assertThat(served, contains(Priority.INTERACTIVE, Priority.INTERACTIVE, Priority.INTERACTIVE,
+        Priority.BACKGROUND, Priority.BACKGROUND, Priority.BACKGROUND));
+  }
+
+  @Test
+  public void doesNotStarveLowerPriorities() throws Exception {
+    RequestDispatcher dispatcher = new RequestDispatcher(1);
+    dispatcher.acquire(new Request(), null);
+
+    List<Priority> served = Collections.synchronizedList(new ArrayList<Priority>());
+    for(int i = 0; i < 34; i++) {
+      queue(dispatcher, new Request().withPriority(Priority.INTERACTIVE), served);
+    }
+    for(int i = 0; i < 2; i++) {
+      queue(dispatcher, new Request().withPriority(Priority.BACKGROUND), served);
+    }
+    awaitQueueLength(dispatcher, 36);
+
+    releaseAll(dispatcher, served, 36);
+    // One of every 17 requests is background while both are waiting
+    assertThat(Collections.frequency(served.subList(0, 17), Priority.BACKGROUND), is(1));
+    assertThat(Collections.frequency(served.subList(17, 34), Priority.BACKGROUND), is(1));
+  }
+
+  @Test
+  public void dropsRequestsExpiredWhileQueued() throws Exception {
+    RequestDispatcher dispatcher = new RequestDispatcher(1);
+    dispatcher.acquire(new Request(), null);
+
+    try {
+      dispatcher.acquire(new Request().withDeadline(50, TimeUnit.MILLISECONDS), null);
+      throw new AssertionError("expected the request to be dropped");
+    } catch(InterruptedIOException e) {
+      assertThat(e.getMessage(), containsString("deadline"));
+    }
+    assertThat(dispatcher.getDroppedCount(), is(1L));
+    assertThat(dispatcher.getQueueLength(), is(0));
+
+    dispatcher.release(null);
+    assertThat(dispatcher.getInFlight(), is(0));
+  }
+
+  @Test
+  public void alternatesBetweenTenants() throws Exception {
+    RequestDispatcher dispatcher = new RequestDispatcher(1);
+    dispatcher.acquire(new Request(), "heavy");
+
+    List<String> served = Collections.synchronizedList(new ArrayList<String>());
+    for(int i = 0; i < 10; i++) {
+      queue(dispatcher, new Request(), "heavy", served, "heavy");
+    }
+    awaitQueueLength(dispatcher, 10);
+    for(int i = 0; i < 2; i++) {
+      queue(dispatcher, new Request(), "light", served, "light");
+    }
+    awaitQueueLength(dispatcher, 12);
+    assertThat(dispatcher.getQueueLength("heavy"), is(10));
+    assertThat(dispatcher.getQueueLengths().get("light"), is(2));
+
+    // Without a tenant limit, which tenant is released only affects the metrics
+    releaseAll(dispatcher, "heavy", served, 12);
+    assertThat(served.subList(0, 4), contains("heavy", "light", "heavy", "light"));
+  }
+
+  @Test
+  public void servesTenantsByWeight() throws Exception {
+    RequestDispatcher dispatcher = new RequestDispatcher(1);
+    dispatcher.setTenantWeight("admin", 2);
+    dispatcher.acquire(new Request(), null);
+
+    List<String> served = Collections.synchronizedList(new ArrayList<String>());
+    for(int i = 0; i < 4; i++) {
+      queue(dispatcher, new Request(), "admin", served, "admin");
+    }
+    awaitQueueLength(dispatcher, 4);
+    for(int i = 0; i < 2; i++) {
+      queue(dispatcher, new Request(), "user", served, "user");
+    }
+    awaitQueueLength(dispatcher, 6);
+
+    releaseAll(dispatcher, served, 6);
+    assertThat(served, contains("admin", "admin", "user", "admin", "admin", "user"));
+  }
+
+  @Test
+  public void capsRequestsInFlightPerTenant() throws Exception {
+    RequestDispatcher dispatcher = new RequestDispatcher(4);
+    dispatcher.setTenantLimit(2);
+    dispatcher.acquire(new Request(), "a");
+    dispatcher.acquire(new Request(), "a");
+
+    List<String> served = Collections.synchronizedList(new ArrayList<String>());
+    queue(dispatcher, new Request(), "a", served, "a");
+    awaitQueueLength(dispatcher, 1);
+    assertThat(dispatcher.getInFlight("a"), is(2));
+
+    // Other tenants still get the free slots
+    dispatcher.acquire(new Request(), "b");
+    assertThat(dispatcher.getInFlight(), is(3));
+    assertThat(dispatcher.getQueueLength("a"), is(1));
+
+    releaseAll(dispatcher, "a", served, 1);
+    assertThat(dispatcher.getInFlight("a"), is(2));
+    assertThat(dispatcher.getQueueLength(), is(0));
+  }
+
+  @Test
+  public void holdsTheSlotUntilTheResponseIsRead() throws Exception {
+    FakeReadmillServer server = new FakeReadmillServer(0, 2);
+    long bookId = server.addBook(new JSONObject().put("title", "Metamorphosis"));
+    server.start();
+    ReadmillWrapper wrapper = new ReadmillWrapper("client-id", "client-secret", server.getEnvironment());
+    try {
+      wrapper.setMaxConnections(1, 1);
+      RequestDispatcher dispatcher = wrapper.getDispatcher();
+      assertThat(dispatcher.getLimit(), is(1));
+
+      HttpResponse response = wrapper.get(Request.to("/books/%d", bookId));
+      assertThat(dispatcher.getInFlight(), is(1));
+      EntityUtils.toString(response.getEntity());
+      assertThat(dispatcher.getInFlight(), is(0));
+
+      // The next request would wait for the slot forever if it leaked
+      response = wrapper.execute(Request.to("/books/%d", bookId).withDeadline(5, TimeUnit.SECONDS), HttpGet.class);
+      response.getEntity().consumeContent();
+      assertThat(dispatcher.getInFlight(), is(0));
+    } finally {
+      wrapper.close();
+      server.close();
+    }
+  }
+
+  @Test
+  public void namesTenantsWithoutTheirAccessToken() throws Exception {
+    FakeReadmillServer server = new FakeReadmillServer(0, 2);
+    long bookId = server.addBook(new JSONObject().put("title", "Metamorphosis"));
+    server.start();
+    ReadmillWrapper wrapper = new ReadmillWrapper("client-id", "client-secret", server.getEnvironment());
+    try {
+      wrapper.setToken(new Token("secret-access-token"));
+      RequestDispatcher dispatcher = wrapper.getDispatcher();
+
+      HttpResponse response = wrapper.execute(Request.to("/books/%d", bookId), HttpGet.class);
+      String tenant = ReadmillWrapper.tenantOfToken("secret-access-token");
+      assertThat(tenant, startsWith("token:"));
+      assertThat(tenant, not(containsString("secret")));
+      assertThat(dispatcher.getInFlight(tenant), is(1));
+      assertThat(dispatcher.getInFlight("secret-access-token"), is(0));
+      EntityUtils.toString(response.getEntity());
+
+      assertThat(ReadmillWrapper.tenantOfToken("secret-access-token"), is(tenant));
+      assertThat(ReadmillWrapper.tenantOfToken("other-access-token"), is(not(tenant)));
+    } finally {
+      wrapper.close();
+      server.close();
+    }
+  }
+
+  private static void queue(RequestDispatcher dispatcher, Request request, List<Priority> served) {
+    queue(dispatcher, request, null, served, request.getPriority());
+  }
+
+  private static <T> void queue(final RequestDispatcher dispatcher, final Request request, final String tenant,
+                                final List<T> served, final T label) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          dispatcher.acquire(request, tenant);
+          served.add(label);
+        } catch(InterruptedIOException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void awaitQueueLength(RequestDispatcher dispatcher, int length) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while(dispatcher.getQueueLength() < length && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertThat(dispatcher.getQueueLength(), is(length));
+  }
+
+  private static void releaseAll(RequestDispatcher dispatcher, List<?> served, int count) throws InterruptedException {
+    releaseAll(dispatcher, null, served, count);
+  }
+
+  private static void releaseAll(RequestDispatcher dispatcher, String tenant, List<?> served, int count) throws InterruptedException {
+    for(int i = 1; i <= count; i++) {
+      dispatcher.release(tenant);
+      long deadline = System.currentTimeMillis() + 5000;
+      while(served.size() < i && System.currentTimeMillis() < deadline) {
+        Thread.sleep(1);
+      }
+    }
+    assertThat(served.size(), is(count));
+  }
+}
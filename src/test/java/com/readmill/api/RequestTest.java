@@ -3,6 +3,9 @@ package com.readmill.api;
 import org.apache.http.client.methods.*;
 
 import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.assertThat;
 
 import static org.hamcrest.Matchers.*;
@@ -100,4 +103,21 @@ public class RequestTest {
 
     assertThat(first.equals(4), is(false));
   }
+
+  @Test
+  public void timeoutsAreBoundedByDeadline() {
+    Request request = Request.to("/users").withConnectTimeout(10, TimeUnit.SECONDS);
+    assertThat(request.hasDeadline(), is(false));
+    assertThat(request.getConnectTimeoutMillis(), is(10000L));
+    assertThat(request.getReadTimeoutMillis(), is(0L));
+
+    request.withDeadline(2, TimeUnit.SECONDS);
+    assertThat(request.getConnectTimeoutMillis(), lessThanOrEqualTo(2000L));
+    assertThat(request.getReadTimeoutMillis(), allOf(greaterThan(0L), lessThanOrEqualTo(2000L)));
+    assertThat(request.isExpired(), is(false));
+
+    request.withDeadline(0, TimeUnit.SECONDS);
+    assertThat(request.isExpired(), is(true));
+    assertThat(request.getRemainingMillis(), is(0L));
+  }
 }
@@ -0,0 +1,39 @@
+package com.readmill.api;
+
+import com.readmill.api.test.MockHttpClient;
+import org.apache.http.HttpResponse;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class ServerKeepAliveStrategyTest {
+  private final ServerKeepAliveStrategy mStrategy = new ServerKeepAliveStrategy(20 * 1000);
+
+  @Test
+  public void fallsBackToDefaultWithoutHint() {
+    HttpResponse response = MockHttpClient.createMockResponse(200);
+    assertThat(mStrategy.getKeepAliveDuration(response, null), is(20 * 1000L));
+  }
+
+  @Test
+  public void honorsServerTimeout() {
+    HttpResponse response = MockHttpClient.createMockResponse(200);
+    response.setHeader("Keep-Alive", "timeout=5, max=100");
+    assertThat(mStrategy.getKeepAliveDuration(response, null), is(5 * 1000L));
+  }
+
+  @Test
+  public void capsServerTimeoutAtDefault() {
+    HttpResponse response = MockHttpClient.createMockResponse(200);
+    response.setHeader("Keep-Alive", "timeout=300");
+    assertThat(mStrategy.getKeepAliveDuration(response, null), is(20 * 1000L));
+  }
+
+  @Test
+  public void ignoresMalformedTimeout() {
+    HttpResponse response = MockHttpClient.createMockResponse(200);
+    response.setHeader("Keep-Alive", "timeout=soon");
+    assertThat(mStrategy.getKeepAliveDuration(response, null), is(20 * 1000L));
+  }
+}
@@ -0,0 +1,92 @@
+package com.readmill.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class StreamingJsonCodecTest {
+  private static final String READING = "{\"reading\": {" +
+      "\"id\": 12345678901, \"state\": \"finished\", \"private\": false, \"via\": null," +
+      "\"progress\": 0.25, \"estimated_time_left\": 1e3, \"highlights_count\": -5," +
+      "\"closing_remark\": \"Tr\\u00e4ff \\\"quote\\\" \\\\ \\/ \\n r\\u00e9sum\\u00e9 åäö \uD83D\uDCD6\"," +
+      "\"book\": {\"id\": 1, \"title\": \"Metamorphosis\", \"authors\": [\"Franz Kafka\"]}," +
+      "\"locators\": [], \"user\": {}, \"nested\": [[1, [2, {\"a\": [true]}]]]" +
+      "}}";
+
+  private final StreamingJsonCodec mCodec = new StreamingJsonCodec();
+
+  @Test
+  public void parsesLikeOrgJson() throws Exception {
+    JSONObject expected = new OrgJsonCodec().readObject(utf8(READING));
+    JSONObject parsed = mCodec.readObject(utf8(READING));
+
+    assertThat(parsed.toString(), is(expected.toString()));
+    JSONObject reading = parsed.getJSONObject("reading");
+    assertThat(reading.get("id"), is((Object) 12345678901L));
+    assertThat(reading.get("highlights_count"), is((Object) (-5)));
+    assertThat(reading.get("progress"), is((Object) 0.25));
+    assertThat(reading.get("estimated_time_left"), is((Object) 1000.0));
+    assertThat(reading.isNull("via"), is(true));
+    assertThat(reading.getString("closing_remark"), endsWith("r\u00e9sum\u00e9 \u00e5\u00e4\u00f6 \uD83D\uDCD6"));
+  }
+
+  @Test
+  public void parsesAcrossBufferBoundaries() throws Exception {
+    // Every read returns a single byte, splitting multi byte characters
+    InputStream trickle = new FilterInputStream(utf8(READING)) {
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        return super.read(buffer, offset, Math.min(1, length));
+      }
+    };
+    assertThat(mCodec.readObject(trickle).toString(), is(mCodec.readObject(utf8(READING)).toString()));
+  }
+
+  @Test
+  public void parsesFromMemory() throws Exception {
+    byte[] data = ("xx" + READING + "yy").getBytes("UTF-8");
+    JSONObject parsed = mCodec.readObject(data, 2, data.length - 4);
+    assertThat(parsed.getJSONObject("reading").getJSONObject("book").getString("title"), is("Metamorphosis"));
+  }
+
+  @Test
+  public void parsesLargeCollections() throws Exception {
+    StringBuilder json = new StringBuilder("{\"items\":[");
+    for(int i = 0; i < 5000; i++) {
+      json.append(i == 0 ? "" : ",").append("{\"highlight\":{\"id\":").append(i)
+          .append(",\"content\":\"").append("A great highlight ").append(i).append("\"}}");
+    }
+    json.append("]}");
+
+    JSONArray items = mCodec.readObject(utf8(json.toString())).getJSONArray("items");
+    assertThat(items.length(), is(5000));
+    assertThat(items.getJSONObject(4999).getJSONObject("highlight").getString("content"), is("A great highlight 4999"));
+  }
+
+  @Test
+  public void rejectsInvalidJson() throws Exception {
+    String[] invalid = {"", "[]", "{", "{\"a\"}", "{\"a\":}", "{\"a\":1,}", "{\"a\":tru}",
+        "{\"a\":\"unterminated}", "{\"a\":-}", "{\"a\":1 \"b\":2}", "{\"a\":\"\\x\"}"};
+    for(String json : invalid) {
+      try {
+        mCodec.readObject(utf8(json));
+        throw new AssertionError("parsed " + json);
+      } catch(JSONException expected) {
+        assertThat(expected.getMessage(), containsString("at byte"));
+      }
+    }
+  }
+
+  private InputStream utf8(String json) throws IOException {
+    return new ByteArrayInputStream(json.getBytes("UTF-8"));
+  }
+}
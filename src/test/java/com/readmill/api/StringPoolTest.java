@@ -0,0 +1,106 @@
+package com.readmill.api;
+
+import com.readmill.api.test.MockReadmillWrapper;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Iterator;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class StringPoolTest {
+
+  @Test
+  public void returnsCanonicalStrings() {
+    StringPool pool = new StringPool(16, 8);
+    char[] chars = "xxreadingxx".toCharArray();
+    String first = pool.intern(chars, 2, 7);
+    String second = pool.intern("reading".toCharArray(), 0, 7);
+
+    assertThat(first, is("reading"));
+    assertThat(second, is(sameInstance(first)));
+  }
+
+  @Test
+  public void doesNotPoolLongStrings() {
+    StringPool pool = new StringPool(16, 8);
+    char[] chars = "A great highlight".toCharArray();
+    String first = pool.intern(chars, 0, chars.length);
+    assertThat(first, is("A great highlight"));
+    assertThat(pool.intern(chars, 0, chars.length), is(not(sameInstance(first))));
+  }
+
+  @Test
+  public void staysBounded() {
+    StringPool pool = new StringPool(4, 8);
+    String first = pool.intern("0".toCharArray(), 0, 1);
+    for(int i = 1; i < 1000; i++) {
+      char[] chars = Integer.toString(i).toCharArray();
+      assertThat(pool.intern(chars, 0, chars.length), is(Integer.toString(i)));
+    }
+
+    assertThat(pool.getCapacity(), is(4));
+    assertThat(pool.size(), is(4));
+    assertThat(pool.intern("0".toCharArray(), 0, 1), is(not(sameInstance(first))));
+  }
+
+  @Test
+  public void codecSharesKeysAndValuesBetweenItems() throws Exception {
+    String json = "{\"items\": [" +
+        "{\"reading\": {\"id\": 1, \"state\": \"finished\", \"closing_remark\": \"A long closing remark that is not pooled\"}}," +
+        "{\"reading\": {\"id\": 2, \"state\": \"finished\", \"closing_remark\": \"A long closing remark that is not pooled\"}}" +
+        "]}";
+    StreamingJsonCodec codec = new StreamingJsonCodec(new StringPool(64, 64), new StringPool(64, 16));
+    JSONArray items = codec.readObject(new ByteArrayInputStream(json.getBytes("UTF-8"))).getJSONArray("items");
+    JSONObject first = items.getJSONObject(0).getJSONObject("reading");
+    JSONObject second = items.getJSONObject(1).getJSONObject("reading");
+
+    assertThat(second.getString("state"), is(sameInstance(first.getString("state"))));
+    assertThat(second.getString("closing_remark"), is(not(sameInstance(first.getString("closing_remark")))));
+    assertThat(keyOf(second, "state"), is(sameInstance(keyOf(first, "state"))));
+  }
+
+  @Test
+  public void lazyCodecUsesItsPools() throws Exception {
+    String json = "{\"items\": [{\"state\": \"finished\"}, {\"state\": \"finished\"}]}";
+    byte[] data = json.getBytes("UTF-8");
+
+    JSONArray pooled = new LazyJsonCodec(new StringPool(64, 64), new StringPool(64, 16))
+        .readObject(data, 0, data.length).getJSONArray("items");
+    assertThat(pooled.getJSONObject(1).getString("state"),
+        is(sameInstance(pooled.getJSONObject(0).getString("state"))));
+
+    JSONArray unpooled = new LazyJsonCodec(null, null)
+        .readObject(data, 0, data.length).getJSONArray("items");
+    assertThat(unpooled.getJSONObject(1).getString("state"),
+        is(not(sameInstance(unpooled.getJSONObject(0).getString("state")))));
+  }
+
+  @Test
+  public void projectionsUseThePoolsOfTheCodec() throws Exception {
+    MockReadmillWrapper wrapper = new MockReadmillWrapper();
+    wrapper.setJsonCodec(new StreamingJsonCodec(null, null));
+    wrapper.respondWithText("{\"items\": [" +
+        "{\"reading\": {\"id\": 1, \"state\": \"finished\"}}," +
+        "{\"reading\": {\"id\": 2, \"state\": \"finished\"}}]}");
+
+    JSONArray items = wrapper.get("/readings").fetchItemsOrThrow("reading", Projection.fields("state"));
+
+    assertThat(items.getJSONObject(0).getString("state"), is("finished"));
+    assertThat(items.getJSONObject(1).getString("state"),
+        is(not(sameInstance(items.getJSONObject(0).getString("state")))));
+  }
+
+  private String keyOf(JSONObject object, String key) {
+    for(Iterator keys = object.keys(); keys.hasNext(); ) {
+      String candidate = (String) keys.next();
+      if(candidate.equals(key)) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,178 @@
+package com.readmill.api;
+
+import com.readmill.api.test.MockReadmillWrapper;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class SyncCursorTest {
+  private static final String TWO_READINGS = "{ \"items\": [" +
+      "{ \"reading\": { \"id\": 2, \"touched_at\": \"2012-03-01T10:00:00Z\" } }," +
+      "{ \"reading\": { \"id\": 1, \"touched_at\": \"2012-02-27T12:45:02Z\" } }" +
+      "]}";
+
+  private MockReadmillWrapper mWrapper;
+  private File mStateFile;
+
+  @Before
+  public void createCursorState() throws IOException {
+    mWrapper = new MockReadmillWrapper();
+    mStateFile = File.createTempFile("sync-cursor", ".properties");
+    mStateFile.delete();
+  }
+
+  @After
+  public void deleteCursorState() {
+    mStateFile.delete();
+  }
+
+  @Test
+  public void firstSyncFetchesEverythingAndAdvancesWatermark() throws Exception {
+    mWrapper.respondWithText(TWO_READINGS);
+    SyncCursor cursor = new SyncCursor(mWrapper, mStateFile);
+    RecordingListener listener = new RecordingListener();
+
+    assertThat(cursor.sync(1, "readings", "reading", listener), is(2));
+    assertThat(listener.changes.length(), is(2));
+    assertThat(cursor.getWatermark(1, "readings"), is("2012-03-01T10:00:00Z"));
+
+    String url = ((HttpUriRequest) mWrapper.getLastRequest()).getURI().toString();
+    assertThat(url, containsString("/v2/users/1/readings"));
+    assertThat(url, containsString("order=touched_at"));
+    assertThat(url, not(containsString("from=")));
+  }
+
+  @Test
+  public void resumesFromPersistedWatermark() throws Exception {
+    mWrapper.respondWithText(TWO_READINGS);
+    new SyncCursor(mWrapper, mStateFile).sync(1, "readings", "reading", new RecordingListener());
+
+    SyncCursor resumed = new SyncCursor(mWrapper, mStateFile);
+    RecordingListener listener = new RecordingListener();
+
+    // The newest item is returned again since "from" is inclusive, but was already seen
+    assertThat(resumed.sync(1, "readings", "reading", listener), is(0));
+    assertThat(listener.changes, is(nullValue()));
+
+    String url = ((HttpUriRequest) mWrapper.getLastRequest()).getURI().toString();
+    assertThat(url, containsString("from=2012-03-01T10%3A00%3A00Z"));
+  }
+
+  @Test
+  public void failingListenerDoesNotAdvanceWatermark() throws Exception {
+    mWrapper.respondWithText(TWO_READINGS);
+    SyncCursor cursor = new SyncCursor(mWrapper, mStateFile);
+
+    try {
+      cursor.sync(1, "readings", "reading", new SyncCursor.Listener() {
+        @Override
+        public void onChanges(JSONArray changes) throws Exception {
+          throw new IllegalStateException("crashed while storing");
+        }
+      });
+    } catch(IllegalStateException expected) {}
+
+    assertThat(cursor.getWatermark(1, "readings"), is(nullValue()));
+    assertThat(new SyncCursor(mWrapper, mStateFile).sync(1, "readings", "reading", new RecordingListener()), is(2));
+  }
+
+  @Test
+  public void watermarksAreKeptPerUserAndCollection() throws Exception {
+    mWrapper.respondWithText(TWO_READINGS);
+    SyncCursor cursor = new SyncCursor(mWrapper, mStateFile);
+    cursor.sync(1, "readings", "reading", new RecordingListener());
+
+    assertThat(cursor.getWatermark(2, "readings"), is(nullValue()));
+    assertThat(cursor.getWatermark(1, "highlights"), is(nullValue()));
+
+    cursor.reset(1, "readings");
+    assertThat(new SyncCursor(mWrapper, mStateFile).getWatermark(1, "readings"), is(nullValue()));
+  }
+
+  @Test
+  public void pagesIntoTheOldestSecondOfAFullPage() throws Exception {
+    // 60 readings at 10:00:00 and 40 at 09:59:59 fill the first page, while
+    // 20 more at 09:59:59 and a few older ones are left for the next
+    mWrapper.when("GET", "/v2/users/1/readings")
+        .thenRespond(200, page(readings(1000, 60, "2012-03-01T10:00:00Z"), readings(900, 40, "2012-03-01T09:59:59Z")))
+        .thenRespond(200, page(readings(900, 60, "2012-03-01T09:59:59Z"), readings(800, 5, "2012-03-01T09:00:00Z")));
+    SyncCursor cursor = new SyncCursor(mWrapper, mStateFile);
+
+    assertThat(cursor.sync(1, "readings", "reading", new RecordingListener()), is(125));
+    assertThat(cursor.getWatermark(1, "readings"), is("2012-03-01T10:00:00Z"));
+    assertThat(cursor.getTruncatedCount(), is(0));
+
+    List<String> urls = requestedUrls();
+    assertThat(urls.size(), is(2));
+    assertThat(urls.get(0), not(containsString("to=")));
+    // "to" is non-inclusive, so the next page starts a second later
+    assertThat(urls.get(1), containsString("to=2012-03-01T10%3A00%3A00Z"));
+    assertThat(urls.get(1), not(containsString("to_id")));
+  }
+
+  @Test
+  public void skipsPastASecondWithMoreThanAPageOfChanges() throws Exception {
+    // A bulk import touched more than a page of readings in one second. The
+    // API cannot page within it and keeps returning the same page.
+    String full = page(readings(1000, 100, "2012-03-01T10:00:00Z"));
+    mWrapper.when("GET", "/v2/users/1/readings")
+        .thenRespond(200, full)
+        .thenRespond(200, full)
+        .thenRespond(200, page(readings(800, 3, "2012-03-01T09:00:00Z")));
+    SyncCursor cursor = new SyncCursor(mWrapper, mStateFile);
+
+    assertThat(cursor.sync(1, "readings", "reading", new RecordingListener()), is(103));
+    assertThat(cursor.getWatermark(1, "readings"), is("2012-03-01T10:00:00Z"));
+    assertThat(cursor.getTruncatedCount(), is(1));
+
+    List<String> urls = requestedUrls();
+    assertThat(urls.size(), is(3));
+    assertThat(urls.get(1), containsString("to=2012-03-01T10%3A00%3A01Z"));
+    assertThat(urls.get(2), containsString("to=2012-03-01T10%3A00%3A00Z"));
+  }
+
+  private List<String> requestedUrls() {
+    List<String> urls = new ArrayList<String>();
+    for(HttpRequest request : mWrapper.getRequests()) {
+      urls.add(((HttpUriRequest) request).getURI().toString());
+    }
+    return urls;
+  }
+
+  private static String readings(long firstId, int count, String touchedAt) {
+    StringBuilder items = new StringBuilder();
+    for(int i = 0; i < count; i++) {
+      items.append(i > 0 ? "," : "").append("{ \"reading\": { \"id\": ").append(firstId - i)
+          .append(", \"touched_at\": \"").append(touchedAt).append("\" } }");
+    }
+    return items.toString();
+  }
+
+  private static String page(String... items) {
+    StringBuilder page = new StringBuilder("{ \"items\": [");
+    for(int i = 0; i < items.length; i++) {
+      page.append(i > 0 ? "," : "").append(items[i]);
+    }
+    return page.append("]}").toString();
+  }
+
+  private static class RecordingListener implements SyncCursor.Listener {
+    JSONArray changes;
+
+    @Override
+    public void onChanges(JSONArray changes) {
+      this.changes = changes;
+    }
+  }
+}
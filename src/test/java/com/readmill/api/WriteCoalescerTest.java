@@ -0,0 +1,113 @@
+package com.readmill.api;
+
+import com.readmill.api.test.MockHttpClient;
+import com.readmill.api.test.MockReadmillWrapper;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.util.EntityUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class WriteCoalescerTest {
+  private MockReadmillWrapper mWrapper;
+
+  @Before
+  public void enableWriteBehind() throws Exception {
+    mWrapper = new MockReadmillWrapper();
+    mWrapper.respondWithText("{}");
+    mWrapper.setWriteBehind(1, TimeUnit.MINUTES);
+  }
+
+  @Test
+  public void mergesPutsToTheSameResource() throws Exception {
+    mWrapper.put("/readings/1").readingState("reading").send();
+    mWrapper.put("/readings/1").readingPrivate(true).send();
+    mWrapper.put("/readings/1").readingState("finished").send();
+
+    WriteCoalescer coalescer = mWrapper.getWriteCoalescer();
+    assertThat(mWrapper.getLastRequest(), is(nullValue()));
+    assertThat(coalescer.getPendingCount(), is(1));
+    assertThat(coalescer.getCoalescedCount(), is(2L));
+
+    coalescer.flush();
+    HttpUriRequest sent = (HttpUriRequest) mWrapper.getLastRequest();
+    assertThat(sent.getMethod(), is(HttpPut.METHOD_NAME));
+    assertThat(sent.getURI().getPath(), is("/v2/readings/1"));
+    assertThat(EntityUtils.toString(((HttpEntityEnclosingRequest) sent).getEntity()),
+        startsWith("reading%5Bprivate%5D=true&reading%5Bstate%5D=finished"));
+  }
+
+  @Test
+  public void sendsMergedPutAfterWindow() throws Exception {
+    mWrapper.setWriteBehind(20, TimeUnit.MILLISECONDS);
+    mWrapper.put("/readings/1").readingState("finished").send();
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while(mWrapper.getLastRequest() == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(((HttpUriRequest) mWrapper.getLastRequest()).getMethod(), is(HttpPut.METHOD_NAME));
+    assertThat(mWrapper.getWriteCoalescer().getPendingCount(), is(0));
+  }
+
+  @Test
+  public void deleteCancelsPendingPut() throws Exception {
+    mWrapper.put("/readings/1").readingState("finished").send();
+    mWrapper.delete("/readings/1").send();
+
+    WriteCoalescer coalescer = mWrapper.getWriteCoalescer();
+    assertThat(coalescer.getCancelledCount(), is(1L));
+    assertThat(((HttpUriRequest) mWrapper.getLastRequest()).getMethod(), is(HttpDelete.METHOD_NAME));
+
+    coalescer.flush();
+    assertThat(((HttpUriRequest) mWrapper.getLastRequest()).getMethod(), is(HttpDelete.METHOD_NAME));
+  }
+
+  @Test
+  public void postFlushesPendingPutFirst() throws Exception {
+    WriteCoalescer coalescer = mWrapper.getWriteCoalescer();
+    mWrapper.put("/readings/1").readingState("finished").send();
+
+    assertThat(coalescer.submit(Request.to("/readings/1"), HttpPost.class), is(false));
+    assertThat(((HttpUriRequest) mWrapper.getLastRequest()).getMethod(), is(HttpPut.METHOD_NAME));
+    assertThat(coalescer.getPendingCount(), is(0));
+  }
+
+  @Test
+  public void deleteWaitsForPutBeingDelivered() throws Exception {
+    mWrapper.when("PUT", "/v2/readings/1")
+        .withLatency(MockHttpClient.Latency.fixed(300, TimeUnit.MILLISECONDS))
+        .thenRespond(200, "{}");
+    mWrapper.setWriteBehind(10, TimeUnit.MILLISECONDS);
+    mWrapper.put("/readings/1").readingState("finished").send();
+
+    // Let the merged PUT leave the coalescer and get on its way
+    Thread.sleep(100);
+    assertThat(mWrapper.getWriteCoalescer().getPendingCount(), is(0));
+    long started = System.currentTimeMillis();
+    mWrapper.delete("/readings/1").send();
+
+    assertThat(System.currentTimeMillis() - started, greaterThanOrEqualTo(100L));
+    List<HttpRequest> sent = mWrapper.getRequests();
+    assertThat(((HttpUriRequest) sent.get(0)).getMethod(), is(HttpPut.METHOD_NAME));
+    assertThat(((HttpUriRequest) sent.get(1)).getMethod(), is(HttpDelete.METHOD_NAME));
+  }
+
+  @Test
+  public void closeFlushesPendingPuts() throws Exception {
+    mWrapper.put("/readings/1").readingState("finished").send();
+    mWrapper.close();
+
+    assertThat(((HttpUriRequest) mWrapper.getLastRequest()).getMethod(), is(HttpPut.METHOD_NAME));
+  }
+}
@@ -0,0 +1,286 @@
+package com.readmill.api;
+
+import com.readmill.api.test.MockReadmillWrapper;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class WriteOutboxTest {
+  private MockReadmillWrapper mWrapper;
+  private File mJournal;
+  private RecordingListener mListener;
+
+  @Before
+  public void createJournal() throws IOException {
+    mWrapper = new MockReadmillWrapper();
+    mJournal = File.createTempFile("outbox", ".journal");
+    mJournal.delete();
+    mListener = new RecordingListener();
+  }
+
+  @After
+  public void deleteJournal() {
+    mJournal.delete();
+  }
+
+  @Test
+  public void deliversQueuedRequests() throws Exception {
+    mWrapper.respondWithStatusAndText(201, "{}");
+    WriteOutbox outbox = open();
+
+    outbox.enqueue(Request.to("/readings/1/pings").withParams("ping[progress]", 0.5), HttpPost.class);
+
+    assertThat(outbox.awaitEmpty(5000), is(true));
+    assertThat(mListener.delivered, contains("/readings/1/pings?ping%5Bprogress%5D=0.5"));
+    outbox.close();
+  }
+
+  @Test
+  public void sendQueuesWritesButNotReads() throws Exception {
+    // Deliver through a wrapper that keeps failing, so the write stays queued
+    MockReadmillWrapper offline = new MockReadmillWrapper();
+    offline.respondWithIOException();
+    WriteOutbox outbox = open(offline);
+    mWrapper.setOutbox(outbox);
+
+    mWrapper.put("/readings/1").readingState("finished").send();
+    assertThat(outbox.getPendingCount(), is(1));
+
+    mWrapper.respondWithText("{}");
+    mWrapper.get("/readings/1").send();
+    assertThat(outbox.getPendingCount(), is(1));
+    assertThat(((HttpUriRequest) mWrapper.getLastRequest()).getMethod(), is(HttpGet.METHOD_NAME));
+    outbox.close();
+  }
+
+  @Test
+  public void replaysJournalInOrderAfterRestart() throws Exception {
+    MockReadmillWrapper offline = new MockReadmillWrapper();
+    offline.respondWithIOException();
+    WriteOutbox outbox = open(offline);
+    outbox.enqueue(Request.to("/readings/1").withParams("reading[state]", "reading"), HttpPut.class);
+    outbox.enqueue(Request.to("/readings/1").withParams("reading[state]", "finished"), HttpPut.class);
+    outbox.close();
+
+    mWrapper.respondWithStatusAndText(200, "{}");
+    WriteOutbox reopened = open();
+    assertThat(reopened.awaitEmpty(5000), is(true));
+    assertThat(mListener.delivered, contains(
+        "/readings/1?reading%5Bstate%5D=reading",
+        "/readings/1?reading%5Bstate%5D=finished"));
+    reopened.close();
+
+    assertThat(open().getPendingCount(), is(0));
+  }
+
+  @Test
+  public void dropsRejectedRequests() throws Exception {
+    mWrapper.respondWithStatusAndText(422, "{}");
+    WriteOutbox outbox = open();
+    outbox.enqueue(Request.to("/readings/1/highlights"), HttpPost.class);
+
+    assertThat(outbox.awaitEmpty(5000), is(true));
+    assertThat(mListener.rejected.size(), is(1));
+    assertThat(mListener.delivered.isEmpty(), is(true));
+    outbox.close();
+  }
+
+  @Test
+  public void keepsRejectedRequestsWithoutAListener() throws Exception {
+    mWrapper.respondWithStatusAndText(422, "{}");
+    WriteOutbox outbox = new WriteOutbox(mWrapper, mJournal, 2);
+    outbox.enqueue(Request.to("/readings/1/highlights"), HttpPost.class);
+
+    assertThat(outbox.awaitEmpty(5000), is(true));
+    assertThat(outbox.takeRejected().size(), is(1));
+    assertThat(outbox.takeRejected().isEmpty(), is(true));
+    outbox.close();
+  }
+
+  @Test
+  public void parksUnauthorizedRequestsUntilResumed() throws Exception {
+    mWrapper.when("PUT", "/v2/readings/1").thenRespond(401, "{}").thenRespond(200, "{}");
+    WriteOutbox outbox = open();
+    outbox.enqueue(Request.to("/readings/1").withParams("reading[state]", "finished")
+        .usingToken(new Token("expired")), HttpPut.class);
+
+    assertThat(outbox.awaitEmpty(500), is(false));
+    assertThat(mListener.unauthorized, contains("/readings/1?reading%5Bstate%5D=finished"));
+    assertThat(mListener.rejected.isEmpty(), is(true));
+    assertThat(outbox.getPendingCount(), is(1));
+
+    outbox.resume(new Token("fresh"));
+    assertThat(outbox.awaitEmpty(5000), is(true));
+    assertThat(mListener.delivered, contains("/readings/1?reading%5Bstate%5D=finished"));
+    assertThat(mWrapper.getLastRequest().getFirstHeader("Authorization").getValue(), is("OAuth fresh"));
+    outbox.close();
+  }
+
+  @Test
+  public void resumedTokenSurvivesRestart() throws Exception {
+    mWrapper.respondWithStatusAndText(401, "{}");
+    WriteOutbox outbox = open();
+    outbox.enqueue(Request.to("/readings/1").usingToken(new Token("expired")), HttpDelete.class);
+    assertThat(outbox.awaitEmpty(500), is(false));
+    outbox.resume(new Token("fresh"));
+    outbox.close();
+
+    MockReadmillWrapper online = new MockReadmillWrapper();
+    online.respondWithStatusAndText(200, "{}");
+    WriteOutbox reopened = open(online);
+    assertThat(reopened.awaitEmpty(5000), is(true));
+    assertThat(online.getLastRequest().getFirstHeader("Authorization").getValue(), is("OAuth fresh"));
+    reopened.close();
+  }
+
+  @Test
+  public void keepsEntriesQueuedDuringCompaction() throws Exception {
+    // Writes to /readings are delivered and acknowledged, which keeps the
+    // journal compacting, while writes to /highlights stay queued
+    mWrapper.when("PUT", "/v2/readings/\\d+").thenRespond(200, "{}");
+    mWrapper.when("PUT", "/v2/highlights/\\d+").thenRespond(503, "{}");
+    final WriteOutbox outbox = new WriteOutbox(mWrapper, mJournal, 4);
+    final int perThread = 1000;
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for(int t = 0; t < 4; t++) {
+      final int thread = t;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            for(int i = 0; i < perThread; i++) {
+              int id = thread * perThread + i;
+              outbox.enqueue(Request.to("/readings/" + id), HttpPut.class);
+              if(i % 10 == 0) {
+                outbox.enqueue(Request.to("/highlights/" + id), HttpPut.class);
+                // Durable as soon as enqueue returns, also if compacted meanwhile
+                if(!journalContains("\t%2Fhighlights%2F" + id + "\t")) {
+                  throw new AssertionError("/highlights/" + id + " is not in the journal");
+                }
+              }
+            }
+          } catch(Throwable e) {
+            failure.set(e);
+          }
+        }
+      });
+    }
+    for(Thread thread : threads) {
+      thread.start();
+    }
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(failure.get(), is(nullValue()));
+
+    int queued = 4 * perThread / 10;
+    long deadline = System.currentTimeMillis() + 10000;
+    while(outbox.getPendingCount() > queued && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(outbox.getPendingCount(), is(queued));
+    outbox.close();
+
+    MockReadmillWrapper offline = new MockReadmillWrapper();
+    offline.respondWithIOException();
+    WriteOutbox reopened = open(offline);
+    assertThat(reopened.getPendingCount(), is(queued));
+    reopened.close();
+  }
+
+  @Test
+  public void deliversRequestsWhoseDeadlinePassedWhileQueued() throws Exception {
+    mWrapper.respondWithStatusAndText(200, "{}");
+    WriteOutbox outbox = open();
+    outbox.enqueue(Request.to("/readings/1").withParams("reading[state]", "finished")
+        .withDeadline(0, TimeUnit.MILLISECONDS), HttpPut.class);
+
+    assertThat(outbox.awaitEmpty(5000), is(true));
+    assertThat(mListener.delivered, contains("/readings/1?reading%5Bstate%5D=finished"));
+    outbox.close();
+  }
+
+  @Test
+  public void dropsCancelledRequests() throws Exception {
+    MockReadmillWrapper offline = new MockReadmillWrapper();
+    offline.respondWithIOException();
+    WriteOutbox outbox = open(offline);
+    Request cancelled = Request.to("/readings/1").withParams("reading[state]", "reading");
+    outbox.enqueue(cancelled, HttpPut.class);
+    cancelled.cancel();
+
+    // Cancelled requests are not retried, and nothing else is held up by them
+    assertThat(outbox.awaitEmpty(5000), is(true));
+    assertThat(mListener.rejected, contains("/v2/readings/1?reading%5Bstate%5D=reading"));
+    outbox.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void onlyQueuesWrites() throws Exception {
+    open().enqueue(Request.to("/readings/1"), HttpGet.class);
+  }
+
+  private boolean journalContains(String text) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournal), "UTF-8"));
+    try {
+      String line;
+      while((line = reader.readLine()) != null) {
+        if(line.contains(text)) {
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private WriteOutbox open() throws IOException {
+    return open(mWrapper);
+  }
+
+  private WriteOutbox open(ReadmillWrapper wrapper) throws IOException {
+    return new WriteOutbox(wrapper, mJournal, 2, mListener);
+  }
+
+  private static class RecordingListener implements WriteOutbox.Listener {
+    final List<String> delivered = new CopyOnWriteArrayList<String>();
+    final List<String> rejected = new CopyOnWriteArrayList<String>();
+    final List<String> unauthorized = new CopyOnWriteArrayList<String>();
+
+    @Override
+    public void onDelivered(Request request, int statusCode) {
+      delivered.add(request.mResource + "?" + request.queryString().replaceAll("&client_id=[^&]*", ""));
+    }
+
+    @Override
+    public void onRejected(Request request, int statusCode) {
+      rejected.add(request.toString());
+    }
+
+    @Override
+    public void onUnauthorized(Request request, int statusCode) {
+      unauthorized.add(request.mResource + "?" + request.queryString());
+    }
+  }
+}
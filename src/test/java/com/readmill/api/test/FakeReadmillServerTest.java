@@ -0,0 +1,96 @@
+package com.readmill.api.test;
+
+import com.readmill.api.ReadmillWrapper;
+import com.readmill.api.Token;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class FakeReadmillServerTest {
+  private FakeReadmillServer mServer;
+  private ReadmillWrapper mWrapper;
+
+  @Before
+  public void startServer() throws Exception {
+    mServer = new FakeReadmillServer(0, 4);
+    mServer.generateFixtures(2, 10, 5, 3);
+    mServer.start();
+    mWrapper = new ReadmillWrapper("client-id", "client-secret", mServer.getEnvironment());
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    mWrapper.close();
+    mServer.close();
+  }
+
+  @Test
+  public void servesPaginatedCollections() throws Exception {
+    JSONArray all = mWrapper.get("/users/1/readings").order("touched_at").fetchItemsOrThrow("reading");
+    assertThat(all.length(), is(5));
+
+    JSONArray page = mWrapper.get("/users/1/readings").order("touched_at").count(2).fetchItemsOrThrow("reading");
+    assertThat(page.length(), is(2));
+    assertThat(page.getJSONObject(0).getLong("id"), is(all.getJSONObject(0).getLong("id")));
+
+    String oldest = page.getJSONObject(1).getString("touched_at");
+    JSONArray next = mWrapper.get("/users/1/readings").order("touched_at").to(oldest).fetchItemsOrThrow("reading");
+    assertThat(next.length(), is(3));
+
+    long readingId = all.getJSONObject(0).getLong("id");
+    assertThat(mWrapper.get(String.format("/readings/%d/highlights", readingId)).fetchItemsOrThrow("highlight").length(), is(3));
+  }
+
+  @Test
+  public void updatesReadingsAndCountsPings() throws Exception {
+    long readingId = mWrapper.get("/users/2/readings").fetchItemsOrThrow("reading").getJSONObject(0).getLong("id");
+
+    mWrapper.put(String.format("/readings/%d", readingId)).readingState("abandoned").send();
+    mWrapper.post(String.format("/readings/%d/pings", readingId)).pingProgress(0.5).send();
+
+    JSONObject reading = mWrapper.get(String.format("/readings/%d", readingId)).fetchOrThrow().getJSONObject("reading");
+    assertThat(reading.getString("state"), is("abandoned"));
+    assertThat(mServer.getPingCount(), is(1L));
+  }
+
+  @Test
+  public void issuesTokens() throws Exception {
+    Token token = mWrapper.login("reader@example.com", "secret");
+    assertThat(token.getAccessToken(), startsWith("fake-"));
+  }
+
+  @Test
+  public void injectsErrorsAndThrottles() throws Exception {
+    mServer.setErrorRate(1.0);
+    HttpResponse failed = get("/v2/books");
+    assertThat(failed.getStatusLine().getStatusCode(), is(500));
+    mServer.setErrorRate(0);
+
+    mServer.setRateLimit(1);
+    mWrapper.get("/books").fetchOrThrow();
+    HttpResponse throttled = get("/v2/books");
+    assertThat(throttled.getStatusLine().getStatusCode(), is(429));
+    assertThat(mServer.getThrottledCount(), is(1L));
+  }
+
+  @Test
+  public void rejectsMalformedParameters() throws Exception {
+    assertThat(get("/v2/books?count=many").getStatusLine().getStatusCode(), is(400));
+    assertThat(get("/v2/books/99999999999999999999").getStatusLine().getStatusCode(), is(400));
+    assertThat(get("/v2/books").getStatusLine().getStatusCode(), is(200));
+  }
+
+  private HttpResponse get(String path) throws Exception {
+    HttpResponse response = mWrapper.getHttpClient().execute(new HttpGet(mServer.getEnvironment().getApiUrl() + path));
+    EntityUtils.toString(response.getEntity());
+    return response;
+  }
+}
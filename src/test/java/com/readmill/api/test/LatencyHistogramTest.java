@@ -0,0 +1,54 @@
+package com.readmill.api.test;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class LatencyHistogramTest {
+  @Test
+  public void percentilesAreWithinPrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for(long micros = 1; micros <= 100000; micros++) {
+      histogram.recordValue(micros);
+    }
+
+    assertThat(histogram.getCount(), is(100000L));
+    assertThat(histogram.getMaxValue(), is(100000L));
+    assertThat((double) histogram.getValueAtPercentile(50), closeTo(50000, 50000 * 0.02));
+    assertThat((double) histogram.getValueAtPercentile(99), closeTo(99000, 99000 * 0.02));
+    assertThat(histogram.getValueAtPercentile(100), is(100000L));
+    assertThat(histogram.getMean(), closeTo(50000.5, 0.01));
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.recordValue(3);
+    histogram.recordValue(7);
+    assertThat(histogram.getValueAtPercentile(50), is(3L));
+    assertThat(histogram.getValueAtPercentile(100), is(7L));
+  }
+
+  @Test
+  public void backFillsSamplesMissedDuringStall() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for(int i = 0; i < 90; i++) {
+      histogram.recordValue(1000, 10000);
+    }
+    // A single 100ms stall hides the 9 requests that should have been sent meanwhile
+    histogram.recordValue(100000, 10000);
+
+    assertThat(histogram.getCount(), is(100L));
+    assertThat((double) histogram.getValueAtPercentile(95), closeTo(50000, 50000 * 0.02));
+  }
+
+  @Test
+  public void bucketsCoverTheirValues() {
+    for(long value = 0; value < 1L << 32; value = value * 3 / 2 + 1) {
+      int index = LatencyHistogram.indexOf(value);
+      assertThat(LatencyHistogram.highestEquivalentValue(index), greaterThanOrEqualTo(value));
+      assertThat((double) LatencyHistogram.highestEquivalentValue(index), lessThanOrEqualTo(value * 1.016 + 1));
+    }
+  }
+}
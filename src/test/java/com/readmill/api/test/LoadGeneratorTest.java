@@ -0,0 +1,58 @@
+package com.readmill.api.test;
+
+import com.readmill.api.ReadmillWrapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class LoadGeneratorTest {
+  private FakeReadmillServer mServer;
+  private ReadmillWrapper mWrapper;
+  private LoadGenerator mLoad;
+
+  @Before
+  public void startServer() throws Exception {
+    mServer = new FakeReadmillServer(0, 8);
+    mServer.generateFixtures(1, 5, 5, 0);
+    mServer.start();
+    mWrapper = new ReadmillWrapper("client-id", "client-secret", mServer.getEnvironment());
+    mLoad = new LoadGenerator(mWrapper, new LoadGenerator.Operation() {
+      @Override
+      public void run(ReadmillWrapper wrapper) throws Exception {
+        wrapper.get("/users/1/readings").fetchItemsOrThrow("reading");
+      }
+    });
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    mWrapper.close();
+    mServer.close();
+  }
+
+  @Test
+  public void openLoopRunsAtTheGivenRate() throws Exception {
+    LoadGenerator.Report report = mLoad.runOpenLoop(200, 4, 500, TimeUnit.MILLISECONDS);
+
+    assertThat(report.getOperations(), is(100L));
+    assertThat(report.getErrors(), is(0L));
+    assertThat(report.getLatencies().getCount(), is(100L));
+    assertThat(report.getPeakPooledConnections(), greaterThan(0));
+    assertThat(report.toString(), containsString("open loop at 200/s"));
+  }
+
+  @Test
+  public void closedLoopCountsErrors() throws Exception {
+    mServer.setErrorRate(1.0);
+    LoadGenerator.Report report = mLoad.runClosedLoop(2, 200, TimeUnit.MILLISECONDS);
+
+    assertThat(report.getOperations(), greaterThan(0L));
+    assertThat(report.getErrors(), is(report.getOperations()));
+    assertThat(report.getThroughput(), greaterThan(0.0));
+  }
+}
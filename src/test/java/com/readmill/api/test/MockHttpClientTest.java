@@ -0,0 +1,142 @@
+package com.readmill.api.test;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.util.EntityUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class MockHttpClientTest {
+  private MockHttpClient mClient;
+
+  @Before
+  public void createClient() {
+    mClient = new MockHttpClient();
+    mClient.respondWithText("canned");
+  }
+
+  @Test
+  public void routesByMethodAndPath() throws Exception {
+    mClient.when("GET", "/v2/books/\\d+").thenRespond(200, "book");
+    mClient.when("*", "/v2/readings/\\d+").thenRespond(204, "reading");
+
+    assertThat(text(mClient.execute(new HttpGet("http://api.example.com/v2/books/12?client_id=1"))), is("book"));
+    assertThat(mClient.execute(new HttpPut("/v2/readings/3")).getStatusLine().getStatusCode(), is(204));
+    assertThat(text(mClient.execute(new HttpPut("/v2/books/12"))), is("canned"));
+  }
+
+  @Test
+  public void servesResponseSequenceAndRepeatsTheLast() throws Exception {
+    MockHttpClient.Route route = mClient.when("GET", "/v2/me")
+        .thenRespond(503, "")
+        .thenReset()
+        .thenTimeout()
+        .thenRespond(200, "me");
+
+    assertThat(mClient.execute(new HttpGet("/v2/me")).getStatusLine().getStatusCode(), is(503));
+    assertThrows(SocketException.class, new HttpGet("/v2/me"));
+    assertThrows(SocketTimeoutException.class, new HttpGet("/v2/me"));
+    assertThat(text(mClient.execute(new HttpGet("/v2/me"))), is("me"));
+    assertThat(text(mClient.execute(new HttpGet("/v2/me"))), is("me"));
+    assertThat(route.getHitCount(), is(5));
+  }
+
+  @Test
+  public void injectsRandomFaults() throws Exception {
+    mClient.when("GET", ".*").withFaults(0, 0, 1.0).thenRespond(200, "ok");
+    assertThat(mClient.execute(new HttpGet("/v2/me")).getStatusLine().getStatusCode(), is(500));
+  }
+
+  @Test
+  public void abortingEndsLatencyEarly() throws Exception {
+    mClient.when("GET", ".*").withLatency(MockHttpClient.Latency.fixed(10, TimeUnit.SECONDS));
+    final HttpGet request = new HttpGet("/v2/slow");
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch(InterruptedException ignored) {}
+        request.abort();
+      }
+    }.start();
+
+    long started = System.currentTimeMillis();
+    assertThrows(InterruptedIOException.class, request);
+    assertThat(System.currentTimeMillis() - started, lessThan(5000L));
+  }
+
+  @Test
+  public void latencyDistributionsStayInRange() {
+    Random random = new Random(1);
+    MockHttpClient.Latency uniform = MockHttpClient.Latency.uniform(5, 10, TimeUnit.MILLISECONDS);
+    MockHttpClient.Latency tail = MockHttpClient.Latency.exponential(1, 5, 100, TimeUnit.MILLISECONDS);
+    for(int i = 0; i < 1000; i++) {
+      assertThat(uniform.nextNanos(random), allOf(greaterThanOrEqualTo(5000000L), lessThanOrEqualTo(10000000L)));
+      assertThat(tail.nextNanos(random), allOf(greaterThanOrEqualTo(1000000L), lessThanOrEqualTo(100000000L)));
+    }
+  }
+
+  @Test
+  public void logsRequestsFromConcurrentThreads() throws Exception {
+    final int threads = 8, requests = 500;
+    final CountDownLatch done = new CountDownLatch(threads);
+    for(int t = 0; t < threads; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for(int i = 0; i < requests; i++) {
+              EntityUtils.toString(mClient.execute(new HttpGet("/v2/books")).getEntity());
+            }
+          } catch(IOException e) {
+            e.printStackTrace();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+
+    assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(mClient.getRequests().size(), is(threads * requests));
+  }
+
+  @Test
+  public void supportsResponseHandlers() throws Exception {
+    String handled = mClient.execute(new HttpGet("/v2/me"), new ResponseHandler<String>() {
+      @Override
+      public String handleResponse(HttpResponse response) throws IOException {
+        return EntityUtils.toString(response.getEntity());
+      }
+    });
+    assertThat(handled, is("canned"));
+  }
+
+  private void assertThrows(Class<? extends IOException> expected, HttpGet request) {
+    try {
+      mClient.execute(request);
+    } catch(IOException e) {
+      assertThat(e, instanceOf(expected));
+      return;
+    }
+    throw new AssertionError("expected " + expected.getSimpleName());
+  }
+
+  private static String text(HttpResponse response) throws IOException {
+    return EntityUtils.toString(response.getEntity());
+  }
+}
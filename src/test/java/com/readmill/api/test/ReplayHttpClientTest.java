@@ -0,0 +1,92 @@
+package com.readmill.api.test;
+
+import com.readmill.api.Environment;
+import com.readmill.api.ReadmillWrapper;
+import com.readmill.api.Token;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ReplayHttpClientTest {
+  private File mRecording;
+
+  @Before
+  public void createRecording() throws IOException {
+    mRecording = File.createTempFile("traffic", ".rec");
+  }
+
+  @After
+  public void deleteRecording() {
+    mRecording.delete();
+  }
+
+  @Test
+  public void replaysRecordedResponsesThroughWrapper() throws Exception {
+    MockHttpClient server = new MockHttpClient();
+    RecordingHttpClient recorder = new RecordingHttpClient(server, mRecording);
+    ReadmillWrapper recording = wrapperUsing(recorder);
+    recording.setToken(new Token("recording-token", null, "*"));
+
+    server.respondWithText("{ \"book\": { \"id\": 1 } }");
+    recording.get("/books/1").fetch();
+    server.respondWithText("{ \"book\": { \"id\": 2 } }");
+    recording.get("/books/2").fetch();
+    recorder.close();
+    assertThat(recorder.getRecordedCount(), is(2));
+
+    ReplayHttpClient replay = new ReplayHttpClient(mRecording);
+    ReadmillWrapper replaying = wrapperUsing(replay);
+    // Credentials are not part of the request key
+    replaying.setToken(new Token("another-token", null, "*"));
+
+    assertThat(replaying.get("/books/2").fetch().getJSONObject("book").getInt("id"), is(2));
+    assertThat(replaying.get("/books/1").fetch().getJSONObject("book").getInt("id"), is(1));
+    assertThat(replay.getRecordedKeyCount(), is(2));
+  }
+
+  @Test
+  public void servesRepeatedRequestsInRecordedOrder() throws Exception {
+    MockHttpClient server = new MockHttpClient();
+    RecordingHttpClient recorder = new RecordingHttpClient(server, mRecording);
+    server.respondWithText("first");
+    recorder.execute(new HttpGet("/v2/me"));
+    server.respondWithStatusAndText(503, "second");
+    recorder.execute(new HttpGet("/v2/me"));
+    recorder.close();
+
+    ReplayHttpClient replay = new ReplayHttpClient(mRecording);
+    assertThat(EntityUtils.toString(replay.execute(new HttpGet("/v2/me")).getEntity()), is("first"));
+    assertThat(replay.execute(new HttpGet("/v2/me")).getStatusLine().getStatusCode(), is(503));
+    assertThat(EntityUtils.toString(replay.execute(new HttpGet("/v2/me")).getEntity()), is("first"));
+  }
+
+  @Test
+  public void unknownRequestsFail() throws Exception {
+    new RecordingHttpClient(new MockHttpClient(), mRecording).close();
+    ReplayHttpClient replay = new ReplayHttpClient(mRecording);
+
+    try {
+      replay.execute(new HttpGet("/v2/me"));
+      throw new AssertionError("expected an IOException");
+    } catch(IOException expected) {}
+    assertThat(replay.getMissCount(), is(1L));
+  }
+
+  private static ReadmillWrapper wrapperUsing(final HttpClient client) {
+    return new ReadmillWrapper("client-id", "client-secret", new Environment("api.example.com", "www.example.com", false)) {
+      @Override
+      protected HttpClient createHttpClient() {
+        return client;
+      }
+    };
+  }
+}